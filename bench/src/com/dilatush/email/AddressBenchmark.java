@@ -0,0 +1,47 @@
+package com.dilatush.email;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the validation of email addresses, as done for every recipient of a bulk mailing.  The addresses are a realistic mix: bare and with
+ * display names, simple and elaborate, and a few invalid ones.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class AddressBenchmark {
+
+    private static final String[] ADDRESSES = {
+            "tom@dilatush.com",
+            "Tom Dilatush<tom@dilatush.com>",
+            "Dilatush Weather <weather.reports+daily@mail.dilatush.com>",
+            "first.middle.last@subdomain.some-company.co.uk",
+            "\"quoted name\"@dilatush.com",
+            "o'brien@irish-pub.ie",
+            "not an address",
+            "bogus@example.com",
+            "bogus@dilatush..com"
+    };
+
+    // the time reported is per address...
+    @Benchmark
+    @OperationsPerInvocation( 9 )
+    public void fromString( final Blackhole _blackhole ) {
+        for( String address : ADDRESSES )
+            _blackhole.consume( EmailAddress.fromString( address ) );
+    }
+}
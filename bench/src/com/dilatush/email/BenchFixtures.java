@@ -0,0 +1,118 @@
+package com.dilatush.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Loads the fixtures (realistic messages, HTML, and include files) that the benchmarks run against.  The fixtures are in the directory named by
+ * the "bench.fixtures" system property, which defaults to "bench/fixtures" (relative to the project directory, which is where IntelliJ runs
+ * things).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class BenchFixtures {
+
+    /** The name of the transfer directory the fixtures are copied into. */
+    static final String TRANSFER_NAME = "bench";
+
+    // the images referred to by the HTML fixtures, with their sizes; they're generated rather than kept in the repository...
+    private static final Map<String,Integer> IMAGES = Map.of(
+            "logo.png",     6_000,
+            "station.jpg", 30_000,
+            "chart.png",   12_000 );
+
+
+    private BenchFixtures() {}
+
+
+    /**
+     * Returns the fixture with the given file name, as bytes.
+     *
+     * @param _name the file name of the fixture
+     * @return the content of the fixture
+     * @throws IOException on any problem reading the fixture
+     */
+    static byte[] bytes( final String _name ) throws IOException {
+        return Files.readAllBytes( directory().resolve( _name ) );
+    }
+
+
+    /**
+     * Returns the fixture with the given file name, as (UTF-8) text.
+     *
+     * @param _name the file name of the fixture
+     * @return the content of the fixture
+     * @throws IOException on any problem reading the fixture
+     */
+    static String text( final String _name ) throws IOException {
+        return new String( bytes( _name ), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * Create a temporary, read-only transfer directory containing copies of all the fixtures, plus the images they refer to.  The directory should
+     * be deleted with {@link #delete(TransferDirectory)} when the benchmark is done with it.
+     *
+     * @return the transfer directory
+     * @throws IOException on any problem creating the directory or its files
+     */
+    static TransferDirectory transferDirectory() throws IOException {
+
+        Path dir = Files.createTempDirectory( "email-bench-" );
+        try( Stream<Path> fixtures = Files.list( directory() ) ) {
+            for( Path fixture : (Iterable<Path>) fixtures::iterator )
+                Files.copy( fixture, dir.resolve( fixture.getFileName() ) );
+        }
+        Random random = new Random( 42 );
+        for( Map.Entry<String,Integer> image : IMAGES.entrySet() ) {
+            byte[] content = new byte[image.getValue()];
+            random.nextBytes( content );
+            Files.write( dir.resolve( image.getKey() ), content );
+        }
+        return new TransferDirectory( TRANSFER_NAME, dir.toFile(), TransferDirectory.Mode.READ_ONLY );
+    }
+
+
+    /**
+     * Delete the given temporary transfer directory, and everything in it.
+     *
+     * @param _directory the transfer directory to delete
+     * @throws IOException on any problem deleting the directory
+     */
+    static void delete( final TransferDirectory _directory ) throws IOException {
+
+        try( Stream<Path> files = Files.walk( _directory.directory().toPath() ) ) {
+            for( Path file : (Iterable<Path>) files.sorted( Comparator.reverseOrder() )::iterator )
+                Files.delete( file );
+        }
+    }
+
+
+    /**
+     * Create an email service that can build (but not send) messages, reading from the given transfer directory.  Nothing connects to the SMTP
+     * server it's configured with unless a message is actually sent.
+     *
+     * @param _directory the transfer directory the service reads from
+     * @return the email service
+     */
+    static EmailService service( final TransferDirectory _directory ) {
+
+        Properties props = new Properties();
+        props.setProperty( "mail.smtp.host", "localhost" );
+        props.setProperty( "mail.smtp.port", "25" );
+        return new EmailService( props, Map.of( TRANSFER_NAME, _directory ) );
+    }
+
+
+    private static Path directory() {
+        return new File( System.getProperty( "bench.fixtures", "bench/fixtures" ) ).toPath();
+    }
+}
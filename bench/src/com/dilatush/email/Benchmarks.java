@@ -0,0 +1,29 @@
+package com.dilatush.email;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks, with the GC profiler, so that each benchmark reports its allocation rate (and bytes allocated per operation) along with
+ * its time.  Run it from the project directory, so that the fixtures are found.  The arguments, if any, are regular expressions selecting which
+ * benchmarks to run (for instance, "SendBenchmark" or "ReceiveBenchmark.getText"); with no arguments, all of them are run.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class Benchmarks {
+
+    public static void main( final String[] _args ) throws RunnerException {
+
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .addProfiler( GCProfiler.class )
+                .jvmArgsAppend( "-Dbench.fixtures=" + System.getProperty( "bench.fixtures", "bench/fixtures" ) );
+        if( _args.length == 0 )
+            options.include( "com\\.dilatush\\.email\\..*Benchmark" );
+        for( String arg : _args )
+            options.include( arg );
+        new Runner( options.build() ).run();
+    }
+}
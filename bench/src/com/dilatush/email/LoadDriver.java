@@ -0,0 +1,213 @@
+package com.dilatush.email;
+
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes messages through {@link EmailService} to a {@link LoopbackMailServer}, end to end (building each message, then sending it over SMTP
+ * through the service's connection pool and provider router), and reports the send rate and the latency distribution.  It's for capacity
+ * planning without a real provider, on a developer's machine or a CI machine.  Run it from the project directory (so that the fixtures are found)
+ * with any of these arguments, as "name=value":
+ * <ul>
+ *     <li>messages: the number of messages to send (default 10000)</li>
+ *     <li>warmup: the number of messages to send first, without measuring them (default 1000)</li>
+ *     <li>threads: the number of threads sending at once (default 8)</li>
+ *     <li>pool: the size of the service's SMTP connection pool (default 4)</li>
+ *     <li>html: "true" to send the HTML report fixture, with its inlined images, as well as text (default false)</li>
+ *     <li>tls: "true" to have the server offer STARTTLS, which the service then requires (default false)</li>
+ *     <li>latency: the server's artificial latency before each reply, in milliseconds (default 0)</li>
+ *     <li>jitter: the maximum random extra latency before each reply, in milliseconds (default 0)</li>
+ *     <li>throttle: the most messages per second the server accepts before replying "451" (default 0, no limit)</li>
+ *     <li>failures: the fraction of messages the server rejects with "554" (default 0)</li>
+ *     <li>disconnects: the fraction of messages after which the server drops the connection (default 0)</li>
+ *     <li>verbose: "true" to log the service's warnings about failed sends (default false)</li>
+ * </ul>
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public final class LoadDriver {
+
+    // held here so that the level we set on it isn't lost when it's garbage collected...
+    private static final Logger EMAIL_LOGGER = Logger.getLogger( "com.dilatush.email" );
+
+    private static final String TEXT = "Daily weather report\n\nHigh: 72F\nLow: 41F\nRain: 0.02\"\n";
+
+
+    /**
+     * The outcome of a load run: how many messages were sent (and how many of them failed), how long it took, and how long each send took.
+     *
+     * @param messages the number of messages sent
+     * @param failed the number of sends that failed
+     * @param elapsedNS the time the whole run took, in nanoseconds
+     * @param latenciesNS the time each send took, in nanoseconds, in ascending order
+     */
+    public record Report( int messages, int failed, long elapsedNS, long[] latenciesNS ) {
+
+
+        /**
+         * Returns the number of messages sent per second, over the whole run.
+         *
+         * @return the sends per second
+         */
+        public double sendsPerSecond() {
+            return messages * 1e9 / Math.max( 1, elapsedNS );
+        }
+
+
+        /**
+         * Returns the given percentile (from 0 to 1) of the send latencies, in nanoseconds: the latency that that fraction of the sends took no
+         * longer than.
+         *
+         * @param _percentile the percentile, from 0 to 1 (for instance, 0.99 for p99)
+         * @return the latency at that percentile
+         */
+        public long percentileNS( final double _percentile ) {
+
+            if( (_percentile < 0) || (_percentile > 1) )
+                throw new IllegalArgumentException( "Percentile not in [0..1]: " + _percentile );
+            if( latenciesNS.length == 0 )
+                return 0;
+            int index = (int) Math.ceil( _percentile * latenciesNS.length ) - 1;
+            return latenciesNS[Math.max( 0, Math.min( latenciesNS.length - 1, index ) )];
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format( "sent %d (%d failed) in %.3f s: %.1f sends/s%nlatency p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms",
+                    messages, failed, elapsedNS / 1e9, sendsPerSecond(),
+                    percentileNS( 0.5 ) / 1e6, percentileNS( 0.99 ) / 1e6, percentileNS( 0.999 ) / 1e6, percentileNS( 1 ) / 1e6 );
+        }
+    }
+
+
+    private LoadDriver() {}
+
+
+    public static void main( final String[] _args ) throws IOException, GeneralSecurityException, AddressException, InterruptedException {
+
+        Map<String,String> options = new HashMap<>();
+        for( String arg : _args ) {
+            int equals = arg.indexOf( '=' );
+            if( equals < 1 )
+                throw new IllegalArgumentException( "Arguments must be name=value: " + arg );
+            options.put( arg.substring( 0, equals ).toLowerCase( Locale.ROOT ), arg.substring( equals + 1 ) );
+        }
+        int     messages    = Integer.parseInt( options.getOrDefault( "messages", "10000" ) );
+        int     warmup      = Integer.parseInt( options.getOrDefault( "warmup",   "1000"  ) );
+        int     threads     = Integer.parseInt( options.getOrDefault( "threads",  "8"     ) );
+        int     pool        = Integer.parseInt( options.getOrDefault( "pool",     "4"     ) );
+        boolean html        = Boolean.parseBoolean( options.get( "html" ) );
+        boolean tls         = Boolean.parseBoolean( options.get( "tls" ) );
+        if( (messages < 1) || (warmup < 0) || (threads < 1) || (pool < 1) )
+            throw new IllegalArgumentException( "Messages, threads, and pool must be at least one, and warmup may not be negative" );
+        if( !Boolean.parseBoolean( options.get( "verbose" ) ) )
+            EMAIL_LOGGER.setLevel( Level.SEVERE );
+
+        SSLContext context = tls ? LoopbackMailServer.selfSignedTLS() : null;
+        try( LoopbackMailServer server = new LoopbackMailServer( "load", "load-password", context ) ) {
+
+            // the messages aren't kept, so that a long run doesn't fill the heap...
+            LoopbackMailServer.Behavior behavior = server.getBehavior();
+            behavior.deliver              = false;
+            behavior.latencyMS            = Long.parseLong( options.getOrDefault( "latency", "0" ) );
+            behavior.latencyJitterMS      = Long.parseLong( options.getOrDefault( "jitter", "0" ) );
+            behavior.maxMessagesPerSecond = Integer.parseInt( options.getOrDefault( "throttle", "0" ) );
+            behavior.failureRate          = Double.parseDouble( options.getOrDefault( "failures", "0" ) );
+            behavior.disconnectRate       = Double.parseDouble( options.getOrDefault( "disconnects", "0" ) );
+
+            TransferDirectory directory = html ? BenchFixtures.transferDirectory() : null;
+            EmailService.Config config = new EmailService.Config();
+            config.providers            = List.of( new EmailProvider( "loopback", server.getSessionProperties(), true, true, true, 0 ) );
+            config.transferDirectoryMap = (directory == null) ? Map.of() : Map.of( BenchFixtures.TRANSFER_NAME, directory );
+            config.smtpPoolSize         = pool;
+            EmailService service = new EmailService( config );
+            try {
+                OutboundEmailMessage message = new OutboundEmailMessage( "Dilatush Weather<weather@dilatush.com>", "Daily weather report", TEXT,
+                        html ? BenchFixtures.text( "report-images.html" ) : null );
+                InternetAddress[] to = InternetAddress.parse( "Tom Dilatush<tom@dilatush.com>" );
+
+                System.out.printf( "Sending %d messages (after %d to warm up) on %d threads through %d connections%s: latency %s ms (+%s), "
+                                + "throttle %d/s, failures %.3f, disconnects %.3f%n",
+                        messages, warmup, threads, pool, tls ? " with STARTTLS" : "", behavior.latencyMS, behavior.latencyJitterMS,
+                        behavior.maxMessagesPerSecond, behavior.failureRate, behavior.disconnectRate );
+                if( warmup > 0 )
+                    run( service.getSender(), to, message, warmup, threads );
+                long accepted = server.getAcceptedCount();
+                long refused  = server.getRejectedCount();
+                Report report = run( service.getSender(), to, message, messages, threads );
+                System.out.println( report );
+                System.out.printf( "server accepted %d, refused %d%n", server.getAcceptedCount() - accepted, server.getRejectedCount() - refused );
+            }
+            finally {
+                service.close();
+                if( directory != null )
+                    BenchFixtures.delete( directory );
+            }
+        }
+    }
+
+
+    /**
+     * Send the given message the given number of times, from the given number of threads at once, and report how it went.
+     *
+     * @param _sender the sender to send with
+     * @param _to the addressees to send the message to
+     * @param _message the message to send
+     * @param _messages the number of times to send the message
+     * @param _threads the number of threads to send from
+     * @return the report of the run
+     * @throws InterruptedException if interrupted while waiting for the sends to finish
+     */
+    public static Report run( final EmailSender _sender, final InternetAddress[] _to, final OutboundEmailMessage _message, final int _messages,
+                              final int _threads ) throws InterruptedException {
+
+        long[] latencies = new long[_messages];
+        AtomicInteger next   = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch( 1 );
+        ExecutorService executor = Executors.newFixedThreadPool( _threads );
+        for( int t = 0; t < _threads; t++ ) {
+            executor.execute( () -> {
+                try {
+                    start.await();
+                }
+                catch( InterruptedException _e ) {
+                    return;
+                }
+                int i;
+                while( (i = next.getAndIncrement()) < _messages ) {
+                    long sendStart = System.nanoTime();
+                    Result<?> result = _sender.send( _to, null, null, _message );
+                    latencies[i] = System.nanoTime() - sendStart;
+                    if( !result.ok() )
+                        failed.incrementAndGet();
+                }
+            } );
+        }
+        long runStart = System.nanoTime();
+        start.countDown();
+        executor.shutdown();
+        if( !executor.awaitTermination( 1, TimeUnit.DAYS ) )
+            throw new IllegalStateException( "Load run didn't finish" );
+        long elapsed = System.nanoTime() - runStart;
+        Arrays.sort( latencies );
+        return new Report( _messages, failed.get(), elapsed, latencies );
+    }
+}
@@ -0,0 +1,251 @@
+package com.dilatush.email;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The base of the protocol sessions of a {@link LoopbackMailServer}: one client connection, with line-oriented reading and writing, the switch to
+ * TLS (for STARTTLS), and the server's artificial latency.  Each connection is served by its own thread, which runs {@link #serve()}.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+abstract class LoopbackConnection implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int MAX_LINE = 1 << 20;
+
+    protected final LoopbackMailServer server;
+
+    private final ByteArrayOutputStream partial = new ByteArrayOutputStream();   // the line read so far, kept across read timeouts...
+
+    private Socket                      socket;
+    private InputStream                 in;
+    private OutputStream                out;
+    private boolean                     secure;
+
+
+    protected LoopbackConnection( final LoopbackMailServer _server, final Socket _socket ) throws IOException {
+        server = _server;
+        socket = _socket;
+        in     = new BufferedInputStream( _socket.getInputStream() );
+        out    = new BufferedOutputStream( _socket.getOutputStream() );
+    }
+
+
+    @Override
+    public void run() {
+
+        try {
+            serve();
+        }
+        catch( EOFException | SocketTimeoutException _e ) {
+            // the client went away, or went quiet for too long; either way, we're done...
+        }
+        catch( IOException _e ) {
+            if( !socket.isClosed() )
+                LOGGER.log( Level.FINE, "Loopback connection failed", _e );
+        }
+        catch( RuntimeException _e ) {
+            LOGGER.log( Level.WARNING, "Loopback connection failed", _e );
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing loopback connection", _e );
+            }
+            closed();
+        }
+    }
+
+
+    /**
+     * Serve the client, until it quits or the connection fails.
+     *
+     * @throws IOException on any I/O problem
+     */
+    protected abstract void serve() throws IOException;
+
+
+    /**
+     * Called when the connection has closed, for any reason.  By default, this does nothing.
+     */
+    protected void closed() {}
+
+
+    /**
+     * Read a line from the client, without its line terminator (CRLF, or a bare LF).  If the read times out, what was read so far is kept, and the
+     * next read continues the same line.
+     *
+     * @return the line read, as bytes
+     * @throws EOFException if the client closed the connection
+     * @throws IOException on any other I/O problem
+     */
+    protected byte[] readLineBytes() throws IOException {
+
+        while( true ) {
+            int b = in.read();
+            if( b < 0 )
+                throw new EOFException();
+            if( b == '\n' ) {
+                byte[] line = partial.toByteArray();
+                partial.reset();
+                int length = ((line.length > 0) && (line[line.length - 1] == '\r')) ? line.length - 1 : line.length;
+                return (length == line.length) ? line : Arrays.copyOf( line, length );
+            }
+            if( partial.size() >= MAX_LINE )
+                throw new IOException( "Line too long" );
+            partial.write( b );
+        }
+    }
+
+
+    /**
+     * Read a line from the client, as (UTF-8) text, without its line terminator.
+     *
+     * @return the line read
+     * @throws IOException on any I/O problem
+     */
+    protected String readLine() throws IOException {
+        return new String( readLineBytes(), StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * Read exactly the given number of bytes from the client (for an IMAP literal).
+     *
+     * @param _count the number of bytes to read
+     * @return the bytes read
+     * @throws IOException on any I/O problem
+     */
+    protected byte[] readBytes( final int _count ) throws IOException {
+        byte[] bytes = in.readNBytes( _count );
+        if( bytes.length < _count )
+            throw new EOFException();
+        return bytes;
+    }
+
+
+    /**
+     * Write the given line (adding CRLF) to the client, without flushing.
+     *
+     * @param _line the line to write
+     * @throws IOException on any I/O problem
+     */
+    protected void write( final String _line ) throws IOException {
+        out.write( _line.getBytes( StandardCharsets.UTF_8 ) );
+        out.write( '\r' );
+        out.write( '\n' );
+    }
+
+
+    /**
+     * Write the given bytes to the client, as they are, without flushing.
+     *
+     * @param _bytes the bytes to write
+     * @throws IOException on any I/O problem
+     */
+    protected void writeBytes( final byte[] _bytes ) throws IOException {
+        out.write( _bytes );
+    }
+
+
+    /**
+     * Write the given line (adding CRLF) to the client, and send it (and anything written before it) after the server's artificial latency.
+     *
+     * @param _line the line to write
+     * @throws IOException on any I/O problem
+     */
+    protected void reply( final String _line ) throws IOException {
+        write( _line );
+        flush();
+    }
+
+
+    /**
+     * Send everything written so far, after the server's artificial latency.
+     *
+     * @throws IOException on any I/O problem
+     */
+    protected void flush() throws IOException {
+
+        LoopbackMailServer.Behavior behavior = server.getBehavior();
+        long delayMS = behavior.latencyMS + ((behavior.latencyJitterMS > 0) ? ThreadLocalRandom.current().nextLong( behavior.latencyJitterMS + 1 ) : 0);
+        if( delayMS > 0 ) {
+            try {
+                Thread.sleep( delayMS );
+            }
+            catch( InterruptedException _e ) {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted", _e );
+            }
+        }
+        out.flush();
+    }
+
+
+    /**
+     * Sets the time (in milliseconds) a read waits for the client before timing out with a {@link SocketTimeoutException}; zero waits forever.
+     *
+     * @param _timeoutMS the read timeout
+     * @throws IOException on any I/O problem
+     */
+    protected void setReadTimeout( final int _timeoutMS ) throws IOException {
+        socket.setSoTimeout( _timeoutMS );
+    }
+
+
+    /**
+     * Switch this connection to TLS (after the STARTTLS reply has been sent), as the server side of the handshake.
+     *
+     * @param _tls the TLS context to use
+     * @throws IOException on any problem with the handshake
+     */
+    protected void startTLS( final SSLContext _tls ) throws IOException {
+
+        SSLSocket tlsSocket = (SSLSocket) _tls.getSocketFactory().createSocket( socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true );
+        tlsSocket.setUseClientMode( false );
+        tlsSocket.startHandshake();
+        socket = tlsSocket;
+        in     = new BufferedInputStream( tlsSocket.getInputStream() );
+        out    = new BufferedOutputStream( tlsSocket.getOutputStream() );
+        secure = true;
+        partial.reset();
+    }
+
+
+    /**
+     * Returns {@code true} if this connection has been switched to TLS.
+     *
+     * @return {@code true} if this connection is secure
+     */
+    protected boolean isSecure() {
+        return secure;
+    }
+
+
+    /**
+     * Close the connection abruptly, without any reply (for failure injection).
+     *
+     * @throws IOException on any problem closing the connection
+     */
+    protected void drop() throws IOException {
+        socket.close();
+    }
+}
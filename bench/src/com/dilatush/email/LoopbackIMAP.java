@@ -0,0 +1,962 @@
+package com.dilatush.email;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.ContentDisposition;
+import jakarta.mail.internet.ContentType;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimePart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.ParameterList;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * An IMAP session of a {@link LoopbackMailServer}, speaking enough IMAP4rev1 for Jakarta Mail's IMAP provider: CAPABILITY, LOGIN, NAMESPACE,
+ * LIST, LSUB, STATUS, SELECT, EXAMINE, FETCH, STORE, EXPUNGE, CLOSE, UNSELECT, NOOP, CHECK, IDLE, and LOGOUT (and the UID forms of FETCH, STORE,
+ * and EXPUNGE).  FETCH supports the envelope, the body structure, and any body section (including partial fetches), which is everything Jakarta
+ * Mail asks for when reading a message.  The only mailbox is INBOX.
+ * <p>
+ * Each session has its own view of the inbox, as IMAP requires: messages added or removed by other sessions (or delivered over SMTP) are reported
+ * to the client with EXISTS and EXPUNGE responses at NOOP, CHECK, and IDLE.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class LoopbackIMAP extends LoopbackConnection {
+
+    private static final int               READ_TIMEOUT_MS = 1_800_000;
+    private static final int               IDLE_POLL_MS    = 50;
+    private static final String            CAPABILITIES    = "IMAP4rev1 IDLE UIDPLUS UNSELECT NAMESPACE";
+    private static final String            FLAGS           = "(\\Answered \\Flagged \\Deleted \\Seen \\Draft)";
+    private static final DateTimeFormatter INTERNAL_DATE   = DateTimeFormatter.ofPattern( "dd-MMM-yyyy HH:mm:ss Z", Locale.US );
+
+    private boolean                       loggedIn;
+    private List<LoopbackMailbox.Message> view;         // this session's view of the inbox, or null if it isn't selected...
+    private boolean                       writable;     // true if the inbox was selected (not examined)...
+    private long                          knownUID;     // the highest UID this session has told the client about...
+    private long                          version;      // the version of the inbox this session's view was synchronized with...
+
+
+    LoopbackIMAP( final LoopbackMailServer _server, final Socket _socket ) throws IOException {
+        super( _server, _socket );
+    }
+
+
+    @Override
+    protected void serve() throws IOException {
+
+        setReadTimeout( READ_TIMEOUT_MS );
+        reply( "* OK [CAPABILITY " + CAPABILITIES + "] loopback IMAP ready" );
+        while( true ) {
+            List<Object> words = new Parser( readCommand() ).parseAll();
+            if( words.size() < 2 ) {
+                reply( "* BAD Missing command" );
+                continue;
+            }
+            String tag = words.get( 0 ).toString();
+            try {
+                if( !command( tag, words.get( 1 ).toString().toUpperCase( Locale.ROOT ), words.subList( 2, words.size() ) ) )
+                    return;
+            }
+            catch( MessagingException _e ) {
+                reply( tag + " NO " + _e.getMessage() );
+            }
+            catch( RuntimeException _e ) {
+                reply( tag + " BAD Invalid arguments" );
+            }
+        }
+    }
+
+
+    /**
+     * Carry out the given command, and reply to it.
+     *
+     * @return {@code false} if the client logged out
+     */
+    private boolean command( final String _tag, final String _command, final List<Object> _args ) throws IOException, MessagingException {
+
+        switch( _command ) {
+            case "CAPABILITY" -> {
+                write( "* CAPABILITY " + CAPABILITIES );
+                reply( _tag + " OK CAPABILITY completed" );
+                return true;
+            }
+            case "NOOP", "CHECK" -> {
+                if( view != null )
+                    sync();
+                reply( _tag + " OK " + _command + " completed" );
+                return true;
+            }
+            case "LOGOUT" -> {
+                write( "* BYE loopback IMAP signing off" );
+                reply( _tag + " OK LOGOUT completed" );
+                return false;
+            }
+            case "LOGIN" -> {
+                if( server.user.equals( _args.get( 0 ).toString() ) && server.password.equals( _args.get( 1 ).toString() ) ) {
+                    loggedIn = true;
+                    reply( _tag + " OK [CAPABILITY " + CAPABILITIES + "] LOGIN completed" );
+                }
+                else {
+                    reply( _tag + " NO [AUTHENTICATIONFAILED] Authentication failed" );
+                }
+                return true;
+            }
+            default -> {}
+        }
+
+        if( !loggedIn ) {
+            reply( _tag + " NO Not logged in" );
+            return true;
+        }
+        switch( _command ) {
+            case "NAMESPACE"        -> write( "* NAMESPACE ((\"\" \"/\")) NIL NIL" );
+            case "LIST", "LSUB"     -> list( _command, _args.get( 1 ).toString() );
+            case "STATUS"           -> status( _args.get( 0 ).toString(), list( _args.get( 1 ) ) );
+            case "SELECT", "EXAMINE" -> {
+                if( !isInbox( _args.get( 0 ).toString() ) ) {
+                    view = null;
+                    reply( _tag + " NO No such mailbox" );
+                    return true;
+                }
+                select( "SELECT".equals( _command ) );
+                reply( _tag + " OK [" + (writable ? "READ-WRITE" : "READ-ONLY") + "] " + _command + " completed" );
+                return true;
+            }
+            case "IDLE" -> {
+                idle( _tag );
+                return true;
+            }
+            default -> {
+                if( !selected( _tag, _command, _args ) )
+                    reply( _tag + " BAD Unrecognized command" );
+                return true;
+            }
+        }
+        reply( _tag + " OK " + _command + " completed" );
+        return true;
+    }
+
+
+    /**
+     * Carry out the given command, if it's one that needs the inbox selected, and reply to it.
+     *
+     * @return {@code false} if the command isn't recognized
+     */
+    private boolean selected( final String _tag, final String _command, final List<Object> _args ) throws IOException, MessagingException {
+
+        boolean uid = "UID".equals( _command );
+        String command = uid ? _args.get( 0 ).toString().toUpperCase( Locale.ROOT ) : _command;
+        List<Object> args = uid ? _args.subList( 1, _args.size() ) : _args;
+        if( !Set.of( "FETCH", "STORE", "EXPUNGE", "CLOSE", "UNSELECT" ).contains( command ) )
+            return false;
+        if( view == null ) {
+            reply( _tag + " BAD No mailbox selected" );
+            return true;
+        }
+        switch( command ) {
+            case "FETCH"    -> fetch( messages( args.get( 0 ).toString(), uid ), fetchItems( args.get( 1 ) ), uid );
+            case "STORE"    -> {
+                if( !writable ) {
+                    reply( _tag + " NO Mailbox is read-only" );
+                    return true;
+                }
+                store( messages( args.get( 0 ).toString(), uid ), args.get( 1 ).toString().toUpperCase( Locale.ROOT ), list( args.get( 2 ) ), uid );
+            }
+            case "EXPUNGE"  -> {
+                if( !writable ) {
+                    reply( _tag + " NO Mailbox is read-only" );
+                    return true;
+                }
+                expunge( uid ? new HashSet<>( messages( args.get( 0 ).toString(), true ) ) : null, true );
+            }
+            case "CLOSE", "UNSELECT" -> {
+                if( writable && "CLOSE".equals( command ) )
+                    expunge( null, false );
+                view = null;
+            }
+            default -> {}
+        }
+        reply( _tag + " OK " + (uid ? "UID " : "") + command + " completed" );
+        return true;
+    }
+
+
+    private void list( final String _command, final String _pattern ) throws IOException {
+
+        if( _pattern.isEmpty() )
+            write( "* " + _command + " (\\Noselect) \"/\" \"\"" );
+        else if( _pattern.equals( "*" ) || _pattern.equals( "%" ) || isInbox( _pattern ) )
+            write( "* " + _command + " (\\HasNoChildren) \"/\" INBOX" );
+    }
+
+
+    private void status( final String _mailbox, final List<Object> _items ) throws IOException, MessagingException {
+
+        if( !isInbox( _mailbox ) )
+            throw new MessagingException( "No such mailbox" );
+        List<LoopbackMailbox.Message> messages = server.inbox().snapshot();
+        List<String> values = new ArrayList<>();
+        for( Object item : _items ) {
+            String name = item.toString().toUpperCase( Locale.ROOT );
+            switch( name ) {
+                case "MESSAGES"    -> values.add( name + " " + messages.size() );
+                case "RECENT"      -> values.add( name + " 0" );
+                case "UIDNEXT"     -> values.add( name + " " + server.inbox().getNextUID() );
+                case "UIDVALIDITY" -> values.add( name + " " + server.inbox().getUIDValidity() );
+                case "UNSEEN"      -> values.add( name + " " + messages.stream().filter( (message) -> !message.hasFlag( "\\Seen" ) ).count() );
+                default            -> throw new IllegalArgumentException( "Unknown status item: " + name );
+            }
+        }
+        write( "* STATUS INBOX (" + String.join( " ", values ) + ")" );
+    }
+
+
+    private void select( final boolean _writable ) throws IOException {
+
+        version  = server.inbox().getVersion();
+        view     = new ArrayList<>( server.inbox().snapshot() );
+        writable = _writable;
+        knownUID = view.isEmpty() ? 0 : view.get( view.size() - 1 ).uid;
+        write( "* FLAGS " + FLAGS );
+        write( "* OK [PERMANENTFLAGS " + (_writable ? FLAGS : "()") + "] Flags permitted" );
+        write( "* " + view.size() + " EXISTS" );
+        write( "* 0 RECENT" );
+        write( "* OK [UIDVALIDITY " + server.inbox().getUIDValidity() + "] UIDs valid" );
+        write( "* OK [UIDNEXT " + server.inbox().getNextUID() + "] Predicted next UID" );
+        for( int i = 0; i < view.size(); i++ ) {
+            if( !view.get( i ).hasFlag( "\\Seen" ) ) {
+                write( "* OK [UNSEEN " + (i + 1) + "] First unseen" );
+                break;
+            }
+        }
+    }
+
+
+    /**
+     * Wait for the client to end the IDLE (with DONE), telling it about any changes to the inbox as they happen.
+     */
+    private void idle( final String _tag ) throws IOException {
+
+        reply( "+ idling" );
+        setReadTimeout( IDLE_POLL_MS );
+        try {
+            while( true ) {
+                try {
+                    String line = readLine();
+                    if( !"DONE".equalsIgnoreCase( line.trim() ) ) {
+                        reply( _tag + " BAD Expected DONE" );
+                        return;
+                    }
+                    break;
+                }
+                catch( SocketTimeoutException _e ) {
+                    if( (view != null) && (server.inbox().getVersion() != version) ) {
+                        sync();
+                        flush();
+                    }
+                }
+            }
+        }
+        finally {
+            setReadTimeout( READ_TIMEOUT_MS );
+        }
+        if( view != null )
+            sync();
+        reply( _tag + " OK IDLE terminated" );
+    }
+
+
+    /**
+     * Bring this session's view of the inbox up to date, telling the client (with EXPUNGE and EXISTS responses) what changed.
+     */
+    private void sync() throws IOException {
+
+        version = server.inbox().getVersion();
+        List<LoopbackMailbox.Message> current = server.inbox().snapshot();
+        Set<LoopbackMailbox.Message> present = Collections.newSetFromMap( new IdentityHashMap<>() );
+        present.addAll( current );
+        for( int i = view.size() - 1; i >= 0; i-- ) {
+            if( !present.contains( view.get( i ) ) ) {
+                view.remove( i );
+                write( "* " + (i + 1) + " EXPUNGE" );
+            }
+        }
+        int size = view.size();
+        for( LoopbackMailbox.Message message : current ) {
+            if( message.uid > knownUID ) {
+                view.add( message );
+                knownUID = message.uid;
+            }
+        }
+        if( view.size() != size )
+            write( "* " + view.size() + " EXISTS" );
+    }
+
+
+    private void fetch( final List<LoopbackMailbox.Message> _messages, final List<String> _items, final boolean _uid ) throws IOException, MessagingException {
+
+        for( LoopbackMailbox.Message message : _messages ) {
+            Response response = new Response();
+            response.raw( "* " + (view.indexOf( message ) + 1) + " FETCH (" );
+            boolean first = true;
+            boolean wasSeen = message.hasFlag( "\\Seen" );
+            if( _uid && !_items.contains( "UID" ) ) {
+                response.raw( "UID " + message.uid );
+                first = false;
+            }
+            for( String item : _items ) {
+                if( !first )
+                    response.raw( " " );
+                first = false;
+                fetchItem( response, message, item );
+            }
+            if( !wasSeen && message.hasFlag( "\\Seen" ) && !_items.contains( "FLAGS" ) )
+                response.raw( " FLAGS " + flags( message ) );
+            response.raw( ")\r\n" );
+            writeBytes( response.toByteArray() );
+        }
+    }
+
+
+    private void fetchItem( final Response _response, final LoopbackMailbox.Message _message, final String _item ) throws MessagingException {
+
+        String name = _item.toUpperCase( Locale.ROOT );
+        switch( name ) {
+            case "UID"           -> _response.raw( "UID " + _message.uid );
+            case "FLAGS"         -> _response.raw( "FLAGS " + flags( _message ) );
+            case "INTERNALDATE"  -> _response.raw( "INTERNALDATE \"" + INTERNAL_DATE.format( _message.received.toInstant().atZone( ZoneId.systemDefault() ) ) + "\"" );
+            case "RFC822.SIZE"   -> _response.raw( "RFC822.SIZE " + _message.raw.length );
+            case "ENVELOPE"      -> { _response.raw( "ENVELOPE " ); envelope( _response, _message.parsed() ); }
+            case "BODYSTRUCTURE" -> { _response.raw( "BODYSTRUCTURE " ); structure( _response, _message.parsed(), true ); }
+            case "BODY"          -> { _response.raw( "BODY " ); structure( _response, _message.parsed(), false ); }
+            case "RFC822"        -> { seen( _message ); _response.raw( "RFC822 " ); _response.literal( _message.raw ); }
+            case "RFC822.HEADER" -> { _response.raw( "RFC822.HEADER " ); _response.literal( header( _message.parsed(), _message.raw ) ); }
+            case "RFC822.TEXT"   -> { seen( _message ); _response.raw( "RFC822.TEXT " ); _response.literal( raw( _message.parsed() ) ); }
+            default              -> section( _response, _message, _item );
+        }
+    }
+
+
+    /**
+     * Fetch a body section: {@code BODY[section]<origin.count>}, or the same with {@code BODY.PEEK}.
+     */
+    private void section( final Response _response, final LoopbackMailbox.Message _message, final String _item ) throws MessagingException {
+
+        int open  = _item.indexOf( '[' );
+        int close = _item.lastIndexOf( ']' );
+        String prefix = (open < 0) ? "" : _item.substring( 0, open ).toUpperCase( Locale.ROOT );
+        if( (close < open) || !(prefix.equals( "BODY" ) || prefix.equals( "BODY.PEEK" )) )
+            throw new IllegalArgumentException( "Unknown fetch item: " + _item );
+        String section = _item.substring( open + 1, close );
+        byte[] bytes = sectionBytes( _message, section );
+
+        // a partial fetch returns just the bytes asked for, and says where they started...
+        String origin = "";
+        String partial = _item.substring( close + 1 );
+        if( partial.startsWith( "<" ) && partial.endsWith( ">" ) ) {
+            String[] range = partial.substring( 1, partial.length() - 1 ).split( "\\." );
+            int start = (int) Math.min( bytes.length, Long.parseLong( range[0] ) );
+            int end   = (range.length > 1) ? (int) Math.min( bytes.length, start + Long.parseLong( range[1] ) ) : bytes.length;
+            bytes  = Arrays.copyOfRange( bytes, start, end );
+            origin = "<" + range[0] + ">";
+        }
+        if( prefix.equals( "BODY" ) )
+            seen( _message );
+        _response.raw( "BODY[" + section + "]" + origin + " " );
+        _response.literal( bytes );
+    }
+
+
+    /**
+     * Returns the bytes of the given section of the given message: the part numbers (if any), then HEADER, HEADER.FIELDS, HEADER.FIELDS.NOT, TEXT,
+     * or MIME (if any).
+     */
+    private static byte[] sectionBytes( final LoopbackMailbox.Message _message, final String _section ) throws MessagingException {
+
+        if( _section.isEmpty() )
+            return _message.raw;
+
+        // follow the part numbers down the message's structure...
+        MimePart part = _message.parsed();
+        boolean root = true;
+        int at = 0;
+        while( (at < _section.length()) && Character.isDigit( _section.charAt( at ) ) ) {
+            int dot = _section.indexOf( '.', at );
+            int end = (dot < 0) ? _section.length() : dot;
+            part = child( part, Integer.parseInt( _section.substring( at, end ) ) );
+            root = false;
+            at = (dot < 0) ? end : dot + 1;
+        }
+        String text = _section.substring( at ).toUpperCase( Locale.ROOT );
+        if( text.isEmpty() )
+            return raw( part );
+        if( text.equals( "MIME" ) ) {
+            if( root )
+                throw new IllegalArgumentException( "MIME needs a part number" );
+            return header( part, null );
+        }
+
+        // HEADER and TEXT are of a message: either the whole one, or one encapsulated in a message/rfc822 part...
+        MimePart message = root ? part : encapsulated( part );
+        byte[] raw = root ? _message.raw : null;
+        if( text.equals( "TEXT" ) )
+            return raw( message );
+        if( text.equals( "HEADER" ) )
+            return header( message, raw );
+        if( text.startsWith( "HEADER.FIELDS" ) ) {
+            boolean not = text.startsWith( "HEADER.FIELDS.NOT" );
+            Set<String> names = new HashSet<>();
+            for( Object name : list( new Parser( text.substring( text.indexOf( '(' ) ) ).parseAll().get( 0 ) ) )
+                names.add( name.toString().toLowerCase( Locale.ROOT ) );
+            StringBuilder fields = new StringBuilder();
+            Enumeration<String> lines = message.getAllHeaderLines();
+            while( lines.hasMoreElements() ) {
+                String line = lines.nextElement();
+                int colon = line.indexOf( ':' );
+                String name = ((colon < 0) ? line : line.substring( 0, colon )).trim().toLowerCase( Locale.ROOT );
+                if( names.contains( name ) != not )
+                    fields.append( line ).append( "\r\n" );
+            }
+            return fields.append( "\r\n" ).toString().getBytes( StandardCharsets.UTF_8 );
+        }
+        throw new IllegalArgumentException( "Unknown section: " + _section );
+    }
+
+
+    /**
+     * Returns the given numbered child of the given part: a part of a multipart, the body of a single part (which is its part 1), or (for a
+     * message/rfc822 part) a part of the encapsulated message.
+     */
+    private static MimePart child( final MimePart _part, final int _number ) throws MessagingException {
+
+        try {
+            if( _part.isMimeType( "multipart/*" ) ) {
+                Multipart multipart = (Multipart) _part.getContent();
+                if( (_number < 1) || (_number > multipart.getCount()) )
+                    throw new IllegalArgumentException( "No such part: " + _number );
+                return (MimePart) multipart.getBodyPart( _number - 1 );
+            }
+            if( (_part instanceof MimeBodyPart) && _part.isMimeType( "message/rfc822" ) )
+                return child( encapsulated( _part ), _number );
+            if( _number != 1 )
+                throw new IllegalArgumentException( "No such part: " + _number );
+            return _part;
+        }
+        catch( IOException _e ) {
+            throw new MessagingException( "Could not read part", _e );
+        }
+    }
+
+
+    private static MimeMessage encapsulated( final MimePart _part ) throws MessagingException {
+        try {
+            if( _part.isMimeType( "message/rfc822" ) && (_part.getContent() instanceof MimeMessage message) )
+                return message;
+            throw new IllegalArgumentException( "Not a message part" );
+        }
+        catch( IOException _e ) {
+            throw new MessagingException( "Could not read part", _e );
+        }
+    }
+
+
+    /**
+     * Returns the raw (still transfer-encoded) content of the given part.
+     */
+    private static byte[] raw( final MimePart _part ) throws MessagingException {
+
+        try( InputStream in = (_part instanceof MimeMessage message) ? message.getRawInputStream() : ((MimeBodyPart) _part).getRawInputStream() ) {
+            return in.readAllBytes();
+        }
+        catch( IOException _e ) {
+            throw new MessagingException( "Could not read part", _e );
+        }
+    }
+
+
+    /**
+     * Returns the header of the given part, ending with its blank line: taken straight from the given raw message, if there is one, or else rebuilt
+     * from the part's header lines.
+     */
+    private static byte[] header( final MimePart _part, final byte[] _raw ) throws MessagingException {
+
+        if( _raw != null ) {
+            for( int i = 0; i + 1 < _raw.length; i++ ) {
+                if( (_raw[i] == '\n') && ((_raw[i + 1] == '\n') || ((_raw[i + 1] == '\r') && (i + 2 < _raw.length) && (_raw[i + 2] == '\n'))) )
+                    return Arrays.copyOf( _raw, i + ((_raw[i + 1] == '\n') ? 2 : 3) );
+            }
+            return _raw;
+        }
+        StringBuilder header = new StringBuilder();
+        Enumeration<String> lines = _part.getAllHeaderLines();
+        while( lines.hasMoreElements() )
+            header.append( lines.nextElement() ).append( "\r\n" );
+        return header.append( "\r\n" ).toString().getBytes( StandardCharsets.UTF_8 );
+    }
+
+
+    private static void envelope( final Response _response, final MimePart _message ) throws MessagingException {
+
+        _response.raw( "(" );
+        _response.nstring( field( _message, "Date" ) );
+        _response.raw( " " );
+        _response.nstring( field( _message, "Subject" ) );
+        String from = field( _message, "From" );
+        for( String name : new String[] { "From", "Sender", "Reply-To", "To", "Cc", "Bcc" } ) {
+            String value = field( _message, name );
+            _response.raw( " " );
+            addresses( _response, ((value == null) && (name.equals( "Sender" ) || name.equals( "Reply-To" ))) ? from : value );
+        }
+        _response.raw( " " );
+        _response.nstring( field( _message, "In-Reply-To" ) );
+        _response.raw( " " );
+        _response.nstring( field( _message, "Message-ID" ) );
+        _response.raw( ")" );
+    }
+
+
+    private static void addresses( final Response _response, final String _header ) {
+
+        Address[] addresses = null;
+        if( _header != null ) {
+            try {
+                addresses = InternetAddress.parseHeader( _header, false );
+            }
+            catch( AddressException _e ) {
+                // an unparseable address is as good as none...
+            }
+        }
+        if( (addresses == null) || (addresses.length == 0) ) {
+            _response.raw( "NIL" );
+            return;
+        }
+        _response.raw( "(" );
+        for( Address address : addresses ) {
+            if( !(address instanceof InternetAddress internet) || (internet.getAddress() == null) )
+                continue;
+            String email = internet.getAddress();
+            int at = email.lastIndexOf( '@' );
+            String personal = internet.getPersonal();
+            if( personal != null ) {
+                try {
+                    personal = MimeUtility.encodeText( personal, "UTF-8", null );
+                }
+                catch( UnsupportedEncodingException _e ) {
+                    personal = null;
+                }
+            }
+            _response.raw( "(" );
+            _response.nstring( personal );
+            _response.raw( " NIL " );
+            _response.nstring( (at < 0) ? email : email.substring( 0, at ) );
+            _response.raw( " " );
+            _response.nstring( (at < 0) ? null : email.substring( at + 1 ) );
+            _response.raw( ")" );
+        }
+        _response.raw( ")" );
+    }
+
+
+    /**
+     * Write the structure of the given part: BODYSTRUCTURE (with the extension data) or BODY (without it).
+     */
+    private static void structure( final Response _response, final MimePart _part, final boolean _extensions ) throws MessagingException {
+
+        ContentType type = contentType( _part );
+        try {
+            if( type.match( "multipart/*" ) ) {
+                Multipart multipart = (Multipart) _part.getContent();
+                _response.raw( "(" );
+                for( int i = 0; i < multipart.getCount(); i++ )
+                    structure( _response, (MimePart) multipart.getBodyPart( i ), _extensions );
+                _response.raw( " " );
+                _response.string( type.getSubType().toUpperCase( Locale.ROOT ) );
+                if( _extensions ) {
+                    _response.raw( " " );
+                    parameters( _response, type.getParameterList() );
+                    _response.raw( " " );
+                    disposition( _response, _part );
+                    _response.raw( " NIL NIL" );
+                }
+                _response.raw( ")" );
+                return;
+            }
+        }
+        catch( IOException _e ) {
+            throw new MessagingException( "Could not read part", _e );
+        }
+
+        byte[] content = raw( _part );
+        String encoding = _part.getEncoding();
+        _response.raw( "(" );
+        _response.string( type.getPrimaryType().toUpperCase( Locale.ROOT ) );
+        _response.raw( " " );
+        _response.string( type.getSubType().toUpperCase( Locale.ROOT ) );
+        _response.raw( " " );
+        parameters( _response, type.getParameterList() );
+        _response.raw( " " );
+        _response.nstring( _part.getContentID() );
+        _response.raw( " " );
+        _response.nstring( field( _part, "Content-Description" ) );
+        _response.raw( " " );
+        _response.string( (encoding == null) ? "7BIT" : encoding.toUpperCase( Locale.ROOT ) );
+        _response.raw( " " + content.length );
+        if( type.match( "message/rfc822" ) && (_part instanceof MimeBodyPart) ) {
+            MimeMessage message = encapsulated( _part );
+            _response.raw( " " );
+            envelope( _response, message );
+            _response.raw( " " );
+            structure( _response, message, _extensions );
+            _response.raw( " " + lines( content ) );
+        }
+        else if( type.match( "text/*" ) ) {
+            _response.raw( " " + lines( content ) );
+        }
+        if( _extensions ) {
+            _response.raw( " " );
+            _response.nstring( field( _part, "Content-MD5" ) );
+            _response.raw( " " );
+            disposition( _response, _part );
+            _response.raw( " NIL NIL" );
+        }
+        _response.raw( ")" );
+    }
+
+
+    private static void parameters( final Response _response, final ParameterList _parameters ) {
+
+        Enumeration<String> names = (_parameters == null) ? null : _parameters.getNames();
+        if( (names == null) || !names.hasMoreElements() ) {
+            _response.raw( "NIL" );
+            return;
+        }
+        _response.raw( "(" );
+        boolean first = true;
+        while( names.hasMoreElements() ) {
+            String name = names.nextElement();
+            if( !first )
+                _response.raw( " " );
+            first = false;
+            _response.string( name );
+            _response.raw( " " );
+            _response.string( _parameters.get( name ) );
+        }
+        _response.raw( ")" );
+    }
+
+
+    private static void disposition( final Response _response, final MimePart _part ) throws MessagingException {
+
+        String header = field( _part, "Content-Disposition" );
+        if( header == null ) {
+            _response.raw( "NIL" );
+            return;
+        }
+        ContentDisposition disposition = new ContentDisposition( header );
+        _response.raw( "(" );
+        _response.string( disposition.getDisposition().toUpperCase( Locale.ROOT ) );
+        _response.raw( " " );
+        parameters( _response, disposition.getParameterList() );
+        _response.raw( ")" );
+    }
+
+
+    private static ContentType contentType( final MimePart _part ) throws MessagingException {
+
+        String header = field( _part, "Content-Type" );
+        try {
+            return new ContentType( (header == null) ? "text/plain; charset=us-ascii" : header );
+        }
+        catch( MessagingException _e ) {
+            return new ContentType( "application/octet-stream" );
+        }
+    }
+
+
+    /**
+     * Returns the (unfolded) value of the given header field of the given part, or {@code null} if it doesn't have one.
+     */
+    private static String field( final MimePart _part, final String _name ) throws MessagingException {
+        String value = _part.getHeader( _name, "," );
+        return (value == null) ? null : MimeUtility.unfold( value ).trim();
+    }
+
+
+    private static int lines( final byte[] _content ) {
+        int lines = 0;
+        for( byte b : _content ) {
+            if( b == '\n' )
+                lines++;
+        }
+        return lines;
+    }
+
+
+    private void store( final List<LoopbackMailbox.Message> _messages, final String _operation, final List<Object> _flags, final boolean _uid ) throws IOException {
+
+        Boolean add = _operation.startsWith( "+" ) ? Boolean.TRUE : _operation.startsWith( "-" ) ? Boolean.FALSE : null;
+        String verb = (add == null) ? _operation : _operation.substring( 1 );
+        if( !verb.startsWith( "FLAGS" ) )
+            throw new IllegalArgumentException( "Unknown store operation: " + _operation );
+        List<String> flags = new ArrayList<>();
+        for( Object flag : _flags )
+            flags.add( capitalize( flag.toString() ) );
+        for( LoopbackMailbox.Message message : _messages ) {
+            message.setFlags( flags, add );
+            if( !verb.endsWith( ".SILENT" ) )
+                write( "* " + (view.indexOf( message ) + 1) + " FETCH (FLAGS " + flags( message ) + (_uid ? " UID " + message.uid : "") + ")" );
+        }
+    }
+
+
+    /**
+     * Remove the messages flagged as deleted (or only those of them in the given set, if there is one) from the inbox, telling the client if
+     * {@code _report} is {@code true}.
+     */
+    private void expunge( final Set<LoopbackMailbox.Message> _only, final boolean _report ) throws IOException {
+
+        List<LoopbackMailbox.Message> removed = new ArrayList<>();
+        for( int i = view.size() - 1; i >= 0; i-- ) {
+            LoopbackMailbox.Message message = view.get( i );
+            if( message.hasFlag( "\\Deleted" ) && ((_only == null) || _only.contains( message )) ) {
+                removed.add( message );
+                view.remove( i );
+                if( _report )
+                    write( "* " + (i + 1) + " EXPUNGE" );
+            }
+        }
+        server.inbox().remove( removed );
+    }
+
+
+    /**
+     * Returns the messages in this session's view of the inbox that are in the given set of message numbers (or UIDs).
+     */
+    private List<LoopbackMailbox.Message> messages( final String _set, final boolean _uid ) {
+
+        long last = view.isEmpty() ? 0 : (_uid ? view.get( view.size() - 1 ).uid : view.size());
+        List<long[]> ranges = new ArrayList<>();
+        for( String range : _set.split( "," ) ) {
+            int colon = range.indexOf( ':' );
+            long from = number( (colon < 0) ? range : range.substring( 0, colon ), last );
+            long to   = (colon < 0) ? from : number( range.substring( colon + 1 ), last );
+            ranges.add( new long[] { Math.min( from, to ), Math.max( from, to ) } );
+        }
+        List<LoopbackMailbox.Message> messages = new ArrayList<>();
+        for( int i = 0; i < view.size(); i++ ) {
+            long n = _uid ? view.get( i ).uid : i + 1;
+            for( long[] range : ranges ) {
+                if( (n >= range[0]) && (n <= range[1]) ) {
+                    messages.add( view.get( i ) );
+                    break;
+                }
+            }
+        }
+        return messages;
+    }
+
+
+    private static long number( final String _number, final long _last ) {
+        return "*".equals( _number ) ? _last : Long.parseLong( _number );
+    }
+
+
+    private static List<String> fetchItems( final Object _items ) {
+
+        List<String> items = new ArrayList<>();
+        for( Object item : (_items instanceof List<?> list) ? list : List.of( _items ) ) {
+            switch( item.toString().toUpperCase( Locale.ROOT ) ) {
+                case "ALL"  -> items.addAll( List.of( "FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE" ) );
+                case "FAST" -> items.addAll( List.of( "FLAGS", "INTERNALDATE", "RFC822.SIZE" ) );
+                case "FULL" -> items.addAll( List.of( "FLAGS", "INTERNALDATE", "RFC822.SIZE", "ENVELOPE", "BODY" ) );
+                default     -> items.add( item.toString().toUpperCase( Locale.ROOT ).startsWith( "BODY" ) ? item.toString() : item.toString().toUpperCase( Locale.ROOT ) );
+            }
+        }
+        return items;
+    }
+
+
+    private void seen( final LoopbackMailbox.Message _message ) {
+        if( writable )
+            _message.setFlags( List.of( "\\Seen" ), true );
+    }
+
+
+    private static String flags( final LoopbackMailbox.Message _message ) {
+        return "(" + String.join( " ", _message.getFlags() ) + ")";
+    }
+
+
+    /**
+     * Returns the given system flag with its usual capitalization (like "\Seen"), so that flags match however the client spelled them.
+     */
+    private static String capitalize( final String _flag ) {
+        if( !_flag.startsWith( "\\" ) || (_flag.length() < 2) )
+            return _flag;
+        return "\\" + _flag.substring( 1, 2 ).toUpperCase( Locale.ROOT ) + _flag.substring( 2 ).toLowerCase( Locale.ROOT );
+    }
+
+
+    @SuppressWarnings( "unchecked" )
+    private static List<Object> list( final Object _word ) {
+        return (_word instanceof List<?> list) ? (List<Object>) list : List.of( _word );
+    }
+
+
+    private static boolean isInbox( final String _mailbox ) {
+        return "INBOX".equalsIgnoreCase( _mailbox );
+    }
+
+
+    /**
+     * Read a command from the client, including any literals it contains (which are inlined as quoted strings).
+     */
+    private String readCommand() throws IOException {
+
+        StringBuilder command = new StringBuilder();
+        while( true ) {
+            String line = readLine();
+            int open = line.lastIndexOf( '{' );
+            if( (open < 0) || !line.endsWith( "}" ) ) {
+                return command.append( line ).toString();
+            }
+            String count = line.substring( open + 1, line.length() - 1 );
+            boolean nonSynchronizing = count.endsWith( "+" );
+            if( nonSynchronizing )
+                count = count.substring( 0, count.length() - 1 );
+            if( count.isEmpty() || !count.chars().allMatch( Character::isDigit ) ) {
+                return command.append( line ).toString();
+            }
+            if( !nonSynchronizing )
+                reply( "+ Ready for literal" );
+            String literal = new String( readBytes( Integer.parseInt( count ) ), StandardCharsets.UTF_8 );
+            command.append( line, 0, open ).append( '"' ).append( literal.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) ).append( '"' );
+        }
+    }
+
+
+    /**
+     * Splits a command into its words: atoms (with any bracketed section, like {@code BODY[HEADER.FIELDS (FROM)]<0.10>}, kept whole), quoted
+     * strings (unquoted), and parenthesized lists (as lists).
+     */
+    private static final class Parser {
+
+        private final String text;
+        private int          at;
+
+
+        private Parser( final String _text ) {
+            text = _text;
+        }
+
+
+        private List<Object> parseAll() {
+            List<Object> words = new ArrayList<>();
+            Object word;
+            while( (word = next()) != null )
+                words.add( word );
+            return words;
+        }
+
+
+        private Object next() {
+
+            while( (at < text.length()) && (text.charAt( at ) == ' ') )
+                at++;
+            if( (at >= text.length()) || (text.charAt( at ) == ')') )
+                return null;
+            char c = text.charAt( at );
+            if( c == '(' ) {
+                at++;
+                List<Object> list = parseAll();
+                if( (at >= text.length()) || (text.charAt( at ) != ')') )
+                    throw new IllegalArgumentException( "Unbalanced parentheses" );
+                at++;
+                return list;
+            }
+            if( c == '"' ) {
+                StringBuilder string = new StringBuilder();
+                at++;
+                while( (at < text.length()) && (text.charAt( at ) != '"') ) {
+                    if( (text.charAt( at ) == '\\') && (at + 1 < text.length()) )
+                        at++;
+                    string.append( text.charAt( at++ ) );
+                }
+                at++;
+                return string.toString();
+            }
+            int start = at;
+            int depth = 0;
+            while( at < text.length() ) {
+                c = text.charAt( at );
+                if( c == '[' )
+                    depth++;
+                else if( c == ']' )
+                    depth--;
+                else if( (depth == 0) && ((c == ' ') || (c == '(') || (c == ')')) )
+                    break;
+                at++;
+            }
+            return text.substring( start, at );
+        }
+    }
+
+
+    /**
+     * A response being built, as bytes (as it may contain literals, which aren't necessarily text).
+     */
+    private static final class Response extends ByteArrayOutputStream {
+
+        private void raw( final String _text ) {
+            writeBytes( _text.getBytes( StandardCharsets.US_ASCII ) );
+        }
+
+
+        /**
+         * Write the given string: quoted, if it's ASCII with no line breaks, or else as a literal.
+         */
+        private void string( final String _string ) {
+            boolean quotable = _string.chars().allMatch( (c) -> (c >= 0x20) && (c < 0x7f) );
+            if( quotable )
+                raw( "\"" + _string.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"" );
+            else
+                literal( _string.getBytes( StandardCharsets.UTF_8 ) );
+        }
+
+
+        private void nstring( final String _string ) {
+            if( _string == null )
+                raw( "NIL" );
+            else
+                string( _string );
+        }
+
+
+        private void literal( final byte[] _bytes ) {
+            raw( "{" + _bytes.length + "}\r\n" );
+            writeBytes( _bytes );
+        }
+    }
+}
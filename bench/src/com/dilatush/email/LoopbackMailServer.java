@@ -0,0 +1,336 @@
+package com.dilatush.email;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class are a stand-in mail server, listening on the loopback interface, that speaks enough SMTP (with STARTTLS and AUTH), POP3,
+ * and IMAP (with IDLE) for Jakarta Mail -- so that everything in <i>EmailService</i> can be exercised, and loaded, without a real provider.  It
+ * has a single account, with a single inbox; every message sent to it (to any recipient) is delivered to that inbox, where POP3 and IMAP clients
+ * can read it.
+ * <p>
+ * The server's {@link Behavior} can be changed at any time, to add artificial latency to every reply, to throttle senders (with the "451"
+ * replies real providers send when they're sent to too fast), or to inject failures (rejected messages and dropped connections).
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class LoopbackMailServer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    final String          user;
+    final String          password;
+    final SSLContext      tls;
+
+    private final Behavior        behavior  = new Behavior();
+    private final LoopbackMailbox inbox     = new LoopbackMailbox();
+    private final AtomicLong      accepted  = new AtomicLong();
+    private final AtomicLong      rejected  = new AtomicLong();
+    private final ServerSocket    smtp;
+    private final ServerSocket    pop3;
+    private final ServerSocket    imap;
+    private final ExecutorService connections;
+
+    private long                  throttleSecond;     // the second the throttle is counting messages in; guarded by "behavior"...
+    private int                   throttleCount;      // the messages accepted in that second; guarded by "behavior"...
+
+
+    /**
+     * The adjustable behavior of the server.  The fields may be changed at any time, and take effect on the next reply.
+     */
+    public static class Behavior {
+
+        /** The time (in milliseconds) the server waits before sending each reply. */
+        public volatile long latencyMS;
+
+        /** The maximum extra time (in milliseconds), chosen at random, the server waits before sending each reply. */
+        public volatile long latencyJitterMS;
+
+        /** The most messages per second the server accepts; senders of any more are told to try again later ("451").  Zero means no limit. */
+        public volatile int maxMessagesPerSecond;
+
+        /** The fraction (0 to 1) of messages the server rejects permanently ("554") after receiving them. */
+        public volatile double failureRate;
+
+        /** The fraction (0 to 1) of messages after which the server drops the connection, without replying. */
+        public volatile double disconnectRate;
+
+        /** {@code true} if the server delivers the messages it accepts to its inbox (otherwise, they are just counted). */
+        public volatile boolean deliver = true;
+    }
+
+
+    /**
+     * Create a new instance of this class with the given account, listening on ephemeral ports of the loopback interface, and start it.
+     *
+     * @param _user the user name of the server's single account
+     * @param _password the password of the server's single account
+     * @param _tls the TLS context for STARTTLS, or {@code null} if the server shouldn't offer STARTTLS
+     * @throws IOException on any problem opening the server's ports
+     */
+    public LoopbackMailServer( final String _user, final String _password, final SSLContext _tls ) throws IOException {
+
+        if( (_user == null) || (_password == null) )
+            throw new IllegalArgumentException( "Missing user or password" );
+
+        user     = _user;
+        password = _password;
+        tls      = _tls;
+
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        smtp = new ServerSocket( 0, 50, loopback );
+        pop3 = new ServerSocket( 0, 50, loopback );
+        imap = new ServerSocket( 0, 50, loopback );
+
+        AtomicInteger threads = new AtomicInteger();
+        connections = Executors.newCachedThreadPool( (runnable) -> {
+            Thread thread = new Thread( runnable, "LoopbackMailServer-" + threads.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        listen( smtp, LoopbackSMTP::new );
+        listen( pop3, LoopbackPOP3::new );
+        listen( imap, LoopbackIMAP::new );
+    }
+
+
+    /**
+     * Create a TLS context with a newly generated, self-signed certificate for "localhost" (and 127.0.0.1), for the server's STARTTLS.  Clients
+     * must be told to trust it (the session properties from {@link #getSessionProperties()} do).  The key pair is generated with the JDK's
+     * {@code keytool}.
+     *
+     * @return the TLS context
+     * @throws IOException on any problem running {@code keytool}
+     * @throws GeneralSecurityException on any problem loading the generated key
+     */
+    public static SSLContext selfSignedTLS() throws IOException, GeneralSecurityException {
+
+        Path dir = Files.createTempDirectory( "loopback-tls-" );
+        File keystore = dir.resolve( "loopback.p12" ).toFile();
+        String secret = Long.toHexString( ThreadLocalRandom.current().nextLong() );
+        try {
+            Process keytool = new ProcessBuilder(
+                    new File( System.getProperty( "java.home" ), "bin/keytool" ).getPath(),
+                    "-genkeypair", "-alias", "loopback", "-keyalg", "RSA", "-keysize", "2048", "-validity", "7",
+                    "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+                    "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", secret, "-keypass", secret )
+                    .redirectErrorStream( true )
+                    .start();
+            String output = new String( keytool.getInputStream().readAllBytes() );
+            if( keytool.waitFor() != 0 )
+                throw new IOException( "keytool failed: " + output );
+
+            KeyStore store = KeyStore.getInstance( "PKCS12" );
+            try( InputStream in = new FileInputStream( keystore ) ) {
+                store.load( in, secret.toCharArray() );
+            }
+            KeyManagerFactory keys = KeyManagerFactory.getInstance( KeyManagerFactory.getDefaultAlgorithm() );
+            keys.init( store, secret.toCharArray() );
+            SSLContext context = SSLContext.getInstance( "TLS" );
+            context.init( keys.getKeyManagers(), null, null );
+            return context;
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while running keytool", _e );
+        }
+        finally {
+            Files.deleteIfExists( keystore.toPath() );
+            Files.deleteIfExists( dir );
+        }
+    }
+
+
+    /**
+     * Returns Jakarta Mail session properties for connecting to this server with SMTP (using STARTTLS, if the server offers it, and AUTH), POP3,
+     * and IMAP, as the server's account.  They're suitable for an {@link EmailProvider}.
+     *
+     * @return the session properties
+     */
+    public Properties getSessionProperties() {
+
+        String host = smtp.getInetAddress().getHostAddress();
+        Properties props = new Properties();
+        props.setProperty( "mail.smtp.host",              host );
+        props.setProperty( "mail.smtp.port",              Integer.toString( getSMTPPort() ) );
+        props.setProperty( "mail.smtp.auth",              "true" );
+        props.setProperty( "mail.smtp.user",              user );
+        props.setProperty( "mail.smtp.password",          password );
+        props.setProperty( "mail.smtp.connectiontimeout", "10000" );
+        props.setProperty( "mail.smtp.timeout",           "30000" );
+        if( tls != null ) {
+            props.setProperty( "mail.smtp.starttls.enable",   "true" );
+            props.setProperty( "mail.smtp.starttls.required", "true" );
+            props.setProperty( "mail.smtp.ssl.trust",         host );
+        }
+        props.setProperty( "mail.pop3.host",              host );
+        props.setProperty( "mail.pop3.port",              Integer.toString( getPOP3Port() ) );
+        props.setProperty( "mail.imap.host",              host );
+        props.setProperty( "mail.imap.port",              Integer.toString( getIMAPPort() ) );
+        return props;
+    }
+
+
+    /**
+     * Returns the adjustable behavior of this server.
+     *
+     * @return the behavior
+     */
+    public Behavior getBehavior() {
+        return behavior;
+    }
+
+
+    /**
+     * Put the given message (in its raw RFC 822 form, with CRLF line endings) straight into the inbox, as if it had been received.
+     *
+     * @param _raw the raw message
+     */
+    public void deliver( final byte[] _raw ) {
+        inbox.add( _raw );
+    }
+
+
+    /**
+     * Returns the raw form of each message in the inbox, in the order they were received.
+     *
+     * @return the messages in the inbox
+     */
+    public List<byte[]> getInbox() {
+        return inbox.snapshot().stream().map( (message) -> message.raw ).toList();
+    }
+
+
+    /**
+     * Returns the number of messages this server has accepted over SMTP.
+     *
+     * @return the number of messages accepted
+     */
+    public long getAcceptedCount() {
+        return accepted.get();
+    }
+
+
+    /**
+     * Returns the number of messages this server has refused over SMTP, whether throttled, rejected, or dropped.
+     *
+     * @return the number of messages refused
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+
+    public int getSMTPPort() {
+        return smtp.getLocalPort();
+    }
+
+
+    public int getPOP3Port() {
+        return pop3.getLocalPort();
+    }
+
+
+    public int getIMAPPort() {
+        return imap.getLocalPort();
+    }
+
+
+    /**
+     * Stop this server, closing its ports and all its connections.
+     */
+    @Override
+    public void close() {
+
+        for( ServerSocket socket : new ServerSocket[] { smtp, pop3, imap } ) {
+            try {
+                socket.close();
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing loopback port", _e );
+            }
+        }
+        connections.shutdownNow();
+    }
+
+
+    LoopbackMailbox inbox() {
+        return inbox;
+    }
+
+
+    /**
+     * Returns {@code true} if another message may be accepted now, under the throttle; if so, it's counted.
+     */
+    boolean admit() {
+
+        int max = behavior.maxMessagesPerSecond;
+        if( max <= 0 )
+            return true;
+        long second = System.currentTimeMillis() / 1000;
+        synchronized( behavior ) {
+            if( second != throttleSecond ) {
+                throttleSecond = second;
+                throttleCount  = 0;
+            }
+            return ++throttleCount <= max;
+        }
+    }
+
+
+    void accepted() {
+        accepted.incrementAndGet();
+    }
+
+
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+
+    /**
+     * Creates the session for a newly accepted connection.
+     */
+    private interface ConnectionFactory {
+        LoopbackConnection create( final LoopbackMailServer _server, final Socket _socket ) throws IOException;
+    }
+
+
+    private void listen( final ServerSocket _port, final ConnectionFactory _factory ) {
+
+        connections.execute( () -> {
+            while( !_port.isClosed() ) {
+                try {
+                    Socket socket = _port.accept();
+                    connections.execute( _factory.create( this, socket ) );
+                }
+                catch( IOException _e ) {
+                    if( !_port.isClosed() )
+                        LOGGER.log( Level.WARNING, "Problem accepting loopback connection", _e );
+                }
+            }
+        } );
+    }
+}
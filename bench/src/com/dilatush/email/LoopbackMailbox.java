@@ -0,0 +1,176 @@
+package com.dilatush.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.util.SharedByteArrayInputStream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The single inbox of a {@link LoopbackMailServer}, shared by its POP3 and IMAP sessions.  Messages are numbered with UIDs that are never reused
+ * (within one UIDVALIDITY), and each change to the inbox bumps its version, so that IMAP sessions (IDLE, in particular) can wait for changes.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class LoopbackMailbox {
+
+    private static final Session SESSION = Session.getInstance( new Properties() );
+
+    private final long          uidValidity = System.currentTimeMillis() / 1000;
+    private final List<Message> messages    = new ArrayList<>();    // guarded by "this"...
+    private long                nextUID     = 1;                    // guarded by "this"...
+    private long                version;                            // guarded by "this"...
+
+
+    /**
+     * A message in the inbox.  Its raw bytes never change; its flags (by their IMAP names, like "\Seen") may.
+     */
+    static final class Message {
+
+        final long        uid;
+        final byte[]      raw;
+        final Date        received = new Date();
+        private final Set<String> flags = new HashSet<>();    // guarded by "this"...
+        private MimeMessage       parsed;                     // guarded by "this"...
+
+
+        private Message( final long _uid, final byte[] _raw ) {
+            uid = _uid;
+            raw = _raw;
+        }
+
+
+        /**
+         * Returns this message, parsed; it is parsed once, the first time it's needed, and its parts share the raw bytes.
+         */
+        synchronized MimeMessage parsed() throws MessagingException {
+            if( parsed == null )
+                parsed = new MimeMessage( SESSION, new SharedByteArrayInputStream( raw ) );
+            return parsed;
+        }
+
+
+        synchronized Set<String> getFlags() {
+            return Set.copyOf( flags );
+        }
+
+
+        synchronized boolean hasFlag( final String _flag ) {
+            return flags.contains( _flag );
+        }
+
+
+        /**
+         * Add or remove the given flags, or (if {@code _add} is {@code null}) replace all the flags with them.
+         */
+        synchronized void setFlags( final Collection<String> _flags, final Boolean _add ) {
+            if( _add == null ) {
+                flags.clear();
+                flags.addAll( _flags );
+            }
+            else if( _add ) {
+                flags.addAll( _flags );
+            }
+            else {
+                _flags.forEach( flags::remove );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the UIDVALIDITY of this inbox.
+     *
+     * @return the UIDVALIDITY
+     */
+    long getUIDValidity() {
+        return uidValidity;
+    }
+
+
+    /**
+     * Add a message (in its raw RFC 822 form, with CRLF line endings) to this inbox.
+     *
+     * @param _raw the raw message
+     * @return the message added
+     */
+    synchronized Message add( final byte[] _raw ) {
+        Message message = new Message( nextUID++, _raw );
+        messages.add( message );
+        changed();
+        return message;
+    }
+
+
+    /**
+     * Remove the given messages from this inbox.
+     *
+     * @param _messages the messages to remove
+     */
+    synchronized void remove( final Collection<Message> _messages ) {
+        if( messages.removeAll( _messages ) )
+            changed();
+    }
+
+
+    /**
+     * Returns the messages in this inbox, in the order they were added.
+     *
+     * @return the messages
+     */
+    synchronized List<Message> snapshot() {
+        return List.copyOf( messages );
+    }
+
+
+    /**
+     * Returns the UID the next message added will have.
+     *
+     * @return the next UID
+     */
+    synchronized long getNextUID() {
+        return nextUID;
+    }
+
+
+    /**
+     * Returns the version of this inbox, which changes whenever a message is added or removed.
+     *
+     * @return the version
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+
+    /**
+     * Wait (up to the given time) for the version of this inbox to differ from the given one.
+     *
+     * @param _version the version to wait for a change from
+     * @param _timeoutMS the maximum time to wait, in milliseconds
+     * @return the current version
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized long awaitChange( final long _version, final long _timeoutMS ) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + _timeoutMS;
+        long remaining;
+        while( (version == _version) && ((remaining = deadline - System.currentTimeMillis()) > 0) )
+            wait( remaining );
+        return version;
+    }
+
+
+    private void changed() {
+        version++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,218 @@
+package com.dilatush.email;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A POP3 session of a {@link LoopbackMailServer}: CAPA, USER, PASS, STAT, LIST, UIDL, RETR, TOP, DELE, NOOP, RSET, and QUIT.  As POP3 requires,
+ * the session works on the inbox as it was when the client logged in, and the messages it deleted are only removed from the inbox when the client
+ * quits.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class LoopbackPOP3 extends LoopbackConnection {
+
+    private static final int READ_TIMEOUT_MS = 600_000;
+
+    private String                        user;
+    private List<LoopbackMailbox.Message> messages;     // the inbox as it was at login, or null before login...
+    private boolean[]                     deleted;
+
+
+    LoopbackPOP3( final LoopbackMailServer _server, final Socket _socket ) throws IOException {
+        super( _server, _socket );
+    }
+
+
+    @Override
+    protected void serve() throws IOException {
+
+        setReadTimeout( READ_TIMEOUT_MS );
+        reply( "+OK loopback POP3 ready" );
+        while( true ) {
+            String[] words = readLine().trim().split( " +" );
+            String verb = words[0].toUpperCase( Locale.ROOT );
+            if( "QUIT".equals( verb ) ) {
+                quit();
+                return;
+            }
+            if( "CAPA".equals( verb ) ) {
+                write( "+OK Capability list follows" );
+                write( "USER" );
+                write( "UIDL" );
+                write( "TOP" );
+                reply( "." );
+            }
+            else if( messages == null ) {
+                login( verb, words );
+            }
+            else {
+                transact( verb, words );
+            }
+        }
+    }
+
+
+    private void login( final String _verb, final String[] _words ) throws IOException {
+
+        if( "USER".equals( _verb ) && (_words.length > 1) ) {
+            user = _words[1];
+            reply( "+OK" );
+        }
+        else if( "PASS".equals( _verb ) && (user != null) ) {
+
+            // the password is the rest of the line, which may contain spaces...
+            String password = String.join( " ", List.of( _words ).subList( 1, _words.length ) );
+            if( server.user.equals( user ) && server.password.equals( password ) ) {
+                messages = server.inbox().snapshot();
+                deleted  = new boolean[messages.size()];
+                reply( "+OK Logged in" );
+            }
+            else {
+                user = null;
+                reply( "-ERR Authentication failed" );
+            }
+        }
+        else {
+            reply( "-ERR Not logged in" );
+        }
+    }
+
+
+    private void transact( final String _verb, final String[] _words ) throws IOException {
+
+        switch( _verb ) {
+            case "STAT" -> {
+                int count = 0;
+                long size = 0;
+                for( int i = 0; i < messages.size(); i++ ) {
+                    if( !deleted[i] ) {
+                        count++;
+                        size += messages.get( i ).raw.length;
+                    }
+                }
+                reply( "+OK " + count + " " + size );
+            }
+            case "LIST", "UIDL" -> {
+                boolean uidl = "UIDL".equals( _verb );
+                if( _words.length > 1 ) {
+                    int number = number( _words[1] );
+                    if( number > 0 )
+                        reply( "+OK " + number + " " + (uidl ? uid( number ) : messages.get( number - 1 ).raw.length) );
+                    return;
+                }
+                write( "+OK" );
+                for( int i = 0; i < messages.size(); i++ ) {
+                    if( !deleted[i] )
+                        write( (i + 1) + " " + (uidl ? uid( i + 1 ) : messages.get( i ).raw.length) );
+                }
+                reply( "." );
+            }
+            case "RETR" -> {
+                int number = number( (_words.length > 1) ? _words[1] : "" );
+                if( number > 0 ) {
+                    write( "+OK " + messages.get( number - 1 ).raw.length + " octets" );
+                    sendStuffed( messages.get( number - 1 ).raw, Integer.MAX_VALUE );
+                }
+            }
+            case "TOP" -> {
+                int number = number( (_words.length > 1) ? _words[1] : "" );
+                if( number > 0 ) {
+                    int lines;
+                    try {
+                        lines = Integer.parseInt( (_words.length > 2) ? _words[2] : "0" );
+                    }
+                    catch( NumberFormatException _e ) {
+                        lines = 0;
+                    }
+                    write( "+OK" );
+                    sendStuffed( messages.get( number - 1 ).raw, Math.max( 0, lines ) );
+                }
+            }
+            case "DELE" -> {
+                int number = number( (_words.length > 1) ? _words[1] : "" );
+                if( number > 0 ) {
+                    deleted[number - 1] = true;
+                    reply( "+OK Deleted" );
+                }
+            }
+            case "RSET" -> {
+                deleted = new boolean[messages.size()];
+                reply( "+OK" );
+            }
+            case "NOOP" -> reply( "+OK" );
+            default     -> reply( "-ERR Unrecognized command" );
+        }
+    }
+
+
+    /**
+     * Returns the given message number, if it names a message that hasn't been deleted; otherwise, replies with an error and returns zero.
+     */
+    private int number( final String _word ) throws IOException {
+
+        int number;
+        try {
+            number = Integer.parseInt( _word );
+        }
+        catch( NumberFormatException _e ) {
+            number = 0;
+        }
+        if( (number < 1) || (number > messages.size()) || deleted[number - 1] ) {
+            reply( "-ERR No such message" );
+            return 0;
+        }
+        return number;
+    }
+
+
+    private String uid( final int _number ) {
+        return server.inbox().getUIDValidity() + "." + messages.get( _number - 1 ).uid;
+    }
+
+
+    /**
+     * Send the given message, dot-stuffed and ending with the lone dot; if {@code _bodyLines} is less than {@link Integer#MAX_VALUE}, only the
+     * header and that many lines of the body are sent (for TOP).
+     */
+    private void sendStuffed( final byte[] _raw, final int _bodyLines ) throws IOException {
+
+        boolean inBody = false;
+        int bodyLines = 0;
+        int start = 0;
+        while( start < _raw.length ) {
+            int end = start;
+            while( (end < _raw.length) && (_raw[end] != '\n') )
+                end++;
+            int lineEnd = ((end > start) && (_raw[end - 1] == '\r')) ? end - 1 : end;
+            if( inBody && (_bodyLines != Integer.MAX_VALUE) && (bodyLines++ >= _bodyLines) )
+                break;
+            if( (lineEnd > start) && (_raw[start] == '.') )
+                writeBytes( new byte[] { '.' } );
+            writeBytes( Arrays.copyOfRange( _raw, start, lineEnd ) );
+            writeBytes( new byte[] { '\r', '\n' } );
+            if( lineEnd == start )
+                inBody = true;
+            start = end + 1;
+        }
+        reply( "." );
+    }
+
+
+    private void quit() throws IOException {
+
+        if( messages != null ) {
+            List<LoopbackMailbox.Message> removed = new ArrayList<>();
+            for( int i = 0; i < messages.size(); i++ ) {
+                if( deleted[i] )
+                    removed.add( messages.get( i ) );
+            }
+            server.inbox().remove( removed );
+        }
+        reply( "+OK Bye" );
+    }
+}
@@ -0,0 +1,240 @@
+package com.dilatush.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An SMTP session of a {@link LoopbackMailServer}: EHLO (or HELO), STARTTLS (if the server has TLS), AUTH (PLAIN or LOGIN), MAIL, RCPT, DATA,
+ * RSET, NOOP, and QUIT.  Authentication is required before MAIL, and STARTTLS before AUTH (when the server offers it).  Every message is delivered
+ * to the server's inbox, whatever its recipients.  The server's throttle is applied at MAIL, and its injected failures at the end of DATA.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class LoopbackSMTP extends LoopbackConnection {
+
+    private static final int READ_TIMEOUT_MS = 300_000;
+
+    private boolean authenticated;
+    private String  from;       // the sender of the message in progress, or null if there is none...
+    private int     recipients;
+
+
+    LoopbackSMTP( final LoopbackMailServer _server, final Socket _socket ) throws IOException {
+        super( _server, _socket );
+    }
+
+
+    @Override
+    protected void serve() throws IOException {
+
+        setReadTimeout( READ_TIMEOUT_MS );
+        reply( "220 localhost ESMTP loopback" );
+        while( true ) {
+            String line = readLine();
+            int space = line.indexOf( ' ' );
+            String verb = ((space < 0) ? line : line.substring( 0, space )).toUpperCase( Locale.ROOT );
+            String arg  = (space < 0) ? "" : line.substring( space + 1 ).trim();
+            switch( verb ) {
+                case "EHLO"     -> ehlo();
+                case "HELO"     -> reply( "250 localhost" );
+                case "STARTTLS" -> startTLS();
+                case "AUTH"     -> auth( arg );
+                case "MAIL"     -> mail( arg );
+                case "RCPT"     -> rcpt( arg );
+                case "DATA"     -> { if( !data() ) return; }
+                case "RSET"     -> { reset(); reply( "250 OK" ); }
+                case "NOOP"     -> reply( "250 OK" );
+                case "QUIT"     -> { reply( "221 Bye" ); return; }
+                default         -> reply( "500 Unrecognized command" );
+            }
+        }
+    }
+
+
+    private void ehlo() throws IOException {
+
+        reset();
+        write( "250-localhost" );
+        write( "250-PIPELINING" );
+        write( "250-8BITMIME" );
+        if( offerTLS() )
+            write( "250-STARTTLS" );
+        else
+            write( "250-AUTH PLAIN LOGIN" );
+        reply( "250 SIZE 52428800" );
+    }
+
+
+    private void startTLS() throws IOException {
+
+        if( !offerTLS() ) {
+            reply( "503 TLS not available" );
+            return;
+        }
+        reply( "220 Ready to start TLS" );
+        startTLS( server.tls );
+        reset();
+    }
+
+
+    private void auth( final String _arg ) throws IOException {
+
+        if( offerTLS() ) {
+            reply( "530 Must issue STARTTLS first" );
+            return;
+        }
+        if( authenticated ) {
+            reply( "503 Already authenticated" );
+            return;
+        }
+        String[] parts = _arg.split( " " );
+        String mechanism = parts[0].toUpperCase( Locale.ROOT );
+        String user;
+        String password;
+        if( "PLAIN".equals( mechanism ) ) {
+
+            // the credentials are "authzid NUL authcid NUL password", in base64, either with the command or on the next line...
+            String encoded = (parts.length > 1) ? parts[1] : challenge( "" );
+            String[] fields = decode( encoded ).split( "\0", -1 );
+            if( fields.length != 3 ) {
+                reply( "501 Malformed credentials" );
+                return;
+            }
+            user     = fields[1];
+            password = fields[2];
+        }
+        else if( "LOGIN".equals( mechanism ) ) {
+            user     = decode( (parts.length > 1) ? parts[1] : challenge( "Username:" ) );
+            password = decode( challenge( "Password:" ) );
+        }
+        else {
+            reply( "504 Unrecognized authentication mechanism" );
+            return;
+        }
+
+        if( server.user.equals( user ) && server.password.equals( password ) ) {
+            authenticated = true;
+            reply( "235 Authentication successful" );
+        }
+        else {
+            reply( "535 Authentication failed" );
+        }
+    }
+
+
+    private void mail( final String _arg ) throws IOException {
+
+        if( !authenticated ) {
+            reply( "530 Authentication required" );
+            return;
+        }
+        if( from != null ) {
+            reply( "503 Sender already given" );
+            return;
+        }
+        if( !_arg.toUpperCase( Locale.ROOT ).startsWith( "FROM:" ) ) {
+            reply( "501 Syntax: MAIL FROM:<address>" );
+            return;
+        }
+        if( !server.admit() ) {
+            server.rejected();
+            reply( "451 4.7.0 Too many messages, try again later" );
+            return;
+        }
+        from = _arg.substring( 5 ).trim();
+        reply( "250 OK" );
+    }
+
+
+    private void rcpt( final String _arg ) throws IOException {
+
+        if( from == null ) {
+            reply( "503 Need MAIL first" );
+            return;
+        }
+        if( !_arg.toUpperCase( Locale.ROOT ).startsWith( "TO:" ) ) {
+            reply( "501 Syntax: RCPT TO:<address>" );
+            return;
+        }
+        recipients++;
+        reply( "250 OK" );
+    }
+
+
+    /**
+     * Receive the message, and deliver it, reject it, or drop the connection (as the server's behavior dictates).
+     *
+     * @return {@code false} if the connection was dropped
+     */
+    private boolean data() throws IOException {
+
+        if( recipients == 0 ) {
+            reply( "503 Need RCPT first" );
+            return true;
+        }
+        reply( "354 End data with <CR><LF>.<CR><LF>" );
+
+        // read to the lone dot, removing the extra dot from any line that starts with one...
+        ByteArrayOutputStream message = new ByteArrayOutputStream( 8192 );
+        while( true ) {
+            byte[] line = readLineBytes();
+            if( (line.length == 1) && (line[0] == '.') )
+                break;
+            int start = ((line.length > 1) && (line[0] == '.')) ? 1 : 0;
+            message.write( line, start, line.length - start );
+            message.write( '\r' );
+            message.write( '\n' );
+        }
+        reset();
+
+        LoopbackMailServer.Behavior behavior = server.getBehavior();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if( random.nextDouble() < behavior.disconnectRate ) {
+            server.rejected();
+            drop();
+            return false;
+        }
+        if( random.nextDouble() < behavior.failureRate ) {
+            server.rejected();
+            reply( "554 5.6.0 Message rejected" );
+            return true;
+        }
+        if( behavior.deliver )
+            server.inbox().add( message.toByteArray() );
+        server.accepted();
+        reply( "250 OK queued" );
+        return true;
+    }
+
+
+    private boolean offerTLS() {
+        return (server.tls != null) && !isSecure();
+    }
+
+
+    private String challenge( final String _prompt ) throws IOException {
+        reply( "334 " + Base64.getEncoder().encodeToString( _prompt.getBytes( StandardCharsets.UTF_8 ) ) );
+        return readLine().trim();
+    }
+
+
+    private static String decode( final String _base64 ) {
+        try {
+            return new String( Base64.getDecoder().decode( _base64 ), StandardCharsets.UTF_8 );
+        }
+        catch( IllegalArgumentException _e ) {
+            return "";
+        }
+    }
+
+
+    private void reset() {
+        from       = null;
+        recipients = 0;
+    }
+}
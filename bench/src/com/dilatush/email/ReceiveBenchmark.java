@@ -0,0 +1,63 @@
+package com.dilatush.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hot path of reading a received email: parsing the raw message and extracting its text (converting its HTML, if it has no plain
+ * text body).  Each fixture is a realistic message, from plain text alone to text and HTML with a large attached PDF.  Parsing alone is measured
+ * too, so that the cost of extracting the text can be told apart from it.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ReceiveBenchmark {
+
+    @Param( { "plain.eml", "alternative.eml", "html-related.eml", "mixed-attachment.eml" } )
+    public String fixture;
+
+    private Session session;
+    private byte[]  raw;
+
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException {
+        session = Session.getInstance( new Properties() );
+        raw     = BenchFixtures.bytes( fixture );
+    }
+
+
+    @Benchmark
+    public MimeMessage parse() throws MessagingException {
+        return new MimeMessage( session, new ByteArrayInputStream( raw ) );
+    }
+
+
+    @Benchmark
+    public String getText() throws MessagingException, IOException {
+        return EmailReader.getTextFromMessage( new MimeMessage( session, new ByteArrayInputStream( raw ) ) );
+    }
+}
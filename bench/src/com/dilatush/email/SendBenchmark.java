@@ -0,0 +1,111 @@
+package com.dilatush.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hot paths of sending an email: expanding include files, and building the MIME message for a message with both text and HTML
+ * bodies (with and without inlined images), serialized to a null stream just as it would be to the SMTP connection.  Inlined resources are served
+ * from the content cache after the first build, just as they are in a bulk run; the difference between the two build benchmarks is the cost of
+ * rewriting the HTML and encoding its images.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SendBenchmark {
+
+    private TransferDirectory    directory;
+    private EmailService         service;
+    private EmailSender          sender;
+    private Session              session;
+    private IncludeResolver      includes;
+    private InternetAddress[]    to;
+    private String               report;
+    private OutboundEmailMessage plain;
+    private OutboundEmailMessage images;
+
+
+    @Setup( Level.Trial )
+    public void setup() throws IOException, MessagingException {
+
+        directory = BenchFixtures.transferDirectory();
+        service   = BenchFixtures.service( directory );
+        sender    = service.getSender();
+        session   = service.getSession();
+        to        = InternetAddress.parse( "Tom Dilatush<tom@dilatush.com>" );
+
+        // the include files are served from memory, so that only the expansion is measured...
+        Map<String,String> files = new HashMap<>();
+        for( String name : new String[] { "header.html", "footer.html", "unsubscribe.html" } )
+            files.put( "transfer://" + BenchFixtures.TRANSFER_NAME + "/" + name, BenchFixtures.text( name ) );
+        includes = new IncludeResolver( files::get, 8, 1 << 20 );
+
+        String text = "Daily weather report\n\nHigh: 72F\nLow: 41F\nRain: 0.02\"\n";
+        report = BenchFixtures.text( "report.html" );
+        plain  = new OutboundEmailMessage( "Dilatush Weather<weather@dilatush.com>", "Daily weather report", text, report );
+        images = new OutboundEmailMessage( "Dilatush Weather<weather@dilatush.com>", "Daily weather report", text,
+                BenchFixtures.text( "report-images.html" ) );
+    }
+
+
+    @TearDown( Level.Trial )
+    public void tearDown() throws IOException {
+        service.close();
+        BenchFixtures.delete( directory );
+    }
+
+
+    @Benchmark
+    public String expandIncludes() throws IOException {
+        return includes.expand( report );
+    }
+
+
+    @Benchmark
+    public MimeMessage buildTextAndHTML() throws MessagingException, IOException {
+        return build( plain );
+    }
+
+
+    @Benchmark
+    public MimeMessage buildWithInlinedImages() throws MessagingException, IOException {
+        return build( images );
+    }
+
+
+    private MimeMessage build( final OutboundEmailMessage _message ) throws MessagingException, IOException {
+
+        List<File> deleteAfterSend = new ArrayList<>();
+        MimeMessage message = sender.buildMessage( session, to, null, null, _message, deleteAfterSend );
+        message.writeTo( OutputStream.nullOutputStream() );
+        return message;
+    }
+}
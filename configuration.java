@@ -1,4 +1,6 @@
 import com.dilatush.email.Config;
+import com.dilatush.email.EmailProvider;
+import com.dilatush.email.EmailService;
 import com.dilatush.util.config.Configurator;
 import com.dilatush.util.config.AConfig;
 import java.util.HashMap;
@@ -40,7 +42,76 @@ public class CommsConfigurator implements Configurator {
         props.put( "mail.pop3.user",                   === email user ===               );
         props.put( "mail.store.protocol",              "pop3"                           );
 
-        config.email.sessionProperties = props;  // stuff the configured properties into the configuration object...
+        // properties related to watching the inbox with IMAP (see EmailService.watch())...
+        props.put( "mail.imap.ssl.enable",             true                             );
+        props.put( "mail.imap.host",                   "imap.gmail.com"                 );
+        props.put( "mail.imap.port",                   993                              );
+        props.put( "mail.imap.user",                   === email user ===               );
+
+        // The providers to send and receive email through: name, session properties, SMTP?, POP?, IMAP?, and priority (larger is preferred).  When
+        // more than one provider can send, each message goes to the highest priority provider that is performing well, spilling over to lower
+        // priority providers when the preferred ones are slow, failing, or have all their connections busy.  Optionally, the provider's limits
+        // may follow: messages per second, recipients per day, and concurrent connections (0 means no limit)...
+        config.email.providers = List.of(
+            new EmailProvider( "gmail", props, true, true, true, 10, 5, 2000, 4 )
+        );
+
+        // SMTP connection pool and provider routing (these are the defaults)...
+        config.email.smtpPoolSize                 = 4;        // connections per provider...
+        config.email.smtpIdleTimeoutMS            = 60000;    // close connections idle longer than this...
+        config.email.smtpMaxMessagesPerConnection = 100;      // replace connections after this many messages...
+        config.email.slowSendThresholdMS          = 5000;     // spill over to other providers when sends take longer than this...
+        config.email.maxProviderErrorRate         = 0.25;     // spill over to other providers when more sends than this fail...
+
+        // adapting to provider throttling (421/450/451/454 replies); these are the defaults...
+        config.email.throttleDecreaseFactor       = 0.5;      // cut the send rate by this factor on each throttling reply...
+        config.email.throttleRecoveryMS           = 60000;    // then climb back to the provider's limit over this long...
+        config.email.throttleMinMessagesPerSecond = 0.1;      // but never send slower than this...
+
+        // watching inboxes with IMAP IDLE (these are the defaults)...
+        config.email.imapIdleRefreshMS            = 540000;   // refresh the IDLE this often, so the server doesn't drop us...
+        config.email.imapPollMS                   = 1000;     // check this often if the server doesn't support IDLE...
+        config.email.imapReconnectMinMS           = 1000;     // wait this long before reconnecting, doubling on each failure...
+        config.email.imapReconnectMaxMS           = 300000;   // up to this long...
+        config.email.imapTimeoutMS                = 60000;    // give up on an IMAP server that hasn't responded for this long...
+        config.email.imapConnectTimeoutMS         = 30000;    // give up connecting to an IMAP server after this long...
+
+        // monitoring all inboxes at once with EmailService.monitor() (these are the defaults)...
+        config.email.pop3PollMS                   = 60000;    // poll POP3-only mailboxes this often...
+        config.email.inboxQueueSize               = 1000;     // received messages waiting for the consumer; mailboxes wait when it's full...
+        config.email.inboxBatchSize               = 100;      // messages fetched at once when reading through a mailbox...
+
+        // asynchronous sending (these are the defaults); the overflow policy may be BLOCK, REJECT, or CALLER_RUNS...
+        config.email.asyncSendThreads             = 8;        // threads sending queued messages...
+        config.email.asyncQueueSize               = 1000;     // messages that may wait to be sent...
+        config.email.asyncOverflowPolicy          = EmailService.OverflowPolicy.BLOCK;
+        config.email.batchSessions                = 4;        // parallel SMTP sessions for sendBatch()...
+
+        // include files (these are the defaults)...
+        config.email.includeMaxDepth              = 16;       // include files may be nested this deep...
+        config.email.includeMaxChars              = 8388608;  // the largest a document may grow to when its includes are expanded...
+
+        // content cache for include files and inline resources (these are the defaults)...
+        config.email.contentCacheMaxBytes         = 67108864; // total size of cached content; zero disables caching...
+        config.email.contentCacheFileTTLMS        = 1000;     // recheck cached files' modification times after this long...
+        config.email.contentCacheHttpTTLMS        = 300000;   // revalidate cached web resources with their servers after this long...
+
+        // fetching web resources (these are the defaults)...
+        config.email.httpConnectTimeoutMS         = 10000;    // give up connecting to a web server after this long...
+        config.email.httpRequestTimeoutMS         = 30000;    // give up waiting for a web server's response after this long...
+        config.email.httpMaxRequestsPerHost       = 6;        // concurrent requests to any one web server...
+
+        // durable outbound spool for sendDurably(); the directory must be the name of a READ_WRITE transfer directory (default is no spool)...
+        // config.email.spoolDirectory            = "spool";
+        config.email.spoolSegmentBytes            = 16777216; // start a new spool segment file after this many bytes...
+        config.email.spoolRetryMinMS              = 1000;     // after a temporary failure, send a spooled email again this much later, doubling...
+        config.email.spoolRetryMaxMS              = 300000;   // up to this long...
+
+        // received attachments are saved in this WRITE_ONLY or READ_WRITE transfer directory, named for their content's hash (default is not saved)...
+        // config.email.inboundAttachmentDirectory = "inbound";
+
+        // per-stage latency and message counts, registered as an MXBean under this name (this is the default); null doesn't register them...
+        config.email.metricsObjectName = "com.dilatush.email:type=EmailMetrics,name=default";
 
         // An array of objects each containing three string properties: name, path, and mode.  The name must be unique amongst all configured transfer
         // directories; ideally it should be treated like a variable name.  The path is the absolute or relative path to the transfer directory; if
@@ -0,0 +1,23 @@
+package com.dilatush.email;
+
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * Encapsulates an email message together with the recipients (TO, CC, and BCC) it should be sent to; this is one entry in a batch of emails sent
+ * with {@link EmailSender#sendBatch(java.util.Collection)}.  The CC and BCC recipients may be {@code null}.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public record AddressedEmail( InternetAddress[] to, InternetAddress[] cc, InternetAddress[] bcc, OutboundEmailMessage message ) {
+
+
+    /**
+     * Convenience constructor that creates an instance of {@link AddressedEmail} with only TO recipients.
+     *
+     * @param to the addressees to send the message directly to
+     * @param message the message to send (which contains the from and subject)
+     */
+    public AddressedEmail( final InternetAddress[] to, final OutboundEmailMessage message ) {
+        this( to, null, null, message );
+    }
+}
@@ -0,0 +1,172 @@
+package com.dilatush.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimePart;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Instances of this class save the attachments (and inlined images) of received emails as files in a writable {@link TransferDirectory}.  Each
+ * attachment is streamed from the message part straight to a file, through a small buffer, so an attachment of any size takes no more memory to
+ * save than a small one.  The file is named for the SHA-256 hash of its content (keeping the extension of the attachment's own file name), so an
+ * attachment that is received many times -- the same invoice PDF, say -- is stored just once, and every message it arrived in refers to the same
+ * file.
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AttachmentStore {
+
+    private static final Pattern EXTENSION = Pattern.compile( "[A-Za-z0-9]{1,10}" );
+
+    private final TransferDirectory directory;
+
+
+    /**
+     * An attachment (or inlined image) that was saved from a received message.
+     *
+     * @param name the attachment's own file name, or {@code null} if it didn't have one
+     * @param contentType the attachment's MIME content type
+     * @param contentID the attachment's Content-ID (by which the message's HTML refers to an inlined image), or {@code null} if it didn't have one
+     * @param file the file the attachment's content was saved in
+     * @param size the size of the attachment's content, in bytes
+     */
+    public record InboundAttachment( String name, String contentType, String contentID, File file, long size ) {}
+
+
+    /**
+     * Create a new instance of this class that saves attachments in the given transfer directory, which must be writable.
+     *
+     * @param _directory the transfer directory to save attachments in
+     */
+    public AttachmentStore( final TransferDirectory _directory ) {
+
+        if( (_directory == null) || !_directory.isWritable() )
+            throw new IllegalArgumentException( "Attachment directory is missing or not writable" );
+        directory = _directory;
+    }
+
+
+    /**
+     * Save all the attachments (and inlined images) in the given message, searching through its multipart structure.  The message's text and HTML
+     * bodies are not saved.
+     *
+     * @param _message the message to save the attachments of
+     * @return the saved attachments, in the order they appear in the message (possibly empty)
+     * @throws MessagingException on any problem reading the message
+     * @throws IOException on any problem reading the message or writing a file
+     */
+    public List<InboundAttachment> saveAll( final Part _message ) throws MessagingException, IOException {
+
+        List<InboundAttachment> result = new ArrayList<>();
+        collect( _message, result );
+        return result;
+    }
+
+
+    /**
+     * Save the content of the given part in a file named for its hash, unless a file with that name already exists.
+     *
+     * @param _part the part to save
+     * @return the saved attachment
+     * @throws MessagingException on any problem reading the part
+     * @throws IOException on any problem reading the part or writing the file
+     */
+    public InboundAttachment save( final Part _part ) throws MessagingException, IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch( NoSuchAlgorithmException _e ) {
+            throw new IllegalStateException( "SHA-256 is not available", _e );
+        }
+
+        // stream the (decoded) content into a temporary file, hashing it as we go...
+        Path temp = Files.createTempFile( directory.directory().toPath(), ".incoming-", ".tmp" );
+        long size = 0;
+        try {
+            try( InputStream in = _part.getInputStream(); FileChannel out = FileChannel.open( temp, StandardOpenOption.WRITE ) ) {
+                byte[] bytes = new byte[65536];
+                ByteBuffer buffer = ByteBuffer.wrap( bytes );
+                int count;
+                while( (count = in.read( bytes )) >= 0 ) {
+                    digest.update( bytes, 0, count );
+                    buffer.clear().limit( count );
+                    while( buffer.hasRemaining() )
+                        out.write( buffer );
+                    size += count;
+                }
+            }
+
+            // give it its permanent name, unless we've already got this content...
+            String name = _part.getFileName();
+            File file = new File( directory.directory(), HexFormat.of().formatHex( digest.digest() ) + getExtension( name ) );
+            try {
+                if( !file.exists() )
+                    Files.move( temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+            }
+            catch( FileAlreadyExistsException _e ) {
+                // someone else saved the same content while we were reading ours, which is fine...
+            }
+
+            String contentID = (_part instanceof MimePart mime) ? mime.getContentID() : null;
+            return new InboundAttachment( name, _part.getContentType(), contentID, file, size );
+        }
+        finally {
+            Files.deleteIfExists( temp );
+        }
+    }
+
+
+    private void collect( final Part _part, final List<InboundAttachment> _attachments ) throws MessagingException, IOException {
+
+        if( _part.isMimeType( "multipart/*" ) ) {
+            Multipart multipart = (Multipart) _part.getContent();
+            for( int i = 0; i < multipart.getCount(); i++ )
+                collect( multipart.getBodyPart( i ), _attachments );
+        }
+        else if( isAttachment( _part ) ) {
+            _attachments.add( save( _part ) );
+        }
+    }
+
+
+    /**
+     * Returns {@code true} if the given (non-multipart) part is an attachment or inlined resource, rather than a text or HTML body.
+     */
+    private static boolean isAttachment( final Part _part ) throws MessagingException {
+        return Part.ATTACHMENT.equalsIgnoreCase( _part.getDisposition() ) || (_part.getFileName() != null) || !_part.isMimeType( "text/*" );
+    }
+
+
+    /**
+     * Returns the extension (with its leading period) of the given file name, or an empty string if it doesn't have a plausible one.
+     */
+    private static String getExtension( final String _name ) {
+
+        if( _name == null )
+            return "";
+        int dot = _name.lastIndexOf( '.' );
+        String extension = (dot < 0) ? "" : _name.substring( dot + 1 );
+        return EXTENSION.matcher( extension ).matches() ? "." + extension.toLowerCase() : "";
+    }
+}
@@ -0,0 +1,65 @@
+package com.dilatush.email;
+
+import jakarta.activation.DataSource;
+import jakarta.activation.FileTypeMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Instances of this class are read-only data sources for files, which stream the file's content through a {@link FileChannel}.  Each stream
+ * returned by {@link #getInputStream()} reads the file directly into its reader's buffer, so reading a file of any size takes only as much memory
+ * as the reader's own buffer -- nothing about the file is held in memory by this class.
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+class ChannelFileDataSource implements DataSource {
+
+    private final File   file;
+    private final String name;
+    private final String contentType;
+
+
+    /**
+     * Create a new instance of this class for the given file, which will be known by the given name.
+     *
+     * @param _file the file to read
+     * @param _name the name of the data (for an attachment, the file name the recipient sees)
+     */
+    ChannelFileDataSource( final File _file, final String _name ) {
+        file        = _file;
+        name        = _name;
+        contentType = FileTypeMap.getDefaultFileTypeMap().getContentType( _name );
+    }
+
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return Channels.newInputStream( FileChannel.open( file.toPath(), StandardOpenOption.READ ) );
+    }
+
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException( "File data source is read-only: " + file.getAbsolutePath() );
+    }
+
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+
+    @Override
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,455 @@
+package com.dilatush.email;
+
+import jakarta.activation.DataSource;
+import jakarta.activation.FileTypeMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instances of this class cache the content of include files and inline resources (like images), so that the same header, footer, or logo isn't
+ * read again for every message in a bulk run.  Content is keyed by its resolved URL (the file, for transfer directories), and the cache is bounded
+ * by the total size of the cached content; when it grows too large, the least recently used content is evicted.  Content larger than a quarter
+ * of the cache's size limit is never cached, so that one huge resource can't flush everything else.
+ * <p>
+ * Cached content is served without any checking until its time-to-live (which differs for files and for web resources) expires.  After that it is
+ * revalidated before it's served again: files by their modification time and length, and web resources by a conditional GET using the ETag or
+ * Last-Modified value from the original response.  Content that is still valid is just marked fresh again; otherwise it is reloaded.  Web
+ * resources are fetched through the service's shared {@link ResourceFetcher}, and may be fetched asynchronously -- so all the web resources a
+ * message needs can be prefetched concurrently before the message is assembled.
+ * <p>
+ * Files in READ_AUTO transfer directories are deleted when they're read, so they must never be cached; callers are responsible for that.
+ * <p>
+ * Instances of this class are threadsafe.  Loading happens outside the cache's lock, so two threads missing on the same URL at the same time may
+ * both load it.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ContentCache {
+
+    private final long                 maxBytes;
+    private final long                 maxEntryBytes;
+    private final long                 fileTTLMS;
+    private final long                 httpTTLMS;
+    private final ResourceFetcher      fetcher;
+    private final Map<String,Entry>    entries;       // in least recently used order; guarded by "this"...
+    private long                       bytes;         // the total size of the cached content; guarded by "this"...
+
+    private final AtomicLong           hits      = new AtomicLong();
+    private final AtomicLong           misses    = new AtomicLong();
+    private final AtomicLong           evictions = new AtomicLong();
+
+
+    /**
+     * Create a new instance of this class with the settings in the given configuration.
+     *
+     * @param _config the email service configuration, containing the cache settings
+     * @param _fetcher the fetcher for web resources
+     */
+    ContentCache( final EmailService.Config _config, final ResourceFetcher _fetcher ) {
+
+        maxBytes      = _config.contentCacheMaxBytes;
+        maxEntryBytes = _config.contentCacheMaxBytes / 4;
+        fileTTLMS     = _config.contentCacheFileTTLMS;
+        httpTTLMS     = _config.contentCacheHttpTTLMS;
+        entries       = new LinkedHashMap<>( 64, 0.75f, true );
+        fetcher       = _fetcher;
+    }
+
+
+    /**
+     * Returns the content of the given file, from the cache if the cached content is still valid.
+     *
+     * @param _file the file to read
+     * @return the content of the file
+     * @throws IOException on any problem reading the file
+     */
+    public Content file( final File _file ) throws IOException {
+
+        EmailEvents.ResourceFetch event = new EmailEvents.ResourceFetch();
+        event.begin();
+        String key = _file.getAbsolutePath();
+        long now = System.currentTimeMillis();
+        Entry entry = lookup( key );
+
+        if( entry != null ) {
+
+            // if it's fresh, or still matches the file, we have a hit...
+            if( (now - entry.validated) <= fileTTLMS ) {
+                hits.incrementAndGet();
+                return fetched( event, key, entry.content, true );
+            }
+            if( (_file.lastModified() == entry.lastModified) && (_file.length() == entry.content.size()) ) {
+                entry.validated = now;
+                hits.incrementAndGet();
+                return fetched( event, key, entry.content, true );
+            }
+        }
+
+        // if we get here, we have to read the file...
+        misses.incrementAndGet();
+        long lastModified = _file.lastModified();
+        Content content;
+        try {
+            content = new Content( Files.readAllBytes( _file.toPath() ), FileTypeMap.getDefaultFileTypeMap().getContentType( _file ),
+                    _file.getName() );
+        }
+        catch( IOException _e ) {
+            fetched( event, key, null, false );
+            throw _e;
+        }
+        store( key, new Entry( content, now, lastModified, null ) );
+        return fetched( event, key, content, false );
+    }
+
+
+    /**
+     * Returns the content at the given web (http or https) URL, from the cache if the cached content is still valid.
+     *
+     * @param _url the URL to read
+     * @return the content at the URL
+     * @throws IOException on any problem reading the URL
+     */
+    public Content http( final URL _url ) throws IOException {
+
+        try {
+            return await( httpAsync( _url.toURI() ), _url.toString() );
+        }
+        catch( URISyntaxException _e ) {
+            throw new MalformedURLException( "Invalid URL: " + _url );
+        }
+    }
+
+
+    /**
+     * Wait for the given future (from {@link #httpAsync(URI)} or {@link #prefetch(Collection)}) to complete, and return its content.
+     *
+     * @param _content the future content
+     * @param _url the URL the content is being read from
+     * @return the content
+     * @throws IOException on any problem reading the content
+     */
+    static Content await( final CompletableFuture<Content> _content, final String _url ) throws IOException {
+
+        try {
+            return _content.join();
+        }
+        catch( CompletionException _e ) {
+            if( _e.getCause() instanceof IOException cause )
+                throw cause;
+            throw new IOException( "Problem reading " + _url, _e.getCause() );
+        }
+    }
+
+
+    /**
+     * Asynchronously returns the content at the given web (http or https) URI, from the cache if the cached content is still valid.
+     *
+     * @param _uri the URI to read
+     * @return a future that completes with the content at the URI, or exceptionally on any problem reading it
+     */
+    public CompletableFuture<Content> httpAsync( final URI _uri ) {
+
+        EmailEvents.ResourceFetch event = new EmailEvents.ResourceFetch();
+        event.begin();
+        String key = _uri.toString();
+        long now = System.currentTimeMillis();
+        Entry entry = lookup( key );
+
+        // if it's fresh, we have a hit...
+        if( (entry != null) && ((now - entry.validated) <= httpTTLMS) ) {
+            hits.incrementAndGet();
+            return CompletableFuture.completedFuture( fetched( event, key, entry.content, true ) );
+        }
+
+        // otherwise we have to ask the server, conditionally if we can...
+        HttpRequest.Builder request = fetcher.request( _uri );
+        if( (entry != null) && (entry.etag != null) )
+            request.header( "If-None-Match", entry.etag );
+        if( (entry != null) && (entry.lastModified != 0) )
+            request.header( "If-Modified-Since", DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    ZonedDateTime.ofInstant( Instant.ofEpochMilli( entry.lastModified ), ZoneOffset.UTC ) ) );
+
+        return fetcher.fetch( request.build() ).thenApply( (response) -> {
+
+            // if the server says it hasn't changed, we have a hit...
+            if( (entry != null) && (response.statusCode() == 304) ) {
+                entry.validated = now;
+                hits.incrementAndGet();
+                return entry.content;
+            }
+            if( response.statusCode() != 200 )
+                throw new CompletionException( new IOException( "HTTP status " + response.statusCode() + " reading " + _uri ) );
+
+            misses.incrementAndGet();
+            HttpHeaders headers = response.headers();
+            Content content = new Content( response.body(),
+                    headers.firstValue( "Content-Type" ).orElse( "application/octet-stream" ), _uri.getPath() );
+            long lastModified = headers.firstValue( "Last-Modified" )
+                    .map( (value) -> parseHttpDate( value ) )
+                    .orElse( 0L );
+            store( key, new Entry( content, now, lastModified, headers.firstValue( "ETag" ).orElse( null ) ) );
+            return content;
+        } ).whenComplete( (content, problem) -> fetched( event, key, content, (entry != null) && (content == entry.content) ) );
+    }
+
+
+    /**
+     * Commit the given resource fetch event (if it's being recorded) for the given content, which is {@code null} if it couldn't be read.
+     *
+     * @return the given content
+     */
+    private static Content fetched( final EmailEvents.ResourceFetch _event, final String _url, final Content _content, final boolean _cached ) {
+        if( _event.shouldCommit() ) {
+            _event.url    = _url;
+            _event.bytes  = (_content == null) ? 0 : _content.size();
+            _event.cached = _cached;
+            _event.ok     = (_content != null);
+            _event.commit();
+        }
+        return _content;
+    }
+
+
+    /**
+     * Fetch all the given web (http and https) URLs that aren't already fresh in this cache, concurrently, and wait for them all to complete.
+     * The fetched content is returned (as completed futures, keyed by URL) as well as cached, so the caller can use it even if this cache didn't
+     * keep it -- because it's too big to cache, or the cache is disabled (its size is zero).  Other URLs are ignored, as are any problems
+     * fetching (they'll be reported when the content is read from the returned futures, with {@link #await(CompletableFuture,String)}).
+     *
+     * @param _urls the URLs to prefetch
+     * @return the futures of the fetched content, keyed by URL
+     */
+    public Map<String,CompletableFuture<Content>> prefetch( final Collection<String> _urls ) {
+
+        Map<String,CompletableFuture<Content>> fetches = new HashMap<>();
+        for( String url : _urls ) {
+            if( !fetches.containsKey( url ) && (url.startsWith( "http://" ) || url.startsWith( "https://" )) ) {
+                try {
+                    fetches.put( url, httpAsync( new URI( url ) ) );
+                }
+                catch( URISyntaxException _e ) {
+                    // naught to do; the problem will be reported when the content is read...
+                }
+            }
+        }
+        if( fetches.size() == 0 )
+            return fetches;
+
+        try {
+            CompletableFuture.allOf( fetches.values().toArray( new CompletableFuture<?>[0] ) ).join();
+        }
+        catch( CompletionException _e ) {
+            // naught to do; the problem will be reported when the content is read...
+        }
+        return fetches;
+    }
+
+
+    /**
+     * Returns a snapshot of this cache's statistics.
+     *
+     * @return this cache's statistics
+     */
+    public Stats getStats() {
+        synchronized( this ) {
+            return new Stats( hits.get(), misses.get(), evictions.get(), entries.size(), bytes );
+        }
+    }
+
+
+    /**
+     * Discard all the content in this cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+
+    private synchronized Entry lookup( final String _key ) {
+        return entries.get( _key );
+    }
+
+
+    private synchronized void store( final String _key, final Entry _entry ) {
+
+        // if it's too big to cache, don't...
+        if( _entry.content.size() > maxEntryBytes )
+            return;
+
+        Entry old = entries.put( _key, _entry );
+        if( old != null )
+            bytes -= old.content.size();
+        bytes += _entry.content.size();
+
+        // evict least recently used content until we're within our limit...
+        Iterator<Entry> it = entries.values().iterator();
+        while( (bytes > maxBytes) && it.hasNext() ) {
+            Entry eldest = it.next();
+            it.remove();
+            bytes -= eldest.content.size();
+            evictions.incrementAndGet();
+        }
+    }
+
+
+    private static long parseHttpDate( final String _value ) {
+        try {
+            return ZonedDateTime.parse( _value, DateTimeFormatter.RFC_1123_DATE_TIME ).toInstant().toEpochMilli();
+        }
+        catch( DateTimeParseException _e ) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * The statistics of a content cache.
+     *
+     * @param hits the number of requests served from the cache (including those revalidated)
+     * @param misses the number of requests that had to read the content
+     * @param evictions the number of entries evicted to keep the cache within its size limit
+     * @param entries the number of entries currently in the cache
+     * @param bytes the total size of the content currently in the cache
+     */
+    public record Stats( long hits, long misses, long evictions, int entries, long bytes ) {}
+
+
+    /**
+     * The content of an include file or resource.  The content is held in memory, and is never modified.
+     */
+    public static final class Content implements DataSource {
+
+        private final byte[] data;
+        private final String contentType;
+        private final String name;
+
+        private volatile String hash;     // lazily computed...
+        private volatile String text;     // lazily decoded...
+
+
+        private Content( final byte[] _data, final String _contentType, final String _name ) {
+            data        = _data;
+            contentType = _contentType;
+            name        = _name;
+        }
+
+
+        /**
+         * Returns the size of this content, in bytes.
+         *
+         * @return the size of this content
+         */
+        public int size() {
+            return data.length;
+        }
+
+
+        /**
+         * Returns this content as (UTF-8) text.  The text is decoded only once, so the same string is returned for as long as this content is
+         * cached.
+         *
+         * @return the text of this content
+         */
+        String getText() {
+
+            String result = text;
+            if( result == null ) {
+                result = new String( data, StandardCharsets.UTF_8 );
+                text = result;
+            }
+            return result;
+        }
+
+
+        /**
+         * Returns a hash of this content (the first 128 bits of its SHA-256 digest, in hexadecimal), suitable for use as a Content-ID.  The hash
+         * is computed only once, no matter how many messages this content is inlined in.
+         *
+         * @return the hash of this content
+         */
+        public String getHash() {
+
+            String result = hash;
+            if( result == null ) {
+                try {
+                    byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( data );
+                    result = HexFormat.of().formatHex( digest, 0, 16 );
+                    hash = result;
+                }
+                catch( NoSuchAlgorithmException _e ) {
+                    throw new IllegalStateException( "SHA-256 is not available", _e );
+                }
+            }
+            return result;
+        }
+
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream( data );
+        }
+
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException( "Cached content is read-only: " + name );
+        }
+
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+
+    /**
+     * A cached piece of content, with what we need to validate it.
+     */
+    private static class Entry {
+
+        private final Content content;
+        private final long    lastModified;     // file modification time, or the Last-Modified header value (zero if none)...
+        private final String  etag;             // the ETag header value, or null if none...
+
+        private volatile long validated;        // when the content was last known to be valid...
+
+
+        private Entry( final Content _content, final long _validated, final long _lastModified, final String _etag ) {
+            content      = _content;
+            validated    = _validated;
+            lastModified = _lastModified;
+            etag         = _etag;
+        }
+    }
+}
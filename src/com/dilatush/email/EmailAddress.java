@@ -4,8 +4,10 @@ import com.dilatush.util.Outcome;
 import jakarta.mail.internet.InternetAddress;
 
 import java.io.UnsupportedEncodingException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static com.dilatush.util.Strings.isEmpty;
 
@@ -18,6 +20,8 @@ import static com.dilatush.util.Strings.isEmpty;
  *     <li>Reserved domain names (in RFC 2606, like {@code example.net}) are not allowed.</li>
  *     <li>Only ASCII domain names are supported (no UTF-8 encoding).</li>
  * </ul>
+ * Addresses are validated by a hand-written parser, in a single pass over their characters, so validating large lists (with
+ * {@link #validateAll(Collection)}, or through a {@link Cache}) is fast.
  * Instances of this class are immutable and threadsafe; the fields are final and publicly available.
  */
 @SuppressWarnings( "unused" )
@@ -51,10 +55,9 @@ public class EmailAddress {
 
 
     // RFC 3696 and RFC 2606 are the sources for these rules...
-    private final static Pattern DISPLAY_NAME_EXTRACTOR = Pattern.compile( "([^<]*)<([^>]+)>" );
-    private final static Pattern DOMAIN_VALIDATOR = Pattern.compile( "((([a-zA-Z0-9]+-)*[a-zA-Z0-9]+\\.)+([a-zA-Z0-9]+-)*[a-zA-Z0-9]+)" );
-    private final static Pattern MAILBOX_VALIDATOR = Pattern.compile( "((([a-zA-Z0-9!#$%&'*+\\-/=?^_`{|}~]|\\\\.)+\\.)*([a-zA-Z0-9!#$%&'*+\\-/=?^_`{|}~]|\\\\.)+)|\"[^\"]+\"" );
-    private final static Pattern TLD_VALIDATOR = Pattern.compile( "[0-9]+|test|example|invalid|localhost" );
+    private final static String   MAILBOX_SPECIALS = "!#$%&'*+-/=?^_`{|}~";
+    private final static String[] RESERVED_TLDS    = { "test", "example", "invalid", "localhost" };
+    private final static String[] RESERVED_DOMAINS = { "example.com", "example.net", "example.org" };
 
 
     /**
@@ -73,61 +76,254 @@ public class EmailAddress {
             return OUTCOME.notOk( "No email address was supplied." );
 
         // starting assumption is that the actual email address is the entire given string and that there's no display name...
-        String emailAddress = _emailAddress;
+        int start = 0;
+        int end = _emailAddress.length();
         String displayName = null;
 
-        // handle the display name, if we had one...
-        Matcher mat = DISPLAY_NAME_EXTRACTOR.matcher( _emailAddress );
-        if( mat.matches() ) {
-            displayName = mat.group( 1 ).trim();
-            emailAddress = mat.group( 2 );
+        // handle the display name, if we had one (an empty display name is the same as none at all)...
+        int open = _emailAddress.indexOf( '<' );
+        if( (open >= 0) && (_emailAddress.charAt( end - 1 ) == '>') && (end - open > 2) && (_emailAddress.indexOf( '>', open ) == end - 1) ) {
+            displayName = _emailAddress.substring( 0, open ).trim();
+            if( displayName.isEmpty() )
+                displayName = null;
+            start = open + 1;
+            end = end - 1;
         }
 
-        // make sure we actually GOT a display name...
-        if( isEmpty( displayName ) )
-            return OUTCOME.notOk( "Display name is empty: " + _emailAddress );
+        return parse( _emailAddress, start, end, displayName );
+    }
+
+
+    /**
+     * Create a new instance of {@link EmailAddress} from the given {@link InternetAddress}, whose address must comply with the rules outlined in the
+     * class comments.  The display name is the internet address' personal name, if it has one.
+     *
+     * @param _internetAddress The internet address to convert.
+     * @return The outcome of this method.  If ok, then the info is the instance of {@link EmailAddress} created.  If not ok, the message contains
+     * an explanation of why.
+     */
+    public static Outcome<EmailAddress> fromInternetAddress( final InternetAddress _internetAddress ) {
+
+        String address = (_internetAddress == null) ? null : _internetAddress.getAddress();
+        if( isEmpty( address ) )
+            return OUTCOME.notOk( "No email address was supplied." );
+        String displayName = (_internetAddress.getPersonal() == null) ? null : _internetAddress.getPersonal().trim();
+        return parse( address, 0, address.length(), isEmpty( displayName ) ? null : displayName );
+    }
+
+
+    /**
+     * Validate all the given strings as email addresses (as {@link #fromString(String)} does), in parallel across all available processors.
+     *
+     * @param _emailAddresses The strings to validate.
+     * @return The outcome for each string, in the order of the given collection.
+     */
+    public static List<Outcome<EmailAddress>> validateAll( final Collection<String> _emailAddresses ) {
+        return _emailAddresses.parallelStream().map( EmailAddress::fromString ).toList();
+    }
+
+
+    /**
+     * Validate the email address in the given range of the given string, in a single pass over its characters, and return the outcome.
+     *
+     * @param _text The string containing the email address.
+     * @param _start The index of the first character of the email address.
+     * @param _end The index just past the last character of the email address.
+     * @param _displayName The display name for the email address, or {@code null} if there is none.
+     * @return The outcome, as for {@link #fromString(String)}.
+     */
+    private static Outcome<EmailAddress> parse( final String _text, final int _start, final int _end, final String _displayName ) {
 
         // split the actual email address into mailbox and domain, using the last "@" as the split point...
-        int localSplit = emailAddress.lastIndexOf( '@' );
-        if( localSplit < 0 )
-            return OUTCOME.notOk( "Email address has no '@': " + emailAddress );
-        String mailbox = emailAddress.substring( 0, localSplit );
-        String domain = emailAddress.substring( localSplit + 1 );
-
-        // validate the domain...
-        mat = DOMAIN_VALIDATOR.matcher( domain );
-        if( !mat.matches() )
-            return OUTCOME.notOk( "Domain in email address is not valid: " + domain );
-        if( domain.length() > 255 )  // per RFC 3696...
-            return OUTCOME.notOk( "Domain in email address is too long: " + domain );
-
-        // validate the top level domain...
-        int tldSplit = domain.lastIndexOf( '.' );
-        if( tldSplit < 0 )
-            return OUTCOME.notOk( "Domain in email address is just the top level domain: " + domain );
-        String tld = domain.substring( tldSplit + 1 );
-        mat = TLD_VALIDATOR.matcher( tld );
-        if( mat.matches() )
-            return OUTCOME.notOk( "Top level domain in email address is not valid (see RFC 2606): " + tld );
+        int at = _text.lastIndexOf( '@', _end - 1 );
+        if( at < _start )
+            return OUTCOME.notOk( "Email address has no '@': " + _text.substring( _start, _end ) );
+
+        // validate the domain: dot-separated labels of letters and digits, with single hyphens allowed between them...
+        int labels = 0;
+        int labelLength = 0;
+        int tldStart = at + 1;
+        boolean hyphen = false;
+        boolean valid = true;
+        for( int i = at + 1; valid && (i < _end); i++ ) {
+            char c = _text.charAt( i );
+            if( isLetterOrDigit( c ) ) {
+                labelLength++;
+                hyphen = false;
+            }
+            else if( c == '-' ) {
+                valid = (labelLength > 0) && !hyphen;
+                labelLength++;
+                hyphen = true;
+            }
+            else if( c == '.' ) {
+                valid = (labelLength > 0) && !hyphen;
+                labels++;
+                labelLength = 0;
+                tldStart = i + 1;
+            }
+            else {
+                valid = false;
+            }
+        }
+        if( !valid || (labelLength == 0) || hyphen || (labels == 0) )
+            return OUTCOME.notOk( "Domain in email address is not valid: " + _text.substring( at + 1, _end ) );
+        if( _end - at - 1 > 255 )  // per RFC 3696...
+            return OUTCOME.notOk( "Domain in email address is too long: " + _text.substring( at + 1, _end ) );
+
+        // validate the top level domain (per RFC 2606)...
+        boolean numeric = true;
+        for( int i = tldStart; numeric && (i < _end); i++ )
+            numeric = (_text.charAt( i ) >= '0') && (_text.charAt( i ) <= '9');
+        if( numeric || endsWithLabel( _text, tldStart, _end, RESERVED_TLDS ) )
+            return OUTCOME.notOk( "Top level domain in email address is not valid (see RFC 2606): " + _text.substring( tldStart, _end ) );
 
         // validate the first and second level domain (per RFC 2606)...
-        if( domain.endsWith( "example.com" ) || domain.endsWith( "example.net" ) || domain.endsWith( "example.org" ) )
-            return OUTCOME.notOk( "Domain in email address is not valid (see RFC 2606): " + domain );
-
-        // validate the mailbox...
-        if( isEmpty( mailbox ) )
-            return OUTCOME.notOk( "No mailbox name supplied: " + emailAddress );
-        mat = MAILBOX_VALIDATOR.matcher( mailbox );
-        if( !mat.matches() )
-            return OUTCOME.notOk( "Mailbox name in email address is not valid: " + mailbox );
+        if( endsWithLabel( _text, at + 1, _end, RESERVED_DOMAINS ) )
+            return OUTCOME.notOk( "Domain in email address is not valid (see RFC 2606): " + _text.substring( at + 1, _end ) );
+
+        // validate the mailbox: either a quoted string, or dot-separated atoms (in which any character may be escaped with a backslash)...
+        if( at == _start )
+            return OUTCOME.notOk( "No mailbox name supplied: " + _text.substring( _start, _end ) );
+        if( (_text.charAt( _start ) == '"') && (_text.charAt( at - 1 ) == '"') && (at - _start > 2) ) {
+            valid = _text.indexOf( '"', _start + 1 ) == at - 1;
+        }
+        else {
+            int atomLength = 0;
+            for( int i = _start; valid && (i < at); i++ ) {
+                char c = _text.charAt( i );
+                if( c == '\\' ) {
+                    valid = (i + 1 < at) && (_text.charAt( i + 1 ) != '\n') && (_text.charAt( i + 1 ) != '\r');
+                    i++;
+                    atomLength++;
+                }
+                else if( c == '.' ) {
+                    valid = atomLength > 0;
+                    atomLength = 0;
+                }
+                else if( isLetterOrDigit( c ) || (MAILBOX_SPECIALS.indexOf( c ) >= 0) )
+                    atomLength++;
+                else {
+                    valid = false;
+                }
+            }
+            valid &= atomLength > 0;
+        }
+        if( !valid )
+            return OUTCOME.notOk( "Mailbox name in email address is not valid: " + _text.substring( _start, at ) );
 
         // if we get here, then everything is hunky-dory...
-        return OUTCOME.ok( new EmailAddress( mailbox, domain, displayName ));
+        return OUTCOME.ok( new EmailAddress( _text.substring( _start, at ), _text.substring( at + 1, _end ), _displayName ) );
     }
 
 
-    public static Outcome<EmailAddress> fromInternetAddress( final InternetAddress _internetAddress ) {
-        return fromString( _internetAddress.toString() );
+    // ASCII letters and digits only; Character.isLetterOrDigit() would let in the whole of Unicode...
+    private static boolean isLetterOrDigit( final char _c ) {
+        return ((_c >= 'a') && (_c <= 'z')) || ((_c >= 'A') && (_c <= 'Z')) || ((_c >= '0') && (_c <= '9'));
+    }
+
+
+    /**
+     * Returns {@code true} if the given range of the given string is one of the given names, or ends with one of them as whole labels (that is,
+     * preceded by a period), ignoring case.
+     */
+    private static boolean endsWithLabel( final String _text, final int _start, final int _end, final String[] _names ) {
+
+        for( String name : _names ) {
+            int nameStart = _end - name.length();
+            if( (nameStart >= _start) && _text.regionMatches( true, nameStart, name, 0, name.length() )
+                    && ((nameStart == _start) || (_text.charAt( nameStart - 1 ) == '.')) )
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * A bounded cache of valid email addresses, for validating lists in which the same addresses appear again and again (like the subscriber lists
+     * of several bulk mailings).  Only valid addresses are cached.  The cache is split into segments (by the hash of the address), each with its
+     * own lock, so that many threads validating at once rarely wait for each other; when a segment is full, its least recently used address is
+     * evicted.
+     * <p>
+     * Instances of this class are threadsafe.
+     */
+    public static class Cache {
+
+        private final Map<String,EmailAddress>[] segments;    // each in least recently used order, and guarded by itself...
+
+
+        /**
+         * Create a new instance of this class that holds up to the given number of valid email addresses.
+         *
+         * @param _maxEntries The maximum number of email addresses to cache.
+         */
+        public Cache( final int _maxEntries ) {
+
+            if( _maxEntries < 1 )
+                throw new IllegalArgumentException( "Email address cache must hold at least one address: " + _maxEntries );
+
+            // enough segments to keep contention low, but not so many that a small cache is split into tiny pieces...
+            int count = Math.min( Integer.highestOneBit( Math.max( 1, _maxEntries / 64 ) ),
+                                  Integer.highestOneBit( 4 * Runtime.getRuntime().availableProcessors() - 1 ) << 1 );
+            int segmentMax = Math.max( 1, _maxEntries / count );
+            segments = newSegments( count );
+            for( int i = 0; i < count; i++ )
+                segments[i] = new LinkedHashMap<>( 16, 0.75f, true ) {
+                    @Override
+                    protected boolean removeEldestEntry( final Map.Entry<String,EmailAddress> _eldest ) {
+                        return size() > segmentMax;
+                    }
+                };
+        }
+
+
+        /**
+         * Create a new instance of {@link EmailAddress} from the given string, exactly as {@link EmailAddress#fromString(String)} does, but
+         * returning the cached instance if the string has already been validated.
+         *
+         * @param _emailAddress The string containing a compliant email address.
+         * @return The outcome, as for {@link EmailAddress#fromString(String)}.
+         */
+        public Outcome<EmailAddress> fromString( final String _emailAddress ) {
+
+            if( _emailAddress == null )
+                return EmailAddress.fromString( null );
+
+            int hash = _emailAddress.hashCode();
+            Map<String,EmailAddress> segment = segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+            EmailAddress cached;
+            synchronized( segment ) {
+                cached = segment.get( _emailAddress );
+            }
+            if( cached != null )
+                return OUTCOME.ok( cached );
+
+            // validate outside the lock, so that other threads aren't held up...
+            Outcome<EmailAddress> result = EmailAddress.fromString( _emailAddress );
+            if( result.ok() ) {
+                synchronized( segment ) {
+                    segment.put( _emailAddress, result.info() );
+                }
+            }
+            return result;
+        }
+
+
+        /**
+         * Validate all the given strings as email addresses, using (and filling) this cache, in parallel across all available processors.
+         *
+         * @param _emailAddresses The strings to validate.
+         * @return The outcome for each string, in the order of the given collection.
+         */
+        public List<Outcome<EmailAddress>> validateAll( final Collection<String> _emailAddresses ) {
+            return _emailAddresses.parallelStream().map( this::fromString ).toList();
+        }
+
+
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        private static Map<String,EmailAddress>[] newSegments( final int _count ) {
+            return (Map<String,EmailAddress>[]) new Map[_count];
+        }
     }
 
 
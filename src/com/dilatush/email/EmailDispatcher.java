@@ -0,0 +1,404 @@
+package com.dilatush.email;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Instances of this class route received emails to handlers, according to a set of declarative rules -- the heart of automated processing of
+ * received email (APRE).  Each {@link Rule} names a handler, and may test the message's sender, subject, headers, and body; a message is routed to
+ * the handler of every rule it matches (but to each handler only once, no matter how many of its rules match).
+ * <p>
+ * All the rules are compiled together when the dispatcher is created: exact senders and sender domains go into hash tables, and the keywords of
+ * every rule (whether for the subject, a header, or the body) go into a single {@link KeywordMatcher}.  Matching a message takes one hash lookup
+ * for its sender, and one pass over each of its subject, its body, and the headers any rule tests -- so the cost of matching stays flat as rules
+ * are added.
+ * <p>
+ * Handlers run on the given executor, so that many messages may be handled at once, but each handler runs no more than its configured number of
+ * messages at a time.  Messages routed to a handler that is already busy wait (in the order they were dispatched) until it has room.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class EmailDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    // the pseudo-fields a keyword may be found in; headers are numbered after these...
+    private static final int SUBJECT = 0;
+    private static final int BODY    = 1;
+
+    private final Executor            executor;
+    private final List<Rule>          rules;
+    private final HandlerState[]      ruleHandlers;    // the handler of each rule, by rule index...
+    private final int[]               ruleCriteria;    // the number of criteria each rule has, by rule index...
+    private final int[]               criterionRule;   // the rule each criterion belongs to, by criterion index...
+    private final int[]               unconditional;   // the rules that have no criteria, and so match every message...
+    private final Map<String,int[]>   senders;         // the sender criteria satisfied by each exact (folded) address...
+    private final Map<String,int[]>   domains;         // the sender criteria satisfied by each (folded) domain...
+    private final Map<String,Integer> headerFields;    // the field number of each (lower-case) header name that any rule tests...
+    private final KeywordMatcher      matcher;         // every keyword of every rule, or null if there are none...
+    private final int[][]             keywordFields;   // for each keyword, the field it must be found in for each of its criteria...
+    private final int[][]             keywordCriteria; // for each keyword, the criteria it satisfies (parallel to keywordFields)...
+    private final boolean             scanBody;        // true if any rule has body keywords...
+
+
+    /**
+     * A declarative routing rule.  A message matches the rule if it satisfies <i>every</i> condition the rule has; each condition is satisfied
+     * if <i>any</i> of its values match.  A rule with no conditions at all matches every message.  All comparisons are case-insensitive, and
+     * keywords match anywhere in the text they're tested against.  The conditions are:
+     * <ul>
+     *     <li>senders: the sender's address is one of these; a value that starts with "@" (like "@dilatush.com") matches any sender in that
+     *     domain</li>
+     *     <li>subject keywords: the subject contains one of these</li>
+     *     <li>header keywords: for each header named, a value of that header contains one of the keywords given for it</li>
+     *     <li>body keywords: the text of the message contains one of these</li>
+     * </ul>
+     *
+     * @param name the name of the rule, used in logging
+     * @param handler the name of the handler that messages matching this rule are routed to
+     * @param senders the senders (or sender domains) the message must be from, or empty for any sender
+     * @param subjectKeywords the keywords the subject must contain one of, or empty for any subject
+     * @param headerKeywords by header name, the keywords that header must contain one of, or empty for any headers
+     * @param bodyKeywords the keywords the body must contain one of, or empty for any body
+     */
+    public record Rule( String name, String handler, Set<String> senders, Set<String> subjectKeywords, Map<String,Set<String>> headerKeywords,
+                        Set<String> bodyKeywords ) {
+
+        public Rule {
+
+            if( (name == null) || (handler == null) )
+                throw new IllegalArgumentException( "Rule is missing its name or handler" );
+
+            senders         = normalize( senders );
+            subjectKeywords = normalize( subjectKeywords );
+            bodyKeywords    = normalize( bodyKeywords );
+            Map<String,Set<String>> headers = new HashMap<>();
+            if( headerKeywords != null )
+                headerKeywords.forEach( (header, keywords) -> {
+                    Set<String> normalized = normalize( keywords );
+                    if( !normalized.isEmpty() )
+                        headers.merge( header.toLowerCase(), normalized, (a, b) -> {
+                            Set<String> merged = new HashSet<>( a );
+                            merged.addAll( b );
+                            return Set.copyOf( merged );
+                        } );
+                } );
+            headerKeywords = Map.copyOf( headers );
+        }
+
+
+        private static Set<String> normalize( final Set<String> _values ) {
+
+            if( _values == null )
+                return Set.of();
+            for( String value : _values )
+                if( (value == null) || value.isBlank() )
+                    throw new IllegalArgumentException( "Rule has an empty sender or keyword" );
+            return _values.stream().map( KeywordMatcher::fold ).collect( Collectors.toUnmodifiableSet() );
+        }
+    }
+
+
+    /**
+     * A handler that messages are routed to.
+     *
+     * @param name the name of the handler, which rules refer to
+     * @param maxConcurrent the maximum number of messages this handler may handle at once
+     * @param action the code that handles a message
+     */
+    public record Handler( String name, int maxConcurrent, Consumer<InboundEmailMessage> action ) {
+
+        public Handler {
+            if( (name == null) || (action == null) )
+                throw new IllegalArgumentException( "Handler is missing its name or action" );
+            if( maxConcurrent < 1 )
+                throw new IllegalArgumentException( "Handler " + name + " must be allowed to handle at least one message at once: " + maxConcurrent );
+        }
+    }
+
+
+    /**
+     * Create a new instance of this class that routes messages according to the given rules, to the given handlers, which run on the given
+     * executor.
+     *
+     * @param _rules the routing rules
+     * @param _handlers the handlers the rules route to
+     * @param _executor the executor that handlers run on
+     * @throws IllegalArgumentException if a rule refers to a handler that isn't given, or if two handlers have the same name
+     */
+    public EmailDispatcher( final Collection<Rule> _rules, final Collection<Handler> _handlers, final Executor _executor ) {
+
+        if( (_rules == null) || (_handlers == null) || (_executor == null) )
+            throw new IllegalArgumentException( "Missing rules, handlers, or executor" );
+
+        executor = _executor;
+        rules    = List.copyOf( _rules );
+
+        Map<String,HandlerState> handlers = new HashMap<>();
+        for( Handler handler : _handlers )
+            if( handlers.put( handler.name(), new HandlerState( handler ) ) != null )
+                throw new IllegalArgumentException( "Duplicate handler name: " + handler.name() );
+
+        // number every criterion of every rule, and index them by what satisfies them...
+        ruleHandlers = new HandlerState[rules.size()];
+        ruleCriteria = new int[rules.size()];
+        List<Integer>             criteria       = new ArrayList<>();   // the rule of each criterion...
+        List<Integer>             always         = new ArrayList<>();
+        Map<String,List<Integer>> senderIndex    = new HashMap<>();
+        Map<String,List<Integer>> domainIndex    = new HashMap<>();
+        Map<String,Integer>       keywordIndex   = new HashMap<>();
+        List<String>              keywords       = new ArrayList<>();
+        List<List<int[]>>         keywordTargets = new ArrayList<>();   // per keyword: {field, criterion}...
+        Map<String,Integer>       fields         = new HashMap<>();
+        boolean                   body           = false;
+
+        for( int r = 0; r < rules.size(); r++ ) {
+            Rule rule = rules.get( r );
+            ruleHandlers[r] = handlers.get( rule.handler() );
+            if( ruleHandlers[r] == null )
+                throw new IllegalArgumentException( "Rule " + rule.name() + " refers to unknown handler: " + rule.handler() );
+
+            if( !rule.senders().isEmpty() ) {
+                int criterion = addCriterion( criteria, r );
+                for( String sender : rule.senders() ) {
+                    Map<String,List<Integer>> index = sender.startsWith( "@" ) ? domainIndex : senderIndex;
+                    String key = sender.startsWith( "@" ) ? sender.substring( 1 ) : sender;
+                    index.computeIfAbsent( key, (k) -> new ArrayList<>() ).add( criterion );
+                }
+            }
+            if( !rule.subjectKeywords().isEmpty() )
+                addKeywords( rule.subjectKeywords(), SUBJECT, addCriterion( criteria, r ), keywordIndex, keywords, keywordTargets );
+            for( Map.Entry<String,Set<String>> header : rule.headerKeywords().entrySet() ) {
+                int field = fields.computeIfAbsent( header.getKey(), (name) -> BODY + 1 + fields.size() );
+                addKeywords( header.getValue(), field, addCriterion( criteria, r ), keywordIndex, keywords, keywordTargets );
+            }
+            if( !rule.bodyKeywords().isEmpty() ) {
+                addKeywords( rule.bodyKeywords(), BODY, addCriterion( criteria, r ), keywordIndex, keywords, keywordTargets );
+                body = true;
+            }
+        }
+
+        // count each rule's criteria...
+        for( int rule : criteria )
+            ruleCriteria[rule]++;
+        for( int r = 0; r < rules.size(); r++ )
+            if( ruleCriteria[r] == 0 )
+                always.add( r );
+
+        criterionRule   = criteria.stream().mapToInt( Integer::intValue ).toArray();
+        unconditional   = always.stream().mapToInt( Integer::intValue ).toArray();
+        senders         = toArrays( senderIndex );
+        domains         = toArrays( domainIndex );
+        headerFields    = Map.copyOf( fields );
+        scanBody        = body;
+        matcher         = keywords.isEmpty() ? null : new KeywordMatcher( keywords );
+        keywordFields   = new int[keywords.size()][];
+        keywordCriteria = new int[keywords.size()][];
+        for( int k = 0; k < keywords.size(); k++ ) {
+            List<int[]> targets = keywordTargets.get( k );
+            keywordFields[k]   = targets.stream().mapToInt( (t) -> t[0] ).toArray();
+            keywordCriteria[k] = targets.stream().mapToInt( (t) -> t[1] ).toArray();
+        }
+    }
+
+
+    /**
+     * Route the given message to the handlers of all the rules it matches.  This method doesn't wait for the handlers to run, so it may be used
+     * directly as the consumer of an {@link IMAPWatcher} or an {@link InboxMonitor}'s messages.
+     *
+     * @param _message the message to route
+     * @return the number of handlers the message was routed to (zero if it matched no rule)
+     */
+    public int dispatch( final InboundEmailMessage _message ) {
+
+        if( _message == null )
+            throw new IllegalArgumentException( "Missing message" );
+
+        int[]     hits      = new int[rules.size()];         // the number of each rule's criteria satisfied so far...
+        boolean[] satisfied = new boolean[criterionRule.length];
+        List<HandlerState> targets = new ArrayList<>();
+
+        for( int rule : unconditional )
+            route( ruleHandlers[rule], targets );
+
+        // the sender, with a hash lookup of the address and another of its domain...
+        if( (_message.from() != null) && (_message.from().getAddress() != null) ) {
+            String address = KeywordMatcher.fold( _message.from().getAddress() );
+            satisfy( senders.get( address ), hits, satisfied, targets );
+            int at = address.lastIndexOf( '@' );
+            if( at >= 0 )
+                satisfy( domains.get( address.substring( at + 1 ) ), hits, satisfied, targets );
+        }
+
+        // everything else, with one pass over each field tested...
+        if( matcher != null ) {
+            scan( _message.subject(), SUBJECT, hits, satisfied, targets );
+            for( Map.Entry<String,Integer> header : headerFields.entrySet() ) {
+                List<String> values = _message.headers().get( header.getKey() );
+                if( values != null )
+                    for( String value : values )
+                        scan( value, header.getValue(), hits, satisfied, targets );
+            }
+            if( scanBody )
+                scan( _message.text(), BODY, hits, satisfied, targets );
+        }
+
+        if( targets.isEmpty() )
+            LOGGER.fine( "Email " + _message.mailbox() + " #" + _message.uid() + " matched no rule" );
+        for( HandlerState handler : targets )
+            handler.submit( _message );
+        return targets.size();
+    }
+
+
+    /**
+     * Returns the rules this dispatcher routes by.
+     *
+     * @return the rules
+     */
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+
+    private void scan( final String _text, final int _field, final int[] _hits, final boolean[] _satisfied, final List<HandlerState> _targets ) {
+
+        matcher.scan( _text, (keyword) -> {
+            int[] fields = keywordFields[keyword];
+            for( int i = 0; i < fields.length; i++ )
+                if( fields[i] == _field )
+                    satisfy( keywordCriteria[keyword][i], _hits, _satisfied, _targets );
+        } );
+    }
+
+
+    private void satisfy( final int[] _criteria, final int[] _hits, final boolean[] _satisfied, final List<HandlerState> _targets ) {
+
+        if( _criteria == null )
+            return;
+        for( int criterion : _criteria )
+            satisfy( criterion, _hits, _satisfied, _targets );
+    }
+
+
+    private void satisfy( final int _criterion, final int[] _hits, final boolean[] _satisfied, final List<HandlerState> _targets ) {
+
+        if( _satisfied[_criterion] )
+            return;
+        _satisfied[_criterion] = true;
+        int rule = criterionRule[_criterion];
+        if( ++_hits[rule] == ruleCriteria[rule] )
+            route( ruleHandlers[rule], _targets );
+    }
+
+
+    // handlers are few per message, so a linear check for duplicates is cheaper than a set...
+    private static void route( final HandlerState _handler, final List<HandlerState> _targets ) {
+        if( !_targets.contains( _handler ) )
+            _targets.add( _handler );
+    }
+
+
+    private static int addCriterion( final List<Integer> _criteria, final int _rule ) {
+        _criteria.add( _rule );
+        return _criteria.size() - 1;
+    }
+
+
+    private static void addKeywords( final Set<String> _keywords, final int _field, final int _criterion, final Map<String,Integer> _index,
+                                     final List<String> _list, final List<List<int[]>> _targets ) {
+
+        for( String keyword : _keywords ) {
+            int k = _index.computeIfAbsent( keyword, (key) -> {
+                _list.add( key );
+                _targets.add( new ArrayList<>() );
+                return _list.size() - 1;
+            } );
+            _targets.get( k ).add( new int[] { _field, _criterion } );
+        }
+    }
+
+
+    private static Map<String,int[]> toArrays( final Map<String,List<Integer>> _index ) {
+
+        Map<String,int[]> result = new HashMap<>();
+        _index.forEach( (key, criteria) -> result.put( key, criteria.stream().mapToInt( Integer::intValue ).toArray() ) );
+        return Map.copyOf( result );
+    }
+
+
+    /**
+     * A handler, with the messages waiting for it and the permits that limit how many it handles at once.
+     */
+    private class HandlerState {
+
+        private final Handler                    handler;
+        private final Semaphore                  permits;
+        private final Queue<InboundEmailMessage> waiting = new ConcurrentLinkedQueue<>();
+
+
+        private HandlerState( final Handler _handler ) {
+            handler = _handler;
+            permits = new Semaphore( _handler.maxConcurrent() );
+        }
+
+
+        private void submit( final InboundEmailMessage _message ) {
+            waiting.add( _message );
+            pump();
+        }
+
+
+        /**
+         * Start handling waiting messages, for as long as there are both messages waiting and permits to handle them.  This is called whenever a
+         * message is added or a permit is released, so no message is ever left waiting while the handler has room.
+         */
+        private void pump() {
+
+            while( !waiting.isEmpty() && permits.tryAcquire() ) {
+                InboundEmailMessage message = waiting.poll();
+                if( message == null ) {
+                    permits.release();     // someone else took it...
+                    continue;
+                }
+                try {
+                    executor.execute( () -> run( message ) );
+                }
+                catch( RejectedExecutionException _e ) {
+                    permits.release();
+                    LOGGER.log( Level.SEVERE, "Executor rejected email " + message.mailbox() + " #" + message.uid() + " for " + handler.name(), _e );
+                }
+            }
+        }
+
+
+        private void run( final InboundEmailMessage _message ) {
+
+            try {
+                handler.action().accept( _message );
+            }
+            catch( RuntimeException _e ) {
+                LOGGER.log( Level.SEVERE, "Handler " + handler.name() + " failed on email " + _message.mailbox() + " #" + _message.uid(), _e );
+            }
+            finally {
+                permits.release();
+                pump();
+            }
+        }
+    }
+}
@@ -0,0 +1,665 @@
+package com.dilatush.email;
+
+import jakarta.mail.internet.InternetAddress;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Instances of this class are compiled <i>EmailDocuments</i> (see the README for the details of what an <i>EmailDocument</i> may contain).  An
+ * <i>EmailDocument</i> is compiled once, into an immutable tree of nodes: literal text, property value substitutions ({@code :::name:::}),
+ * conditional branches ({@code <es-if>} and {@code <es-switch>}), and includes whose URLs depend on property values.  Includes with fixed URLs
+ * are expanded once, at compile time.  Rendering the document for a particular addressee is then a single linear pass over that tree, appending
+ * into a reused {@link StringBuilder} -- no regular expressions are run over the document for each addressee.
+ * <p>
+ * The {@code <plain-text>} section (if there is one) renders into the plain text body; everything else (the {@code <html>} section, and any
+ * {@code <attached-file/>} tags) renders into the HTML body.  Inlined elements and attachments are left as tags (with their property values
+ * substituted) for the sender to process.
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class EmailDocument {
+
+    // the maximum depth of property values that themselves contain property value substitutions...
+    private static final int MAX_SUBSTITUTION_DEPTH = 8;
+
+    // we retain each thread's render buffer, unless it grew larger than this...
+    private static final int MAX_RETAINED_BUFFER = 1 << 20;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial( () -> new StringBuilder( 8192 ) );
+
+    private final Node[]       text;        // null if there's no plain text section...
+    private final Node[]       html;        // null if there's no HTML (or only whitespace)...
+    private final List<String> resources;
+    private final IncludeResolver includes;
+    private final Locale       locale;
+
+
+    private EmailDocument( final Node[] _text, final Node[] _html, final List<String> _resources, final IncludeResolver _includes,
+                           final Locale _locale ) {
+        text      = _text;
+        html      = _html;
+        resources = _resources;
+        includes  = _includes;
+        locale    = _locale;
+    }
+
+
+    /**
+     * Compile the given <i>EmailDocument</i> source.  Includes with fixed URLs are read (using the given resolver) and expanded as part of
+     * compilation; includes whose URLs contain property value substitutions are read when the document is rendered.  String comparisons in test
+     * expressions collate according to the given locale.
+     *
+     * @param _source the <i>EmailDocument</i> source to compile
+     * @param _includes the resolver for include files
+     * @param _locale the locale for string comparisons in test expressions
+     * @return the compiled document
+     * @throws IOException on any problem reading include files
+     * @throws IllegalArgumentException if the document (including any test expression in it) is malformed, or its includes are invalid
+     */
+    public static EmailDocument compile( final String _source, final IncludeResolver _includes, final Locale _locale ) throws IOException {
+
+        if( (_source == null) || (_includes == null) || (_locale == null) )
+            throw new IllegalArgumentException( "Missing document source, include resolver, or locale" );
+
+        Parser parser = new Parser( _includes.expandFixed( _source ), _locale );
+        List<Node> html = parser.block( true );
+        if( parser.terminator != null )
+            throw new IllegalArgumentException( "Unexpected tag in email document: <" + parser.terminator + ">" );
+
+        return new EmailDocument(
+                parser.text,
+                isBlank( html ) ? null : html.toArray( new Node[0] ),
+                List.copyOf( parser.resources ),
+                _includes,
+                _locale );
+    }
+
+
+    /**
+     * Render this document for an addressee with the given email properties.
+     *
+     * @param _properties the email properties for the addressee (may be empty, but not {@code null})
+     * @return the rendered plain text and HTML bodies
+     * @throws IOException on any problem reading include files
+     * @throws IllegalArgumentException if the document references a property the addressee doesn't have, or a test can't be evaluated
+     */
+    public Rendered render( final Map<String,String> _properties ) throws IOException {
+
+        EmailEvents.Render event = new EmailEvents.Render();
+        event.begin();
+        StringBuilder out = BUFFER.get();
+        try {
+            Context context = new Context( _properties, out, includes, locale );
+            Rendered rendered = new Rendered( renderSection( text, context ), renderSection( html, context ) );
+            if( event.shouldCommit() ) {
+                event.textChars = (rendered.text() == null) ? 0 : rendered.text().length();
+                event.htmlChars = (rendered.html() == null) ? 0 : rendered.html().length();
+                event.commit();
+            }
+            return rendered;
+        }
+        finally {
+            if( out.capacity() > MAX_RETAINED_BUFFER )
+                BUFFER.remove();
+        }
+    }
+
+
+    /**
+     * Returns the URLs (without property value substitutions) of the resources (inlined elements and attachments) referenced by this document.
+     *
+     * @return the URLs of the resources referenced by this document
+     */
+    public List<String> getResources() {
+        return resources;
+    }
+
+
+    private static String renderSection( final Node[] _nodes, final Context _context ) throws IOException {
+
+        if( _nodes == null )
+            return null;
+
+        _context.out.setLength( 0 );
+        for( Node node : _nodes )
+            node.render( _context );
+        return _context.out.toString();
+    }
+
+
+    private static boolean isBlank( final List<Node> _nodes ) {
+        for( Node node : _nodes )
+            if( !((node instanceof Literal literal) && literal.text.isBlank()) )
+                return false;
+        return true;
+    }
+
+
+    /**
+     * Implemented by the loaders of include files.
+     */
+    public interface IncludeLoader {
+
+        /**
+         * Read the (UTF-8) text of the include file at the given URL.
+         *
+         * @param _url the URL of the include file
+         * @return the text of the include file
+         * @throws IOException on any problem reading the include file
+         */
+        String load( final String _url ) throws IOException;
+
+
+        /**
+         * Called before the include files at the given URLs are loaded, one after another, so that a loader that can read them concurrently may
+         * do so.  The texts it reads are returned as futures, keyed by URL, and are used instead of loading those URLs again; the include files
+         * at any other URLs are loaded with {@link #load(String)}.  By default, this reads nothing.
+         *
+         * @param _urls the URLs of the include files that are about to be loaded
+         * @return the futures of the texts read, keyed by URL
+         */
+        default Map<String,CompletableFuture<String>> prefetch( final List<String> _urls ) {
+            return Map.of();
+        }
+    }
+
+
+    /**
+     * Implemented by the compiled test expressions of conditional tags.
+     */
+    public interface Condition {
+
+        /**
+         * Evaluate this condition for the addressee being rendered.
+         *
+         * @param _context the render context, holding the addressee's properties
+         * @return the result of the test
+         */
+        boolean test( final Context _context );
+    }
+
+
+    /**
+     * The results of rendering a document for an addressee.  Either body may be {@code null}, but not both.
+     */
+    public record Rendered( String text, String html ) {
+
+
+        /**
+         * Returns an {@link OutboundEmailMessage} with this rendered document's bodies, from the given address and with the given subject.
+         *
+         * @param _from the address the message is from
+         * @param _subject the subject of the message
+         * @return the new message
+         */
+        public OutboundEmailMessage toMessage( final InternetAddress _from, final String _subject ) {
+            return new OutboundEmailMessage( _from, _subject, text, html );
+        }
+    }
+
+
+    /**
+     * The state of a render in progress, for a single addressee.  Property values used as numbers are parsed only once per addressee.
+     */
+    public static final class Context {
+
+        private final Map<String,String>     properties;
+        private final StringBuilder          out;
+        private final IncludeResolver        includes;
+        private final Locale                 locale;
+
+        private Map<String,BigDecimal>       numbers;     // lazily created cache of property values parsed as numbers...
+        private IncludeResolver.Expansion    expansion;   // lazily created expansion of the includes read at render time...
+
+
+        private Context( final Map<String,String> _properties, final StringBuilder _out, final IncludeResolver _includes,
+                         final Locale _locale ) {
+            properties = _properties;
+            out        = _out;
+            includes   = _includes;
+            locale     = _locale;
+        }
+
+
+        /**
+         * Returns the value of the given email property, as a number, for the addressee being rendered.
+         *
+         * @param _name the name of the property
+         * @return the numeric value of the property
+         * @throws IllegalArgumentException if the addressee doesn't have the property, or its value isn't a number
+         */
+        public BigDecimal number( final String _name ) {
+
+            if( numbers == null )
+                numbers = new HashMap<>();
+            BigDecimal number = numbers.get( _name );
+            if( number == null ) {
+                String value = property( _name );
+                number = TestExpression.parseNumber( value );
+                if( number == null )
+                    throw new IllegalArgumentException( "Email property is not a number: " + _name + " = " + value );
+                numbers.put( _name, number );
+            }
+            return number;
+        }
+
+
+        /**
+         * Returns the expansion tracking the includes read during this render, so that cycles, the nesting limit, and the size limit are
+         * caught across all of them.
+         */
+        private IncludeResolver.Expansion expansion() {
+            if( expansion == null )
+                expansion = includes.startRender();
+            return expansion;
+        }
+
+
+        /**
+         * Returns the value of the given email property for the addressee being rendered.
+         *
+         * @param _name the name of the property
+         * @return the value of the property
+         * @throws IllegalArgumentException if the addressee doesn't have the property
+         */
+        public String property( final String _name ) {
+            String value = properties.get( _name );
+            if( value == null )
+                throw new IllegalArgumentException( "Email property not found: " + _name );
+            return value;
+        }
+    }
+
+
+    /*
+     * The nodes of a compiled document...
+     */
+
+    private sealed interface Node permits Literal, Substitution, Choice, DynamicInclude {
+        void render( final Context _context ) throws IOException;
+    }
+
+
+    private record Literal( String text ) implements Node {
+
+        @Override
+        public void render( final Context _context ) {
+            _context.out.append( text );
+        }
+    }
+
+
+    private record Substitution( String name ) implements Node {
+
+        @Override
+        public void render( final Context _context ) {
+            appendValue( _context.property( name ), _context, 0 );
+        }
+
+
+        /**
+         * Append the given property value, substituting any property values within it.
+         */
+        private static void appendValue( final String _value, final Context _context, final int _depth ) {
+
+            int start = _value.indexOf( ":::" );
+            if( start < 0 ) {
+                _context.out.append( _value );
+                return;
+            }
+            if( _depth >= MAX_SUBSTITUTION_DEPTH )
+                throw new IllegalArgumentException( "Email property values nested too deeply: " + _value );
+
+            int index = 0;
+            while( start >= 0 ) {
+                int end = _value.indexOf( ":::", start + 3 );
+                if( (end < 0) || !isPropertyName( _value, start + 3, end ) )
+                    break;
+                _context.out.append( _value, index, start );
+                appendValue( _context.property( _value.substring( start + 3, end ) ), _context, _depth + 1 );
+                index = end + 3;
+                start = _value.indexOf( ":::", index );
+            }
+            _context.out.append( _value, index, _value.length() );
+        }
+    }
+
+
+    /**
+     * A conditional: the preamble is always rendered, followed by the body of the first branch whose condition is true (a branch with a
+     * {@code null} condition is always true).  An {@code <es-if>} has no preamble, a branch for its test, and (optionally) a branch for its
+     * {@code <es-else/>}.
+     */
+    private record Choice( Node[] preamble, Condition[] conditions, Node[][] bodies ) implements Node {
+
+        @Override
+        public void render( final Context _context ) throws IOException {
+
+            for( Node node : preamble )
+                node.render( _context );
+
+            for( int i = 0; i < conditions.length; i++ ) {
+                if( (conditions[i] == null) || conditions[i].test( _context ) ) {
+                    for( Node node : bodies[i] )
+                        node.render( _context );
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * An include whose URL contains property value substitutions, so that it can only be read at render time.
+     */
+    private record DynamicInclude( Node[] url ) implements Node {
+
+        @Override
+        public void render( final Context _context ) throws IOException {
+
+            // render the URL, using the end of our output buffer as scratch space...
+            StringBuilder out = _context.out;
+            int mark = out.length();
+            for( Node node : url )
+                node.render( _context );
+            String urlString = out.substring( mark );
+            out.setLength( mark );
+
+            // read, compile, and render the included fragment, as part of this render's expansion (so a fragment that includes itself, even
+            // through other dynamic includes, is caught)...
+            IncludeResolver.Expansion expansion = _context.expansion();
+            expansion.enter( urlString );
+            try {
+                for( Node node : compile( urlString, expansion.load( urlString ), _context ).nodes() )
+                    node.render( _context );
+            }
+            finally {
+                expansion.leave();
+            }
+        }
+
+
+        /**
+         * Returns the compiled fragment of the include at the given URL, whose (expanded) text was just read -- compiling it only if the
+         * resolver doesn't already have it compiled from the same text.
+         */
+        private static Fragment compile( final String _url, final String _text, final Context _context ) {
+
+            Fragment fragment = _context.includes.getFragment( _url, _context.locale, _text );
+            if( fragment != null )
+                return fragment;
+
+            Parser parser = new Parser( _text, _context.locale );
+            List<Node> nodes = parser.block( false );
+            if( parser.terminator != null )
+                throw new IllegalArgumentException( "Unexpected tag in include file " + _url + ": <" + parser.terminator + ">" );
+            fragment = new Fragment( _text, nodes.toArray( new Node[0] ) );
+            _context.includes.putFragment( _url, _context.locale, fragment );
+            return fragment;
+        }
+    }
+
+
+    /**
+     * The compiled fragment of an include read at render time, and the text it was compiled from.
+     */
+    record Fragment( String source, Node[] nodes ) {}
+
+
+    /*
+     * The parser...
+     */
+
+    private static final Pattern ATTRIBUTE = Pattern.compile( "([a-zA-Z][a-zA-Z0-9-]*)(?:\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'))?" );
+
+    private static final Set<String> RESOURCE_TAGS = Set.of( "img", "inline-img", "inline-audio", "inline-video", "attached-file" );
+
+
+    private static final class Parser {
+
+        private final String       source;
+        private final Locale       locale;
+        private final List<String> resources = new ArrayList<>();
+
+        private int                pos;
+        private Node[]             text;              // the compiled plain text section, if we found one...
+        private String             terminator;        // the name of the tag that ended the most recent block, or null at the end of the source...
+        private Map<String,String> terminatorAttributes;
+
+
+        private Parser( final String _source, final Locale _locale ) {
+            source = _source;
+            locale = _locale;
+        }
+
+
+        /**
+         * Parse a block of the document, up to (and consuming) the first tag that can't be part of a block -- the tag name is left in
+         * {@link #terminator} -- or to the end of the source.
+         *
+         * @param _topLevel {@code true} if this block is the top level of the document, where a plain text section may appear
+         * @return the nodes of the block
+         */
+        private List<Node> block( final boolean _topLevel ) {
+
+            List<Node> nodes = new ArrayList<>();
+            int literalStart = pos;
+            while( pos < source.length() ) {
+
+                char c = source.charAt( pos );
+
+                // handle property value substitutions...
+                if( (c == ':') && source.startsWith( ":::", pos ) ) {
+                    int end = source.indexOf( ":::", pos + 3 );
+                    if( (end > 0) && isPropertyName( source, pos + 3, end ) ) {
+                        addLiteral( nodes, literalStart, pos );
+                        nodes.add( new Substitution( source.substring( pos + 3, end ) ) );
+                        pos = end + 3;
+                        literalStart = pos;
+                        continue;
+                    }
+                    pos++;
+                    continue;
+                }
+
+                // anything else that isn't a tag is just literal text...
+                if( c != '<' ) {
+                    pos++;
+                    continue;
+                }
+
+                String tag = tagName( pos + 1 );
+                switch( tag ) {
+
+                    case "es-if" -> {
+                        addLiteral( nodes, literalStart, pos );
+                        Map<String,String> attributes = consumeTag();
+                        Node[] body = block( false ).toArray( new Node[0] );
+                        Condition condition = TestExpression.compile( required( attributes, "test", tag ), locale );
+                        if( "es-else".equals( terminator ) ) {
+                            Node[] elseBody = block( false ).toArray( new Node[0] );
+                            expect( "/es-if" );
+                            nodes.add( new Choice( new Node[0], new Condition[] { condition, null }, new Node[][] { body, elseBody } ) );
+                        }
+                        else {
+                            expect( "/es-if" );
+                            nodes.add( new Choice( new Node[0], new Condition[] { condition }, new Node[][] { body } ) );
+                        }
+                        literalStart = pos;
+                    }
+
+                    case "es-switch" -> {
+                        addLiteral( nodes, literalStart, pos );
+                        consumeTag();
+                        Node[] preamble = block( false ).toArray( new Node[0] );
+                        List<Condition> conditions = new ArrayList<>();
+                        List<Node[]> bodies = new ArrayList<>();
+                        while( "es-case".equals( terminator ) ) {
+                            Map<String,String> attributes = terminatorAttributes;
+                            conditions.add( attributes.containsKey( "default" ) ? null : TestExpression.compile( required( attributes, "test", "es-case" ), locale ) );
+                            bodies.add( block( false ).toArray( new Node[0] ) );
+                        }
+                        expect( "/es-switch" );
+                        nodes.add( new Choice( preamble, conditions.toArray( new Condition[0] ), bodies.toArray( new Node[0][] ) ) );
+                        literalStart = pos;
+                    }
+
+                    case "plain-text" -> {
+                        if( !_topLevel )
+                            throw new IllegalArgumentException( "<plain-text> may only appear at the top level of an email document" );
+                        if( text != null )
+                            throw new IllegalArgumentException( "<plain-text> may only appear once in an email document" );
+                        addLiteral( nodes, literalStart, pos );
+                        consumeTag();
+                        text = block( false ).toArray( new Node[0] );
+                        expect( "/plain-text" );
+                        literalStart = pos;
+                    }
+
+                    // the only includes left at this point are those with property value substitutions in their URLs...
+                    case "include-file" -> {
+                        addLiteral( nodes, literalStart, pos );
+                        String url = required( consumeTag(), "src", tag );
+                        Parser urlParser = new Parser( url, locale );
+                        nodes.add( new DynamicInclude( urlParser.block( false ).toArray( new Node[0] ) ) );
+                        literalStart = pos;
+                    }
+
+                    // these tags end a block...
+                    case "es-else", "/es-if", "es-case", "/es-switch", "/plain-text" -> {
+                        addLiteral( nodes, literalStart, pos );
+                        terminatorAttributes = consumeTag();
+                        terminator = tag;
+                        return nodes;
+                    }
+
+                    // remember the (fixed) URLs of any resources; the tag itself is literal text that may contain substitutions...
+                    default -> {
+                        if( RESOURCE_TAGS.contains( tag ) ) {
+                            String src = attributes( pos, tagEnd( pos ) ).get( "src" );
+                            if( (src != null) && !src.contains( ":::" ) && !resources.contains( src ) )
+                                resources.add( src );
+                        }
+                        pos++;
+                    }
+                }
+            }
+
+            addLiteral( nodes, literalStart, pos );
+            terminator = null;
+            return nodes;
+        }
+
+
+        private void expect( final String _tag ) {
+            if( !_tag.equals( terminator ) )
+                throw new IllegalArgumentException( "Expected <" + _tag + "> in email document, but found "
+                        + ((terminator == null) ? "the end of the document" : "<" + terminator + ">") );
+        }
+
+
+        private void addLiteral( final List<Node> _nodes, final int _start, final int _end ) {
+            if( _end > _start )
+                _nodes.add( new Literal( source.substring( _start, _end ) ) );
+        }
+
+
+        /**
+         * Returns the lower-cased name of the tag starting at the given index (just after the "&lt;"), including a leading "/" for end tags.
+         */
+        private String tagName( final int _start ) {
+
+            int end = _start;
+            while( (end < source.length()) && (isNameChar( source.charAt( end ) ) || ((end == _start) && (source.charAt( end ) == '/'))) )
+                end++;
+            return source.substring( _start, end ).toLowerCase( Locale.ROOT );
+        }
+
+
+        /**
+         * Consume the tag at the current position, returning its attributes.
+         */
+        private Map<String,String> consumeTag() {
+            int end = tagEnd( pos );
+            Map<String,String> attributes = attributes( pos, end );
+            pos = end;
+            return attributes;
+        }
+
+
+        /**
+         * Returns the index just past the end of the tag starting at the given index, respecting quoted attribute values.
+         */
+        private int tagEnd( final int _start ) {
+
+            char quote = 0;
+            for( int i = _start + 1; i < source.length(); i++ ) {
+                char c = source.charAt( i );
+                if( quote != 0 ) {
+                    if( c == quote )
+                        quote = 0;
+                }
+                else if( (c == '"') || (c == '\'') )
+                    quote = c;
+                else if( c == '>' )
+                    return i + 1;
+            }
+            throw new IllegalArgumentException( "Unterminated tag in email document: " + source.substring( _start, Math.min( _start + 40, source.length() ) ) );
+        }
+
+
+        /**
+         * Returns the attributes of the tag occupying the given range of the source; valueless attributes are mapped to an empty string.
+         */
+        private Map<String,String> attributes( final int _start, final int _end ) {
+
+            Map<String,String> result = new HashMap<>();
+            int nameEnd = _start + 1;
+            while( (nameEnd < _end) && (isNameChar( source.charAt( nameEnd ) ) || (source.charAt( nameEnd ) == '/')) )
+                nameEnd++;
+            Matcher mat = ATTRIBUTE.matcher( source ).region( nameEnd, _end );
+            while( mat.find() ) {
+                String value = (mat.group( 2 ) != null) ? mat.group( 2 ) : (mat.group( 3 ) != null) ? mat.group( 3 ) : "";
+                result.put( mat.group( 1 ).toLowerCase( Locale.ROOT ), value );
+            }
+            return result;
+        }
+
+
+        private static String required( final Map<String,String> _attributes, final String _name, final String _tag ) {
+            String value = _attributes.get( _name );
+            if( value == null )
+                throw new IllegalArgumentException( "<" + _tag + "> is missing its '" + _name + "' attribute" );
+            return value;
+        }
+
+
+        private static boolean isNameChar( final char _c ) {
+            return ((_c >= 'a') && (_c <= 'z')) || ((_c >= 'A') && (_c <= 'Z')) || ((_c >= '0') && (_c <= '9')) || (_c == '-');
+        }
+    }
+
+
+    /**
+     * Returns {@code true} if the given range of the given string could be a property name in a substitution (it's not empty, and contains no
+     * colons, angle brackets, or line breaks).
+     */
+    private static boolean isPropertyName( final String _source, final int _start, final int _end ) {
+
+        if( _end <= _start )
+            return false;
+        for( int i = _start; i < _end; i++ ) {
+            char c = _source.charAt( i );
+            if( (c == ':') || (c == '<') || (c == '>') || (c == '\n') || (c == '\r') )
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+package com.dilatush.email;
+
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Java Flight Recorder events that trace each message through this library, so that in a recording the time spent rendering, building, and
+ * transmitting email (or reading it) can be told apart from other socket I/O, and lined up with GC pauses and lock contention on the same
+ * threads.  All of them are in the "Email" category, and are named "com.dilatush.email.&lt;class name&gt;".
+ * <p>
+ * Outbound events that concern a single message carry its Message-ID, which is assigned when the message is built (if a recording is running)
+ * and kept through transmission, so the build and transmit events of a message match.  The provider isn't known until the message is
+ * transmitted (as the router may fail over to another one), so only the SMTP events carry it.  Inbound events carry the name of the mailbox,
+ * which is the provider's name for mailboxes monitored by {@link EmailService}.
+ * <p>
+ * When no recording is running, creating and committing these events costs next to nothing (the JIT removes the allocation and the commit), so
+ * the code that emits them only does extra work to fill in their fields when {@link Event#shouldCommit()} says the event will be recorded.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class EmailEvents {
+
+    private EmailEvents() {}
+
+
+    /**
+     * An {@link EmailDocument} rendered for one addressee.
+     */
+    @Name( "com.dilatush.email.Render" )
+    @Label( "Email Render" )
+    @Category( "Email" )
+    @Description( "An email document rendered for one addressee" )
+    static final class Render extends Event {
+
+        @Label( "Text Characters" )
+        int textChars;
+
+        @Label( "HTML Characters" )
+        int htmlChars;
+    }
+
+
+    /**
+     * A resource (an include file, inlined image, and so on) read through the {@link ContentCache}.
+     */
+    @Name( "com.dilatush.email.ResourceFetch" )
+    @Label( "Email Resource Fetch" )
+    @Category( "Email" )
+    @Description( "A file or web resource read (or revalidated) through the content cache" )
+    static final class ResourceFetch extends Event {
+
+        @Label( "URL" )
+        String url;
+
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        @Label( "Cached" )
+        @Description( "True if the cached content was used (including after revalidating it with the web server)" )
+        boolean cached;
+
+        @Label( "Succeeded" )
+        boolean ok;
+    }
+
+
+    /**
+     * A MIME message built from an {@link OutboundEmailMessage}, including expanding its includes and inlining its resources.
+     */
+    @Name( "com.dilatush.email.MimeAssembly" )
+    @Label( "Email MIME Assembly" )
+    @Category( "Email" )
+    @Description( "A MIME message built, including expanding includes and inlining resources" )
+    static final class MimeAssembly extends Event {
+
+        @Label( "Message ID" )
+        String messageId;
+
+        @Label( "Body" )
+        @Description( "The bodies the message has: text, HTML, or text+HTML" )
+        String body;
+
+        @Label( "Succeeded" )
+        boolean ok;
+    }
+
+
+    /**
+     * An SMTP session opened to a provider: the TCP connect, STARTTLS, and AUTH.
+     */
+    @Name( "com.dilatush.email.SMTPSessionOpen" )
+    @Label( "Email SMTP Session Open" )
+    @Category( "Email" )
+    @Description( "An SMTP connection opened: TCP connect, STARTTLS, and AUTH" )
+    static final class SMTPSessionOpen extends Event {
+
+        @Label( "Provider" )
+        String provider;
+
+        @Label( "Succeeded" )
+        boolean ok;
+    }
+
+
+    /**
+     * An SMTP session to a provider closed (QUIT).
+     */
+    @Name( "com.dilatush.email.SMTPSessionClose" )
+    @Label( "Email SMTP Session Close" )
+    @Category( "Email" )
+    @Description( "An SMTP connection closed" )
+    static final class SMTPSessionClose extends Event {
+
+        @Label( "Provider" )
+        String provider;
+
+        @Label( "Messages Sent" )
+        int messagesSent;
+    }
+
+
+    /**
+     * A message transmitted over an open SMTP session: MAIL FROM through the end of DATA.
+     */
+    @Name( "com.dilatush.email.Transmit" )
+    @Label( "Email Transmit" )
+    @Category( "Email" )
+    @Description( "A message transmitted over an SMTP connection, MAIL FROM through the end of DATA" )
+    static final class Transmit extends Event {
+
+        @Label( "Message ID" )
+        String messageId;
+
+        @Label( "Provider" )
+        String provider;
+
+        @Label( "Recipients" )
+        int recipients;
+
+        @Label( "Size" )
+        @DataAmount
+        long bytes;
+
+        @Label( "Succeeded" )
+        boolean ok;
+
+        @Label( "Reply Code" )
+        @Description( "The SMTP reply code that refused the message, or -1" )
+        int replyCode;
+    }
+
+
+    /**
+     * The envelopes of a batch of messages fetched from a mailbox.
+     */
+    @Name( "com.dilatush.email.InboundFetch" )
+    @Label( "Email Inbound Fetch" )
+    @Category( "Email" )
+    @Description( "The envelopes of a batch of received messages fetched from a mailbox" )
+    static final class InboundFetch extends Event {
+
+        @Label( "Mailbox" )
+        String mailbox;
+
+        @Label( "Messages" )
+        int messages;
+    }
+
+
+    /**
+     * A received message downloaded and converted (its headers, its text, and its attachments saved).
+     */
+    @Name( "com.dilatush.email.InboundParse" )
+    @Label( "Email Inbound Parse" )
+    @Category( "Email" )
+    @Description( "A received message downloaded, and its text and attachments extracted" )
+    static final class InboundParse extends Event {
+
+        @Label( "Message ID" )
+        String messageId;
+
+        @Label( "Mailbox" )
+        String mailbox;
+
+        @Label( "UID" )
+        long uid;
+
+        @Label( "Succeeded" )
+        boolean ok;
+
+
+        /**
+         * Commit this event (if it's being recorded) for the given message, which must still have its headers.
+         */
+        void record( final String _mailbox, final long _uid, final Message _message, final boolean _ok ) {
+
+            if( !shouldCommit() )
+                return;
+            try {
+                String[] ids = _message.getHeader( "Message-ID" );
+                messageId = ((ids == null) || (ids.length == 0)) ? null : ids[0];
+            }
+            catch( MessagingException _e ) {
+                messageId = null;
+            }
+            mailbox = _mailbox;
+            uid     = _uid;
+            ok      = _ok;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.dilatush.email;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Instances of this class collect the latency of each stage of sending and receiving email, along with counts of messages sent (by provider),
+ * bytes sent, and failures (by SMTP reply code).  Recording is cheap and never blocks: counters are {@link LongAdder}s, and each latency
+ * histogram is a fixed array of logarithmic buckets (four per power of two, so that any percentile is within about 20% of the true value) that is
+ * updated with a single atomic increment.
+ * <p>
+ * An {@link EmailService} registers its metrics as an MXBean (see {@link EmailService.Config#metricsObjectName}), so that they can be read with
+ * any JMX client; they can also be read directly with {@link #snapshot()}.  Note that the stages nest: {@link Stage#SEND} includes everything
+ * else on the send path, {@link Stage#BUILD} includes {@link Stage#INCLUDES} and {@link Stage#RESOURCES}, and {@link Stage#BORROW} includes the
+ * SMTP connect stages whenever a new connection had to be opened.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class EmailMetrics implements EmailMetricsMXBean {
+
+    /**
+     * The stages whose latency is measured.
+     */
+    public enum Stage {
+
+        /** Sending a message, end to end: building it, borrowing a connection, and transmitting it. */
+        SEND,
+
+        /** Building the MIME message, including include expansion and resource fetching. */
+        BUILD,
+
+        /** Expanding the include files in a message's HTML. */
+        INCLUDES,
+
+        /** Fetching (or getting from the content cache) the images and other resources inlined in a message's HTML. */
+        RESOURCES,
+
+        /** Borrowing an SMTP connection from a provider's pool, including waiting for one and opening a new one. */
+        BORROW,
+
+        /** Opening the TCP connection to an SMTP server, through its greeting. */
+        SMTP_CONNECT,
+
+        /** Negotiating TLS with an SMTP server (STARTTLS and the handshake). */
+        SMTP_TLS,
+
+        /** Authenticating with an SMTP server (AUTH). */
+        SMTP_AUTH,
+
+        /** Transmitting a message over an open SMTP connection: MAIL FROM through the end of DATA. */
+        SMTP_DATA,
+
+        /** Connecting to a mailbox (POP3 or IMAP), logging in, and opening its inbox. */
+        INBOX_OPEN,
+
+        /** Fetching the envelopes of a batch of messages in an inbox. */
+        INBOX_FETCH,
+
+        /** Downloading a received message's body, and converting it to text. */
+        MESSAGE_READ;
+
+
+        /**
+         * Returns the name of this stage as it appears in metrics: lower case (like "smtp_connect").
+         *
+         * @return the metric name of this stage
+         */
+        public String metricName() {
+            return name().toLowerCase( Locale.ROOT );
+        }
+    }
+
+
+    /**
+     * The distribution of a measured value (nanoseconds, for latencies; bytes, for message sizes).  The percentiles are the upper bounds of the
+     * histogram buckets they fall in, but never more than the maximum.
+     *
+     * @param count the number of values recorded
+     * @param mean the mean of the values recorded
+     * @param max the largest value recorded
+     * @param p50 the median
+     * @param p90 the 90th percentile
+     * @param p99 the 99th percentile
+     * @param p999 the 99.9th percentile
+     */
+    public record Distribution( long count, double mean, long max, long p50, long p90, long p99, long p999 ) {}
+
+
+    /**
+     * A point-in-time copy of all the metrics.
+     *
+     * @param messagesSent the number of messages the SMTP servers accepted
+     * @param messagesFailed the number of messages that couldn't be sent
+     * @param bytesSent the total bytes of the messages the SMTP servers accepted
+     * @param messagesReceived the number of received messages read
+     * @param receiveFailures the number of received messages that couldn't be read
+     * @param messagesByProvider the number of messages sent through each provider, by provider name
+     * @param failuresByReplyCode the number of messages that couldn't be sent, by the SMTP reply code that refused them ("none" if there wasn't
+     *                            one)
+     * @param stages the latency (in nanoseconds) of each stage that has been measured
+     * @param messageBytes the sizes (in bytes) of the messages sent
+     */
+    public record Snapshot( long messagesSent, long messagesFailed, long bytesSent, long messagesReceived, long receiveFailures,
+                            Map<String,Long> messagesByProvider, Map<String,Long> failuresByReplyCode, Map<Stage,Distribution> stages,
+                            Distribution messageBytes ) {
+
+
+        /**
+         * Returns these metrics as a flat map of names to values, for monitoring systems that scrape named numbers.  The names are like
+         * "messages_sent", "messages_by_provider.gmail", "failures_by_reply_code.451", and "stage.smtp_data.p99_ns".
+         *
+         * @return the metrics, by name
+         */
+        public Map<String,Number> toMap() {
+
+            Map<String,Number> map = new LinkedHashMap<>();
+            map.put( "messages_sent",     messagesSent     );
+            map.put( "messages_failed",   messagesFailed   );
+            map.put( "bytes_sent",        bytesSent        );
+            map.put( "messages_received", messagesReceived );
+            map.put( "receive_failures",  receiveFailures  );
+            messagesByProvider.forEach(  (provider, count) -> map.put( "messages_by_provider."   + provider, count ) );
+            failuresByReplyCode.forEach( (code,     count) -> map.put( "failures_by_reply_code." + code,     count ) );
+            stages.forEach( (stage, distribution) -> put( map, "stage." + stage.metricName(), "_ns", distribution ) );
+            put( map, "message_bytes", "", messageBytes );
+            return map;
+        }
+
+
+        private static void put( final Map<String,Number> _map, final String _prefix, final String _unit, final Distribution _distribution ) {
+            _map.put( _prefix + ".count",         _distribution.count() );
+            _map.put( _prefix + ".mean" + _unit,  _distribution.mean()  );
+            _map.put( _prefix + ".max"  + _unit,  _distribution.max()   );
+            _map.put( _prefix + ".p50"  + _unit,  _distribution.p50()   );
+            _map.put( _prefix + ".p90"  + _unit,  _distribution.p90()   );
+            _map.put( _prefix + ".p99"  + _unit,  _distribution.p99()   );
+            _map.put( _prefix + ".p999" + _unit,  _distribution.p999()  );
+        }
+    }
+
+
+    private final Map<Stage,Histogram>           stages              = new EnumMap<>( Stage.class );
+    private final Histogram                      messageBytes        = new Histogram();
+    private final LongAdder                      messagesSent        = new LongAdder();
+    private final LongAdder                      messagesFailed      = new LongAdder();
+    private final LongAdder                      bytesSent           = new LongAdder();
+    private final LongAdder                      messagesReceived    = new LongAdder();
+    private final LongAdder                      receiveFailures     = new LongAdder();
+    private final ConcurrentHashMap<String,LongAdder> messagesByProvider  = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,LongAdder> failuresByReplyCode = new ConcurrentHashMap<>();
+
+
+    /**
+     * Create a new instance of this class, with everything at zero.
+     */
+    public EmailMetrics() {
+        for( Stage stage : Stage.values() )
+            stages.put( stage, new Histogram() );
+    }
+
+
+    /**
+     * Record the time a stage took.
+     *
+     * @param _stage the stage
+     * @param _nanos the time it took, in nanoseconds
+     */
+    void record( final Stage _stage, final long _nanos ) {
+        stages.get( _stage ).record( _nanos );
+    }
+
+
+    /**
+     * Record the time a stage took, from the given start time until now.
+     *
+     * @param _stage the stage
+     * @param _startNanos the time the stage started, from {@link System#nanoTime()}
+     */
+    void recordSince( final Stage _stage, final long _startNanos ) {
+        stages.get( _stage ).record( System.nanoTime() - _startNanos );
+    }
+
+
+    /**
+     * Record a message accepted by the given provider's SMTP server.
+     *
+     * @param _provider the name of the provider
+     * @param _bytes the size of the message as transmitted, in bytes
+     */
+    void sent( final String _provider, final long _bytes ) {
+        messagesSent.increment();
+        bytesSent.add( _bytes );
+        messageBytes.record( _bytes );
+        messagesByProvider.computeIfAbsent( _provider, (provider) -> new LongAdder() ).increment();
+    }
+
+
+    /**
+     * Record a message that couldn't be sent, because of the given problem.
+     *
+     * @param _problem the problem that kept the message from being sent
+     */
+    void failed( final Exception _problem ) {
+        messagesFailed.increment();
+        int code = ProviderLimiter.replyCode( _problem );
+        failuresByReplyCode.computeIfAbsent( (code < 0) ? "none" : Integer.toString( code ), (key) -> new LongAdder() ).increment();
+    }
+
+
+    /**
+     * Record a received message that was read, or (if {@code _ok} is {@code false}) that couldn't be read.
+     *
+     * @param _ok {@code true} if the message was read
+     */
+    void received( final boolean _ok ) {
+        if( _ok )
+            messagesReceived.increment();
+        else
+            receiveFailures.increment();
+    }
+
+
+    /**
+     * Returns a copy of all the metrics, as they are now.  The metrics keep changing while the copy is made, so (for instance) the latency
+     * count of a stage may not exactly match the message counts.
+     *
+     * @return the metrics
+     */
+    public Snapshot snapshot() {
+        Map<Stage,Distribution> distributions = new EnumMap<>( Stage.class );
+        stages.forEach( (stage, histogram) -> distributions.put( stage, histogram.distribution() ) );
+        return new Snapshot( getMessagesSent(), getMessagesFailed(), getBytesSent(), getMessagesReceived(), getReceiveFailures(),
+                getMessagesByProvider(), getFailuresByReplyCode(), Collections.unmodifiableMap( distributions ), getMessageBytes() );
+    }
+
+
+    @Override
+    public long getMessagesSent() {
+        return messagesSent.sum();
+    }
+
+
+    @Override
+    public long getMessagesFailed() {
+        return messagesFailed.sum();
+    }
+
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+
+    @Override
+    public long getReceiveFailures() {
+        return receiveFailures.sum();
+    }
+
+
+    @Override
+    public Map<String,Long> getMessagesByProvider() {
+        return sums( messagesByProvider );
+    }
+
+
+    @Override
+    public Map<String,Long> getFailuresByReplyCode() {
+        return sums( failuresByReplyCode );
+    }
+
+
+    @Override
+    public Map<String,Distribution> getStageLatenciesNS() {
+        Map<String,Distribution> latencies = new LinkedHashMap<>();
+        stages.forEach( (stage, histogram) -> latencies.put( stage.metricName(), histogram.distribution() ) );
+        return latencies;
+    }
+
+
+    @Override
+    public Distribution getMessageBytes() {
+        return messageBytes.distribution();
+    }
+
+
+    private static Map<String,Long> sums( final Map<String,LongAdder> _counters ) {
+        Map<String,Long> sums = new TreeMap<>();
+        _counters.forEach( (key, counter) -> sums.put( key, counter.sum() ) );
+        return Collections.unmodifiableMap( sums );
+    }
+
+
+    /**
+     * A lock-free histogram of non-negative values, in logarithmic buckets: values below 4 have a bucket each, and each power of two above that is
+     * split into four buckets.
+     */
+    static final class Histogram {
+
+        private static final int SUB_BITS = 2;
+        private static final int SUBS     = 1 << SUB_BITS;
+        private static final int BUCKETS  = (64 - SUB_BITS) * SUBS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+        private final LongAdder       count   = new LongAdder();
+        private final LongAdder       sum     = new LongAdder();
+        private final LongAccumulator max     = new LongAccumulator( Math::max, 0 );
+
+
+        void record( final long _value ) {
+            long value = Math.max( 0, _value );
+            buckets.incrementAndGet( bucket( value ) );
+            count.increment();
+            sum.add( value );
+            max.accumulate( value );
+        }
+
+
+        Distribution distribution() {
+
+            // copy the buckets first, so that the percentiles all come from the same counts...
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for( int i = 0; i < BUCKETS; i++ ) {
+                counts[i] = buckets.get( i );
+                total += counts[i];
+            }
+            long largest = max.get();
+            return new Distribution( total, (total == 0) ? 0 : (double) sum.sum() / count.sum(), largest,
+                    percentile( counts, total, 0.5, largest ), percentile( counts, total, 0.9, largest ),
+                    percentile( counts, total, 0.99, largest ), percentile( counts, total, 0.999, largest ) );
+        }
+
+
+        /**
+         * Returns the index of the bucket the given (non-negative) value goes in.
+         */
+        static int bucket( final long _value ) {
+            if( _value < SUBS )
+                return (int) _value;
+            int exponent = 63 - Long.numberOfLeadingZeros( _value );
+            return (exponent - SUB_BITS + 1) * SUBS + (int) ((_value >>> (exponent - SUB_BITS)) & (SUBS - 1));
+        }
+
+
+        /**
+         * Returns the largest value that goes in the bucket with the given index.
+         */
+        static long upperBound( final int _bucket ) {
+            if( _bucket < SUBS )
+                return _bucket;
+            int exponent = _bucket / SUBS + SUB_BITS - 1;
+            long lower = ((long) (SUBS + (_bucket % SUBS))) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+
+        private static long percentile( final long[] _counts, final long _total, final double _fraction, final long _max ) {
+
+            if( _total == 0 )
+                return 0;
+            long rank = Math.max( 1, (long) Math.ceil( _fraction * _total ) );
+            long seen = 0;
+            for( int i = 0; i < _counts.length; i++ ) {
+                seen += _counts[i];
+                if( seen >= rank )
+                    return Math.min( upperBound( i ), _max );
+            }
+            return _max;
+        }
+    }
+}
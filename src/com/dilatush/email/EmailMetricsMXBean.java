@@ -0,0 +1,39 @@
+package com.dilatush.email;
+
+import java.util.Map;
+
+/**
+ * The JMX view of an {@link EmailMetrics}: message and byte counts, and the latency distribution (in nanoseconds) of each stage of sending and
+ * receiving email.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public interface EmailMetricsMXBean {
+
+    /** Returns the number of messages the SMTP servers accepted. */
+    long getMessagesSent();
+
+    /** Returns the number of messages that couldn't be sent. */
+    long getMessagesFailed();
+
+    /** Returns the total bytes of the messages the SMTP servers accepted. */
+    long getBytesSent();
+
+    /** Returns the number of received messages read. */
+    long getMessagesReceived();
+
+    /** Returns the number of received messages that couldn't be read. */
+    long getReceiveFailures();
+
+    /** Returns the number of messages sent through each provider, by provider name. */
+    Map<String,Long> getMessagesByProvider();
+
+    /** Returns the number of messages that couldn't be sent, by the SMTP reply code that refused them ("none" if there wasn't one). */
+    Map<String,Long> getFailuresByReplyCode();
+
+    /** Returns the latency (in nanoseconds) of each stage, by stage name (like "smtp_data"). */
+    Map<String,EmailMetrics.Distribution> getStageLatenciesNS();
+
+    /** Returns the distribution of the sizes (in bytes) of the messages sent. */
+    EmailMetrics.Distribution getMessageBytes();
+}
@@ -25,15 +25,37 @@ public class EmailProvider {
     /** Relative priority of this provider (larger numbers mean higher priority. */
     public final int        priority;
 
+    /** The maximum rate this provider will accept messages at, in messages per second (0 means no limit). */
+    public final double     maxMessagesPerSecond;
+
+    /** The maximum number of recipients this provider will accept in any 24 hour period (0 means no limit). */
+    public final int        maxRecipientsPerDay;
+
+    /** The maximum number of concurrent SMTP connections this provider will accept (0 means the service's pool size). */
+    public final int        maxConnections;
+
 
     public EmailProvider( final String _name, final Properties _sessionProperties,
                           final boolean _canSMTP, final boolean _canPOP, final boolean _canIMAP, final int _priority ) {
+        this( _name, _sessionProperties, _canSMTP, _canPOP, _canIMAP, _priority, 0, 0, 0 );
+    }
+
 
-        name              = _name;
-        sessionProperties = _sessionProperties;
-        canSMTP           = _canSMTP;
-        canPOP            = _canPOP;
-        canIMAP           = _canIMAP;
-        priority          = _priority;
+    public EmailProvider( final String _name, final Properties _sessionProperties,
+                          final boolean _canSMTP, final boolean _canPOP, final boolean _canIMAP, final int _priority,
+                          final double _maxMessagesPerSecond, final int _maxRecipientsPerDay, final int _maxConnections ) {
+
+        if( (_maxMessagesPerSecond < 0) || (_maxRecipientsPerDay < 0) || (_maxConnections < 0) )
+            throw new IllegalArgumentException( "Provider limits may not be negative: " + _name );
+
+        name                 = _name;
+        sessionProperties    = _sessionProperties;
+        canSMTP              = _canSMTP;
+        canPOP               = _canPOP;
+        canIMAP              = _canIMAP;
+        priority             = _priority;
+        maxMessagesPerSecond = _maxMessagesPerSecond;
+        maxRecipientsPerDay  = _maxRecipientsPerDay;
+        maxConnections       = _maxConnections;
     }
 }
@@ -5,7 +5,10 @@ import jakarta.mail.internet.MimeMultipart;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,45 +16,96 @@ public class EmailReader {
 
     private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
 
+    // the number of messages fetched at once by read()...
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
     private final String user;
     private final String password;
+    private final EmailMetrics metrics;
 
     // TODO: add support for separate text and html results
-    // TODO: add support for saving attachments, inlined images, large HTML bodies
+    // TODO: add support for large HTML bodies
 
     public EmailReader( final String _user, final String _password ) {
+        this( _user, _password, new EmailMetrics() );
+    }
+
+
+    /**
+     * Create a new instance of this class that records the latency of opening mailboxes, fetching, and reading messages into the given metrics
+     * (usually those of an {@link EmailService}, from {@link EmailService#getMetrics()}).
+     *
+     * @param _user the user name of the mailbox
+     * @param _password the password of the mailbox
+     * @param _metrics the metrics to record into
+     */
+    public EmailReader( final String _user, final String _password, final EmailMetrics _metrics ) {
         user = _user;
         password = _password;
+        metrics = _metrics;
     }
 
 
-    public List<OutboundEmailMessage> read( final Session _session ) {
+    /**
+     * Open a cursor that reads through the messages in the inbox of the mailbox in the given session, a batch at a time.  The cursor
+     * <i>must</i> be closed when the caller is done with it.
+     *
+     * @param _session the Jakarta Mail session (with authenticator) for the mailbox
+     * @param _protocol the protocol to read the mailbox with ("pop3", "imap", etc.)
+     * @param _batchSize the number of messages to fetch at once
+     * @param _writable {@code true} if messages may be deleted
+     * @return the cursor
+     * @throws MessagingException on any problem connecting to the mailbox
+     */
+    public InboxCursor open( final Session _session, final String _protocol, final int _batchSize, final boolean _writable )
+            throws MessagingException {
+        return open( _session, _protocol, _batchSize, _writable, null );
+    }
 
-        List<OutboundEmailMessage> result = new ArrayList<>();
 
+    /**
+     * Open a cursor that reads through the messages in the inbox of the mailbox in the given session, a batch at a time, saving the attachments
+     * of each message read in the given attachment store.  The cursor <i>must</i> be closed when the caller is done with it.
+     *
+     * @param _session the Jakarta Mail session (with authenticator) for the mailbox
+     * @param _protocol the protocol to read the mailbox with ("pop3", "imap", etc.)
+     * @param _batchSize the number of messages to fetch at once
+     * @param _writable {@code true} if messages may be deleted
+     * @param _attachments the store to save attachments in, or {@code null} if they shouldn't be saved
+     * @return the cursor
+     * @throws MessagingException on any problem connecting to the mailbox
+     */
+    public InboxCursor open( final Session _session, final String _protocol, final int _batchSize, final boolean _writable,
+                             final AttachmentStore _attachments ) throws MessagingException {
+
+        long start = System.nanoTime();
+        Store store = _session.getStore( _protocol );
+        store.connect();
         try {
+            InboxCursor cursor = new InboxCursor( _protocol + ":" + user, store, _batchSize, _writable, _attachments, metrics );
+            metrics.recordSince( EmailMetrics.Stage.INBOX_OPEN, start );
+            return cursor;
+        }
+        catch( MessagingException | RuntimeException _e ) {
+            store.close();
+            throw _e;
+        }
+    }
 
-            Store store = _session.getStore( "pop3" );
-            store.connect();
-
-            Folder inbox = store.getFolder( "INBOX" );
-            inbox.open( Folder.READ_ONLY );
 
-            // read all messages in the inbox...
-            Message[] messages = inbox.getMessages();
-            for ( Message message : messages) {
-                result.add( new OutboundEmailMessage( message.getFrom()[0].toString(), message.getSubject(), getTextFromMessage( message ), null ) );
-            }
+    public List<OutboundEmailMessage> read( final Session _session ) {
 
-            // mark all the messages as deleted...
-            for( Message message : messages ) {
-                message.setFlag( Flags.Flag.DELETED, true );
-            }
+        List<OutboundEmailMessage> result = new ArrayList<>();
 
-            // close the folder, expunging deleted messages, and close the store...
-            inbox.close( true );
-            store.close();
+        // read all messages in the inbox, deleting each one as we go...
+        try( InboxCursor cursor = open( _session, "pop3", DEFAULT_BATCH_SIZE, true ) ) {
 
+            InboxCursor.Entry entry;
+            while( (entry = cursor.next()) != null ) {
+                InboundEmailMessage message = entry.read();
+                result.add( new OutboundEmailMessage( message.from(), message.subject(), message.text(), null ) );
+                entry.delete();
+            }
             return result;
         }
         catch( MessagingException | IOException _e ) {
@@ -61,7 +115,26 @@ public class EmailReader {
     }
 
 
-    private String getTextFromMessage(Message message) throws MessagingException, IOException {
+    /**
+     * Returns the headers of the given message, by lower-case header name.  The values of each header are in the order they appear in the message.
+     *
+     * @param _message the message to get the headers of
+     * @return the headers of the message
+     * @throws MessagingException on any problem reading the message's headers
+     */
+    static Map<String,List<String>> getHeaders( final Part _message ) throws MessagingException {
+
+        Map<String,List<String>> result = new HashMap<>();
+        Enumeration<Header> headers = _message.getAllHeaders();
+        while( headers.hasMoreElements() ) {
+            Header header = headers.nextElement();
+            result.computeIfAbsent( header.getName().toLowerCase(), (name) -> new ArrayList<>( 1 ) ).add( header.getValue() );
+        }
+        return result;
+    }
+
+
+    static String getTextFromMessage(Message message) throws MessagingException, IOException {
         String result = "";
         if (message.isMimeType("text/plain")) {
             result = message.getContent().toString();
@@ -73,7 +146,7 @@ public class EmailReader {
     }
 
 
-    private String getTextFromMimeMultipart(
+    private static String getTextFromMimeMultipart(
             MimeMultipart mimeMultipart)  throws MessagingException, IOException{
         StringBuilder result = new StringBuilder();
         int count = mimeMultipart.getCount();
@@ -84,7 +157,7 @@ public class EmailReader {
                 break; // without break same text appears twice in my tests
             } else if (bodyPart.isMimeType("text/html")) {
                 String html = (String) bodyPart.getContent();
-                result.append( "\n" ).append( org.jsoup.Jsoup.parse( html ).text() );
+                result.append( "\n" ).append( HTMLToText.convert( html ) );
             } else if (bodyPart.getContent() instanceof MimeMultipart){
                 result.append( getTextFromMimeMultipart( (MimeMultipart) bodyPart.getContent() ) );
             }
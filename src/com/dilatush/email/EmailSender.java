@@ -6,15 +6,19 @@ import jakarta.activation.FileDataSource;
 import jakarta.activation.URLDataSource;
 import jakarta.mail.*;
 import jakarta.mail.internet.*;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Properties;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -30,20 +34,34 @@ public class EmailSender {
 
     private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
 
-    private static final Pattern IMG_PATTERN = Pattern.compile( "<img.* src=(['\"])(.*)\\1.*/>" );
+    private final EmailService    service;
+    private final IncludeResolver includes;
+    private final EmailMetrics    metrics;
 
-    private final EmailService service;
+    // the futures of durable sends that haven't finished yet...
+    private final Set<CompletableFuture<Result<?>>> durable = ConcurrentHashMap.newKeySet();
 
 
     public EmailSender( final EmailService _emailService ) {
-        service = _emailService;
-    }
+        service  = _emailService;
+        metrics  = _emailService.getMetrics();
+        includes = new IncludeResolver( new EmailDocument.IncludeLoader() {
+
+            @Override
+            public String load( final String _url ) throws IOException {
+                return readInclude( _url );
+            }
 
+            @Override
+            public Map<String,CompletableFuture<String>> prefetch( final List<String> _urls ) {
+                Map<String,CompletableFuture<String>> texts = new HashMap<>();
+                service.getContentCache().prefetch( _urls ).forEach( (url, content) ->
+                        texts.put( url, content.thenApply( ContentCache.Content::getText ) ) );
+                return texts;
+            }
+        }, service.getConfig().includeMaxDepth, service.getConfig().includeMaxChars );
+    }
 
-    // TODO: figure out jsoup
-    // TODO: add support for <attach-file> custom tag
-    // TODO: add support for transfer:// URLs for both images and attachments
-    // TODO: add support for <include-file> custom tag and recursive includes
 
     /**
      * Sends the given email message to the given recipients (TO, CC, and BCC).  If an HTML message is included, it may contain embedded
@@ -54,7 +72,7 @@ public class EmailSender {
      * @param _cc the addressees to cc (carbon copy)
      * @param _bcc the addressees to bcc (blind carbon copy)
      * @param _message the message to send (which contains the from and subject)
-     * @return ok if successful, false otherwise with explanatory message
+     * @return ok if successful, false otherwise with explanatory message (and the problem as its info)
      */
     public Result<?> send( final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
                            final OutboundEmailMessage _message) {
@@ -65,128 +83,607 @@ public class EmailSender {
         if( (_to == null) || (_to.length == 0) )
             throw new IllegalArgumentException( "No 'to' addressees" );
 
+        long start = System.nanoTime();
         try {
 
-            MimeMessage msg;
+            // get the providers to try, in order of preference, and build the message with the session of the preferred one...
+            List<SMTPConnectionPool> candidates = service.getRouter().candidates();
+            List<File> deleteAfterSend = new ArrayList<>();
+            MimeMessage msg = buildMessage( candidates.get( 0 ).getSession(), _to, _cc, _bcc, _message, deleteAfterSend );
 
-            Session session = service.getSession();
+            transmit( msg, candidates );
+            deleteSent( deleteAfterSend );
+        }
+        catch( Exception _e ) {
 
-            // handle the simple case wherein we have only a text body...
-            if( _message.hasTextOnly() )
-                msg = handleTextOnlyEmail( session, _to, _cc, _bcc, _message );
+            metrics.failed( _e );
+            String msg = "Problem sending email: " + describe( _e );
+            LOGGER.log( Level.WARNING, msg, _e );
+            return new Result<>( msg, _e );
+        }
+        finally {
+            metrics.recordSince( EmailMetrics.Stage.SEND, start );
+        }
 
-            // handle the case wherein we have only an HTML body...
-            else if( _message.hasHTMLOnly() )
-                msg = handleHTMLOnlyEMail( session, _to, _cc, _bcc, _message );
+        return Result.OK;
+    }
 
-            // handle the case wherein we have both a text body and an HTML body...
-            else
-                msg = handleTextAndHTMLEMail( session, _to, _cc, _bcc, _message );
 
-            Transport transport = session.getTransport( "smtp" );
-            Transport.send( msg );
-            transport.close();
+    /**
+     * Prepares the given email message for sending to many recipients individually, by building and serializing it just once.  The prepared email
+     * may then be sent (with {@link #send(InternetAddress[], InternetAddress[], InternetAddress[], PreparedEmail)}) any number of times, and
+     * each send writes only the recipient headers, Message-ID, and date before the prepared body.  Note that any include files and inlined
+     * resources are read just once, when the email is prepared, and attachments are serialized into the prepared body (so that any from READ_AUTO
+     * transfer directories are deleted once the email is prepared).
+     *
+     * @param _message the message to prepare (which contains the from and subject)
+     * @param _offHeap {@code true} to hold the prepared body off the heap (in a direct buffer)
+     * @return the prepared email
+     * @throws MessagingException on any problem building or serializing the message
+     * @throws IOException on any problem reading included files or inlined resources
+     */
+    public PreparedEmail prepare( final OutboundEmailMessage _message, final boolean _offHeap ) throws MessagingException, IOException {
+
+        if( _message == null )
+            throw new IllegalArgumentException( "Missing email message" );
+
+        List<File> deleteAfterPrepare = new ArrayList<>();
+        PreparedEmail prepared = new PreparedEmail( buildMessage( service.getSession(), null, null, null, _message, deleteAfterPrepare ), _offHeap );
+        deleteSent( deleteAfterPrepare );
+        return prepared;
+    }
+
+
+    /**
+     * Sends the given prepared email to the given recipients (TO, CC, and BCC).
+     *
+     * @param _to the addressees to send the message directly to
+     * @param _cc the addressees to cc (carbon copy)
+     * @param _bcc the addressees to bcc (blind carbon copy)
+     * @param _email the prepared email to send
+     * @return ok if successful, false otherwise with explanatory message (and the problem as its info)
+     */
+    public Result<?> send( final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc, final PreparedEmail _email ) {
+
+        // fail fast if important things are missing...
+        if( _email == null )
+            throw new IllegalArgumentException( "Missing prepared email" );
+        if( (_to == null) || (_to.length == 0) )
+            throw new IllegalArgumentException( "No 'to' addressees" );
+
+        long start = System.nanoTime();
+        try {
+            List<SMTPConnectionPool> candidates = service.getRouter().candidates();
+            transmit( _email.toMessage( candidates.get( 0 ).getSession(), _to, _cc, _bcc ), candidates );
         }
         catch( Exception _e ) {
 
-            // TODO: make this work when there's no cause, too...
-            String msg;
-            msg = "Problem sending email: " + _e.getCause().getClass().getName() + ": " + _e.getCause().getMessage();
-
+            metrics.failed( _e );
+            String msg = "Problem sending email: " + describe( _e );
             LOGGER.log( Level.WARNING, msg, _e );
-            return new Result<>( msg );
+            return new Result<>( msg, _e );
+        }
+        finally {
+            metrics.recordSince( EmailMetrics.Stage.SEND, start );
         }
 
         return Result.OK;
     }
 
 
-    private static final Pattern INCLUDE_FINDER = Pattern.compile( "(<INCLUDE-FILE.*? src=(['\"])(.*?)\\2.*?/>)", Pattern.CASE_INSENSITIVE );
+    /**
+     * Asynchronously sends the given email message to the given recipients (TO, CC, and BCC), exactly as {@link #send(InternetAddress[],
+     * InternetAddress[], InternetAddress[], OutboundEmailMessage)} would, but without blocking the caller while the message is built and
+     * transmitted.  Messages wait in a bounded queue for a sending thread; if that queue is full, what happens depends on the configured overflow
+     * policy: the caller may block until there is room, the message may be rejected (the returned future completes immediately with a not-ok
+     * result), or the message may be sent on the caller's thread.
+     *
+     * @param _to the addressees to send the message directly to
+     * @param _cc the addressees to cc (carbon copy)
+     * @param _bcc the addressees to bcc (blind carbon copy)
+     * @param _message the message to send (which contains the from and subject)
+     * @return a future that completes with ok if successful, or not ok with explanatory message
+     */
+    public CompletableFuture<Result<?>> sendAsync( final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
+                                                   final OutboundEmailMessage _message ) {
 
-    private String expandIncludes( final String _html ) throws IOException {
+        // fail fast (on the caller's thread) if important things are missing...
+        if( _message == null )
+            throw new IllegalArgumentException( "Missing email message" );
+        if( (_to == null) || (_to.length == 0) )
+            throw new IllegalArgumentException( "No 'to' addressees" );
+
+        CompletableFuture<Result<?>> future = new CompletableFuture<>();
+        try {
+            service.getSendExecutor().execute( () -> {
+                try {
+                    future.complete( send( _to, _cc, _bcc, _message ) );
+                }
+                catch( Throwable _e ) {
+                    future.completeExceptionally( _e );
+                }
+            } );
+        }
+        catch( RejectedExecutionException _e ) {
+            LOGGER.fine( "Email not queued for sending: " + _e.getMessage() );
+            future.complete( new Result<>( "Email not queued for sending: " + _e.getMessage() ) );
+        }
+        return future;
+    }
+
+
+    /**
+     * Durably and asynchronously sends the given email message to the given recipients (TO, CC, and BCC).  The email is first journaled in the
+     * outbound spool, and then sent exactly as {@link #sendAsync(InternetAddress[], InternetAddress[], InternetAddress[], OutboundEmailMessage)}
+     * would.  Once it has been sent, or refused permanently (with a 5xx SMTP reply), it is acknowledged in the spool.  Any other failure (a full
+     * send queue, a network problem, or a provider that's down or throttling) is temporary: the email stays in the spool, and is sent again after a
+     * delay that doubles on each failure.  If the service stops before the email is acknowledged (even by crashing), it will be sent when the
+     * service next starts.
+     *
+     * @param _to the addressees to send the message directly to
+     * @param _cc the addressees to cc (carbon copy)
+     * @param _bcc the addressees to bcc (blind carbon copy)
+     * @param _message the message to send (which contains the from and subject)
+     * @return a future that completes with ok if the email was sent, or not ok with explanatory message if it was refused permanently, couldn't be
+     *         spooled, or the service was closed before it could be sent
+     * @throws IllegalStateException if no outbound spool is configured
+     */
+    public CompletableFuture<Result<?>> sendDurably( final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
+                                                     final OutboundEmailMessage _message ) {
+
+        // fail fast (on the caller's thread) if important things are missing...
+        if( _message == null )
+            throw new IllegalArgumentException( "Missing email message" );
+        if( (_to == null) || (_to.length == 0) )
+            throw new IllegalArgumentException( "No 'to' addressees" );
+        OutboundSpool spool = service.getSpool();
+        if( spool == null )
+            throw new IllegalStateException( "No outbound spool is configured" );
+
+        // the spool's writer thread completes the append, so the rest happens on the dispatcher, as handing the email to the send executor may
+        // block (or even send it)...
+        AddressedEmail email = new AddressedEmail( _to, _cc, _bcc, _message );
+        CompletableFuture<Result<?>> future = durableFuture();
+        spool.append( email )
+                .handleAsync( (id, problem) -> {
+                    if( problem != null ) {
+                        LOGGER.log( Level.WARNING, "Email not spooled", problem );
+                        future.complete( new Result<>( "Email not spooled: " + problem.getMessage() ) );
+                    }
+                    else
+                        sendSpooled( id, email, future, service.getConfig().spoolRetryMinMS );
+                    return null;
+                }, service.getSpoolDispatcher() )
+                .whenComplete( (ignored, problem) -> {
+                    if( problem != null )
+                        future.complete( notSentYet() );     // the dispatcher was shut down...
+                } );
+        return future;
+    }
+
+
+    /**
+     * Asynchronously sends the emails recovered from the outbound spool when the service started, exactly as {@link #sendDurably(InternetAddress[],
+     * InternetAddress[], InternetAddress[], OutboundEmailMessage)} would once they were spooled.
+     */
+    void resendSpooled() {
+
+        for( OutboundSpool.SpooledEmail spooled : service.getSpool().getRecovered() ) {
+            CompletableFuture<Result<?>> future = durableFuture();
+            future.thenAccept( (result) -> {
+                if( !result.ok() )
+                    LOGGER.warning( "Recovered spooled email not sent: " + result.msg() );
+            } );
+            service.getSpoolDispatcher().execute( () -> sendSpooled( spooled.id(), spooled.email(), future, service.getConfig().spoolRetryMinMS ) );
+        }
+    }
 
-        // expand until there's nothing to expand...
-        String html = _html;
-        int index;
-        do {
 
-            // a place to build our result...
-            StringBuilder result = new StringBuilder();
+    /**
+     * Completes the futures of all the spooled emails that haven't been sent yet (which stay in the spool, to be sent when the service next
+     * starts), as the service is closing.
+     */
+    void abandonSpooled() {
+        new ArrayList<>( durable ).forEach( (future) -> future.complete( notSentYet() ) );
+    }
 
-            // look for <include-file/> tags...
-            Matcher mat = INCLUDE_FINDER.matcher( html );
-            index = 0;
-            while( mat.find( index ) ) {
 
-                // append everything from index to the start of our match into the result...
-                result.append( html, index, mat.start() );
+    /**
+     * Send the given spooled email (on the dispatcher), acknowledging it and completing the given future once it has been sent or refused
+     * permanently.  On any other failure the email is left in the spool, and sent again after the given delay.
+     */
+    private void sendSpooled( final long _id, final AddressedEmail _email, final CompletableFuture<Result<?>> _future, final long _retryMS ) {
 
-                // append the include file specified by the URL in the <include-file> "src" attribute...
-                String url = mat.group( 3 );
-                DataSource source = getDataSource( url );
-                String include = Streams.toString( source.handler.getInputStream(), StandardCharsets.UTF_8);
-                result.append( include );
+        CompletableFuture<Result<?>> attempt;
+        try {
+            attempt = sendAsync( _email.to(), _email.cc(), _email.bcc(), _email.message() );
+        }
+        catch( IllegalArgumentException _e ) {
+            attempt = CompletableFuture.completedFuture( new Result<>( "Spooled email can't be sent: " + _e.getMessage(), _e ) );
+        }
 
-                // if we need to delete the source file, do so...
-                if( (source.deleteFile != null) && !source.deleteFile.delete() )
-                    throw new IllegalStateException( "Could not delete source file: " + source.deleteFile.getAbsolutePath() );
+        attempt.whenComplete( (result, problem) -> {
 
-                // update the index for the next go-round...
-                index = mat.end();
+            // if it was sent, or never will be, we're done with it...
+            if( (problem == null) && (result.ok() || isPermanent( result )) ) {
+                service.getSpool().acknowledge( _id );
+                _future.complete( result );
+                return;
             }
 
-            // if the index is non-zero (meaning we matched at least once), then append the remaining characters and get our new html string...
-            if( index != 0 ) {
-                result.append( html.substring( index ) );
-                html = result.toString();
+            // otherwise, we try again later...
+            String why = (problem == null) ? result.msg() : problem.toString();
+            LOGGER.info( "Spooled email " + _id + " not sent; trying again in " + _retryMS + "ms: " + why );
+            long next = Math.min( _retryMS * 2, service.getConfig().spoolRetryMaxMS );
+            try {
+                service.getSpoolDispatcher().schedule( () -> sendSpooled( _id, _email, _future, next ), _retryMS, TimeUnit.MILLISECONDS );
+            }
+            catch( RejectedExecutionException _e ) {
+                _future.complete( notSentYet() );
             }
+        } );
+    }
 
-        } while( index != 0 );
 
-        return html;
+    /**
+     * Returns {@code true} if the given (not ok) result means the email will never be sent: it was refused with a 5xx SMTP reply, or it's invalid.
+     */
+    private static boolean isPermanent( final Result<?> _result ) {
+
+        if( _result.info() instanceof IllegalArgumentException )
+            return true;
+        if( !(_result.info() instanceof Exception problem) )
+            return false;
+        int code = ProviderLimiter.replyCode( problem );
+        return (code >= 500) && (code < 600);
     }
 
 
-    private static final Pattern TRANSFER_PARSER = Pattern.compile( "transfer://(.*?)/(.*)", Pattern.CASE_INSENSITIVE );
+    private CompletableFuture<Result<?>> durableFuture() {
+        CompletableFuture<Result<?>> future = new CompletableFuture<>();
+        durable.add( future );
+        future.whenComplete( (result, problem) -> durable.remove( future ) );
+        return future;
+    }
 
-    private DataSource getDataSource( final String _url ) throws MalformedURLException {
 
-        // if we have a web URL, handle that...
-        if( _url.startsWith( "http://" ) || _url.startsWith( "https://" ) )
-            return new DataSource( new DataHandler( new URLDataSource( new URL( _url ) ) ), null );
-
-        // if we have a transfer URL, handle that...
-        else if( _url.startsWith( "transfer://" )) {
-
-            // get the transfer directory name and the relative path...
-            Matcher mat = TRANSFER_PARSER.matcher( _url );
-            if( mat.matches() ) {
-                String name = mat.group( 1 );
-                String path = mat.group( 2 );
-
-                // get a File for our file...
-                TransferDirectory transferDirectory = service.getTransferDirectory( name );
-                if( transferDirectory == null )
-                    throw new IllegalArgumentException( "Transfer directory does not exist: " + name );
-                if( !transferDirectory.isReadable() )
-                    throw new IllegalArgumentException( "Transfer directory is not readable: " + name );
-                File file = new File( transferDirectory.directory(), path );
-
-                // get our result...
-                DataHandler handler = new DataHandler( new FileDataSource( file ) );
-                return transferDirectory.isAuto()
-                        ? new DataSource( handler, file )
-                        : new DataSource( handler, null );
+    private static Result<?> notSentYet() {
+        return new Result<>( "Email service closed before the email was sent; it will be sent when the service next starts" );
+    }
+
+
+    /**
+     * Sends each of the given emails to its own recipients, returning a result for each email (in the same order as the given collection) rather
+     * than failing the whole batch if some emails can't be sent.  This is much faster than calling {@link #send(InternetAddress[],
+     * InternetAddress[], InternetAddress[], OutboundEmailMessage)} for each email, as the emails are streamed over as few SMTP sessions as
+     * possible (each session carrying up to the configured maximum messages per connection), with several sessions running in parallel.  Each
+     * session's thread builds an email and then transmits it, taking the next unsent email from the batch until there are none left.
+     *
+     * @param _emails the emails to send
+     * @return the result for each email: ok if it was successfully sent, otherwise not ok with an explanatory message (and the problem, if there
+     *         was one, as its info -- so a refusal by the provider can be told apart from a problem that's worth retrying)
+     */
+    public List<Result<?>> sendBatch( final Collection<AddressedEmail> _emails ) {
+
+        // fail fast if we didn't get anything to do...
+        if( _emails == null )
+            throw new IllegalArgumentException( "Missing emails" );
+
+        AddressedEmail[] emails = _emails.toArray( new AddressedEmail[0] );
+        Result<?>[] results = new Result<?>[emails.length];
+        if( emails.length == 0 )
+            return List.of();
+
+        // run our sessions in parallel, each taking the next unsent email until there are none left...
+        AtomicInteger next = new AtomicInteger();
+        int sessions = Math.min( service.getConfig().batchSessions, emails.length );
+        ExecutorService executor = Executors.newFixedThreadPool( sessions );
+        try {
+            List<Callable<Object>> workers = new ArrayList<>( sessions );
+            for( int i = 0; i < sessions; i++ )
+                workers.add( Executors.callable( () -> runBatchSession( emails, results, next ) ) );
+            executor.invokeAll( workers );
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // any email without a result never got a chance to be sent...
+        for( int i = 0; i < results.length; i++ )
+            if( results[i] == null )
+                results[i] = new Result<>( "Email not sent; batch was interrupted" );
+
+        return Arrays.asList( results );
+    }
+
+
+    /**
+     * Runs a single SMTP session for a batch, sending emails from the batch over one connection until the batch is exhausted.  If the connection
+     * breaks or reaches its maximum number of messages, it is replaced with a fresh one.
+     *
+     * @param _emails the emails in the batch
+     * @param _results the results for each email in the batch
+     * @param _next the index of the next email in the batch that hasn't been taken by a session
+     */
+    private void runBatchSession( final AddressedEmail[] _emails, final Result<?>[] _results, final AtomicInteger _next ) {
+
+        ProviderRouter router = service.getRouter();
+        SMTPConnectionPool.Connection connection = null;
+        try {
+            int index;
+            while( !Thread.currentThread().isInterrupted() && ((index = _next.getAndIncrement()) < _emails.length) ) {
+
+                AddressedEmail email = _emails[index];
+                long sendStart = System.nanoTime();
+                try {
+                    if( (email == null) || (email.message() == null) || (email.to() == null) || (email.to().length == 0) )
+                        throw new IllegalArgumentException( "Missing email message or 'to' addressees" );
+
+                    // make sure we've got a connection that's good for another message, through a provider that will let us send it now (if
+                    // ours won't, we move to whichever one will)...
+                    int recipients = email.to().length + ((email.cc() == null) ? 0 : email.cc().length)
+                            + ((email.bcc() == null) ? 0 : email.bcc().length);
+                    if( (connection != null) && (connection.isSpent() || !connection.permit( recipients )) ) {
+                        connection.getPool().release( connection );
+                        connection = null;
+                    }
+                    if( connection == null ) {
+                        long borrowStart = System.nanoTime();
+                        connection = borrow( router.candidates(), recipients );
+                        metrics.recordSince( EmailMetrics.Stage.BORROW, borrowStart );
+                    }
+
+                    // build and send our message...
+                    List<File> deleteAfterSend = new ArrayList<>();
+                    MimeMessage msg = buildMessage( connection.getPool().getSession(), email.to(), email.cc(), email.bcc(), email.message(),
+                            deleteAfterSend );
+                    long start = System.nanoTime();
+                    boolean ok = false;
+                    try {
+                        connection.send( msg );
+                        ok = true;
+                    }
+                    finally {
+                        router.record( connection.getProvider(), ok, System.nanoTime() - start );
+                    }
+                    deleteSent( deleteAfterSend );
+                    _results[index] = Result.OK;
+                }
+                catch( Exception _e ) {
+                    metrics.failed( _e );
+                    String msg = "Problem sending email: " + describe( _e );
+                    LOGGER.log( Level.WARNING, msg, _e );
+                    _results[index] = new Result<>( msg, _e );
+                }
+                finally {
+                    metrics.recordSince( EmailMetrics.Stage.SEND, sendStart );
+                }
+            }
+        }
+        finally {
+            if( connection != null )
+                connection.getPool().release( connection );
+        }
+    }
+
+
+    /**
+     * Transmit the given message through the first of the given providers that we can get a connection to.  Once a connection is obtained, the
+     * message is sent over it and there is no further fallback, as the provider may have accepted the message even if an error was reported.
+     *
+     * @param _msg the message to transmit
+     * @param _candidates the SMTP connection pools for the providers to try, in order of preference
+     * @throws MessagingException on any problem sending the message
+     */
+    private void transmit( final MimeMessage _msg, final List<SMTPConnectionPool> _candidates ) throws MessagingException {
+
+        Address[] recipients = _msg.getAllRecipients();
+        long borrowStart = System.nanoTime();
+        SMTPConnectionPool.Connection connection = borrow( _candidates, (recipients == null) ? 0 : recipients.length );
+        metrics.recordSince( EmailMetrics.Stage.BORROW, borrowStart );
+
+        // the provider's latency is just the send, not any wait for a connection or for the provider's send rate...
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            connection.send( _msg );
+            ok = true;
+        }
+        finally {
+            connection.getPool().release( connection );
+            service.getRouter().record( connection.getProvider(), ok, System.nanoTime() - start );
+        }
+    }
+
+
+    /**
+     * Borrow a connection, for a message to the given number of recipients, from the first of the given providers that we can get a connection
+     * from.  If we can't get a connection to a provider (because it's unreachable, all its connections stayed busy, or its limiter won't permit
+     * the message now), we move on to the next one.
+     *
+     * @param _candidates the SMTP connection pools for the providers to try, in order of preference
+     * @param _recipients the number of recipients of the message to be sent
+     * @return the borrowed connection, which must be released to its pool
+     * @throws MessagingException if no connection could be borrowed from any provider
+     */
+    private SMTPConnectionPool.Connection borrow( final List<SMTPConnectionPool> _candidates, final int _recipients ) throws MessagingException {
+
+        MessagingException lastProblem = null;
+        for( SMTPConnectionPool pool : _candidates ) {
+
+            try {
+                return pool.borrow( _recipients );
             }
+
+            // the pool is busy, or the provider's limits won't let us send now; that's not the provider failing, so we don't hold it against it...
+            catch( SMTPConnectionPool.UnavailableException _e ) {
+                LOGGER.log( Level.FINE, "No SMTP connection to " + pool.getProvider().name + " available now; trying next provider", _e );
+                lastProblem = _e;
+            }
+            catch( MessagingException _e ) {
+                service.getRouter().recordFailure( pool.getProvider() );
+                LOGGER.log( Level.FINE, "Could not get SMTP connection to " + pool.getProvider().name + "; trying next provider", _e );
+                lastProblem = _e;
+            }
+        }
+
+        // if we get here, we couldn't get a connection to any provider...
+        throw (lastProblem != null) ? lastProblem : new MessagingException( "No SMTP provider available" );
+    }
+
+
+    /**
+     * Build the MIME message for the given email message and recipients, in the given session.  This is package-private so that the benchmarks
+     * can measure it.
+     *
+     * @param _session the Session to use when creating the MimeMessage
+     * @param _to the addressees to send the message directly to
+     * @param _cc the addressees to cc (carbon copy)
+     * @param _bcc the addressees to bcc (blind carbon copy)
+     * @param _message the message to send (which contains the from and subject)
+     * @param _deleteAfterSend the list to add any READ_AUTO files (attachments) to, which must be deleted once the message has been sent
+     * @return the fully configured MimeMessage, ready to be sent
+     * @throws MessagingException on any problems creating or configuring the MimeMessage
+     * @throws IOException on any problem reading included files or embedded images
+     */
+    MimeMessage buildMessage( final Session _session, final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
+                              final OutboundEmailMessage _message, final List<File> _deleteAfterSend )
+            throws MessagingException, IOException {
+
+        EmailEvents.MimeAssembly event = new EmailEvents.MimeAssembly();
+        event.begin();
+        long start = System.nanoTime();
+        MimeMessage msg = null;
+        try {
+
+            // handle the simple case wherein we have only a text body...
+            if( _message.hasTextOnly() )
+                msg = handleTextOnlyEmail( _session, _to, _cc, _bcc, _message );
+
+            // handle the case wherein we have only an HTML body...
+            else if( _message.hasHTMLOnly() )
+                msg = handleHTMLOnlyEMail( _session, _to, _cc, _bcc, _message, _deleteAfterSend );
+
+            // handle the case wherein we have both a text body and an HTML body...
             else
-                throw new IllegalArgumentException( "Invalid transfer URL: " + _url );
+                msg = handleTextAndHTMLEMail( _session, _to, _cc, _bcc, _message, expandIncludes( _message.html() ), _deleteAfterSend );
+
+            return msg;
+        }
+        finally {
+            metrics.recordSince( EmailMetrics.Stage.BUILD, start );
+            if( event.shouldCommit() ) {
+                event.messageId = (msg instanceof OutboundMessage outbound) ? outbound.assignMessageID() : null;
+                event.body      = _message.hasTextOnly() ? "text" : (_message.hasHTMLOnly() ? "HTML" : "text+HTML");
+                event.ok        = (msg != null);
+                event.commit();
+            }
         }
+    }
+
 
-        // if it's not one of the preceding, then we have an error...
-        throw new IllegalArgumentException( "Invalid URL: " + _url );
+    /**
+     * Returns a description of the given exception, using its cause if it has one (as the cause is usually the more informative of the two).
+     *
+     * @param _e the exception to describe
+     * @return the description
+     */
+    private static String describe( final Exception _e ) {
+        Throwable cause = (_e.getCause() != null) ? _e.getCause() : _e;
+        return cause.getClass().getName() + ": " + cause.getMessage();
     }
 
 
+    /**
+     * Compile the given <i>EmailDocument</i> (see the README for what that may contain), reading any include files through this sender's
+     * service, and collating string comparisons according to the configured locale.  The compiled document may be rendered for any number of
+     * addressees, and the results sent with this sender.
+     *
+     * @param _document the <i>EmailDocument</i> source
+     * @return the compiled document
+     * @throws IOException on any problem reading include files
+     * @throws IllegalArgumentException if the document is malformed
+     */
+    public EmailDocument compile( final String _document ) throws IOException {
+        return EmailDocument.compile( _document, includes, service.getConfig().locale );
+    }
+
+
+    /**
+     * Read the (UTF-8) text of the include file at the given URL, deleting the file afterwards if it came from a READ_AUTO transfer directory.
+     *
+     * @param _url the URL of the include file
+     * @return the text of the include file
+     * @throws IOException on any problem reading the include file
+     */
+    private String readInclude( final String _url ) throws IOException {
+
+        DataSource source = getDataSource( _url );
+        String include = (source.handler.getDataSource() instanceof ContentCache.Content content)
+                ? content.getText()
+                : Streams.toString( source.handler.getInputStream(), StandardCharsets.UTF_8);
+
+        // if we need to delete the source file, do so...
+        if( (source.deleteFile != null) && !source.deleteFile.delete() )
+            throw new IllegalStateException( "Could not delete source file: " + source.deleteFile.getAbsolutePath() );
+
+        return include;
+    }
+
+
+    private static final Pattern TRANSFER_PARSER = Pattern.compile( "transfer://(.*?)/(.*)", Pattern.CASE_INSENSITIVE );
+
+    private DataSource getDataSource( final String _url ) throws IOException {
+
+        // if we have a web URL, handle that...
+        if( _url.startsWith( "http://" ) || _url.startsWith( "https://" ) )
+            return new DataSource( new DataHandler( service.getContentCache().http( new URL( _url ) ) ), null );
+
+        // otherwise it had better be a transfer URL; READ_AUTO files are deleted once read, so we never cache them...
+        TransferFile transferFile = getTransferFile( _url );
+        return transferFile.directory.isAuto()
+                ? new DataSource( new DataHandler( new FileDataSource( transferFile.file ) ), transferFile.file )
+                : new DataSource( new DataHandler( service.getContentCache().file( transferFile.file ) ), null );
+    }
+
+
+    /**
+     * Resolve the given transfer URL ({@code transfer://<directory name>/<relative path>}) to the file it refers to, in a readable transfer
+     * directory.
+     *
+     * @param _url the transfer URL to resolve
+     * @return the file and its transfer directory
+     * @throws IllegalArgumentException if the URL isn't a valid transfer URL, or its transfer directory doesn't exist or isn't readable
+     */
+    private TransferFile getTransferFile( final String _url ) {
+
+        // make sure we have a transfer URL...
+        if( !_url.startsWith( "transfer://" ) )
+            throw new IllegalArgumentException( "Invalid URL: " + _url );
+
+        // get the transfer directory name and the relative path...
+        Matcher mat = TRANSFER_PARSER.matcher( _url );
+        if( !mat.matches() )
+            throw new IllegalArgumentException( "Invalid transfer URL: " + _url );
+        String name = mat.group( 1 );
+        String path = mat.group( 2 );
+
+        // get a File for our file...
+        TransferDirectory transferDirectory = service.getTransferDirectory( name );
+        if( transferDirectory == null )
+            throw new IllegalArgumentException( "Transfer directory does not exist: " + name );
+        if( !transferDirectory.isReadable() )
+            throw new IllegalArgumentException( "Transfer directory is not readable: " + name );
+        return new TransferFile( new File( transferDirectory.directory(), path ), transferDirectory );
+    }
+
+
+    private record TransferFile( File file, TransferDirectory directory ) {}
+
+
     /**
      * Always contains a handler; deleteFile is null unless the transfer directory mode is READ_AUTO.
      */
@@ -202,12 +699,15 @@ public class EmailSender {
      * @param _cc the addressees to cc (carbon copy)
      * @param _bcc the addressees to bcc (blind carbon copy)
      * @param _message the message to send (which contains the from and subject)
+     * @param _html the message's HTML, with its include files expanded
+     * @param _deleteAfterSend the list to add any READ_AUTO files (attachments) to, which must be deleted once the message has been sent
      * @return the fully configured MimeMessage, ready to be sent
      * @throws MessagingException on any problems creating or configuring the MimeMessage
      * @throws MalformedURLException if the URLs for any embedded images are malformed
      */
     private MimeMessage handleTextAndHTMLEMail( final Session _session, final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
-                                             final OutboundEmailMessage _message ) throws MessagingException, IOException {
+                                             final OutboundEmailMessage _message, final String _html, final List<File> _deleteAfterSend )
+            throws MessagingException, IOException {
 
         final MimeMessage msg = getMimeMessage( _session, _to, _cc, _bcc, _message );
 
@@ -220,80 +720,226 @@ public class EmailSender {
         final MimeMultipart parts = new MimeMultipart( "related" );
         htmlPart.setContent( parts );
 
-        // get the HTML body with (possibly) embedded images, attachments, and include files in it...
-        String html = _message.html();
+        // inline the images (and any other inlined elements) and pull out the attachments, then add the HTML body first and the inlined parts
+        // after it...
+        final Map<String,BodyPart> inlined = new LinkedHashMap<>();
+        final List<BodyPart> attachments = new ArrayList<>();
+        String html = rewriteResources( _html, inlined, attachments, _deleteAfterSend );
+        final MimeBodyPart htmlBody = new MimeBodyPart();
+        htmlBody.setContent( html, "text/html; charset=UTF-8");
+        parts.addBodyPart( htmlBody );
+        for( BodyPart part : inlined.values() )
+            parts.addBodyPart( part );
+
+        // create our multipart - note that the order of part addition is critical...
+        final Multipart mp = new MimeMultipart( "alternative" );
+        mp.addBodyPart(textPart);
+        mp.addBodyPart(htmlPart);
+
+        // if we have no attachments, the multipart is the message's content...
+        if( attachments.isEmpty() ) {
+            msg.setContent( mp );
+            return msg;
+        }
 
-        // expand any include files, recursively...
-        html = expandIncludes( html );
+        // otherwise, the message is a mixed multipart with the body first, then the attachments...
+        final MimeBodyPart body = new MimeBodyPart();
+        body.setContent( mp );
+        final Multipart mixed = new MimeMultipart( "mixed" );
+        mixed.addBodyPart( body );
+        for( BodyPart attachment : attachments )
+            mixed.addBodyPart( attachment );
+        msg.setContent( mixed );
+
+        return msg;
+    }
+
+
+    // the tags whose sources we inline, mapped to the tags they become once inlined...
+    private static final Map<String,String> INLINED_TAGS = Map.of(
+            "img",          "img",
+            "inline-img",   "img",
+            "inline-audio", "audio",
+            "inline-video", "video" );
 
-        // find all the images, by searching for image references in the HTML body...
-        final List<String> imageURLs = new ArrayList<>();
-        final Matcher mat = IMG_PATTERN.matcher( html );
-        int index = 0;
-        while( mat.find( index ) ) {
-            String urlString = mat.group( 2 );
 
-            // if we haven't seen this URL already, we need to add the image part...
-            if( !imageURLs.contains( urlString ) ) {
-                imageURLs.add( urlString );   // remember that we've seen this URL...
+    /**
+     * Inline the sources of the images (and other inlined elements) in the given HTML, and remove its {@code <attached-file/>} tags (creating an
+     * attachment for each), in a single pass over the parsed HTML.  Each inlined source is read (through the content cache), and its {@code src}
+     * attribute is replaced by a reference to a MIME part with a Content-ID derived from a hash of the content -- so the same content referenced by
+     * several elements (even under different URLs) is attached just once.  The special inlining tags ({@code <inline-img>} and so on) are converted
+     * to their ordinary equivalents.
+     *
+     * @param _html the HTML to inline the resources of
+     * @param _parts the map (by content hash) to add the inlined MIME parts to
+     * @param _attachments the list to add the attachment MIME parts to
+     * @param _deleteAfterSend the list to add any READ_AUTO attachment files to
+     * @return the rewritten HTML, or the given HTML if it has nothing to inline or attach
+     * @throws IOException on any problem reading an inlined resource
+     * @throws MessagingException on any problem creating a MIME part
+     */
+    private String rewriteResources( final String _html, final Map<String,BodyPart> _parts, final List<BodyPart> _attachments,
+                                     final List<File> _deleteAfterSend ) throws IOException, MessagingException {
+
+        Document document = Jsoup.parse( _html );
+        Elements elements = document.select( "img[src], inline-img[src], inline-audio[src], inline-video[src], attached-file" );
+        if( elements.isEmpty() )
+            return _html;
+
+        // fetch all the inlined web resources at once, rather than one after another as we come to them...
+        List<String> urls = new ArrayList<>( elements.size() );
+        for( Element element : elements )
+            if( !"attached-file".equals( element.tagName() ) )
+                urls.add( element.attr( "src" ) );
+        long start = System.nanoTime();
+        Map<String,CompletableFuture<ContentCache.Content>> prefetched = service.getContentCache().prefetch( urls );
+        long fetchNanos = System.nanoTime() - start;
+
+        Map<String,String> cids = new HashMap<>();     // URL to content hash, so each URL is only read once...
+        for( Element element : elements ) {
+
+            if( "attached-file".equals( element.tagName() ) ) {
+                _attachments.add( getAttachment( element.attr( "name" ), element.attr( "src" ), _deleteAfterSend ) );
+                element.remove();
+                continue;
             }
-            index = mat.end();
-        }
 
-        // iterate over the image URLs and replace them with their content IDs...
-        for( int i = 0; i < imageURLs.size(); i++ ) {
-            html = html.replaceAll( imageURLs.get( i ), "cid:" + i );
+            String url = element.attr( "src" );
+            if( url.startsWith( "cid:" ) || url.startsWith( "data:" ) )
+                continue;
+
+            String hash = cids.get( url );
+            if( hash == null ) {
+                start = System.nanoTime();
+                CompletableFuture<ContentCache.Content> fetched = prefetched.get( url );
+                ContentCache.Content content = (fetched == null) ? getInlineContent( url ) : ContentCache.await( fetched, url );
+                fetchNanos += System.nanoTime() - start;
+                hash = content.getHash();
+                cids.put( url, hash );
+                if( !_parts.containsKey( hash ) ) {
+                    final BodyPart part = new MimeBodyPart();
+                    part.setHeader( "Content-ID", "<" + hash + ">" );
+                    part.setDisposition( Part.INLINE );
+                    part.setDataHandler( new DataHandler( content ) );
+                    _parts.put( hash, part );
+                }
+            }
+            element.tagName( INLINED_TAGS.get( element.tagName() ) );
+            element.attr( "src", "cid:" + hash );
         }
+        metrics.record( EmailMetrics.Stage.RESOURCES, fetchNanos );
 
-        // first the HTML body (the text part)...
-        final MimeBodyPart htmlBody = new MimeBodyPart();
-        htmlBody.setContent( html, "text/html; charset=UTF-8");
-        parts.addBodyPart( htmlBody );
+        document.outputSettings().prettyPrint( false );
+        return document.outerHtml();
+    }
+
+
+    /**
+     * Returns the content of the inlined resource at the given URL, which may not be in a READ_AUTO transfer directory.
+     */
+    private ContentCache.Content getInlineContent( final String _url ) throws IOException {
+
+        DataSource source = getDataSource( _url );
+        if( source.deleteFile != null )
+            throw new IllegalArgumentException( "Inlined resources may not come from a READ_AUTO transfer directory: " + _url );
+        return (ContentCache.Content) source.handler.getDataSource();
+    }
+
+
+    /**
+     * Create an attachment with the given file name, whose content is streamed from the given URL when the message is written.  Files from
+     * transfer directories are streamed through a file channel, so an attachment takes the same (small) amount of memory no matter how big its
+     * file is.  The attachment is always base64 encoded; setting that explicitly also keeps Jakarta Mail from reading the entire file just to
+     * choose an encoding.
+     *
+     * @param _name the file name for the attachment
+     * @param _url the URL of the attachment's content
+     * @param _deleteAfterSend the list to add the attachment's file to, if it's from a READ_AUTO transfer directory
+     * @return the attachment MIME part
+     * @throws IOException if the URL is malformed
+     * @throws MessagingException on any problem creating the MIME part
+     */
+    private BodyPart getAttachment( final String _name, final String _url, final List<File> _deleteAfterSend )
+            throws IOException, MessagingException {
+
+        if( _url.isEmpty() )
+            throw new IllegalArgumentException( "Attached file has no source" );
 
-        // now add any images...
-        for( int i = 0; i < imageURLs.size(); i++ ) {
-            final BodyPart img = new MimeBodyPart();
-            img.setHeader( "Content-ID", "<" + i + ">" );
-            img.setDisposition("inline");
-            img.setDataHandler(new DataHandler( new URLDataSource( new URL( imageURLs.get( i ) ) ) ) );
-            parts.addBodyPart(img);
+        jakarta.activation.DataSource source;
+        if( _url.startsWith( "http://" ) || _url.startsWith( "https://" ) )
+            source = new URLDataSource( new URL( _url ) );
+        else {
+            TransferFile transferFile = getTransferFile( _url );
+            if( !transferFile.file.isFile() )
+                throw new IllegalArgumentException( "Attached file does not exist: " + _url );
+            if( transferFile.directory.isAuto() )
+                _deleteAfterSend.add( transferFile.file );
+            source = new ChannelFileDataSource( transferFile.file, _name.isEmpty() ? transferFile.file.getName() : _name );
         }
 
-        // create our multipart - note that the order of part addition is critical...
-        final Multipart mp = new MimeMultipart( "alternative" );
-        mp.addBodyPart(textPart);
-        mp.addBodyPart(htmlPart);
+        final MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler( new DataHandler( source ) );
+        attachment.setDisposition( Part.ATTACHMENT );
+        attachment.setFileName( _name.isEmpty() ? source.getName() : _name );
+        attachment.setHeader( "Content-Transfer-Encoding", "base64" );
+        return attachment;
+    }
 
-        // Set multipart as the message's content...
-        msg.setContent(mp);
 
-        return msg;
+    /**
+     * Delete the given files (from READ_AUTO transfer directories), now that the message they were part of has been sent.  Since the message has
+     * already been sent, a failure to delete is just logged.
+     *
+     * @param _files the files to delete
+     */
+    private void deleteSent( final List<File> _files ) {
+        for( File file : _files )
+            if( !file.delete() )
+                LOGGER.warning( "Could not delete sent file: " + file.getAbsolutePath() );
     }
 
 
     /**
-     * Handles the case where the supplied message contains an HTML message but no plain text message, by adding a default plain text message that
-     * simply tells the recipient (if they're using an email client that can only read plain text messages) that the message must be viewed with
-     * an HTML-capable email client.  The HTML message may contain embedded images so long as they have a valid and readable "src" attribute.
+     * Handles the case where the supplied message contains an HTML message but no plain text message, by adding a plain text message converted
+     * from the HTML (see {@link HTMLToText}), for recipients using an email client that can only read plain text messages.  The HTML message may
+     * contain embedded images so long as they have a valid and readable "src" attribute.
      *
      * @param _session the Session to use when creating the MimeMessage
      * @param _to the addressees to send the message directly to
      * @param _cc the addressees to cc (carbon copy)
      * @param _bcc the addressees to bcc (blind carbon copy)
      * @param _message the message to send (which contains the from and subject)
+     * @param _deleteAfterSend the list to add any READ_AUTO files (attachments) to, which must be deleted once the message has been sent
      * @return the fully configured MimeMessage, ready to be sent
      * @throws MessagingException on any problems creating or configuring the MimeMessage
      * @throws MalformedURLException if the URLs for any embedded images are malformed
      */
     private MimeMessage handleHTMLOnlyEMail( final Session _session,
                                              final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc,
-                                             final OutboundEmailMessage _message )
+                                             final OutboundEmailMessage _message, final List<File> _deleteAfterSend )
             throws MessagingException, IOException {
 
-        // just add a default text message...
-        final String defaultText = "(must be viewed with HTML-capable email client)";
-        final OutboundEmailMessage msg = new OutboundEmailMessage( _message.from(), _message.subject(), defaultText, _message.html() );
-        return handleTextAndHTMLEMail( _session, _to, _cc, _bcc, msg );
+        // add a text message converted from the HTML, once its include files are expanded (so the text has everything the HTML has)...
+        final String html = expandIncludes( _message.html() );
+        final String text = HTMLToText.convert( html );
+        final OutboundEmailMessage msg = new OutboundEmailMessage( _message.from(), _message.subject(), text, _message.html() );
+        return handleTextAndHTMLEMail( _session, _to, _cc, _bcc, msg, html, _deleteAfterSend );
+    }
+
+
+    /**
+     * Expand the include files in the given HTML, recursively.
+     *
+     * @param _html the HTML to expand
+     * @return the expanded HTML
+     * @throws IOException on any problem reading an include file
+     */
+    private String expandIncludes( final String _html ) throws IOException {
+
+        long start = System.nanoTime();
+        String html = includes.expand( _html );
+        metrics.recordSince( EmailMetrics.Stage.INCLUDES, start );
+        return html;
     }
 
 
@@ -334,7 +980,7 @@ public class EmailSender {
                                         final OutboundEmailMessage _message )
             throws MessagingException {
 
-        final MimeMessage msg = new MimeMessage( _session );
+        final MimeMessage msg = new OutboundMessage( _session );
         msg.setFrom( _message.from() );
         msg.setRecipients( Message.RecipientType.TO, _to );
         if( _cc != null )
@@ -344,4 +990,37 @@ public class EmailSender {
         msg.setSubject( _message.subject(), "UTF-8" );
         return msg;
     }
+
+
+    /**
+     * A MIME message that keeps its Message-ID once it has one, rather than getting a new one each time its changes are saved -- so that the
+     * events recorded while it's built and while it's transmitted name the same message.
+     */
+    private static final class OutboundMessage extends MimeMessage {
+
+        private OutboundMessage( final Session _session ) {
+            super( _session );
+        }
+
+
+        /**
+         * Give this message its Message-ID now (if it doesn't have one already), rather than when it's sent, and return it.
+         */
+        private String assignMessageID() {
+            try {
+                updateMessageID();
+                return getMessageID();
+            }
+            catch( MessagingException _e ) {
+                return null;
+            }
+        }
+
+
+        @Override
+        protected void updateMessageID() throws MessagingException {
+            if( getHeader( "Message-ID", null ) == null )
+                super.updateMessageID();
+        }
+    }
 }
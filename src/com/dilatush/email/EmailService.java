@@ -5,11 +5,20 @@ import jakarta.mail.Authenticator;
 import jakarta.mail.PasswordAuthentication;
 import jakarta.mail.Session;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.File;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Properties;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static com.dilatush.util.Strings.isEmpty;
 
@@ -20,21 +29,64 @@ import static com.dilatush.util.Strings.isEmpty;
  */
 public class EmailService {
 
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
 
-    private final Properties sessionProperties;
+    // how often (in milliseconds) a sender blocked on a full send queue checks whether the service has been closed...
+    private static final long BLOCK_RECHECK_MS = 100;
+
+    private final Config config;
     private final Map<String,TransferDirectory> transferDirectoryMap;
+    private final List<EmailProvider> providers;
+    private final Map<String,SMTPConnectionPool> smtpPools;
+    private final ProviderRouter router;
+    private final ResourceFetcher resourceFetcher;
+    private final ContentCache contentCache;
+    private final ThreadPoolExecutor sendExecutor;
+    private final OutboundSpool spool;
+    private final ScheduledExecutorService spoolDispatcher;           // null if there's no spool...
+    private final AttachmentStore attachmentStore;
     private final EmailSender sender;
+    private final EmailMetrics metrics = new EmailMetrics();
+    private final ObjectName metricsName;                             // null if the metrics weren't registered...
+    private final List<IMAPWatcher> watchers = new ArrayList<>();     // guarded by "watchers"...
+    private final List<InboxMonitor> monitors = new ArrayList<>();    // guarded by "watchers"...
 
 
     public EmailService( final Config _config ) {
-        this( _config.sessionProperties, _config.transferDirectoryMap );
+
+        config = _config;
+        transferDirectoryMap = _config.transferDirectoryMap;
+        providers = _config.getProviders();
+
+        // set up a pool of SMTP connections for each provider that can send, highest priority first...
+        smtpPools = new LinkedHashMap<>();
+        providers.stream()
+                .filter( (provider) -> provider.canSMTP )
+                .sorted( Comparator.comparingInt( (EmailProvider provider) -> provider.priority ).reversed() )
+                .forEach( (provider) -> smtpPools.put( provider.name, new SMTPConnectionPool( provider, createSession( provider, config ), config,
+                        metrics ) ) );
+        if( smtpPools.isEmpty() )
+            throw new IllegalArgumentException( "No SMTP-capable email provider is configured" );
+
+        router = new ProviderRouter( new ArrayList<>( smtpPools.values() ), config );
+        resourceFetcher = new ResourceFetcher( config );
+        contentCache = new ContentCache( config, resourceFetcher );
+        sendExecutor = createSendExecutor( config );
+        spool = openSpool( config );
+        spoolDispatcher = (spool == null) ? null : createSpoolDispatcher();
+        attachmentStore = (config.inboundAttachmentDirectory == null)
+                ? null : new AttachmentStore( transferDirectoryMap.get( config.inboundAttachmentDirectory ) );
+        sender = new EmailSender( this );
+        metricsName = registerMetrics( config.metricsObjectName );
+
+        // if we recovered any unsent emails from the spool, send them now...
+        if( spool != null )
+            sender.resendSpooled();
     }
 
 
     public EmailService( final Properties _sessionProperties, Map<String,TransferDirectory> _transferDirectoryMap ) {
-        sessionProperties = _sessionProperties;
-        transferDirectoryMap = _transferDirectoryMap;
-        sender = new EmailSender( this );
+        this( defaultConfig( _sessionProperties, _transferDirectoryMap ) );
     }
 
 
@@ -43,19 +95,381 @@ public class EmailService {
     }
 
 
+    /**
+     * Returns the Jakarta Mail session for the highest priority SMTP-capable provider.  The session is created once, when this service is
+     * constructed, and is shared by all users.
+     *
+     * @return the session for the highest priority SMTP-capable provider
+     */
     public Session getSession() {
+        return getSMTPPool().getSession();
+    }
+
+
+    /**
+     * Returns the configuration this service was created with.
+     *
+     * @return the configuration
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+
+    /**
+     * Returns all the configured providers.
+     *
+     * @return the configured providers
+     */
+    public List<EmailProvider> getProviders() {
+        return providers;
+    }
+
+
+    /**
+     * Returns the router that chooses which provider to send each message through.
+     *
+     * @return the provider router
+     */
+    public ProviderRouter getRouter() {
+        return router;
+    }
+
+
+    /**
+     * Returns the cache of include file and inline resource content (with its hit, miss, and eviction statistics).
+     *
+     * @return the content cache
+     */
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+
+    /**
+     * Returns the durable spool of outbound emails, or {@code null} if none is configured.
+     *
+     * @return the outbound spool, or {@code null} if none is configured
+     */
+    public OutboundSpool getSpool() {
+        return spool;
+    }
+
+
+    /**
+     * Returns the store that the attachments of received emails are saved in, or {@code null} if none is configured.
+     *
+     * @return the inbound attachment store, or {@code null} if none is configured
+     */
+    public AttachmentStore getAttachmentStore() {
+        return attachmentStore;
+    }
+
+
+    /**
+     * Returns the metrics of this service: the latency of each stage of sending and receiving, and counts of the messages sent and received.
+     * They are also registered as an MXBean under the configured {@link Config#metricsObjectName}, if there is one.
+     *
+     * @return the metrics of this service
+     */
+    public EmailMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Returns the fetcher (with its shared HTTP client) used for all web resources.
+     *
+     * @return the resource fetcher
+     */
+    public ResourceFetcher getResourceFetcher() {
+        return resourceFetcher;
+    }
+
+
+    /**
+     * Returns the pool of SMTP connections for the given provider name, or {@code null} if there is no such provider or it cannot send.
+     *
+     * @param _providerName the name of the provider to get the SMTP connection pool for
+     * @return the SMTP connection pool for the given provider
+     */
+    public SMTPConnectionPool getSMTPPool( final String _providerName ) {
+        return smtpPools.get( _providerName );
+    }
+
+
+    /**
+     * Returns the pool of SMTP connections for the highest priority SMTP-capable provider.
+     *
+     * @return the SMTP connection pool for the highest priority SMTP-capable provider
+     */
+    public SMTPConnectionPool getSMTPPool() {
+        return smtpPools.values().iterator().next();
+    }
+
+
+    /**
+     * Start watching the inbox of the given IMAP-capable provider, delivering each new message to the given callback as it arrives.  If an
+     * inbound attachment directory is configured, each message's attachments are saved there.  The watcher is closed when this service is closed.
+     *
+     * @param _providerName the name of the provider whose inbox should be watched
+     * @param _state the point to resume from (as returned by an earlier watcher's {@link IMAPWatcher#getSyncState()}), or {@code null} to
+     *               deliver every message in the inbox
+     * @param _callback the callback to deliver new messages to
+     * @return the watcher, which has been started
+     */
+    public IMAPWatcher watch( final String _providerName, final IMAPWatcher.SyncState _state, final Consumer<InboundEmailMessage> _callback ) {
+
+        EmailProvider provider = providers.stream().filter( (p) -> p.name.equals( _providerName ) ).findFirst().orElse( null );
+        if( (provider == null) || !provider.canIMAP )
+            throw new IllegalArgumentException( "No IMAP-capable email provider named: " + _providerName );
+
+        synchronized( watchers ) {
+            IMAPWatcher watcher = new IMAPWatcher( provider.name, createSession( provider, config ), _state, _callback, attachmentStore, config,
+                    metrics );
+            watchers.add( watcher );
+            watcher.start();
+            return watcher;
+        }
+    }
+
+
+    /**
+     * Start monitoring the inboxes of all the IMAP- and POP3-capable providers at once, merging the messages they receive into a single queue.
+     * The monitor's IMAP watchers are closed when this service is closed.
+     *
+     * @param _states the points to resume the IMAP mailboxes from (by provider name), as returned by an earlier monitor's
+     *                {@link InboxMonitor#getSyncStates()}, or {@code null} to read every mailbox from the beginning
+     * @return the monitor, which has been started
+     */
+    public InboxMonitor monitor( final Map<String,IMAPWatcher.SyncState> _states ) {
+        InboxMonitor monitor = new InboxMonitor( this, _states );
+        synchronized( watchers ) {
+            monitors.add( monitor );
+        }
+        return monitor;
+    }
+
+
+    /**
+     * Returns the executor that sends messages submitted with {@link EmailSender#sendAsync(jakarta.mail.internet.InternetAddress[],
+     * jakarta.mail.internet.InternetAddress[], jakarta.mail.internet.InternetAddress[], OutboundEmailMessage)}.
+     *
+     * @return the asynchronous send executor
+     */
+    Executor getSendExecutor() {
+        return sendExecutor;
+    }
+
+
+    /**
+     * Returns the executor that hands spooled emails (once they're journaled, and when they're retried) to the asynchronous send executor, or
+     * {@code null} if no outbound spool is configured.  Handing them over can block (or even send the message), depending on the overflow
+     * policy, so it mustn't be done on the spool's writer thread.
+     *
+     * @return the spool dispatcher, or {@code null} if no outbound spool is configured
+     */
+    ScheduledExecutorService getSpoolDispatcher() {
+        return spoolDispatcher;
+    }
+
+
+    /**
+     * Shut down this service.  Messages already submitted for asynchronous sending are given a chance to be sent (but new submissions are
+     * rejected), and then all pooled connections are closed.
+     */
+    public void close() {
+
+        sendExecutor.shutdown();
+        try {
+            if( !sendExecutor.awaitTermination( config.smtpBorrowTimeoutMS * 2, TimeUnit.MILLISECONDS ) )
+                sendExecutor.shutdownNow();
+        }
+        catch( InterruptedException _e ) {
+            sendExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if( spoolDispatcher != null ) {
+            spoolDispatcher.shutdownNow();
+            sender.abandonSpooled();
+        }
+        if( spool != null )
+            spool.close();
+        smtpPools.values().forEach( SMTPConnectionPool::close );
+        synchronized( watchers ) {
+            monitors.forEach( InboxMonitor::close );
+            monitors.clear();
+            watchers.forEach( IMAPWatcher::close );
+            watchers.clear();
+        }
+        if( metricsName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean( metricsName );
+            }
+            catch( InstanceNotFoundException _e ) {
+                // someone else already unregistered it, which is fine...
+            }
+            catch( JMException _e ) {
+                LOGGER.log( Level.WARNING, "Problem unregistering email metrics: " + metricsName, _e );
+            }
+        }
+    }
+
+
+    /**
+     * Register this service's metrics with the platform MBean server under the given name, if there is one.  If something is already registered
+     * under that name (another service, probably), the metrics are still collected, but they're only available through {@link #getMetrics()}.
+     *
+     * @param _name the object name to register the metrics under, or {@code null} to not register them
+     * @return the object name the metrics were registered under, or {@code null} if they weren't registered
+     */
+    private ObjectName registerMetrics( final String _name ) {
+
+        if( _name == null )
+            return null;
+        try {
+            ObjectName name = new ObjectName( _name );
+            ManagementFactory.getPlatformMBeanServer().registerMBean( metrics, name );
+            return name;
+        }
+        catch( InstanceAlreadyExistsException _e ) {
+            LOGGER.warning( "Email metrics not registered, as the name is already in use: " + _name );
+            return null;
+        }
+        catch( JMException _e ) {
+            LOGGER.log( Level.WARNING, "Problem registering email metrics: " + _name, _e );
+            return null;
+        }
+    }
+
+
+    /**
+     * Open the outbound spool in the configured transfer directory, if one is configured.
+     *
+     * @param _config the email service configuration
+     * @return the outbound spool, or {@code null} if none is configured
+     */
+    private OutboundSpool openSpool( final Config _config ) {
+
+        if( _config.spoolDirectory == null )
+            return null;
+        try {
+            return new OutboundSpool( transferDirectoryMap.get( _config.spoolDirectory ), _config );
+        }
+        catch( IOException _e ) {
+            throw new IllegalStateException( "Could not open outbound spool: " + _e.getMessage(), _e );
+        }
+    }
+
+
+    /**
+     * Create the executor for asynchronous sends.  It has a fixed maximum number of threads (which time out when idle) in front of a bounded
+     * queue, so that producers that outrun the providers get backpressure (according to the configured overflow policy) instead of an ever
+     * growing backlog of messages in memory.
+     *
+     * @param _config the configuration with the asynchronous send settings
+     * @return the new executor
+     */
+    private static ThreadPoolExecutor createSendExecutor( final Config _config ) {
+
+        RejectedExecutionHandler handler = switch( _config.asyncOverflowPolicy ) {
+
+            // wait for room in the queue, checking every so often that we haven't been shut down (which would leave the task queued, but never
+            // run)...
+            case BLOCK -> (task, executor) -> {
+                try {
+                    while( true ) {
+                        if( executor.isShutdown() )
+                            throw new RejectedExecutionException( "Email service is closed" );
+                        if( executor.getQueue().offer( task, BLOCK_RECHECK_MS, TimeUnit.MILLISECONDS ) )
+                            break;
+                    }
+                }
+                catch( InterruptedException _e ) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException( "Interrupted while waiting to queue email", _e );
+                }
+
+                // if we were shut down just as we queued it, the task may never run; if we can take it back, it's rejected...
+                if( executor.isShutdown() && executor.remove( task ) )
+                    throw new RejectedExecutionException( "Email service is closed" );
+            };
+            case REJECT      -> (task, executor) -> {
+                throw new RejectedExecutionException( executor.isShutdown() ? "Email service is closed" : "Send queue is full" );
+            };
+
+            // run it on the caller's thread (the JDK's CallerRunsPolicy silently drops the task once we're shut down, so we don't use it)...
+            case CALLER_RUNS -> (task, executor) -> {
+                if( executor.isShutdown() )
+                    throw new RejectedExecutionException( "Email service is closed" );
+                task.run();
+            };
+        };
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory factory = (runnable) -> {
+            Thread thread = new Thread( runnable, "EmailSender-" + threadNumber.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        };
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( _config.asyncSendThreads, _config.asyncSendThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>( _config.asyncQueueSize ), factory, handler );
+        executor.allowCoreThreadTimeOut( true );
+        return executor;
+    }
 
-        String user     = sessionProperties.getProperty( "mail.smtp.user"     );
-        String password = sessionProperties.getProperty( "mail.smtp.password" );
 
+    /**
+     * Create the single thread that hands spooled emails to the asynchronous send executor.
+     *
+     * @return the new spool dispatcher
+     */
+    private static ScheduledExecutorService createSpoolDispatcher() {
+        return Executors.newSingleThreadScheduledExecutor( (runnable) -> {
+            Thread thread = new Thread( runnable, "EmailSpoolDispatcher" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+
+    /**
+     * Create a new session for the given provider, with an authenticator that supplies the provider's credentials for the protocol being
+     * authenticated ("mail.<i>protocol</i>.user" and "mail.<i>protocol</i>.password"), falling back to its SMTP credentials.  Unless the provider's
+     * session properties set them, the configured IMAP read and connect timeouts are added, as without them a server that stops responding
+     * would hang whatever thread is waiting on it forever.
+     *
+     * @param _provider the provider to create a session for
+     * @param _config the email service configuration, containing the IMAP timeouts
+     * @return the new session
+     */
+    static Session createSession( final EmailProvider _provider, final Config _config ) {
+
+        Properties props = (Properties) _provider.sessionProperties.clone();
+        for( String protocol : List.of( "imap", "imaps" ) ) {
+            props.putIfAbsent( "mail." + protocol + ".timeout",           String.valueOf( _config.imapTimeoutMS        ) );
+            props.putIfAbsent( "mail." + protocol + ".connectiontimeout", String.valueOf( _config.imapConnectTimeoutMS ) );
+        }
         Authenticator auth = new Authenticator() {
             @Override
             protected PasswordAuthentication getPasswordAuthentication() {
+                String protocol = getRequestingProtocol();
+                String user     = props.getProperty( "mail." + protocol + ".user",     props.getProperty( "mail.smtp.user"     ) );
+                String password = props.getProperty( "mail." + protocol + ".password", props.getProperty( "mail.smtp.password" ) );
                 return new PasswordAuthentication( user, password );
             }
         };
 
-        return Session.getInstance( sessionProperties, auth );
+        return Session.getInstance( props, auth );
+    }
+
+
+    private static Config defaultConfig( final Properties _sessionProperties, Map<String,TransferDirectory> _transferDirectoryMap ) {
+        Config config = new Config();
+        config.sessionProperties = _sessionProperties;
+        config.transferDirectoryMap = _transferDirectoryMap;
+        return config;
     }
 
 
@@ -67,15 +481,238 @@ public class EmailService {
     public static class Config extends AConfig {
 
 
+        /** The providers to send and receive email through.  If none are configured, a single provider is made from {@link #sessionProperties}. */
+        public List<EmailProvider> providers;
+
+        /** The session properties for a single default provider; used only if {@link #providers} is not configured. */
         public Properties sessionProperties;
         public List<Map<String,String>> transferDirectories;
         public Map<String,TransferDirectory> transferDirectoryMap;
 
+        /** The locale for string comparisons (collation) in the test expressions of EmailDocuments. */
+        public Locale locale = Locale.getDefault();
+
+        /** The maximum nesting depth of include files (an include file may include others, up to this depth). */
+        public int includeMaxDepth = 16;
+
+        /** The maximum size (in characters) of a document or message body after its include files are expanded. */
+        public int includeMaxChars = 8 << 20;
+
+        /** The maximum total size (in bytes) of the cached content of include files and inline resources; zero disables caching. */
+        public long contentCacheMaxBytes = 64 << 20;
+
+        /** Cached files are served without checking their modification time for this long (in milliseconds) after they were last checked. */
+        public long contentCacheFileTTLMS = 1_000;
+
+        /** Cached web resources are served without revalidating them with their server for this long (in milliseconds). */
+        public long contentCacheHttpTTLMS = 300_000;
+
+        /** The maximum time (in milliseconds) to wait for a connection to a web server when fetching a resource. */
+        public long httpConnectTimeoutMS = 10_000;
+
+        /** The maximum time (in milliseconds) to wait for a web server's response when fetching a resource. */
+        public long httpRequestTimeoutMS = 30_000;
+
+        /** The maximum number of requests for resources in flight at once to any one web server. */
+        public int httpMaxRequestsPerHost = 6;
+
+        /** The name of the (READ_WRITE) transfer directory to keep the durable outbound spool in, or {@code null} for no spool. */
+        public String spoolDirectory;
+
+        /** The size (in bytes) at which the outbound spool starts a new segment file. */
+        public long spoolSegmentBytes = 16 << 20;
+
+        /** The time (in milliseconds) to wait before sending a spooled email again after a temporary failure, doubling on each failure. */
+        public long spoolRetryMinMS = 1_000;
+
+        /** The maximum time (in milliseconds) to wait before sending a spooled email again after a temporary failure. */
+        public long spoolRetryMaxMS = 300_000;
+
+        /** The name of the (WRITE_ONLY or READ_WRITE) transfer directory that received attachments are saved in; if null, they aren't saved. */
+        public String inboundAttachmentDirectory;
+
+        /** The maximum number of SMTP connections (idle or in use) open at once to each provider. */
+        public int smtpPoolSize = 4;
+
+        /** SMTP connections that have been idle for longer than this (in milliseconds) are closed instead of being reused. */
+        public long smtpIdleTimeoutMS = 60_000;
+
+        /** SMTP connections that have been idle for longer than this (in milliseconds) are checked with a NOOP before being reused. */
+        public long smtpValidateAfterIdleMS = 2_000;
+
+        /** The maximum number of messages sent over one SMTP connection before it is closed and replaced with a fresh one. */
+        public int smtpMaxMessagesPerConnection = 100;
+
+        /** The maximum time (in milliseconds) to wait for an SMTP connection when all of a provider's connections are in use. */
+        public long smtpBorrowTimeoutMS = 30_000;
+
+        /** The number of threads sending messages submitted with sendAsync(); more than the total SMTP connections available is pointless. */
+        public int asyncSendThreads = 8;
+
+        /** The maximum number of messages submitted with sendAsync() that may be waiting to be sent. */
+        public int asyncQueueSize = 1000;
+
+        /** What sendAsync() does when its queue is full. */
+        public OverflowPolicy asyncOverflowPolicy = OverflowPolicy.BLOCK;
+
+        /** The number of SMTP sessions that sendBatch() runs in parallel. */
+        public int batchSessions = 4;
+
+        /** A provider whose average send time (in milliseconds) is longer than this is considered slow, and traffic spills to other providers. */
+        public long slowSendThresholdMS = 5_000;
+
+        /** A provider whose average error rate (0..1) is higher than this is considered unhealthy, and traffic spills to other providers. */
+        public double maxProviderErrorRate = 0.25;
+
+        /** A provider that hasn't been sent through for this long (in milliseconds) is tried again, regardless of its past performance. */
+        public long providerStatsStaleMS = 30_000;
+
+        /** The interval (in milliseconds) at which an IMAP watcher interrupts its IDLE with a NOOP, so the server doesn't drop the connection. */
+        public long imapIdleRefreshMS = 540_000;
+
+        /** The interval (in milliseconds) at which an IMAP watcher checks for new messages, if the server doesn't support IDLE. */
+        public long imapPollMS = 1_000;
+
+        /** The time (in milliseconds) an IMAP watcher or POP3 poller waits before its first attempt to reconnect; it doubles with each failure. */
+        public long imapReconnectMinMS = 1_000;
+
+        /** The maximum time (in milliseconds) an IMAP watcher or POP3 poller waits between attempts to reconnect. */
+        public long imapReconnectMaxMS = 300_000;
+
+        /** The maximum time (in milliseconds) to wait for an IMAP server to respond, unless the provider's session properties say otherwise. */
+        public long imapTimeoutMS = 60_000;
+
+        /** The maximum time (in milliseconds) to wait for a connection to an IMAP server, unless the provider's session properties say otherwise. */
+        public long imapConnectTimeoutMS = 30_000;
+
+        /** The interval (in milliseconds) at which an inbox monitor polls the mailboxes of providers that can only be read with POP3. */
+        public long pop3PollMS = 60_000;
+
+        /** The maximum number of received messages an inbox monitor holds for its consumer; mailboxes wait when it's full. */
+        public int inboxQueueSize = 1000;
+
+        /** The number of messages fetched at once when reading through a mailbox. */
+        public int inboxBatchSize = 100;
+
+        /** When a provider throttles us, its send rate is multiplied by this factor (0..1). */
+        public double throttleDecreaseFactor = 0.5;
+
+        /** The time (in milliseconds) for a throttled provider's send rate to climb back to its limit, if it doesn't throttle us again. */
+        public long throttleRecoveryMS = 60_000;
+
+        /** However often a provider throttles us, its send rate is never cut below this (in messages per second). */
+        public double throttleMinMessagesPerSecond = 0.1;
+
+        /** The JMX object name the service's metrics are registered under, or {@code null} to not register them. */
+        public String metricsObjectName = "com.dilatush.email:type=EmailMetrics,name=default";
+
 
         @Override
         public void verify( final List<String> _messages ) {
-            validate( () -> sessionProperties != null,           _messages, "Session properties not set"  );
+            validate( () -> verifyProviders( _messages ),        _messages, "Email provider problems"     );
             validate( () -> mapTransferDirectories( _messages ), _messages, "Transfer directory problems" );
+            validate( () -> locale != null,                      _messages, "Locale not set" );
+            validate( () -> includeMaxDepth >= 0,                _messages, "Include max depth is negative: " + includeMaxDepth );
+            validate( () -> includeMaxChars > 0,                 _messages, "Include max chars must be positive: " + includeMaxChars );
+            validate( () -> contentCacheMaxBytes >= 0,           _messages, "Content cache max bytes is negative: " + contentCacheMaxBytes );
+            validate( () -> contentCacheFileTTLMS >= 0,          _messages, "Content cache file TTL is negative: " + contentCacheFileTTLMS );
+            validate( () -> contentCacheHttpTTLMS >= 0,          _messages, "Content cache HTTP TTL is negative: " + contentCacheHttpTTLMS );
+            validate( () -> httpConnectTimeoutMS > 0,            _messages, "HTTP connect timeout must be positive: " + httpConnectTimeoutMS );
+            validate( () -> httpRequestTimeoutMS > 0,            _messages, "HTTP request timeout must be positive: " + httpRequestTimeoutMS );
+            validate( () -> httpMaxRequestsPerHost > 0,          _messages, "HTTP max requests per host must be at least one: " + httpMaxRequestsPerHost );
+            validate( () -> (spoolDirectory == null) || ((transferDirectoryMap != null) && (transferDirectoryMap.get( spoolDirectory ) != null)
+                                && (transferDirectoryMap.get( spoolDirectory ).mode() == TransferDirectory.Mode.READ_WRITE)),
+                                                                 _messages, "Spool directory is not a READ_WRITE transfer directory: " + spoolDirectory );
+            validate( () -> (inboundAttachmentDirectory == null) || ((transferDirectoryMap != null)
+                                && (transferDirectoryMap.get( inboundAttachmentDirectory ) != null)
+                                && transferDirectoryMap.get( inboundAttachmentDirectory ).isWritable()),
+                                                                 _messages, "Inbound attachment directory is not writable: " + inboundAttachmentDirectory );
+            validate( () -> spoolSegmentBytes > 0,               _messages, "Spool segment bytes must be positive: " + spoolSegmentBytes );
+            validate( () -> spoolRetryMinMS > 0,                 _messages, "Spool retry minimum must be positive: " + spoolRetryMinMS );
+            validate( () -> spoolRetryMaxMS >= spoolRetryMinMS,
+                                                                 _messages, "Spool retry maximum is less than the minimum: " + spoolRetryMaxMS );
+            validate( () -> smtpPoolSize > 0,                    _messages, "SMTP pool size must be at least one: " + smtpPoolSize );
+            validate( () -> smtpIdleTimeoutMS >= 0,              _messages, "SMTP idle timeout is negative: " + smtpIdleTimeoutMS );
+            validate( () -> smtpValidateAfterIdleMS >= 0,        _messages, "SMTP validate after idle time is negative: " + smtpValidateAfterIdleMS );
+            validate( () -> smtpMaxMessagesPerConnection > 0,    _messages, "SMTP max messages per connection must be at least one: " + smtpMaxMessagesPerConnection );
+            validate( () -> smtpBorrowTimeoutMS >= 0,            _messages, "SMTP borrow timeout is negative: " + smtpBorrowTimeoutMS );
+            validate( () -> asyncSendThreads > 0,                _messages, "Async send threads must be at least one: " + asyncSendThreads );
+            validate( () -> asyncQueueSize > 0,                  _messages, "Async queue size must be at least one: " + asyncQueueSize );
+            validate( () -> asyncOverflowPolicy != null,         _messages, "Async overflow policy not set" );
+            validate( () -> batchSessions > 0,                   _messages, "Batch sessions must be at least one: " + batchSessions );
+            validate( () -> slowSendThresholdMS > 0,             _messages, "Slow send threshold must be positive: " + slowSendThresholdMS );
+            validate( () -> (maxProviderErrorRate >= 0) && (maxProviderErrorRate <= 1),
+                                                                 _messages, "Max provider error rate must be in [0..1]: " + maxProviderErrorRate );
+            validate( () -> providerStatsStaleMS > 0,            _messages, "Provider stats stale time must be positive: " + providerStatsStaleMS );
+            validate( () -> imapIdleRefreshMS > 0,               _messages, "IMAP IDLE refresh interval must be positive: " + imapIdleRefreshMS );
+            validate( () -> imapPollMS > 0,                      _messages, "IMAP poll interval must be positive: " + imapPollMS );
+            validate( () -> imapReconnectMinMS > 0,              _messages, "IMAP reconnect minimum must be positive: " + imapReconnectMinMS );
+            validate( () -> imapReconnectMaxMS >= imapReconnectMinMS,
+                                                                 _messages, "IMAP reconnect maximum is less than the minimum: " + imapReconnectMaxMS );
+            validate( () -> imapTimeoutMS > 0,                   _messages, "IMAP timeout must be positive: " + imapTimeoutMS );
+            validate( () -> imapConnectTimeoutMS > 0,            _messages, "IMAP connect timeout must be positive: " + imapConnectTimeoutMS );
+            validate( () -> pop3PollMS > 0,                      _messages, "POP3 poll interval must be positive: " + pop3PollMS );
+            validate( () -> inboxQueueSize > 0,                  _messages, "Inbox queue size must be at least one: " + inboxQueueSize );
+            validate( () -> inboxBatchSize > 0,                  _messages, "Inbox batch size must be at least one: " + inboxBatchSize );
+            validate( () -> (throttleDecreaseFactor > 0) && (throttleDecreaseFactor < 1),
+                                                                 _messages, "Throttle decrease factor must be in (0..1): " + throttleDecreaseFactor );
+            validate( () -> throttleRecoveryMS > 0,              _messages, "Throttle recovery time must be positive: " + throttleRecoveryMS );
+            validate( () -> throttleMinMessagesPerSecond > 0,    _messages, "Throttle minimum rate must be positive: " + throttleMinMessagesPerSecond );
+            validate( () -> (metricsObjectName == null) || isObjectName( metricsObjectName ),
+                                                                 _messages, "Metrics object name is not a valid JMX object name: " + metricsObjectName );
+        }
+
+
+        /**
+         * Returns the configured providers or, if none were configured, a list containing a single provider made from the session properties.
+         *
+         * @return the providers to use
+         */
+        public List<EmailProvider> getProviders() {
+            return ((providers != null) && !providers.isEmpty())
+                    ? providers
+                    : List.of( new EmailProvider( "default", sessionProperties, true, true, false, 0 ) );
+        }
+
+
+        private static boolean isObjectName( final String _name ) {
+            try {
+                return !new ObjectName( _name ).isPattern();
+            }
+            catch( MalformedObjectNameException _e ) {
+                return false;
+            }
+        }
+
+
+        private boolean verifyProviders( final List<String> _messages ) {
+
+            // if we don't have any providers, we must at least have session properties for the default provider...
+            if( (providers == null) || providers.isEmpty() ) {
+                if( sessionProperties != null )
+                    return true;
+                _messages.add( "Neither email providers nor session properties are configured" );
+                return false;
+            }
+
+            // make sure that each provider has a unique name and session properties, and that at least one can send...
+            boolean ok = true;
+            Set<String> names = new HashSet<>();
+            for( EmailProvider provider : providers ) {
+                if( isEmpty( provider.name ) || !names.add( provider.name ) ) {
+                    _messages.add( "Email provider name is missing or duplicated: " + provider.name );
+                    ok = false;
+                }
+                if( provider.sessionProperties == null ) {
+                    _messages.add( "Email provider has no session properties: " + provider.name );
+                    ok = false;
+                }
+            }
+            if( providers.stream().noneMatch( (provider) -> provider.canSMTP ) ) {
+                _messages.add( "No email provider can send (SMTP)" );
+                ok = false;
+            }
+            return ok;
         }
 
 
@@ -140,4 +777,21 @@ public class EmailService {
             return ok;
         }
     }
+
+
+    /**
+     * What {@link EmailSender#sendAsync(jakarta.mail.internet.InternetAddress[], jakarta.mail.internet.InternetAddress[],
+     * jakarta.mail.internet.InternetAddress[], OutboundEmailMessage)} does when its queue of messages waiting to be sent is full.
+     */
+    public enum OverflowPolicy {
+
+        /** Wait until there is room in the queue. */
+        BLOCK,
+
+        /** Don't send the message; the returned future completes immediately with a not-ok result. */
+        REJECT,
+
+        /** Send the message synchronously, on the caller's thread. */
+        CALLER_RUNS
+    }
 }
@@ -0,0 +1,556 @@
+package com.dilatush.email;
+
+import java.util.Map;
+
+/**
+ * Converts HTML to readable plain text, in a single pass over the HTML and without building a document tree.  The converter is meant for the
+ * plain text alternative of HTML email, and for reading the text of received HTML email, so it aims for text that reads well rather than for a
+ * faithful rendering:
+ * <ul>
+ *     <li>Runs of whitespace collapse to a single space (except within {@code <pre>}), and block elements (paragraphs, headings, divisions,
+ *     and so on) start on a new line, with a blank line around paragraph-like blocks.</li>
+ *     <li>Links are written as {@code text <url>} (or just the text, if it's the URL itself).</li>
+ *     <li>List items start on their own line, indented by their nesting depth, with a bullet (or a number, in ordered lists).</li>
+ *     <li>Table rows start on their own line, with their cells separated by {@code " | "}.</li>
+ *     <li>Images are replaced by their alt text (if any).</li>
+ *     <li>The content of {@code <script>}, {@code <style>}, {@code <title>}, and {@code <template>} is skipped, as are comments.  Nothing
+ *     else that may appear in a document's {@code <head>} has any text, so the head itself isn't skipped -- HTML lets its end tag be left out,
+ *     and skipping to a missing end tag would drop the whole body.</li>
+ *     <li>Character references (named, decimal, and hexadecimal) are decoded; unrecognized ones are left as they are.</li>
+ * </ul>
+ * The converter is forgiving of malformed HTML, as email HTML so often is: it never fails, and unclosed or unknown tags are simply ignored.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public final class HTMLToText {
+
+    private static final int MAX_LIST_DEPTH = 16;
+
+    private enum Kind { PARAGRAPH, BLOCK, BREAK, LIST, ITEM, ROW, CELL, LINK, IMAGE, PRE, SKIP }
+
+    private static final Map<String,Kind> KINDS = Map.ofEntries(
+            Map.entry( "p",          Kind.PARAGRAPH ), Map.entry( "h1",       Kind.PARAGRAPH ), Map.entry( "h2",         Kind.PARAGRAPH ),
+            Map.entry( "h3",         Kind.PARAGRAPH ), Map.entry( "h4",       Kind.PARAGRAPH ), Map.entry( "h5",         Kind.PARAGRAPH ),
+            Map.entry( "h6",         Kind.PARAGRAPH ), Map.entry( "blockquote", Kind.PARAGRAPH ), Map.entry( "table",    Kind.PARAGRAPH ),
+            Map.entry( "dl",         Kind.PARAGRAPH ), Map.entry( "hr",       Kind.PARAGRAPH ), Map.entry( "figure",     Kind.PARAGRAPH ),
+            Map.entry( "div",        Kind.BLOCK     ), Map.entry( "section",  Kind.BLOCK     ), Map.entry( "article",    Kind.BLOCK     ),
+            Map.entry( "header",     Kind.BLOCK     ), Map.entry( "footer",   Kind.BLOCK     ), Map.entry( "nav",        Kind.BLOCK     ),
+            Map.entry( "aside",      Kind.BLOCK     ), Map.entry( "main",     Kind.BLOCK     ), Map.entry( "address",    Kind.BLOCK     ),
+            Map.entry( "center",     Kind.BLOCK     ), Map.entry( "form",     Kind.BLOCK     ), Map.entry( "fieldset",   Kind.BLOCK     ),
+            Map.entry( "figcaption", Kind.BLOCK     ), Map.entry( "dt",       Kind.BLOCK     ), Map.entry( "dd",         Kind.BLOCK     ),
+            Map.entry( "caption",    Kind.BLOCK     ), Map.entry( "body",     Kind.BLOCK     ),
+            Map.entry( "br",         Kind.BREAK     ),
+            Map.entry( "ul",         Kind.LIST      ), Map.entry( "ol",       Kind.LIST      ), Map.entry( "li",         Kind.ITEM      ),
+            Map.entry( "tr",         Kind.ROW       ), Map.entry( "td",       Kind.CELL      ), Map.entry( "th",         Kind.CELL      ),
+            Map.entry( "a",          Kind.LINK      ), Map.entry( "img",      Kind.IMAGE     ), Map.entry( "pre",        Kind.PRE       ),
+            Map.entry( "script",     Kind.SKIP      ), Map.entry( "style",    Kind.SKIP      ), Map.entry( "title",      Kind.SKIP      ),
+            Map.entry( "template",   Kind.SKIP      )
+    );
+
+    private static final Map<String,String> ENTITIES = Map.ofEntries(
+            Map.entry( "amp",    "&"      ), Map.entry( "lt",     "<"      ), Map.entry( "gt",     ">"      ), Map.entry( "quot",   "\""     ),
+            Map.entry( "apos",   "'"      ), Map.entry( "nbsp",   "\u00A0" ), Map.entry( "copy",   "\u00A9" ), Map.entry( "reg",    "\u00AE" ),
+            Map.entry( "trade",  "\u2122" ), Map.entry( "mdash",  "\u2014" ), Map.entry( "ndash",  "\u2013" ), Map.entry( "hellip", "\u2026" ),
+            Map.entry( "lsquo",  "\u2018" ), Map.entry( "rsquo",  "\u2019" ), Map.entry( "ldquo",  "\u201C" ), Map.entry( "rdquo",  "\u201D" ),
+            Map.entry( "bull",   "\u2022" ), Map.entry( "middot", "\u00B7" ), Map.entry( "laquo",  "\u00AB" ), Map.entry( "raquo",  "\u00BB" ),
+            Map.entry( "euro",   "\u20AC" ), Map.entry( "pound",  "\u00A3" ), Map.entry( "cent",   "\u00A2" ), Map.entry( "yen",    "\u00A5" ),
+            Map.entry( "deg",    "\u00B0" ), Map.entry( "times",  "\u00D7" ), Map.entry( "divide", "\u00F7" ), Map.entry( "sect",   "\u00A7" ),
+            Map.entry( "para",   "\u00B6" ), Map.entry( "shy",    ""       ), Map.entry( "zwnj",   ""       ), Map.entry( "zwj",    ""       )
+    );
+
+
+    private HTMLToText() {}
+
+
+    /**
+     * Convert the given HTML to plain text.
+     *
+     * @param _html the HTML to convert
+     * @return the plain text
+     */
+    public static String convert( final CharSequence _html ) {
+
+        if( _html == null )
+            return null;
+        Converter converter = new Converter( _html );
+        converter.run();
+        return converter.result();
+    }
+
+
+    /**
+     * The state of a single conversion.
+     */
+    private static class Converter {
+
+        private final CharSequence  html;
+        private final int           length;
+        private final StringBuilder out;
+
+        private int     pos;
+        private boolean pendingSpace;       // true if whitespace was seen since the last character written...
+        private int     pendingNewlines;    // the line breaks to write before the next character...
+        private int     preDepth;           // the depth of nested <pre> elements we're in...
+        private int     listDepth;
+        private final int[] listCounters = new int[MAX_LIST_DEPTH];   // the next item number at each list depth, or -1 for unordered lists...
+        private boolean firstCell;          // true if the next table cell is the first in its row...
+        private String  href;               // the URL of the link we're in, or null if we're not in one...
+        private int     linkStart;          // the length of the output when the link we're in started...
+
+
+        private Converter( final CharSequence _html ) {
+            html   = _html;
+            length = _html.length();
+            out    = new StringBuilder( length / 2 + 16 );
+        }
+
+
+        private void run() {
+
+            while( pos < length ) {
+                char c = html.charAt( pos );
+                if( c == '<' ) {
+                    tag();
+                }
+                else if( c == '&' ) {
+                    entity();
+                }
+                else {
+                    text( c );
+                    pos++;
+                }
+            }
+        }
+
+
+        private String result() {
+
+            // trim any trailing whitespace...
+            int end = out.length();
+            while( (end > 0) && Character.isWhitespace( out.charAt( end - 1 ) ) )
+                end--;
+            out.setLength( end );
+            return out.toString();
+        }
+
+
+        /**
+         * Write the given character of text, collapsing whitespace (unless we're in a {@code <pre>}).
+         */
+        private void text( final char _c ) {
+
+            if( preDepth > 0 ) {
+                if( _c == '\n' ) {
+                    out.append( '\n' );
+                    pendingNewlines = 0;
+                    pendingSpace    = false;
+                }
+                else if( _c != '\r' )
+                    write( _c );
+                return;
+            }
+            if( (_c == ' ') || (_c == '\t') || (_c == '\n') || (_c == '\r') || (_c == '\f') )
+                pendingSpace = true;
+            else
+                write( _c );
+        }
+
+
+        /**
+         * Write the given character, preceded by any pending line breaks or space.  Nothing pending is written at the start of the output.
+         */
+        private void write( final char _c ) {
+
+            if( out.length() > 0 ) {
+                if( pendingNewlines > 0 ) {
+                    trimTrailingSpaces();
+                    for( int i = 0; i < pendingNewlines; i++ )
+                        out.append( '\n' );
+                }
+                else if( pendingSpace && (out.charAt( out.length() - 1 ) != '\n') )
+                    out.append( ' ' );
+            }
+            out.append( _c );
+            pendingNewlines = 0;
+            pendingSpace    = false;
+        }
+
+
+        private void write( final String _s ) {
+            for( int i = 0; i < _s.length(); i++ )
+                write( _s.charAt( i ) );
+        }
+
+
+        // request (at least) the given number of line breaks before the next text...
+        private void lineBreak( final int _count ) {
+            pendingNewlines = Math.max( pendingNewlines, _count );
+            pendingSpace    = false;
+        }
+
+
+        private void trimTrailingSpaces() {
+            int end = out.length();
+            while( (end > 0) && (out.charAt( end - 1 ) == ' ') )
+                end--;
+            out.setLength( end );
+        }
+
+
+        /**
+         * Handle the markup starting at the current position (which is a '&lt;'): a tag, a comment, or a declaration.
+         */
+        private void tag() {
+
+            // comments...
+            if( startsWith( pos, "<!--" ) ) {
+                pos = indexOf( "-->", pos + 4, 3 );
+                return;
+            }
+
+            // declarations (like <!DOCTYPE>), processing instructions, and anything else that's not a tag...
+            int next = pos + 1;
+            boolean closing = (next < length) && (html.charAt( next ) == '/');
+            if( closing )
+                next++;
+            if( (next >= length) || !isLetter( html.charAt( next ) ) ) {
+                if( (next < length) && ((html.charAt( next ) == '!') || (html.charAt( next ) == '?')) ) {
+                    pos = indexOf( ">", next, 1 );
+                    return;
+                }
+                text( '<' );     // a lone '<' is just text...
+                pos++;
+                return;
+            }
+
+            // find the tag's name and its end...
+            int nameStart = next;
+            while( (next < length) && isNameChar( html.charAt( next ) ) )
+                next++;
+            int nameEnd = next;
+            int tagEnd  = findTagEnd( next );
+            Kind kind   = KINDS.get( lowerCase( nameStart, nameEnd ) );
+            pos = tagEnd;
+            if( kind == null )
+                return;
+
+            if( closing )
+                close( kind );
+            else
+                open( kind, nameStart, nameEnd, tagEnd );
+        }
+
+
+        private void open( final Kind _kind, final int _nameStart, final int _nameEnd, final int _tagEnd ) {
+
+            switch( _kind ) {
+                case PARAGRAPH -> lineBreak( 2 );
+                case BLOCK     -> lineBreak( 1 );
+                case BREAK     -> {
+                    pendingNewlines = Math.min( 2, pendingNewlines + 1 );
+                    pendingSpace    = false;
+                    if( out.length() == 0 )
+                        pendingNewlines = 0;
+                }
+                case LIST      -> {
+                    lineBreak( (listDepth == 0) ? 2 : 1 );
+                    if( listDepth < MAX_LIST_DEPTH )
+                        listCounters[listDepth] = (html.charAt( _nameStart ) | 0x20) == 'o' ? 1 : -1;
+                    listDepth++;
+                }
+                case ITEM      -> {
+                    lineBreak( 1 );
+                    int depth = Math.min( Math.max( listDepth, 1 ), MAX_LIST_DEPTH );
+                    for( int i = 1; i < depth; i++ )
+                        write( "  " );
+                    if( (listDepth > 0) && (listCounters[depth - 1] > 0) )
+                        write( (listCounters[depth - 1]++) + "." );
+                    else
+                        write( '*' );
+                    write( ' ' );
+                }
+                case ROW       -> {
+                    lineBreak( 1 );
+                    firstCell = true;
+                }
+                case CELL      -> {
+                    if( !firstCell ) {
+                        pendingSpace = true;
+                        write( '|' );
+                        pendingSpace = true;
+                    }
+                    firstCell = false;
+                }
+                case LINK      -> {
+                    href      = attribute( "href", _nameEnd, _tagEnd );
+                    linkStart = out.length();
+                }
+                case IMAGE     -> {
+                    String alt = attribute( "alt", _nameEnd, _tagEnd );
+                    if( (alt != null) && !alt.isBlank() )
+                        write( alt.strip() );
+                }
+                case PRE       -> {
+                    lineBreak( 2 );
+                    preDepth++;
+                }
+                case SKIP      -> skipTo( _nameStart, _nameEnd );
+            }
+        }
+
+
+        private void close( final Kind _kind ) {
+
+            switch( _kind ) {
+                case PARAGRAPH -> lineBreak( 2 );
+                case BLOCK, ROW -> lineBreak( 1 );
+                case LIST      -> {
+                    listDepth = Math.max( 0, listDepth - 1 );
+                    lineBreak( (listDepth == 0) ? 2 : 1 );
+                }
+                case LINK      -> {
+                    if( (href != null) && !href.isEmpty() && !href.startsWith( "#" ) && !href.regionMatches( true, 0, "javascript:", 0, 11 )
+                            && !isLinkText( href ) ) {
+                        pendingSpace = true;
+                        write( '<' );
+                        out.append( href ).append( '>' );
+                    }
+                    href = null;
+                }
+                case PRE       -> {
+                    preDepth = Math.max( 0, preDepth - 1 );
+                    lineBreak( 2 );
+                }
+                default        -> {}
+            }
+        }
+
+
+        /**
+         * Returns {@code true} if the text written since the current link started is the given URL (or the URL without its "mailto:").
+         */
+        private boolean isLinkText( final String _url ) {
+
+            // the link's text may start with the space or line break that preceded it...
+            int start = linkStart;
+            while( (start < out.length()) && Character.isWhitespace( out.charAt( start ) ) )
+                start++;
+
+            int skip = _url.regionMatches( true, 0, "mailto:", 0, 7 ) ? 7 : 0;
+            if( out.length() - start != _url.length() - skip )
+                return false;
+            for( int i = skip; i < _url.length(); i++ )
+                if( out.charAt( start + i - skip ) != _url.charAt( i ) )
+                    return false;
+            return true;
+        }
+
+
+        /**
+         * Skip past the content of the element whose start tag we just passed, up to and including its end tag.
+         */
+        private void skipTo( final int _nameStart, final int _nameEnd ) {
+
+            int nameLength = _nameEnd - _nameStart;
+            while( pos < length ) {
+                int lt = indexOf( "</", pos, 0 );
+                if( lt >= length ) {
+                    pos = length;
+                    return;
+                }
+                int name = lt + 2;
+                if( (name + nameLength <= length) && regionMatchesIgnoreCase( name, _nameStart, nameLength )
+                        && ((name + nameLength == length) || !isNameChar( html.charAt( name + nameLength ) )) ) {
+                    pos = findTagEnd( name + nameLength );
+                    return;
+                }
+                pos = lt + 2;
+            }
+        }
+
+
+        /**
+         * Decode the character reference starting at the current position (which is a '&amp;').  Unrecognized references are written as they
+         * are.
+         */
+        private void entity() {
+
+            int start = pos + 1;
+            int end = start;
+            while( (end < length) && (end - start < 32) && (isLetter( html.charAt( end ) ) || isDigit( html.charAt( end ) )
+                    || ((end == start) && (html.charAt( end ) == '#'))) )
+                end++;
+            boolean terminated = (end < length) && (html.charAt( end ) == ';');
+
+            String decoded = null;
+            if( end > start ) {
+                if( html.charAt( start ) == '#' )
+                    decoded = numericEntity( start + 1, end );
+                else
+                    decoded = ENTITIES.get( html.subSequence( start, end ).toString() );
+            }
+            if( decoded == null ) {
+                text( '&' );
+                pos++;
+                return;
+            }
+            pos = terminated ? end + 1 : end;
+            if( decoded.equals( "\u00A0" ) )
+                write( ' ' );     // a non-breaking space is an ordinary space in plain text, but it never collapses...
+            else
+                write( decoded );
+        }
+
+
+        private String numericEntity( final int _start, final int _end ) {
+
+            try {
+                int codePoint;
+                if( (_start < _end) && ((html.charAt( _start ) | 0x20) == 'x') )
+                    codePoint = Integer.parseInt( html, _start + 1, _end, 16 );
+                else
+                    codePoint = Integer.parseInt( html, _start, _end, 10 );
+                return Character.isValidCodePoint( codePoint ) && (codePoint != 0) ? Character.toString( codePoint ) : null;
+            }
+            catch( NumberFormatException _e ) {
+                return null;
+            }
+        }
+
+
+        /**
+         * Returns the (decoded) value of the attribute with the given name in the tag between the given positions, or {@code null} if it isn't
+         * there.
+         */
+        private String attribute( final String _name, final int _start, final int _end ) {
+
+            int i = _start;
+            while( i < _end ) {
+
+                // skip to the next attribute name...
+                while( (i < _end) && !isNameChar( html.charAt( i ) ) )
+                    i++;
+                int nameStart = i;
+                while( (i < _end) && isNameChar( html.charAt( i ) ) )
+                    i++;
+                int nameEnd = i;
+                while( (i < _end) && (html.charAt( i ) == ' ') )
+                    i++;
+                if( (i >= _end) || (html.charAt( i ) != '=') )
+                    continue;
+                i++;
+                while( (i < _end) && Character.isWhitespace( html.charAt( i ) ) )
+                    i++;
+
+                // find the value...
+                int valueStart, valueEnd;
+                if( (i < _end) && ((html.charAt( i ) == '"') || (html.charAt( i ) == '\'')) ) {
+                    char quote = html.charAt( i );
+                    valueStart = i + 1;
+                    valueEnd   = valueStart;
+                    while( (valueEnd < _end) && (html.charAt( valueEnd ) != quote) )
+                        valueEnd++;
+                    i = valueEnd + 1;
+                }
+                else {
+                    valueStart = i;
+                    while( (i < _end) && !Character.isWhitespace( html.charAt( i ) ) && (html.charAt( i ) != '>') )
+                        i++;
+                    valueEnd = i;
+                }
+
+                if( (nameEnd - nameStart == _name.length()) && regionMatchesIgnoreCase( nameStart, _name ) )
+                    return decodeAttribute( valueStart, valueEnd );
+            }
+            return null;
+        }
+
+
+        private String decodeAttribute( final int _start, final int _end ) {
+
+            String value = html.subSequence( _start, _end ).toString().strip();
+            return (value.indexOf( '&' ) < 0) ? value : value.replace( "&amp;", "&" ).replace( "&quot;", "\"" ).replace( "&#39;", "'" )
+                    .replace( "&lt;", "<" ).replace( "&gt;", ">" );
+        }
+
+
+        /**
+         * Returns the position just past the end of the tag whose attributes start at the given position, skipping over quoted attribute values.
+         */
+        private int findTagEnd( final int _start ) {
+
+            char quote = 0;
+            for( int i = _start; i < length; i++ ) {
+                char c = html.charAt( i );
+                if( quote != 0 ) {
+                    if( c == quote )
+                        quote = 0;
+                }
+                else if( (c == '"') || (c == '\'') )
+                    quote = c;
+                else if( c == '>' )
+                    return i + 1;
+            }
+            return length;
+        }
+
+
+        // returns the position just past the given string, searching from the given position, or the end of the html if it isn't found...
+        private int indexOf( final String _s, final int _from, final int _skip ) {
+
+            for( int i = _from; i + _s.length() <= length; i++ )
+                if( startsWith( i, _s ) )
+                    return i + _skip;
+            return length;
+        }
+
+
+        private boolean startsWith( final int _at, final String _s ) {
+            if( _at + _s.length() > length )
+                return false;
+            for( int i = 0; i < _s.length(); i++ )
+                if( html.charAt( _at + i ) != _s.charAt( i ) )
+                    return false;
+            return true;
+        }
+
+
+        private boolean regionMatchesIgnoreCase( final int _at, final String _s ) {
+            for( int i = 0; i < _s.length(); i++ )
+                if( Character.toLowerCase( html.charAt( _at + i ) ) != _s.charAt( i ) )
+                    return false;
+            return true;
+        }
+
+
+        private boolean regionMatchesIgnoreCase( final int _at, final int _other, final int _length ) {
+            for( int i = 0; i < _length; i++ )
+                if( Character.toLowerCase( html.charAt( _at + i ) ) != Character.toLowerCase( html.charAt( _other + i ) ) )
+                    return false;
+            return true;
+        }
+
+
+        private String lowerCase( final int _start, final int _end ) {
+            char[] chars = new char[_end - _start];
+            for( int i = 0; i < chars.length; i++ )
+                chars[i] = Character.toLowerCase( html.charAt( _start + i ) );
+            return new String( chars );
+        }
+
+
+        private static boolean isLetter( final char _c ) {
+            return ((_c >= 'a') && (_c <= 'z')) || ((_c >= 'A') && (_c <= 'Z'));
+        }
+
+
+        private static boolean isDigit( final char _c ) {
+            return (_c >= '0') && (_c <= '9');
+        }
+
+
+        private static boolean isNameChar( final char _c ) {
+            return isLetter( _c ) || isDigit( _c ) || (_c == '-') || (_c == '_') || (_c == ':');
+        }
+    }
+}
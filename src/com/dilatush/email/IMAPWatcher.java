@@ -0,0 +1,383 @@
+package com.dilatush.email;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.util.DecodingException;
+import com.sun.mail.util.MessageRemovedIOException;
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.ParseException;
+
+import java.io.CharConversionException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.CharacterCodingException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class watch the inbox of a single IMAP mailbox, delivering each new message to a callback as soon as it arrives.  One IMAP
+ * connection is kept open, and the inbox is watched with IMAP IDLE, so the server tells us the moment a message arrives -- there's no polling,
+ * and no reconnecting and logging in for each check.  (If the server doesn't support IDLE, the inbox is checked with a NOOP at the configured
+ * poll interval instead, still over the one connection.)
+ * <p>
+ * The UIDVALIDITY of the inbox and the UID of the last message delivered are recorded, so only messages that are new since then are fetched.  A
+ * watcher can be started from a previously recorded {@link SyncState} (as returned by {@link #getSyncState()}) to pick up where an earlier one
+ * left off; if the mailbox's UIDVALIDITY has changed since then, the old UIDs are meaningless and every message in the inbox is delivered again.
+ * Messages are left in the inbox.
+ * <p>
+ * Servers drop connections that have been idle too long, so the IDLE is interrupted with a NOOP at the configured refresh interval.  Each watcher
+ * sends its NOOPs from its own refresh thread, so a mailbox that stops responding holds up only its own watcher (and only until the session's
+ * read timeout gives up on it).  If the connection is lost, the watcher reconnects, waiting (with exponential backoff) between failed attempts.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class IMAPWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final String                         name;
+    private final Session                        session;
+    private final Consumer<InboundEmailMessage>  callback;
+    private final ScheduledExecutorService       refresher;
+    private final AttachmentStore                attachments;
+    private final EmailMetrics                   metrics;
+    private final long                           refreshMS;
+    private final long                           pollMS;
+    private final long                           reconnectMinMS;
+    private final long                           reconnectMaxMS;
+    private final Thread                         thread;
+
+    private volatile SyncState                   state;
+    private volatile IMAPFolder                  inbox;          // the open inbox, or null if we're not connected...
+    private volatile boolean                     closed;
+
+
+    /**
+     * The point a watcher has synchronized a mailbox to: the mailbox's UIDVALIDITY, and the UID of the last message delivered.
+     *
+     * @param uidValidity the UIDVALIDITY of the mailbox
+     * @param lastUID the UID of the last message delivered, or zero if none has been
+     */
+    public record SyncState( long uidValidity, long lastUID ) {}
+
+
+    /**
+     * Create a new instance of this class that watches the inbox of the IMAP mailbox in the given session, delivering new messages to the given
+     * callback.  The callback is called on the watcher's thread, one message at a time, in UID order.  The watcher does not start until
+     * {@link #start()} is called.
+     *
+     * @param _name the name of the mailbox (normally the provider's name), which is used in the messages delivered and in logging
+     * @param _session the Jakarta Mail session (with authenticator) for the mailbox's provider
+     * @param _state the point to resume from, or {@code null} to deliver every message in the inbox
+     * @param _callback the callback to deliver new messages to
+     * @param _attachments the store to save the attachments of new messages in, or {@code null} if they shouldn't be saved
+     * @param _config the email service configuration, containing the IMAP settings
+     * @param _metrics the metrics to record connects, fetches, and reads into
+     */
+    IMAPWatcher( final String _name, final Session _session, final SyncState _state, final Consumer<InboundEmailMessage> _callback,
+                 final AttachmentStore _attachments, final EmailService.Config _config, final EmailMetrics _metrics ) {
+
+        if( (_name == null) || (_session == null) || (_callback == null) )
+            throw new IllegalArgumentException( "Missing mailbox name, session, or callback" );
+
+        name           = _name;
+        session        = _session;
+        state          = (_state == null) ? new SyncState( -1, 0 ) : _state;
+        callback       = _callback;
+        refresher      = Executors.newSingleThreadScheduledExecutor( (runnable) -> {
+            Thread refreshThread = new Thread( runnable, "EmailIMAPRefresh-" + _name );
+            refreshThread.setDaemon( true );
+            return refreshThread;
+        } );
+        attachments    = _attachments;
+        metrics        = _metrics;
+        refreshMS      = _config.imapIdleRefreshMS;
+        pollMS         = _config.imapPollMS;
+        reconnectMinMS = _config.imapReconnectMinMS;
+        reconnectMaxMS = _config.imapReconnectMaxMS;
+        thread         = new Thread( this::run, "EmailIMAPWatcher-" + _name );
+        thread.setDaemon( true );
+    }
+
+
+    /**
+     * Start watching the inbox.
+     */
+    public void start() {
+        thread.start();
+    }
+
+
+    /**
+     * Returns the name of the mailbox this watcher watches.
+     *
+     * @return the name of the mailbox
+     */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+     * Returns the point this watcher has synchronized its mailbox to, which may be saved and used to start a later watcher.
+     *
+     * @return the synchronization state
+     */
+    public SyncState getSyncState() {
+        return state;
+    }
+
+
+    /**
+     * Returns {@code true} if this watcher is currently connected to its mailbox.
+     *
+     * @return {@code true} if this watcher is connected
+     */
+    public boolean isConnected() {
+        return inbox != null;
+    }
+
+
+    /**
+     * Stop watching the inbox, and close the connection to the mailbox.
+     */
+    public void close() {
+
+        closed = true;
+        thread.interrupt();
+        refresher.shutdownNow();
+        IMAPFolder folder = inbox;
+        if( folder != null ) {
+            try {
+                folder.getStore().close();     // this ends any IDLE in progress...
+            }
+            catch( MessagingException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing IMAP connection to " + name, _e );
+            }
+        }
+    }
+
+
+    /**
+     * The body of the watcher's thread: connect, deliver what's new, then wait for more -- reconnecting whenever the connection is lost.
+     */
+    private void run() {
+
+        long backoffMS = reconnectMinMS;
+        while( !closed ) {
+
+            Store store = null;
+            ScheduledFuture<?> refreshing = null;
+            try {
+                long start = System.nanoTime();
+                store = session.getStore( getProtocol() );
+                store.connect();
+                IMAPFolder folder = (IMAPFolder) store.getFolder( "INBOX" );
+                folder.open( Folder.READ_ONLY );
+                metrics.recordSince( EmailMetrics.Stage.INBOX_OPEN, start );
+                inbox = folder;
+                LOGGER.fine( "Watching IMAP inbox: " + name );
+                refreshing = refresher.scheduleWithFixedDelay( this::refresh, refreshMS, refreshMS, TimeUnit.MILLISECONDS );
+                backoffMS = reconnectMinMS;
+
+                // deliver what's new, then wait for the server to tell us there's more...
+                boolean idleSupported = ((IMAPStore) store).hasCapability( "IDLE" );
+                if( !idleSupported )
+                    LOGGER.info( "IMAP server doesn't support IDLE; polling instead: " + name );
+                while( !closed ) {
+                    deliverNew( folder );
+                    if( idleSupported ) {
+                        folder.idle( true );
+                    }
+                    else {
+                        TimeUnit.MILLISECONDS.sleep( pollMS );
+                        folder.getMessageCount();     // issues a NOOP, which tells us about any new messages...
+                    }
+                }
+            }
+            catch( InterruptedException _e ) {
+                break;
+            }
+            catch( MessagingException | RuntimeException _e ) {
+                if( closed )
+                    break;
+                LOGGER.log( Level.WARNING, "Problem watching IMAP inbox " + name + "; reconnecting in " + backoffMS + "ms", _e );
+            }
+            finally {
+                inbox = null;
+                if( refreshing != null )
+                    refreshing.cancel( false );
+                closeStore( store );
+            }
+
+            // wait a bit before we try to reconnect, a bit longer each time it fails...
+            try {
+                TimeUnit.MILLISECONDS.sleep( backoffMS );
+            }
+            catch( InterruptedException _e ) {
+                break;
+            }
+            backoffMS = Math.min( reconnectMaxMS, backoffMS * 2 );
+        }
+        refresher.shutdownNow();
+        LOGGER.fine( "Stopped watching IMAP inbox: " + name );
+    }
+
+
+    /**
+     * Fetch the messages that are new since the last one we delivered, and deliver them in UID order.
+     */
+    private void deliverNew( final IMAPFolder _folder ) throws MessagingException {
+
+        // if the mailbox's UIDs have been reset, everything in it is new to us...
+        long uidValidity = _folder.getUIDValidity();
+        SyncState current = state;
+        if( current.uidValidity() != uidValidity ) {
+            if( current.uidValidity() >= 0 )
+                LOGGER.warning( "IMAP inbox UIDVALIDITY changed; delivering all messages again: " + name );
+            current = new SyncState( uidValidity, 0 );
+            state   = current;
+        }
+
+        // get the new messages (note that the range n:* always includes the last message, even if its UID is less than n)...
+        EmailEvents.InboundFetch event = new EmailEvents.InboundFetch();
+        event.begin();
+        long start = System.nanoTime();
+        Message[] messages = _folder.getMessagesByUID( current.lastUID() + 1, UIDFolder.LASTUID );
+        if( messages.length == 0 )
+            return;
+        FetchProfile profile = new FetchProfile();
+        profile.add( FetchProfile.Item.ENVELOPE );
+        profile.add( UIDFolder.FetchProfileItem.UID );
+        _folder.fetch( messages, profile );
+        metrics.recordSince( EmailMetrics.Stage.INBOX_FETCH, start );
+        if( event.shouldCommit() ) {
+            event.mailbox  = name;
+            event.messages = messages.length;
+            event.commit();
+        }
+
+        for( Message message : messages ) {
+            long uid = _folder.getUID( message );
+            if( uid <= current.lastUID() )
+                continue;
+            InboundEmailMessage inbound = toInbound( message, uidValidity, uid );
+            if( inbound != null ) {
+                try {
+                    callback.accept( inbound );
+                }
+                catch( RuntimeException _e ) {
+                    if( closed )
+                        return;     // we were closed while the callback was waiting; this message hasn't been delivered...
+                    LOGGER.log( Level.SEVERE, "Inbound email callback failed for " + name + " UID " + uid, _e );
+                }
+            }
+            current = new SyncState( uidValidity, uid );
+            state   = current;
+        }
+    }
+
+
+    /**
+     * Convert the given message to an inbound message, or return {@code null} (after logging the problem) if it can't be parsed, or has been
+     * removed from the mailbox.  Any other problem (a dropped connection, a closed folder, or a disk error saving its attachments) may well be
+     * temporary, so it's thrown; the watcher then reconnects, and tries this message again.
+     *
+     * @throws MessagingException on any problem reading the message that isn't a problem with the message itself
+     */
+    private InboundEmailMessage toInbound( final Message _message, final long _uidValidity, final long _uid ) throws MessagingException {
+
+        EmailEvents.InboundParse event = new EmailEvents.InboundParse();
+        event.begin();
+        long start = System.nanoTime();
+        boolean ok = false;
+        try {
+            Address[] from = _message.getFrom();
+            InternetAddress sender = ((from != null) && (from.length > 0) && (from[0] instanceof InternetAddress address)) ? address : null;
+            InboundEmailMessage result = new InboundEmailMessage( name, _uidValidity, _uid, sender, _message.getSubject(), _message.getSentDate(),
+                    EmailReader.getHeaders( _message ), EmailReader.getTextFromMessage( _message ), (attachments == null) ? null : attachments.saveAll( _message ) );
+            ok = true;
+            return result;
+        }
+        catch( ParseException _e ) {
+            LOGGER.log( Level.WARNING, "Could not parse email " + name + " UID " + _uid + "; skipping it", _e );
+            return null;
+        }
+        catch( IOException _e ) {
+            if( !isUnreadable( _e ) )
+                throw new MessagingException( "Could not read email " + name + " UID " + _uid, _e );
+            LOGGER.log( Level.WARNING, "Could not read email " + name + " UID " + _uid + "; skipping it", _e );
+            return null;
+        }
+        finally {
+            event.record( name, _uid, _message, ok );
+            metrics.recordSince( EmailMetrics.Stage.MESSAGE_READ, start );
+            metrics.received( ok );
+        }
+    }
+
+
+    /**
+     * Returns {@code true} if the given problem reading a message means that it will never be readable: its content is garbled, or in an encoding
+     * we don't have, or it has been removed.
+     */
+    private static boolean isUnreadable( final IOException _problem ) {
+        return (_problem instanceof DecodingException) || (_problem instanceof UnsupportedEncodingException)
+                || (_problem instanceof CharacterCodingException) || (_problem instanceof CharConversionException)
+                || (_problem instanceof MessageRemovedIOException);
+    }
+
+
+    /**
+     * Interrupt the IDLE in progress with a NOOP, so that the server doesn't decide the connection is dead.  The watcher's thread then starts a
+     * fresh IDLE.
+     */
+    private void refresh() {
+
+        IMAPFolder folder = inbox;
+        if( folder == null )
+            return;
+        try {
+            folder.doCommand( (protocol) -> {
+                protocol.simpleCommand( "NOOP", null );
+                return null;
+            } );
+        }
+        catch( MessagingException | RuntimeException _e ) {
+            LOGGER.log( Level.FINE, "IMAP keepalive failed for " + name, _e );
+        }
+    }
+
+
+    private String getProtocol() {
+        String protocol = session.getProperty( "mail.store.protocol" );
+        return ((protocol != null) && protocol.startsWith( "imap" )) ? protocol : "imap";
+    }
+
+
+    private void closeStore( final Store _store ) {
+        if( (_store == null) || !_store.isConnected() )
+            return;
+        try {
+            _store.close();
+        }
+        catch( MessagingException _e ) {
+            LOGGER.log( Level.FINE, "Problem closing IMAP connection to " + name, _e );
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.dilatush.email;
+
+import jakarta.mail.internet.InternetAddress;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encapsulates an email message received from a provider's inbox.  The message is identified within its mailbox by the mailbox's UIDVALIDITY and
+ * the message's UID, which together never identify any other message in that mailbox.  The sender may be {@code null} (if the message had no
+ * usable "From" header), as may the sent date.  The message's headers are keyed by their lower-case names, each with its values in the order they
+ * appeared in the message.  The message's attachments (if they were saved) are referred to by the files they were saved in; if they weren't saved,
+ * the list of attachments is empty.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public record InboundEmailMessage( String mailbox, long uidValidity, long uid, InternetAddress from, String subject, Date sent,
+                                   Map<String,List<String>> headers, String text, List<AttachmentStore.InboundAttachment> attachments ) {
+
+    public InboundEmailMessage {
+        headers     = (headers == null) ? Map.of() : Map.copyOf( headers );
+        attachments = (attachments == null) ? List.of() : List.copyOf( attachments );
+    }
+}
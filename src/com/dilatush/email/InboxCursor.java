@@ -0,0 +1,317 @@
+package com.dilatush.email;
+
+import com.sun.mail.imap.IMAPMessage;
+import com.sun.mail.pop3.POP3Message;
+import jakarta.mail.Address;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Store;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.internet.InternetAddress;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class read through the messages in an inbox (IMAP or POP3), one at a time, holding only a fixed-size batch of them in memory
+ * at once -- so a mailbox with a backlog of thousands of messages takes no more memory to read than one with a handful.
+ * <p>
+ * The envelopes (sender, subject, date), flags, and UIDs of each batch of messages are fetched together, with a single request to the server.
+ * The body of a message is downloaded only if the reader asks for it (with {@link Entry#read()}), and is released again once it has been
+ * converted.  Messages marked for deletion (with {@link Entry#delete()}) are flagged on the server a batch at a time, and are expunged when the
+ * cursor is closed.
+ * <p>
+ * Instances of this class are <i>not</i> threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class InboxCursor implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final String          name;
+    private final Store           store;
+    private final Folder          inbox;
+    private final boolean         writable;
+    private final int             batchSize;
+    private final AttachmentStore attachments;
+    private final EmailMetrics    metrics;
+    private final int             count;         // the number of messages in the inbox when we opened it...
+    private final long            uidValidity;   // the inbox's UIDVALIDITY, or -1 if it doesn't have UIDs (POP3)...
+    private final FetchProfile    profile;
+    private final List<Message>   toDelete = new ArrayList<>();  // messages in the current batch marked for deletion...
+
+    private int                   nextNumber = 1;              // the message number of the first message in the next batch...
+    private List<Entry>           batch      = List.of();      // the current batch...
+    private int                   batchIndex;                  // the index of the next entry to return from the current batch...
+    private boolean               closed;
+
+
+    /**
+     * Create a new instance of this class that reads the inbox of the given connected store.
+     *
+     * @param _name the name of the mailbox, which is used in the messages read and in logging
+     * @param _store the connected store to read the inbox of; it is closed when this cursor is closed
+     * @param _batchSize the number of messages to fetch at once
+     * @param _writable {@code true} if messages may be deleted
+     * @param _attachments the store to save the attachments of messages that are read in, or {@code null} if they shouldn't be saved
+     * @param _metrics the metrics to record fetches and reads into
+     * @throws MessagingException on any problem opening the inbox
+     */
+    InboxCursor( final String _name, final Store _store, final int _batchSize, final boolean _writable, final AttachmentStore _attachments,
+                 final EmailMetrics _metrics ) throws MessagingException {
+
+        if( _batchSize <= 0 )
+            throw new IllegalArgumentException( "Batch size must be at least one: " + _batchSize );
+
+        name        = _name;
+        store       = _store;
+        writable    = _writable;
+        batchSize   = _batchSize;
+        attachments = _attachments;
+        metrics     = _metrics;
+        inbox       = _store.getFolder( "INBOX" );
+        inbox.open( _writable ? Folder.READ_WRITE : Folder.READ_ONLY );
+        count       = inbox.getMessageCount();
+        uidValidity = (inbox instanceof UIDFolder uidFolder) ? uidFolder.getUIDValidity() : -1;
+
+        profile = new FetchProfile();
+        profile.add( FetchProfile.Item.ENVELOPE );
+        profile.add( FetchProfile.Item.FLAGS );
+        if( inbox instanceof UIDFolder )
+            profile.add( UIDFolder.FetchProfileItem.UID );
+    }
+
+
+    /**
+     * Returns the number of messages that were in the inbox when this cursor was opened, which is the number it will return.
+     *
+     * @return the number of messages in the inbox
+     */
+    public int getCount() {
+        return count;
+    }
+
+
+    /**
+     * Returns the next message in the inbox, or {@code null} if there are no more.  Moving past the end of a batch flags the messages in it that
+     * were marked for deletion, and fetches the next batch.
+     *
+     * @return the next message, or {@code null} if there are no more
+     * @throws MessagingException on any problem fetching messages
+     */
+    public Entry next() throws MessagingException {
+
+        if( closed )
+            throw new IllegalStateException( "Inbox cursor is closed: " + name );
+
+        if( batchIndex >= batch.size() ) {
+            endBatch();
+            if( nextNumber > count )
+                return null;
+            fetchBatch();
+        }
+        return batch.get( batchIndex++ );
+    }
+
+
+    /**
+     * Close this cursor, flagging any messages still marked for deletion, expunging deleted messages (if the cursor is writable), and closing the
+     * connection to the mailbox.
+     *
+     * @throws MessagingException on any problem flagging or expunging messages
+     */
+    @Override
+    public void close() throws MessagingException {
+
+        if( closed )
+            return;
+        closed = true;
+        try {
+            endBatch();
+            inbox.close( writable );
+        }
+        finally {
+            try {
+                store.close();
+            }
+            catch( MessagingException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing connection to " + name, _e );
+            }
+        }
+    }
+
+
+    private void fetchBatch() throws MessagingException {
+
+        EmailEvents.InboundFetch event = new EmailEvents.InboundFetch();
+        event.begin();
+        long start = System.nanoTime();
+        int last = Math.min( count, nextNumber + batchSize - 1 );
+        Message[] messages = inbox.getMessages( nextNumber, last );
+        inbox.fetch( messages, profile );
+        nextNumber = last + 1;
+        metrics.recordSince( EmailMetrics.Stage.INBOX_FETCH, start );
+        if( event.shouldCommit() ) {
+            event.mailbox  = name;
+            event.messages = messages.length;
+            event.commit();
+        }
+
+        List<Entry> entries = new ArrayList<>( messages.length );
+        for( Message message : messages )
+            entries.add( new Entry( message ) );
+        batch      = entries;
+        batchIndex = 0;
+    }
+
+
+    /**
+     * Flag the messages in the current batch that were marked for deletion (with a single request), and release what's cached for the batch's
+     * messages.
+     */
+    private void endBatch() throws MessagingException {
+
+        if( !toDelete.isEmpty() ) {
+            inbox.setFlags( toDelete.toArray( new Message[0] ), new Flags( Flags.Flag.DELETED ), true );
+            toDelete.clear();
+        }
+        batch.forEach( (entry) -> release( entry.message ) );
+        batch      = List.of();
+        batchIndex = 0;
+    }
+
+
+    // messages cache their headers and (for POP3) their content; we don't want the inbox holding on to them...
+    private static void release( final Message _message ) {
+        if( _message instanceof POP3Message pop3 )
+            pop3.invalidate( true );
+        else if( _message instanceof IMAPMessage imap )
+            imap.invalidateHeaders();
+    }
+
+
+    /**
+     * A single message in the inbox.  Its envelope (sender, subject, and date) has already been fetched; its body is downloaded only when it is
+     * read.
+     */
+    public class Entry {
+
+        private final Message         message;
+        private final long            uid;
+        private final InternetAddress from;
+        private final String          subject;
+        private final Date            sent;
+
+
+        private Entry( final Message _message ) throws MessagingException {
+
+            message = _message;
+            uid     = (inbox instanceof UIDFolder uidFolder) ? uidFolder.getUID( _message ) : _message.getMessageNumber();
+            Address[] addresses = _message.getFrom();
+            from    = ((addresses != null) && (addresses.length > 0) && (addresses[0] instanceof InternetAddress address)) ? address : null;
+            subject = _message.getSubject();
+            sent    = _message.getSentDate();
+        }
+
+
+        /**
+         * Returns the UID of this message, or (for POP3 mailboxes, which don't have numeric UIDs) its message number.
+         *
+         * @return the UID of this message
+         */
+        public long getUID() {
+            return uid;
+        }
+
+
+        /**
+         * Returns the sender of this message, or {@code null} if it had no usable "From" header.
+         *
+         * @return the sender of this message
+         */
+        public InternetAddress getFrom() {
+            return from;
+        }
+
+
+        /**
+         * Returns the subject of this message.
+         *
+         * @return the subject of this message
+         */
+        public String getSubject() {
+            return subject;
+        }
+
+
+        /**
+         * Returns the date this message was sent, or {@code null} if it didn't say.
+         *
+         * @return the date this message was sent
+         */
+        public Date getSentDate() {
+            return sent;
+        }
+
+
+        /**
+         * Returns {@code true} if this message has been seen (read) by any mail client.
+         *
+         * @return {@code true} if this message has been seen
+         * @throws MessagingException on any problem reading the message's flags
+         */
+        public boolean isSeen() throws MessagingException {
+            return message.isSet( Flags.Flag.SEEN );
+        }
+
+
+        /**
+         * Download this message's body, and return the message with its text.  If the cursor has an attachment store, the message's attachments
+         * are streamed into it.  The downloaded body isn't kept, so reading the message again downloads it again.
+         *
+         * @return the message, with its text
+         * @throws MessagingException on any problem reading the message
+         * @throws IOException on any problem reading the message
+         */
+        public InboundEmailMessage read() throws MessagingException, IOException {
+
+            EmailEvents.InboundParse event = new EmailEvents.InboundParse();
+            event.begin();
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                InboundEmailMessage result = new InboundEmailMessage( name, uidValidity, uid, from, subject, sent,
+                        EmailReader.getHeaders( message ), EmailReader.getTextFromMessage( message ),
+                        (attachments == null) ? null : attachments.saveAll( message ) );
+                ok = true;
+                return result;
+            }
+            finally {
+                event.record( name, uid, message, ok );
+                release( message );
+                metrics.recordSince( EmailMetrics.Stage.MESSAGE_READ, start );
+                metrics.received( ok );
+            }
+        }
+
+
+        /**
+         * Mark this message for deletion.  It is flagged as deleted on the server when the cursor moves past its batch, and is removed when the
+         * cursor is closed.
+         */
+        public void delete() {
+
+            if( !writable )
+                throw new IllegalStateException( "Inbox cursor is read-only: " + name );
+            toDelete.add( message );
+        }
+    }
+}
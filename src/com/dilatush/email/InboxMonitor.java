@@ -0,0 +1,255 @@
+package com.dilatush.email;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class monitor the inboxes of all the email service's receiving providers at once, merging the messages received in all of
+ * them into a single queue for the consumer.  Each mailbox is watched by its own thread, with its own connection and its own reconnect backoff,
+ * so a slow or unreachable mailbox never delays the others:
+ * <ul>
+ *     <li>IMAP-capable providers are watched with an {@link IMAPWatcher}, which delivers new messages as soon as they arrive.</li>
+ *     <li>Providers that can only be read with POP3 are polled at the configured interval.  POP3 mailboxes are drained: each message is deleted
+ *     from the mailbox once it has been queued.</li>
+ * </ul>
+ * Each mailbox's messages are queued in the order they were received in that mailbox; messages from different mailboxes are interleaved in the
+ * order they arrive.  The queue is bounded, so if the consumer falls behind, the mailboxes' threads wait for room (without losing messages)
+ * rather than filling memory.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class InboxMonitor {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final BlockingQueue<InboundEmailMessage> queue;
+    private final List<IMAPWatcher>                  watchers = new ArrayList<>();
+    private final List<POP3Poller>                   pollers  = new ArrayList<>();
+
+
+    /**
+     * Create a new instance of this class that monitors the inboxes of all the given service's IMAP- or POP3-capable providers, and start
+     * monitoring them.
+     *
+     * @param _service the email service whose providers' inboxes are monitored
+     * @param _states the points to resume the IMAP mailboxes from (by provider name), as returned by an earlier monitor's
+     *                {@link #getSyncStates()}; mailboxes that aren't in the map (or if it's {@code null}) are read from the beginning
+     */
+    InboxMonitor( final EmailService _service, final Map<String,IMAPWatcher.SyncState> _states ) {
+
+        EmailService.Config config = _service.getConfig();
+        queue = new ArrayBlockingQueue<>( config.inboxQueueSize );
+
+        for( EmailProvider provider : _service.getProviders() ) {
+            if( provider.canIMAP ) {
+                IMAPWatcher.SyncState state = (_states == null) ? null : _states.get( provider.name );
+                watchers.add( _service.watch( provider.name, state, this::enqueue ) );
+            }
+            else if( provider.canPOP ) {
+                pollers.add( new POP3Poller( provider.name, EmailService.createSession( provider, config ), _service.getAttachmentStore(),
+                        _service.getMetrics(), config ) );
+            }
+        }
+        if( watchers.isEmpty() && pollers.isEmpty() )
+            throw new IllegalArgumentException( "No IMAP- or POP3-capable email provider is configured" );
+        pollers.forEach( POP3Poller::start );
+    }
+
+
+    /**
+     * Returns the next received message, waiting for one if necessary.
+     *
+     * @return the next received message
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public InboundEmailMessage take() throws InterruptedException {
+        return queue.take();
+    }
+
+
+    /**
+     * Returns the next received message, waiting up to the given time for one if necessary.
+     *
+     * @param _timeout the maximum time to wait
+     * @param _unit the unit of the timeout
+     * @return the next received message, or {@code null} if none was received in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public InboundEmailMessage poll( final long _timeout, final TimeUnit _unit ) throws InterruptedException {
+        return queue.poll( _timeout, _unit );
+    }
+
+
+    /**
+     * Move all the received messages that are currently queued into the given collection, without waiting.
+     *
+     * @param _messages the collection to add the received messages to
+     * @return the number of messages added
+     */
+    public int drainTo( final Collection<? super InboundEmailMessage> _messages ) {
+        return queue.drainTo( _messages );
+    }
+
+
+    /**
+     * Returns the point each IMAP mailbox has been synchronized to, by provider name.  These may be saved, and used to start a later monitor.
+     * Note that a message counts as delivered once it has been queued, whether or not the consumer has taken it yet.
+     *
+     * @return the synchronization state of each IMAP mailbox
+     */
+    public Map<String,IMAPWatcher.SyncState> getSyncStates() {
+
+        Map<String,IMAPWatcher.SyncState> result = new HashMap<>();
+        watchers.forEach( (watcher) -> result.put( watcher.getName(), watcher.getSyncState() ) );
+        return result;
+    }
+
+
+    /**
+     * Stop monitoring all the mailboxes, and close their connections.  Messages already queued may still be taken.
+     */
+    public void close() {
+        watchers.forEach( IMAPWatcher::close );
+        pollers.forEach( POP3Poller::close );
+    }
+
+
+    private void enqueue( final InboundEmailMessage _message ) {
+
+        try {
+            queue.put( _message );
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException( "Interrupted while queueing received email", _e );
+        }
+    }
+
+
+    /**
+     * Polls a single POP3 mailbox, on its own thread, queueing (and then deleting) each message in it.
+     */
+    private class POP3Poller {
+
+        private final String          name;
+        private final Session         session;
+        private final AttachmentStore attachments;
+        private final EmailMetrics    metrics;
+        private final int             batchSize;
+        private final long            pollMS;
+        private final long            reconnectMinMS;
+        private final long            reconnectMaxMS;
+        private final Thread          thread;
+
+        private volatile boolean      closed;
+
+
+        private POP3Poller( final String _name, final Session _session, final AttachmentStore _attachments, final EmailMetrics _metrics,
+                            final EmailService.Config _config ) {
+
+            name           = _name;
+            session        = _session;
+            attachments    = _attachments;
+            metrics        = _metrics;
+            batchSize      = _config.inboxBatchSize;
+            pollMS         = _config.pop3PollMS;
+            reconnectMinMS = _config.imapReconnectMinMS;
+            reconnectMaxMS = _config.imapReconnectMaxMS;
+            thread         = new Thread( this::run, "EmailPOP3Poller-" + _name );
+            thread.setDaemon( true );
+        }
+
+
+        private void start() {
+            thread.start();
+        }
+
+
+        private void close() {
+            closed = true;
+            thread.interrupt();
+        }
+
+
+        private void run() {
+
+            long backoffMS = reconnectMinMS;
+            while( !closed ) {
+                long waitMS;
+                try {
+                    drain();
+                    backoffMS = reconnectMinMS;
+                    waitMS    = pollMS;
+                }
+                catch( InterruptedException _e ) {
+                    break;
+                }
+                catch( MessagingException | RuntimeException _e ) {
+                    if( closed )
+                        break;
+                    LOGGER.log( Level.WARNING, "Problem polling POP3 inbox " + name + "; retrying in " + backoffMS + "ms", _e );
+                    waitMS    = backoffMS;
+                    backoffMS = Math.min( reconnectMaxMS, backoffMS * 2 );
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep( waitMS );
+                }
+                catch( InterruptedException _e ) {
+                    break;
+                }
+            }
+            LOGGER.fine( "Stopped polling POP3 inbox: " + name );
+        }
+
+
+        /**
+         * Queue and delete every message in the mailbox.  Messages that can't be read are left in the mailbox, to be tried again next time.
+         */
+        private void drain() throws MessagingException, InterruptedException {
+
+            long start = System.nanoTime();
+            Store store = session.getStore( "pop3" );
+            store.connect();
+            try( InboxCursor cursor = new InboxCursor( name, store, batchSize, true, attachments, metrics ) ) {
+                metrics.recordSince( EmailMetrics.Stage.INBOX_OPEN, start );
+                InboxCursor.Entry entry;
+                while( !closed && ((entry = cursor.next()) != null) ) {
+                    InboundEmailMessage message;
+                    try {
+                        message = entry.read();
+                    }
+                    catch( IOException _e ) {
+                        LOGGER.log( Level.WARNING, "Could not read email " + name + " #" + entry.getUID() + "; leaving it in the mailbox", _e );
+                        continue;
+                    }
+                    queue.put( message );
+                    entry.delete();
+                }
+            }
+            catch( MessagingException | RuntimeException _e ) {
+                try {
+                    store.close();
+                }
+                catch( MessagingException _closeProblem ) {
+                    LOGGER.log( Level.FINE, "Problem closing POP3 connection to " + name, _closeProblem );
+                }
+                throw _e;
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.dilatush.email;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Instances of this class expand the {@code <include-file src="..."/>} tags in email text, recursively, in a single pass.  Each piece of text
+ * (the original, and each include file) is scanned exactly once, and its expansion is written straight into one output buffer -- so the cost of
+ * expansion is proportional to the size of the expanded result, no matter how deeply the includes are nested.
+ * <p>
+ * The chain of include files being expanded is tracked, so that a file that (directly or indirectly) includes itself is reported as an error
+ * instead of looping forever.  The nesting depth of includes and the size of the expanded result are both limited.  Includes that can only be
+ * read when a document is rendered (see {@link EmailDocument}) are tracked by an expansion that lasts for the whole render, so the same checks
+ * and limits apply across them, however they're nested.  The compiled fragments of those includes are kept here (by URL and locale), so that a
+ * document rendered for many addressees doesn't compile the same fragment for each of them; a fragment is compiled again whenever the text read
+ * for its URL changes (for instance, when the content cache reloads it).
+ * <p>
+ * Instances of this class are threadsafe (so long as their include loader is).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class IncludeResolver {
+
+    private static final Pattern INCLUDE_FINDER = Pattern.compile( "(<INCLUDE-FILE.*? src=(['\"])(.*?)\\2.*?/>)", Pattern.CASE_INSENSITIVE );
+
+    // the most compiled fragments we keep; the least recently used are discarded beyond this...
+    private static final int MAX_FRAGMENTS = 256;
+
+    private final EmailDocument.IncludeLoader loader;
+    private final int                         maxDepth;
+    private final int                         maxChars;
+
+    // the compiled fragments of includes read at render time, in least recently used order; guarded by "fragments"...
+    private final Map<FragmentKey,EmailDocument.Fragment> fragments = new LinkedHashMap<>( 64, 0.75f, true );
+
+
+    /**
+     * Create a new instance of this class that reads include files with the given loader, and enforces the given limits.
+     *
+     * @param _loader the loader for include files
+     * @param _maxDepth the maximum nesting depth of include files (1 allows includes, but not includes within included files)
+     * @param _maxChars the maximum number of characters in an expanded result
+     */
+    public IncludeResolver( final EmailDocument.IncludeLoader _loader, final int _maxDepth, final int _maxChars ) {
+
+        if( (_loader == null) || (_maxDepth < 0) || (_maxChars <= 0) )
+            throw new IllegalArgumentException( "Missing include loader, or invalid limits" );
+
+        loader   = _loader;
+        maxDepth = _maxDepth;
+        maxChars = _maxChars;
+    }
+
+
+    /**
+     * Expand all the include files in the given text, recursively.
+     *
+     * @param _text the text to expand
+     * @return the expanded text
+     * @throws IOException on any problem reading an include file
+     * @throws IllegalArgumentException if the includes form a cycle, are nested too deeply, or expand to too large a result
+     */
+    public String expand( final String _text ) throws IOException {
+        return expand( _text, false );
+    }
+
+
+    /**
+     * Expand the include files with fixed URLs in the given text, recursively.  Includes whose URLs contain property value substitutions
+     * ({@code :::name:::}) are left alone, to be expanded when the text is rendered for a particular addressee.
+     *
+     * @param _text the text to expand
+     * @return the expanded text
+     * @throws IOException on any problem reading an include file
+     * @throws IllegalArgumentException if the includes form a cycle, are nested too deeply, or expand to too large a result
+     */
+    public String expandFixed( final String _text ) throws IOException {
+        return expand( _text, true );
+    }
+
+
+    /**
+     * Start an expansion for the includes read while rendering a document for one addressee (those whose URLs contain property value
+     * substitutions).
+     *
+     * @return the new expansion
+     */
+    Expansion startRender() {
+        return new Expansion( true );
+    }
+
+
+    /**
+     * Returns the compiled fragment of the include at the given URL, for the given locale, if we have one that was compiled from the given text.
+     *
+     * @param _url the URL of the include
+     * @param _locale the locale the fragment was compiled for
+     * @param _text the (expanded) text just read for the include
+     * @return the compiled fragment, or {@code null} if it must be compiled
+     */
+    EmailDocument.Fragment getFragment( final String _url, final Locale _locale, final String _text ) {
+        synchronized( fragments ) {
+            EmailDocument.Fragment fragment = fragments.get( new FragmentKey( _url, _locale ) );
+            return ((fragment != null) && fragment.source().equals( _text )) ? fragment : null;
+        }
+    }
+
+
+    /**
+     * Keep the given compiled fragment of the include at the given URL, for the given locale, replacing any we had.
+     *
+     * @param _url the URL of the include
+     * @param _locale the locale the fragment was compiled for
+     * @param _fragment the compiled fragment
+     */
+    void putFragment( final String _url, final Locale _locale, final EmailDocument.Fragment _fragment ) {
+        synchronized( fragments ) {
+            fragments.put( new FragmentKey( _url, _locale ), _fragment );
+            if( fragments.size() > MAX_FRAGMENTS )
+                fragments.remove( fragments.keySet().iterator().next() );
+        }
+    }
+
+
+    private String expand( final String _text, final boolean _fixedOnly ) throws IOException {
+
+        // if there's nothing to include, we don't need to copy anything...
+        Matcher mat = INCLUDE_FINDER.matcher( _text );
+        if( !mat.find() )
+            return _text;
+
+        Expansion expansion = new Expansion( _fixedOnly );
+        expansion.scan( _text, mat );
+        return expansion.out.toString();
+    }
+
+
+    /**
+     * The state of a single expansion in progress.  For a render, the include files being rendered are on the chain along with those being
+     * expanded, and the size limit applies to everything read by all of the render's includes.
+     */
+    final class Expansion {
+
+        private final boolean       fixedOnly;
+        private final Deque<String> chain = new ArrayDeque<>();     // the URLs of the include files being expanded, innermost first...
+        private StringBuilder       out   = new StringBuilder( 8192 );
+        private long                chars;                          // the characters expanded so far...
+
+
+        private Expansion( final boolean _fixedOnly ) {
+            fixedOnly = _fixedOnly;
+        }
+
+
+        /**
+         * Enter the include file at the given URL, which is being rendered, so that the include files it includes are checked against it.
+         * Each call must be matched by a call to {@link #leave()} once the include file has been rendered.
+         *
+         * @param _url the URL of the include file
+         * @throws IllegalArgumentException if the include file includes itself, or is nested too deeply
+         */
+        void enter( final String _url ) {
+            check( _url );
+            chain.push( _url );
+        }
+
+
+        /**
+         * Leave the include file most recently entered.
+         */
+        void leave() {
+            chain.pop();
+        }
+
+
+        /**
+         * Read the include file at the given URL (which must have been entered), and expand the include files with fixed URLs in it.
+         *
+         * @param _url the URL of the include file
+         * @return the expanded text of the include file
+         * @throws IOException on any problem reading an include file
+         * @throws IllegalArgumentException if the includes form a cycle, are nested too deeply, or expand to too large a result
+         */
+        String load( final String _url ) throws IOException {
+
+            String text = loader.load( _url );
+            Matcher mat = INCLUDE_FINDER.matcher( text );
+            if( !mat.find() ) {
+                count( text.length() );
+                return text;
+            }
+            StringBuilder outer = out;
+            out = new StringBuilder( text.length() + 1024 );
+            try {
+                scan( text, mat );
+                return out.toString();
+            }
+            finally {
+                out = outer;
+            }
+        }
+
+
+        /**
+         * Count the given number of characters against the size limit.
+         *
+         * @param _chars the number of characters
+         * @throws IllegalArgumentException if the size limit has been exceeded
+         */
+        void count( final int _chars ) {
+            if( chars + _chars > maxChars )
+                throw new IllegalArgumentException( "Expanded include files are larger than " + maxChars + " characters"
+                        + (chain.isEmpty() ? "" : ": " + describeChain( null )) );
+            chars += _chars;
+        }
+
+
+        /**
+         * Read the include file at the given URL (or take the text the loader prefetched, if any), and expand it into our output.
+         */
+        private void include( final String _url, final CompletableFuture<String> _prefetched ) throws IOException {
+
+            check( _url );
+            String text = (_prefetched == null) ? loader.load( _url ) : await( _url, _prefetched );
+            chain.push( _url );
+            Matcher mat = INCLUDE_FINDER.matcher( text );
+            if( mat.find() )
+                scan( text, mat );
+            else
+                append( text, 0, text.length() );
+            chain.pop();
+        }
+
+
+        /**
+         * Copy the given text into our output, expanding its includes as we go.  The given matcher has already found the first include.  We
+         * collect all of the text's includes first, so that the loader can prefetch them all before we load them one by one.
+         */
+        private void scan( final String _text, final Matcher _mat ) throws IOException {
+
+            List<MatchResult> found = new ArrayList<>();
+            do {
+                if( !(fixedOnly && _mat.group( 3 ).contains( ":::" )) )     // leave includes with substitutions for render time...
+                    found.add( _mat.toMatchResult() );
+            } while( _mat.find() );
+            Map<String,CompletableFuture<String>> prefetched = Map.of();
+            if( found.size() > 1 ) {
+                List<String> urls = new ArrayList<>( found.size() );
+                found.forEach( (match) -> urls.add( match.group( 3 ) ) );
+                prefetched = loader.prefetch( urls );
+            }
+
+            int index = 0;
+            for( MatchResult match : found ) {
+                append( _text, index, match.start() );
+                include( match.group( 3 ), prefetched.get( match.group( 3 ) ) );
+                index = match.end();
+            }
+            append( _text, index, _text.length() );
+        }
+
+
+        private void append( final String _text, final int _start, final int _end ) {
+            count( _end - _start );
+            out.append( _text, _start, _end );
+        }
+
+
+        /**
+         * Wait for the given prefetched text of the include file at the given URL, and return it.
+         */
+        private static String await( final String _url, final CompletableFuture<String> _prefetched ) throws IOException {
+            try {
+                return _prefetched.join();
+            }
+            catch( CompletionException _e ) {
+                if( _e.getCause() instanceof IOException cause )
+                    throw cause;
+                throw new IOException( "Problem reading include file " + _url, _e.getCause() );
+            }
+        }
+
+
+        private void check( final String _url ) {
+            if( chain.contains( _url ) )
+                throw new IllegalArgumentException( "Include file includes itself: " + describeChain( _url ) );
+            if( chain.size() >= maxDepth )
+                throw new IllegalArgumentException( "Include files nested more than " + maxDepth + " deep: " + describeChain( _url ) );
+        }
+
+
+        /**
+         * Describe the current include chain (outermost first), followed by the given URL (if it isn't {@code null}).
+         */
+        private String describeChain( final String _url ) {
+
+            StringBuilder sb = new StringBuilder();
+            chain.descendingIterator().forEachRemaining( (url) -> sb.append( url ).append( " -> " ) );
+            if( _url != null )
+                sb.append( _url );
+            else
+                sb.setLength( sb.length() - 4 );
+            return sb.toString();
+        }
+    }
+
+
+    private record FragmentKey( String url, Locale locale ) {}
+}
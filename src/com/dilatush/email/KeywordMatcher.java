@@ -0,0 +1,187 @@
+package com.dilatush.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Instances of this class find all occurrences of any of a set of keywords in a piece of text, in a single pass over the text, using the
+ * Aho-Corasick algorithm.  The time it takes to scan text depends on the length of the text (and the number of matches), but not on the number of
+ * keywords -- so a matcher with hundreds of keywords scans as fast as one with a handful.  Matching is case-insensitive, and keywords match
+ * anywhere in the text (not just at word boundaries).
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class KeywordMatcher {
+
+    private static final int[] NONE = new int[0];
+
+    // the automaton; each node's transitions are in sorted arrays of labels and next nodes, for a binary search...
+    private final char[][] labels;
+    private final int[][]  next;
+    private final int[]    fail;     // the node for the longest proper suffix of this node's path that is also a path...
+    private final int[][]  outputs;  // the keywords that end at this node, including those that end at its suffixes...
+    private final int      count;
+
+
+    /**
+     * Receives each keyword found by a scan.
+     */
+    interface Hit {
+
+        /**
+         * Called for each occurrence of a keyword in the scanned text.
+         *
+         * @param _keyword the index (in the list of keywords the matcher was created with) of the keyword found
+         */
+        void found( final int _keyword );
+    }
+
+
+    /**
+     * Create a new instance of this class that finds the given keywords.
+     *
+     * @param _keywords the keywords to find, which must not be empty
+     */
+    KeywordMatcher( final List<String> _keywords ) {
+
+        // build the trie of all the keywords...
+        List<TreeMap<Character,Integer>> trie = new ArrayList<>();
+        List<List<Integer>> ends = new ArrayList<>();
+        trie.add( new TreeMap<>() );
+        ends.add( new ArrayList<>() );
+        for( int k = 0; k < _keywords.size(); k++ ) {
+            String keyword = fold( _keywords.get( k ) );
+            if( keyword.isEmpty() )
+                throw new IllegalArgumentException( "Empty keyword" );
+            int node = 0;
+            for( int i = 0; i < keyword.length(); i++ ) {
+                Integer child = trie.get( node ).get( keyword.charAt( i ) );
+                if( child == null ) {
+                    child = trie.size();
+                    trie.add( new TreeMap<>() );
+                    ends.add( new ArrayList<>() );
+                    trie.get( node ).put( keyword.charAt( i ), child );
+                }
+                node = child;
+            }
+            ends.get( node ).add( k );
+        }
+
+        // flatten it into arrays...
+        int nodes = trie.size();
+        labels  = new char[nodes][];
+        next    = new int[nodes][];
+        fail    = new int[nodes];
+        outputs = new int[nodes][];
+        count   = _keywords.size();
+        for( int n = 0; n < nodes; n++ ) {
+            TreeMap<Character,Integer> children = trie.get( n );
+            labels[n] = new char[children.size()];
+            next[n]   = new int[children.size()];
+            int i = 0;
+            for( Map.Entry<Character,Integer> child : children.entrySet() ) {
+                labels[n][i] = child.getKey();
+                next[n][i++] = child.getValue();
+            }
+        }
+
+        // compute the failure links and outputs breadth-first, so that every node's suffixes are done before it is...
+        Deque<Integer> queue = new ArrayDeque<>();
+        outputs[0] = toArray( ends.get( 0 ), NONE );
+        for( int child : next[0] ) {
+            fail[child] = 0;
+            outputs[child] = toArray( ends.get( child ), NONE );
+            queue.add( child );
+        }
+        while( !queue.isEmpty() ) {
+            int node = queue.remove();
+            for( int i = 0; i < labels[node].length; i++ ) {
+                char label = labels[node][i];
+                int child = next[node][i];
+                int suffix = fail[node];
+                while( (suffix != 0) && (step( suffix, label ) < 0) )
+                    suffix = fail[suffix];
+                int target = step( suffix, label );
+                fail[child] = (target < 0) ? 0 : target;
+                outputs[child] = toArray( ends.get( child ), outputs[fail[child]] );
+                queue.add( child );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of keywords this matcher finds.
+     *
+     * @return the number of keywords
+     */
+    int size() {
+        return count;
+    }
+
+
+    /**
+     * Scan the given text, reporting every occurrence of every keyword in it.  A keyword that occurs more than once is reported each time.
+     *
+     * @param _text the text to scan
+     * @param _hit receives the index of each keyword found
+     */
+    void scan( final CharSequence _text, final Hit _hit ) {
+
+        if( _text == null )
+            return;
+
+        int node = 0;
+        for( int i = 0; i < _text.length(); i++ ) {
+            char c = Character.toLowerCase( _text.charAt( i ) );
+            int target;
+            while( ((target = step( node, c )) < 0) && (node != 0) )
+                node = fail[node];
+            node = (target < 0) ? 0 : target;
+            for( int keyword : outputs[node] )
+                _hit.found( keyword );
+        }
+    }
+
+
+    /**
+     * Returns the given text folded the same way scanned text is, so that it can be compared with what a matcher finds.
+     *
+     * @param _text the text to fold
+     * @return the folded text
+     */
+    static String fold( final String _text ) {
+
+        char[] chars = _text.toCharArray();
+        for( int i = 0; i < chars.length; i++ )
+            chars[i] = Character.toLowerCase( chars[i] );
+        return new String( chars );
+    }
+
+
+    /**
+     * Returns the node reached from the given node with the given character, or -1 if there is no such transition.
+     */
+    private int step( final int _node, final char _c ) {
+        int i = Arrays.binarySearch( labels[_node], _c );
+        return (i < 0) ? -1 : next[_node][i];
+    }
+
+
+    private static int[] toArray( final List<Integer> _own, final int[] _inherited ) {
+
+        if( _own.isEmpty() )
+            return _inherited;
+        int[] result = Arrays.copyOf( _inherited, _inherited.length + _own.size() );
+        for( int i = 0; i < _own.size(); i++ )
+            result[_inherited.length + i] = _own.get( i );
+        return result;
+    }
+}
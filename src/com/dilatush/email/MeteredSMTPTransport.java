@@ -0,0 +1,140 @@
+package com.dilatush.email;
+
+import com.sun.mail.smtp.SMTPTransport;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An SMTP transport that measures the stages of opening its connection -- the TCP connect and greeting, the STARTTLS negotiation, and the
+ * AUTH exchange -- into an {@link EmailMetrics}, and counts the bytes of each message it sends.  The stages are timed at the protocol hooks that
+ * {@link SMTPTransport} provides for subclasses: the connect stage ends at the first EHLO (or HELO), TLS is the STARTTLS call, and
+ * authentication is whatever follows the last EHLO.  Note that if the provider uses TLS from the start ("smtps" style), the TLS handshake is part
+ * of the connect stage.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+final class MeteredSMTPTransport extends SMTPTransport {
+
+    private final EmailMetrics metrics;
+    private final boolean      authenticates;
+
+    private long               connectStart;
+    private long               helloEnd;
+    private boolean            connected;      // true once the connect stage has been recorded...
+    private CountingStream     counter;
+
+
+    /**
+     * Create a new instance of this class, for the SMTP server in the given session's properties.
+     *
+     * @param _session the session to use
+     * @param _metrics the metrics to record into
+     */
+    MeteredSMTPTransport( final Session _session, final EmailMetrics _metrics ) {
+        super( _session, new URLName( "smtp", null, -1, null, null, null ) );
+        metrics       = _metrics;
+        authenticates = Boolean.parseBoolean( _session.getProperty( "mail.smtp.auth" ) );
+    }
+
+
+    /**
+     * Returns the number of bytes in the last message sent over this transport (before dot-stuffing), or zero if none has been sent yet.
+     *
+     * @return the size of the last message sent, in bytes
+     */
+    long getLastMessageBytes() {
+        return (counter == null) ? 0 : counter.count;
+    }
+
+
+    @Override
+    protected synchronized boolean protocolConnect( final String _host, final int _port, final String _user, final String _password )
+            throws MessagingException {
+
+        connectStart = System.nanoTime();
+        connected    = false;
+        boolean ok = super.protocolConnect( _host, _port, _user, _password );
+        if( ok && authenticates && connected )
+            metrics.recordSince( EmailMetrics.Stage.SMTP_AUTH, helloEnd );
+        return ok;
+    }
+
+
+    @Override
+    protected boolean ehlo( final String _domain ) throws MessagingException {
+        hello();
+        boolean ok = super.ehlo( _domain );
+        helloEnd = System.nanoTime();
+        return ok;
+    }
+
+
+    @Override
+    protected void helo( final String _domain ) throws MessagingException {
+        hello();
+        super.helo( _domain );
+        helloEnd = System.nanoTime();
+    }
+
+
+    @Override
+    protected void startTLS() throws MessagingException {
+        long start = System.nanoTime();
+        super.startTLS();
+        metrics.recordSince( EmailMetrics.Stage.SMTP_TLS, start );
+    }
+
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        return counter = new CountingStream( super.data() );
+    }
+
+
+    @Override
+    protected OutputStream bdat() throws MessagingException {
+        return counter = new CountingStream( super.bdat() );
+    }
+
+
+    // the first hello ends the connect stage (the TCP connect, plus the server's greeting)...
+    private void hello() {
+        if( !connected ) {
+            metrics.recordSince( EmailMetrics.Stage.SMTP_CONNECT, connectStart );
+            connected = true;
+        }
+    }
+
+
+    /**
+     * An output stream that counts the bytes written through it.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+
+        private long count;
+
+
+        private CountingStream( final OutputStream _out ) {
+            super( _out );
+        }
+
+
+        @Override
+        public void write( final int _b ) throws IOException {
+            out.write( _b );
+            count++;
+        }
+
+
+        @Override
+        public void write( final byte[] _bytes, final int _offset, final int _length ) throws IOException {
+            out.write( _bytes, _offset, _length );
+            count += _length;
+        }
+    }
+}
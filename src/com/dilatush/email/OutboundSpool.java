@@ -0,0 +1,524 @@
+package com.dilatush.email;
+
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Instances of this class are a durable spool of outbound emails, kept in a transfer directory, so that emails accepted for sending survive a
+ * crash or restart.  The spool is an append-only journal, split into segment files.  Each email is journaled (with a CRC, so torn or corrupt
+ * records are detected) before it is sent, and an acknowledgement record is journaled once it has been sent.  When every email in a segment, and
+ * in all the segments before it, has been acknowledged, the segment is deleted.  When the spool is opened, any emails journaled but never
+ * acknowledged are recovered, to be sent again.
+ * <p>
+ * All journal writes are made by a single writer thread, which uses group commit: it writes every record waiting to be journaled, then forces
+ * them to disk with a single sync, then completes all their futures.  The more emails arrive at once, the more of them share each sync.
+ * Acknowledgements are not synced on their own (they ride along with the next sync); if one is lost in a crash, its email is just sent again.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class OutboundSpool {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final String PREFIX = "outbound-";
+    private static final String SUFFIX = ".spool";
+
+    private static final byte SEND = 1;
+    private static final byte ACK  = 2;
+
+    // a record longer than this must be corrupt...
+    private static final int MAX_RECORD = 1 << 30;
+
+    private final File                  directory;
+    private final long                  segmentBytes;
+    private final BlockingQueue<Write>  queue = new LinkedBlockingQueue<>();
+    private final AtomicLong            nextID;
+    private final List<SpooledEmail>    recovered;
+    private final Thread                writer;
+
+    private volatile boolean            closed;
+
+    // the journal's state, which (once we're open) belongs to the writer thread...
+    private final Map<Long,Long>        segmentOf = new HashMap<>();     // the segment each unacknowledged email is in...
+    private final Map<Long,Integer>     pendingIn = new HashMap<>();     // the number of unacknowledged emails in each segment...
+    private final TreeSet<Long>         segments  = new TreeSet<>();     // the segments on disk, oldest first...
+    private FileChannel                 channel;
+    private long                        segment;
+    private long                        segmentSize;
+
+
+    /**
+     * Open the spool in the given transfer directory, recovering any emails that were journaled but never acknowledged.
+     *
+     * @param _directory the transfer directory to keep the spool in (which must be READ_WRITE)
+     * @param _config the email service configuration, containing the spool settings
+     * @throws IOException on any problem reading the existing journal or starting a new segment
+     */
+    OutboundSpool( final TransferDirectory _directory, final EmailService.Config _config ) throws IOException {
+
+        directory    = _directory.directory();
+        segmentBytes = _config.spoolSegmentBytes;
+
+        // replay the existing segments, oldest first...
+        Map<Long,SpooledEmail> unacknowledged = new LinkedHashMap<>();
+        long lastSegment = 0;
+        long lastID = 0;
+        for( long seq : listSegments() ) {
+            segments.add( seq );
+            lastSegment = seq;
+            lastID = Math.max( lastID, replay( seq, unacknowledged ) );
+        }
+        unacknowledged.values().forEach( (email) -> track( email.id(), segmentOf.get( email.id() ) ) );
+
+        nextID    = new AtomicLong( lastID + 1 );
+        recovered = new ArrayList<>( unacknowledged.values() );
+        openSegment( lastSegment + 1 );
+        deleteDeadSegments();
+        if( !recovered.isEmpty() )
+            LOGGER.info( "Recovered " + recovered.size() + " unsent emails from the outbound spool" );
+
+        writer = new Thread( this::write, "EmailSpoolWriter" );
+        writer.setDaemon( true );
+        writer.start();
+    }
+
+
+    /**
+     * Returns the emails that were recovered when this spool was opened: those journaled but never acknowledged.  Each must be acknowledged once
+     * it has been sent again.
+     *
+     * @return the recovered emails, oldest first
+     */
+    public List<SpooledEmail> getRecovered() {
+        return Collections.unmodifiableList( recovered );
+    }
+
+
+    /**
+     * Journal the given email.  The returned future completes (with the email's spool ID) once the email is safely on disk.
+     *
+     * @param _email the email to journal
+     * @return a future that completes with the email's spool ID, or exceptionally if the email could not be journaled
+     * @throws IllegalStateException if this spool is closed
+     */
+    public CompletableFuture<Long> append( final AddressedEmail _email ) {
+
+        if( closed )
+            throw new IllegalStateException( "Outbound spool is closed" );
+
+        long id = nextID.getAndIncrement();
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        try {
+            queue.add( new Write( SEND, id, encode( _email ), future ) );
+        }
+        catch( IOException _e ) {
+            future.completeExceptionally( _e );
+        }
+        return future;
+    }
+
+
+    /**
+     * Acknowledge that the email with the given spool ID has been sent (or has failed permanently), so that it won't be sent again.
+     *
+     * @param _id the spool ID of the email
+     */
+    public void acknowledge( final long _id ) {
+        if( !closed )
+            queue.add( new Write( ACK, _id, null, null ) );
+    }
+
+
+    /**
+     * Close this spool, after journaling everything already queued.  Emails that haven't been acknowledged will be recovered when the spool is
+     * next opened.
+     */
+    public void close() {
+
+        if( closed )
+            return;
+        closed = true;
+        queue.add( new Write( (byte) 0, 0, null, null ) );     // tells the writer to stop...
+        try {
+            writer.join();
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * The writer thread: journals everything waiting, syncs once, completes the futures, and repeats.
+     */
+    private void write() {
+
+        List<Write> batch = new ArrayList<>();
+        boolean stop = false;
+        while( !stop ) {
+
+            // wait for something to write, then grab everything else that's waiting...
+            batch.clear();
+            try {
+                batch.add( queue.take() );
+            }
+            catch( InterruptedException _e ) {
+                break;
+            }
+            queue.drainTo( batch );
+
+            // write the batch, syncing once if it has any emails in it...
+            List<Long> sent         = new ArrayList<>();
+            List<Long> acknowledged = new ArrayList<>();
+            long batchStart = segmentSize;
+            IOException problem = null;
+            try {
+                for( Write write : batch ) {
+                    if( write.type == 0 ) {
+                        stop = true;
+                        continue;
+                    }
+                    writeRecord( write );
+                    if( write.type == SEND )
+                        sent.add( write.id );
+                    else
+                        acknowledged.add( write.id );
+                }
+                if( !sent.isEmpty() || stop )
+                    channel.force( false );
+            }
+            catch( IOException _e ) {
+                problem = _e;
+                LOGGER.log( Level.SEVERE, "Problem writing outbound spool", _e );
+                discard( batchStart );
+            }
+
+            // the emails are only ours to send (and the acknowledgements only count) once they're safely on disk; if they didn't make it, their
+            // callers are told they weren't spooled, and any acknowledged emails will just be sent again after a restart...
+            if( problem == null ) {
+                sent.forEach( (id) -> track( id, segment ) );
+                acknowledged.forEach( this::untrack );
+            }
+
+            // tell everyone how it went...
+            for( Write write : batch ) {
+                if( write.future == null )
+                    continue;
+                if( problem == null )
+                    write.future.complete( write.id );
+                else
+                    write.future.completeExceptionally( problem );
+            }
+
+            // if the current segment is full (or broken), we start a new one...
+            try {
+                if( !stop && ((problem != null) || (segmentSize >= segmentBytes)) ) {
+                    channel.close();
+                    openSegment( segment + 1 );
+                    deleteDeadSegments();
+                }
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.SEVERE, "Problem starting new outbound spool segment", _e );
+            }
+        }
+
+        try {
+            channel.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Problem closing outbound spool", _e );
+        }
+
+        // anything that slipped in as we were closing never got journaled...
+        batch.clear();
+        queue.drainTo( batch );
+        for( Write write : batch )
+            if( write.future != null )
+                write.future.completeExceptionally( new IOException( "Outbound spool is closed" ) );
+    }
+
+
+    private void writeRecord( final Write _write ) throws IOException {
+
+        // the body is the type, the ID, and (for emails) the encoded email...
+        int payload = (_write.payload == null) ? 0 : _write.payload.length;
+        ByteBuffer body = ByteBuffer.allocate( 9 + payload );
+        body.put( _write.type ).putLong( _write.id );
+        if( _write.payload != null )
+            body.put( _write.payload );
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update( body.duplicate() );
+
+        // the record is the body's length and CRC, then the body...
+        ByteBuffer header = ByteBuffer.allocate( 8 );
+        header.putInt( body.remaining() ).putInt( (int) crc.getValue() ).flip();
+        ByteBuffer[] record = { header, body };
+        long length = header.remaining() + body.remaining();
+        long written = 0;
+        while( written < length )
+            written += channel.write( record );
+        segmentSize += length;
+    }
+
+
+    /**
+     * Cut the current segment back to the given size, discarding the records of a batch that couldn't be written in full, so that none of them
+     * are replayed after a restart.
+     */
+    private void discard( final long _size ) {
+        try {
+            channel.truncate( _size );
+            channel.force( false );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Could not discard unwritten records from outbound spool segment " + segment, _e );
+        }
+    }
+
+
+    private void track( final long _id, final long _segment ) {
+        segmentOf.put( _id, _segment );
+        pendingIn.merge( _segment, 1, Integer::sum );
+    }
+
+
+    private void untrack( final long _id ) {
+
+        Long seq = segmentOf.remove( _id );
+        if( seq == null )
+            return;
+        if( pendingIn.merge( seq, -1, Integer::sum ) <= 0 ) {
+            pendingIn.remove( seq );
+            deleteDeadSegments();
+        }
+    }
+
+
+    /**
+     * Delete the oldest segments, up to (but not including) the first one that still has unacknowledged emails in it, or the current segment.  A
+     * segment can't be deleted just because its own emails have all been acknowledged, as it may also hold the acknowledgements of emails in older
+     * segments; without them, those emails would be sent again after a restart.  An acknowledgement is always written after its email, so once
+     * every segment before it is gone, nothing in a segment is needed any more.
+     */
+    private void deleteDeadSegments() {
+
+        while( !segments.isEmpty() ) {
+            long oldest = segments.first();
+            if( (oldest == segment) || pendingIn.containsKey( oldest ) )
+                return;
+            deleteSegment( oldest );
+            segments.remove( oldest );
+        }
+    }
+
+
+    /**
+     * Replay the given segment, adding its emails to the given map and removing any it acknowledges.  A torn or corrupt record ends the segment.
+     *
+     * @return the largest spool ID found
+     */
+    private long replay( final long _segment, final Map<Long,SpooledEmail> _unacknowledged ) throws IOException {
+
+        long maxID = 0;
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( segmentFile( _segment ) ) ) ) ) {
+            while( true ) {
+
+                // read the record, stopping at the end or at anything damaged...
+                int length;
+                try {
+                    length = in.readInt();
+                }
+                catch( EOFException _e ) {
+                    break;
+                }
+                if( (length < 9) || (length > MAX_RECORD) ) {
+                    LOGGER.warning( "Corrupt record in outbound spool segment " + _segment + "; ignoring the rest of the segment" );
+                    break;
+                }
+                int expectedCRC;
+                byte[] body = new byte[length];
+                try {
+                    expectedCRC = in.readInt();
+                    in.readFully( body );
+                }
+                catch( EOFException _e ) {
+                    LOGGER.warning( "Torn record at the end of outbound spool segment " + _segment + "; ignoring it" );
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update( body );
+                if( (int) crc.getValue() != expectedCRC ) {
+                    LOGGER.warning( "Bad CRC in outbound spool segment " + _segment + "; ignoring the rest of the segment" );
+                    break;
+                }
+
+                // apply it...
+                ByteBuffer buffer = ByteBuffer.wrap( body );
+                byte type = buffer.get();
+                long id = buffer.getLong();
+                maxID = Math.max( maxID, id );
+                if( type == SEND ) {
+                    _unacknowledged.put( id, new SpooledEmail( id, decode( body, 9 ) ) );
+                    segmentOf.put( id, _segment );
+                }
+                else if( type == ACK ) {
+                    _unacknowledged.remove( id );
+                    segmentOf.remove( id );
+                }
+            }
+        }
+        return maxID;
+    }
+
+
+    private void openSegment( final long _segment ) throws IOException {
+        segment     = _segment;
+        segmentSize = 0;
+        channel     = FileChannel.open( segmentFile( _segment ).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+        segments.add( _segment );
+    }
+
+
+    private void deleteSegment( final long _segment ) {
+        File file = segmentFile( _segment );
+        if( !file.delete() )
+            LOGGER.warning( "Could not delete outbound spool segment: " + file.getAbsolutePath() );
+    }
+
+
+    private File segmentFile( final long _segment ) {
+        return new File( directory, PREFIX + String.format( "%020d", _segment ) + SUFFIX );
+    }
+
+
+    private List<Long> listSegments() {
+
+        List<Long> result = new ArrayList<>();
+        String[] names = directory.list();
+        if( names != null ) {
+            for( String name : names ) {
+                if( name.startsWith( PREFIX ) && name.endsWith( SUFFIX ) ) {
+                    try {
+                        result.add( Long.parseLong( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) ) );
+                    }
+                    catch( NumberFormatException _e ) {
+                        // not one of ours; just ignore it...
+                    }
+                }
+            }
+        }
+        Collections.sort( result );
+        return result;
+    }
+
+
+    /*
+     * Encoding and decoding emails...
+     */
+
+    private static byte[] encode( final AddressedEmail _email ) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream( 1024 );
+        DataOutputStream out = new DataOutputStream( bytes );
+        writeAddresses( out, _email.to() );
+        writeAddresses( out, _email.cc() );
+        writeAddresses( out, _email.bcc() );
+        OutboundEmailMessage message = _email.message();
+        writeString( out, message.from().toString() );
+        writeString( out, message.subject() );
+        writeString( out, message.text() );
+        writeString( out, message.html() );
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+
+    private static AddressedEmail decode( final byte[] _body, final int _offset ) throws IOException {
+
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( _body, _offset, _body.length - _offset ) );
+        try {
+            InternetAddress[] to  = readAddresses( in );
+            InternetAddress[] cc  = readAddresses( in );
+            InternetAddress[] bcc = readAddresses( in );
+            OutboundEmailMessage message = new OutboundEmailMessage( readString( in ), readString( in ), readString( in ), readString( in ) );
+            return new AddressedEmail( to, cc, bcc, message );
+        }
+        catch( AddressException _e ) {
+            throw new IOException( "Invalid address in outbound spool", _e );
+        }
+    }
+
+
+    private static void writeAddresses( final DataOutputStream _out, final InternetAddress[] _addresses ) throws IOException {
+        if( _addresses == null ) {
+            _out.writeInt( -1 );
+            return;
+        }
+        _out.writeInt( _addresses.length );
+        for( InternetAddress address : _addresses )
+            writeString( _out, address.toString() );
+    }
+
+
+    private static InternetAddress[] readAddresses( final DataInputStream _in ) throws IOException, AddressException {
+        int count = _in.readInt();
+        if( count < 0 )
+            return null;
+        InternetAddress[] result = new InternetAddress[count];
+        for( int i = 0; i < count; i++ )
+            result[i] = new InternetAddress( readString( _in ) );
+        return result;
+    }
+
+
+    private static void writeString( final DataOutputStream _out, final String _string ) throws IOException {
+        if( _string == null ) {
+            _out.writeInt( -1 );
+            return;
+        }
+        byte[] bytes = _string.getBytes( StandardCharsets.UTF_8 );
+        _out.writeInt( bytes.length );
+        _out.write( bytes );
+    }
+
+
+    private static String readString( final DataInputStream _in ) throws IOException {
+        int length = _in.readInt();
+        if( length < 0 )
+            return null;
+        byte[] bytes = new byte[length];
+        _in.readFully( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+
+    /**
+     * An email recovered from the spool, with its spool ID (for acknowledging it).
+     *
+     * @param id the spool ID of the email
+     * @param email the email
+     */
+    public record SpooledEmail( long id, AddressedEmail email ) {}
+
+
+    private record Write( byte type, long id, byte[] payload, CompletableFuture<Long> future ) {}
+}
@@ -0,0 +1,205 @@
+package com.dilatush.email;
+
+import jakarta.mail.Header;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.InternetHeaders;
+import jakarta.mail.internet.MimeMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Instances of this class are email messages that have been built and serialized once, so that they can be sent to any number of recipients
+ * (individually) without being rebuilt for each one.  Building a message -- expanding includes, reading and base64 encoding inlined images,
+ * assembling the multipart structure -- is far more work than sending it; a prepared email does that work just once.  For each recipient, only
+ * the headers that differ (the recipients, the Message-ID, and the date) are written, followed by the prepared body bytes exactly as they were
+ * serialized.
+ * <p>
+ * The serialized body may be held on the heap, or (for large messages in long bulk runs) off the heap, in a direct buffer.
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PreparedEmail {
+
+    // the headers that are written per recipient, and so are left out of the prepared headers...
+    private static final String[] PER_RECIPIENT_HEADERS = { "To", "Cc", "Bcc", "Message-ID", "Date" };
+
+    private final List<Header> headers;     // the headers common to all recipients (From, Subject, MIME-Version, Content-Type, etc.)...
+    private final byte[]       body;        // the serialized body, if it's on the heap; otherwise null...
+    private final ByteBuffer   offHeapBody; // the serialized body, if it's off the heap; otherwise null...
+
+
+    /**
+     * Create a new instance of this class by serializing the given message, which must have been fully built (but need not have recipients).
+     *
+     * @param _message the message to prepare
+     * @param _offHeap {@code true} to hold the serialized body off the heap
+     * @throws MessagingException on any problem serializing the message
+     * @throws IOException on any problem serializing the message
+     */
+    PreparedEmail( final MimeMessage _message, final boolean _offHeap ) throws MessagingException, IOException {
+
+        // serialize the whole message, leaving out the headers we'll write for each recipient...
+        _message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream( 16384 );
+        _message.writeTo( out, PER_RECIPIENT_HEADERS );
+        byte[] serialized = out.toByteArray();
+
+        // split it into the headers (which we parse) and the body (which we keep as bytes)...
+        int bodyStart = findBodyStart( serialized );
+        InternetHeaders parsed = new InternetHeaders( new ByteArrayInputStream( serialized, 0, bodyStart ) );
+        headers = Collections.unmodifiableList( Collections.list( parsed.getAllHeaders() ) );
+        if( _offHeap ) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect( serialized.length - bodyStart );
+            buffer.put( serialized, bodyStart, serialized.length - bodyStart ).flip();
+            offHeapBody = buffer.asReadOnlyBuffer();
+            body        = null;
+        }
+        else {
+            body        = Arrays.copyOfRange( serialized, bodyStart, serialized.length );
+            offHeapBody = null;
+        }
+    }
+
+
+    /**
+     * Returns the size of the prepared body, in bytes.
+     *
+     * @return the size of the prepared body
+     */
+    public int size() {
+        return (body != null) ? body.length : offHeapBody.capacity();
+    }
+
+
+    /**
+     * Returns {@code true} if the prepared body is held off the heap.
+     *
+     * @return {@code true} if the prepared body is held off the heap
+     */
+    public boolean isOffHeap() {
+        return offHeapBody != null;
+    }
+
+
+    /**
+     * Create a message, in the given session, that will send this prepared email to the given recipients.
+     *
+     * @param _session the session to create the message in
+     * @param _to the addressees to send the message directly to
+     * @param _cc the addressees to cc (carbon copy)
+     * @param _bcc the addressees to bcc (blind carbon copy)
+     * @return the message, ready to be sent
+     * @throws MessagingException on any problem setting the recipients
+     */
+    MimeMessage toMessage( final Session _session, final InternetAddress[] _to, final InternetAddress[] _cc, final InternetAddress[] _bcc )
+            throws MessagingException {
+
+        PreparedMessage msg = new PreparedMessage( _session );
+        msg.setRecipients( Message.RecipientType.TO, _to );
+        if( _cc != null )
+            msg.setRecipients( Message.RecipientType.CC, _cc );
+        if( _bcc != null )
+            msg.setRecipients( Message.RecipientType.BCC, _bcc );
+        return msg;
+    }
+
+
+    // a message ends its headers with the first empty line...
+    private static int findBodyStart( final byte[] _bytes ) throws MessagingException {
+        for( int i = 0; i + 3 < _bytes.length; i++ )
+            if( (_bytes[i] == '\r') && (_bytes[i + 1] == '\n') && (_bytes[i + 2] == '\r') && (_bytes[i + 3] == '\n') )
+                return i + 4;
+        throw new MessagingException( "Serialized message has no body" );
+    }
+
+
+    /**
+     * A message whose content is the prepared body.  Saving changes to it sets only the per-message headers (Message-ID and Date), and leaves
+     * the message unmodified -- so that writing it out writes the headers, then copies the prepared body bytes as they are, without re-encoding
+     * anything.
+     */
+    private class PreparedMessage extends MimeMessage {
+
+        private PreparedMessage( final Session _session ) {
+            super( _session );
+            headers = new InternetHeaders();
+            for( Header header : PreparedEmail.this.headers )
+                headers.addHeader( header.getName(), header.getValue() );
+            content  = body;     // null if the body is off the heap, in which case we provide it through getContentStream()...
+            modified = false;
+        }
+
+
+        @Override
+        public void saveChanges() throws MessagingException {
+            saved = true;
+            updateHeaders();
+        }
+
+
+        @Override
+        protected void updateHeaders() throws MessagingException {
+            updateMessageID();
+            setSentDate( new Date() );
+        }
+
+
+        @Override
+        protected InputStream getContentStream() throws MessagingException {
+            if( offHeapBody == null )
+                return super.getContentStream();
+            return new ByteBufferInputStream( offHeapBody.duplicate() );
+        }
+    }
+
+
+    /**
+     * A stream that reads a byte buffer (from its position to its limit).
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+
+        private ByteBufferInputStream( final ByteBuffer _buffer ) {
+            buffer = _buffer;
+        }
+
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+
+        @Override
+        public int read( final byte[] _bytes, final int _offset, final int _length ) {
+            if( _length == 0 )
+                return 0;
+            if( !buffer.hasRemaining() )
+                return -1;
+            int count = Math.min( _length, buffer.remaining() );
+            buffer.get( _bytes, _offset, count );
+            return count;
+        }
+
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
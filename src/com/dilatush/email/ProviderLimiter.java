@@ -0,0 +1,347 @@
+package com.dilatush.email;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import jakarta.mail.MessagingException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class limit the rate at which messages are sent through a single {@link EmailProvider}, so that a burst of sends waits for
+ * the provider instead of hammering it into refusing them.  Three limits are enforced:
+ * <ul>
+ *     <li>Messages per second, with a token bucket that allows a burst of up to one second's worth of messages.  Senders that find the bucket
+ *     empty wait for a token (up to the configured borrow timeout) rather than failing.</li>
+ *     <li>Recipients per day, counted over a rolling 24 hour window (in hourly buckets).  Once the cap is reached, sends through this provider
+ *     fail at once, so that they go to other providers.</li>
+ *     <li>Concurrent connections, which are limited by the provider's SMTP connection pool (see {@link #getMaxConnections(int)}).</li>
+ * </ul>
+ * The send rate adapts to the provider's actual limit, AIMD style: each time the provider replies that it's throttling us (421, 450, 451, or
+ * 454), the rate is cut by a multiplicative factor; after that it climbs back linearly, reaching the provider's configured limit again after the
+ * configured recovery time if there's no further throttling.  A provider with no configured rate limit is unlimited until it first throttles
+ * us; the rate is then cut from the rate we were actually sending at, and climbs back to that rate before being unlimited again.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ProviderLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final long HOUR_NS             = TimeUnit.HOURS.toNanos( 1 );
+    private static final long SECOND_NS           = TimeUnit.SECONDS.toNanos( 1 );
+    private static final long DECREASE_HOLDOFF_NS = SECOND_NS;     // throttling replies to messages already in flight count just once...
+
+    private final EmailProvider provider;
+    private final double        ceiling;           // the configured rate limit, or infinity if there isn't one...
+    private final double        decreaseFactor;
+    private final double        floor;
+    private final long          recoveryNS;
+    private final long          maxWaitNS;
+    private final int           maxRecipients;
+
+    private double rate;                // messages per second, or infinity if unlimited; guarded by "this"...
+    private double recoverTo;           // the rate we're climbing back to after being throttled; guarded by "this"...
+    private double tokens;              // guarded by "this"...
+    private long   lastRefill;          // System.nanoTime() of the last token refill; guarded by "this"...
+    private long   lastIncrease;        // System.nanoTime() of the last rate increase; guarded by "this"...
+    private long   lastDecrease;        // System.nanoTime() of the last rate decrease; guarded by "this"...
+
+    private long   windowStart;         // System.nanoTime() at the start of the send rate measurement window; guarded by "this"...
+    private int    windowCount;         // the messages sent in the current measurement window; guarded by "this"...
+    private double observedRate;        // the send rate measured in the last complete window; guarded by "this"...
+
+    private final int[] recipients = new int[24];     // recipients sent to in each hour of the last day; guarded by "this"...
+    private long   currentHour;         // the hour (since the System.nanoTime() origin) of the current bucket; guarded by "this"...
+    private int    recipientsToday;     // the sum of the buckets; guarded by "this"...
+
+
+    /**
+     * Create a new instance of this class for the given provider, using the given configuration.
+     *
+     * @param _provider the provider whose limits this instance enforces
+     * @param _config the email service configuration, containing the throttling settings
+     */
+    ProviderLimiter( final EmailProvider _provider, final EmailService.Config _config ) {
+
+        provider       = _provider;
+        ceiling        = (_provider.maxMessagesPerSecond > 0) ? _provider.maxMessagesPerSecond : Double.POSITIVE_INFINITY;
+        decreaseFactor = _config.throttleDecreaseFactor;
+        floor          = Math.min( _config.throttleMinMessagesPerSecond, ceiling );
+        recoveryNS     = TimeUnit.MILLISECONDS.toNanos( _config.throttleRecoveryMS );
+        maxWaitNS      = TimeUnit.MILLISECONDS.toNanos( _config.smtpBorrowTimeoutMS );
+        maxRecipients  = _provider.maxRecipientsPerDay;
+
+        long now       = System.nanoTime();
+        rate           = ceiling;
+        recoverTo      = ceiling;
+        tokens         = Double.isInfinite( ceiling ) ? 0 : Math.max( 1, ceiling );
+        lastRefill     = now;
+        lastIncrease   = now;
+        lastDecrease   = now - DECREASE_HOLDOFF_NS;
+        windowStart    = now;
+        currentHour    = Math.floorDiv( now, HOUR_NS );
+    }
+
+
+    /**
+     * Returns the maximum number of concurrent connections to this limiter's provider, given the service's pool size.
+     *
+     * @param _poolSize the service's configured SMTP pool size
+     * @return the maximum number of concurrent connections
+     */
+    int getMaxConnections( final int _poolSize ) {
+        return (provider.maxConnections > 0) ? Math.min( provider.maxConnections, _poolSize ) : _poolSize;
+    }
+
+
+    /**
+     * Wait for permission to send one message to the given number of recipients.  If the provider's send rate is limited and there are no tokens
+     * in the bucket, this waits until there are.
+     *
+     * @param _recipients the number of recipients the message is being sent to
+     * @throws MessagingException if the provider's daily recipient limit would be exceeded, if the wait would be longer than the borrow timeout,
+     *                            or if the wait was interrupted
+     */
+    public void acquire( final int _recipients ) throws MessagingException {
+
+        long waitNS;
+        synchronized( this ) {
+
+            long now = System.nanoTime();
+            reserveRecipients( now, _recipients );
+            recover( now );
+            observe( now );
+            if( Double.isInfinite( rate ) )
+                return;
+
+            // take a token, going into debt if we have to; the debt is how long we must wait...
+            refill( now );
+            tokens -= 1;
+            waitNS = (tokens >= 0) ? 0 : (long)(-tokens / rate * SECOND_NS);
+            if( waitNS > maxWaitNS ) {
+                tokens += 1;
+                reserveRecipients( now, -_recipients );
+                throw new MessagingException( "Timed out waiting for send rate permit: " + provider.name );
+            }
+        }
+
+        if( waitNS > 0 ) {
+            try {
+                TimeUnit.NANOSECONDS.sleep( waitNS );
+            }
+            catch( InterruptedException _e ) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException( "Interrupted while waiting for send rate permit: " + provider.name, _e );
+            }
+        }
+    }
+
+
+    /**
+     * Give back a permission obtained from {@link #acquire(int)} that wasn't used (because no connection to the provider could be had after all),
+     * so that the message doesn't count against the provider's send rate or daily recipient limit.
+     *
+     * @param _recipients the number of recipients the permission was for
+     */
+    public synchronized void cancel( final int _recipients ) {
+
+        long now = System.nanoTime();
+        refill( now );
+        if( !Double.isInfinite( rate ) )
+            tokens = Math.min( Math.max( 1, rate ), tokens + 1 );
+        windowCount = Math.max( 0, windowCount - 1 );
+        try {
+            reserveRecipients( now, -_recipients );
+        }
+        catch( MessagingException _e ) {
+            // can't happen, as we're giving recipients back...
+        }
+    }
+
+
+    /**
+     * Examine the given problem, reported by the provider while sending, and cut the send rate if it was a throttling reply.
+     *
+     * @param _problem the problem that was reported
+     * @return {@code true} if the problem was a throttling reply
+     */
+    public boolean failed( final MessagingException _problem ) {
+
+        if( !isThrottling( _problem ) )
+            return false;
+
+        synchronized( this ) {
+
+            long now = System.nanoTime();
+            if( now - lastDecrease < DECREASE_HOLDOFF_NS )
+                return true;
+            recover( now );
+            refill( now );
+
+            // cut the rate we were sending at, and start climbing back to our limit (or, if we don't have one, to where we were)...
+            double base = Double.isInfinite( rate ) ? Math.max( observedRate, floor ) : rate;
+            rate         = Math.max( floor, base * decreaseFactor );
+            recoverTo    = Double.isInfinite( ceiling ) ? base : ceiling;
+            tokens       = Math.min( tokens, 0 );
+            lastIncrease = now;
+            lastDecrease = now;
+            LOGGER.info( "Provider " + provider.name + " is throttling; send rate cut to " + String.format( "%.2f", rate ) + " messages/second" );
+        }
+        return true;
+    }
+
+
+    /**
+     * Returns {@code true} if the provider's daily recipient limit has been reached.
+     *
+     * @return {@code true} if the provider's daily recipient limit has been reached
+     */
+    public synchronized boolean isExhausted() {
+        if( maxRecipients == 0 )
+            return false;
+        advanceHour( System.nanoTime() );
+        return recipientsToday >= maxRecipients;
+    }
+
+
+    /**
+     * Returns {@code true} if the provider has throttled us, and the send rate hasn't yet climbed back to its limit.
+     *
+     * @return {@code true} if the provider's send rate is currently reduced
+     */
+    public synchronized boolean isThrottled() {
+        recover( System.nanoTime() );
+        return rate < ceiling;
+    }
+
+
+    /**
+     * Returns the current send rate limit, in messages per second (infinite if there is no limit).
+     *
+     * @return the current send rate limit
+     */
+    public synchronized double getRate() {
+        recover( System.nanoTime() );
+        return rate;
+    }
+
+
+    /**
+     * Returns {@code true} if the given problem (or any problem chained to it) is an SMTP reply saying that the server is throttling us.
+     */
+    private static boolean isThrottling( final MessagingException _problem ) {
+
+        Exception problem = _problem;
+        while( problem != null ) {
+            int code = returnCode( problem );
+            if( (code == 421) || (code == 450) || (code == 451) || (code == 454) )
+                return true;
+            problem = (problem instanceof MessagingException messaging) ? messaging.getNextException() : null;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the first SMTP reply code in the given problem (or in the problems chained to it), or -1 if there isn't one.
+     *
+     * @param _problem the problem to look in
+     * @return the SMTP reply code, or -1 if there isn't one
+     */
+    static int replyCode( final Exception _problem ) {
+
+        Exception problem = _problem;
+        while( problem != null ) {
+            int code = returnCode( problem );
+            if( code > 0 )
+                return code;
+            problem = (problem instanceof MessagingException messaging) ? messaging.getNextException() : null;
+        }
+        return -1;
+    }
+
+
+    private static int returnCode( final Exception _problem ) {
+        if( _problem instanceof SMTPSendFailedException sendFailed )
+            return sendFailed.getReturnCode();
+        if( _problem instanceof SMTPAddressFailedException addressFailed )
+            return addressFailed.getReturnCode();
+        if( _problem instanceof SMTPSenderFailedException senderFailed )
+            return senderFailed.getReturnCode();
+        return -1;
+    }
+
+
+    /**
+     * Add the given number of recipients (which may be negative, to give back a reservation) to the current hour's count.
+     */
+    private void reserveRecipients( final long _now, final int _recipients ) throws MessagingException {
+
+        advanceHour( _now );
+        if( (_recipients > 0) && (maxRecipients > 0) && (recipientsToday + _recipients > maxRecipients) )
+            throw new MessagingException( "Daily recipient limit (" + maxRecipients + ") reached: " + provider.name );
+        recipients[Math.floorMod( currentHour, recipients.length )] += _recipients;
+        recipientsToday += _recipients;
+    }
+
+
+    /**
+     * Clear the recipient counts for any hours that have passed since the current one, so that the buckets cover the last 24 hours.
+     */
+    private void advanceHour( final long _now ) {
+
+        long hour = Math.floorDiv( _now, HOUR_NS );
+        for( long h = currentHour + 1; (h <= hour) && (h <= currentHour + recipients.length); h++ ) {
+            int bucket = Math.floorMod( h, recipients.length );
+            recipientsToday -= recipients[bucket];
+            recipients[bucket] = 0;
+        }
+        currentHour = Math.max( currentHour, hour );
+    }
+
+
+    /**
+     * If we're climbing back from being throttled, raise the rate in proportion to the time since we last did.  Once we're back to the rate we
+     * were climbing to, we're back to our limit (which may be no limit at all).
+     */
+    private void recover( final long _now ) {
+
+        if( rate >= recoverTo )
+            return;
+        refill( _now );
+        rate = Math.min( recoverTo, rate + recoverTo * (_now - lastIncrease) / recoveryNS );
+        lastIncrease = _now;
+        if( rate >= recoverTo )
+            rate = ceiling;
+    }
+
+
+    /**
+     * Add the tokens accumulated since the last refill, up to one second's worth (but always at least one token).
+     */
+    private void refill( final long _now ) {
+
+        if( !Double.isInfinite( rate ) )
+            tokens = Math.min( Math.max( 1, rate ), tokens + rate * (_now - lastRefill) / SECOND_NS );
+        lastRefill = _now;
+    }
+
+
+    /**
+     * Count a message in the send rate measurement, which is made over windows of (at least) one second.
+     */
+    private void observe( final long _now ) {
+
+        windowCount++;
+        long elapsed = _now - windowStart;
+        if( elapsed >= SECOND_NS ) {
+            observedRate = (double) windowCount * SECOND_NS / elapsed;
+            windowCount  = 0;
+            windowStart  = _now;
+        }
+    }
+}
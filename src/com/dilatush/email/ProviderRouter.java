@@ -0,0 +1,165 @@
+package com.dilatush.email;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Instances of this class choose which {@link EmailProvider} to send each message through.  Providers are ranked first by their configured
+ * priority (larger is preferred), and then within each priority by how well they have actually been performing: an exponentially weighted moving
+ * average of send latency, penalized by an exponentially weighted moving average of the error rate.
+ * <p>
+ * A provider is considered <i>healthy</i> if its pool has an idle connection slot, it isn't throttling us or out of its daily recipients, its
+ * average latency is below the configured "slow" threshold, and its error rate is below the configured maximum.  Healthy providers are always
+ * tried before unhealthy ones, so when the preferred providers are slow, saturated, or throttling, traffic spills over to lower priority
+ * providers.  Unhealthy providers are still returned (last) as a last resort.  If a provider hasn't been used in a while, its statistics are
+ * considered stale and it is treated as healthy, so that one message will probe it and refresh its statistics.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ProviderRouter {
+
+    // the weight given to each new sample in the moving averages...
+    private static final double ALPHA = 0.2;
+
+    private final List<Route> routes;
+    private final double      slowThresholdNS;
+    private final double      maxErrorRate;
+    private final long        staleNS;
+
+
+    /**
+     * Create a new instance of this class that routes between the given pools, using the given configuration.
+     *
+     * @param _pools the SMTP connection pools (one per SMTP-capable provider) to route between
+     * @param _config the email service configuration, containing the routing settings
+     */
+    ProviderRouter( final List<SMTPConnectionPool> _pools, final EmailService.Config _config ) {
+
+        routes = new ArrayList<>( _pools.size() );
+        _pools.forEach( (pool) -> routes.add( new Route( pool ) ) );
+
+        slowThresholdNS = _config.slowSendThresholdMS * 1_000_000.0;
+        maxErrorRate    = _config.maxProviderErrorRate;
+        staleNS         = _config.providerStatsStaleMS * 1_000_000L;
+    }
+
+
+    /**
+     * Returns the SMTP connection pools for all SMTP-capable providers, in the order they should be tried for the next message.
+     *
+     * @return the ordered list of pools to try
+     */
+    public List<SMTPConnectionPool> candidates() {
+
+        long now = System.nanoTime();
+
+        // take a snapshot of each route's state, so the ordering is stable while we sort...
+        List<Candidate> candidates = new ArrayList<>( routes.size() );
+        for( Route route : routes )
+            candidates.add( route.snapshot( now ) );
+
+        candidates.sort( Comparator
+                .comparing( (Candidate c) -> !c.healthy )
+                .thenComparing( (Candidate c) -> -c.pool.getProvider().priority )
+                .thenComparingDouble( (Candidate c) -> c.score ) );
+
+        List<SMTPConnectionPool> result = new ArrayList<>( candidates.size() );
+        candidates.forEach( (candidate) -> result.add( candidate.pool ) );
+        return result;
+    }
+
+
+    /**
+     * Record the result of an attempt to send a message through the given provider.
+     *
+     * @param _provider the provider the attempt was made through
+     * @param _ok {@code true} if the message was sent successfully
+     * @param _latencyNS the time the attempt took, in nanoseconds
+     */
+    public void record( final EmailProvider _provider, final boolean _ok, final long _latencyNS ) {
+
+        for( Route route : routes ) {
+            if( route.pool.getProvider() == _provider ) {
+                route.record( _ok, _latencyNS );
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Record a failure to connect to (or authenticate with) the given provider.  Only the provider's error rate is affected; how long the attempt
+     * took says nothing about its send latency.
+     *
+     * @param _provider the provider that couldn't be connected to
+     */
+    public void recordFailure( final EmailProvider _provider ) {
+
+        for( Route route : routes ) {
+            if( route.pool.getProvider() == _provider ) {
+                route.recordFailure();
+                return;
+            }
+        }
+    }
+
+
+    private record Candidate( SMTPConnectionPool pool, boolean healthy, double score ) {}
+
+
+    /**
+     * The observed performance of a single provider.
+     */
+    private class Route {
+
+        private final SMTPConnectionPool pool;
+
+        private double latencyNS;     // moving average; guarded by "this"...
+        private double errorRate;     // moving average; guarded by "this"...
+        private long   lastSample;    // System.nanoTime() of the last sample; guarded by "this"...
+        private boolean sampled;      // true once we have at least one sample; guarded by "this"...
+        private boolean timed;        // true once we have at least one latency sample; guarded by "this"...
+
+
+        private Route( final SMTPConnectionPool _pool ) {
+            pool = _pool;
+        }
+
+
+        private synchronized void record( final boolean _ok, final long _latencyNS ) {
+
+            latencyNS = timed ? latencyNS + ALPHA * (_latencyNS - latencyNS) : _latencyNS;
+            timed     = true;
+            recordError( _ok ? 0 : 1 );
+        }
+
+
+        private synchronized void recordFailure() {
+            recordError( 1 );
+        }
+
+
+        private void recordError( final double _error ) {
+
+            errorRate  = sampled ? errorRate + ALPHA * (_error - errorRate) : _error;
+            sampled    = true;
+            lastSample = System.nanoTime();
+        }
+
+
+        private synchronized Candidate snapshot( final long _now ) {
+
+            // if we've never used this provider, or haven't in a while, let it be tried...
+            boolean stale = !sampled || ((_now - lastSample) > staleNS);
+            double score = stale ? 0 : latencyNS * (1 + 10 * errorRate);
+
+            ProviderLimiter limiter = pool.getLimiter();
+            boolean healthy = !pool.isSaturated() && !limiter.isThrottled() && !limiter.isExhausted()
+                    && (stale || ((latencyNS <= slowThresholdNS) && (errorRate <= maxErrorRate)));
+            return new Candidate( pool, healthy, score );
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.dilatush.email;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instances of this class fetch web (http and https) resources for the email service, over a single shared {@link HttpClient}.  The client keeps
+ * connections open and reuses them, and negotiates HTTP/2 (multiplexing many requests over one connection) where the server supports it.
+ * Requests are made asynchronously, so many resources can be fetched at once; the number of requests in flight to any one host is limited, and
+ * requests beyond that limit wait (without tying up a thread) until an earlier request to the same host completes.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ResourceFetcher {
+
+    private final HttpClient            client;
+    private final Duration              requestTimeout;
+    private final int                   maxPerHost;
+    private final Map<String,HostGate>  gates = new ConcurrentHashMap<>();
+
+
+    /**
+     * Create a new instance of this class with the settings in the given configuration.
+     *
+     * @param _config the email service configuration, containing the HTTP settings
+     */
+    ResourceFetcher( final EmailService.Config _config ) {
+
+        client = HttpClient.newBuilder()
+                .version( HttpClient.Version.HTTP_2 )
+                .followRedirects( HttpClient.Redirect.NORMAL )
+                .connectTimeout( Duration.ofMillis( _config.httpConnectTimeoutMS ) )
+                .build();
+        requestTimeout = Duration.ofMillis( _config.httpRequestTimeoutMS );
+        maxPerHost     = _config.httpMaxRequestsPerHost;
+    }
+
+
+    /**
+     * Returns a new request builder for the given URI, with this fetcher's request timeout.
+     *
+     * @param _uri the URI to request
+     * @return the request builder
+     */
+    public HttpRequest.Builder request( final URI _uri ) {
+        return HttpRequest.newBuilder( _uri ).timeout( requestTimeout ).GET();
+    }
+
+
+    /**
+     * Asynchronously make the given request, reading the entire response body into a byte array.  If the request's host already has the maximum
+     * number of requests in flight, this request is started when one of them completes.
+     *
+     * @param _request the request to make
+     * @return a future that completes with the response
+     */
+    public CompletableFuture<HttpResponse<byte[]>> fetch( final HttpRequest _request ) {
+
+        HostGate gate = gates.computeIfAbsent( _request.uri().getHost(), (host) -> new HostGate() );
+        CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+        gate.enter( () -> {
+            try {
+                client.sendAsync( _request, HttpResponse.BodyHandlers.ofByteArray() ).whenComplete( (response, problem) -> {
+                    gate.exit();
+                    if( problem != null )
+                        result.completeExceptionally( problem );
+                    else
+                        result.complete( response );
+                } );
+            }
+            catch( RuntimeException _e ) {
+                gate.exit();
+                result.completeExceptionally( _e );
+            }
+        } );
+        return result;
+    }
+
+
+    /**
+     * Limits the number of requests in flight to a single host.
+     */
+    private class HostGate {
+
+        private final Queue<Runnable> waiting = new ArrayDeque<>();     // guarded by "this"...
+        private int                   active;                           // guarded by "this"...
+
+
+        private void enter( final Runnable _start ) {
+            synchronized( this ) {
+                if( active >= maxPerHost ) {
+                    waiting.add( _start );
+                    return;
+                }
+                active++;
+            }
+            _start.run();
+        }
+
+
+        private void exit() {
+            Runnable next;
+            synchronized( this ) {
+                next = waiting.poll();
+                if( next == null )
+                    active--;
+            }
+            if( next != null )
+                next.run();     // the finished request's slot passes to the next waiting one...
+        }
+    }
+}
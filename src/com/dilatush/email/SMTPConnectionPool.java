@@ -0,0 +1,435 @@
+package com.dilatush.email;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Instances of this class maintain a pool of connected and authenticated SMTP {@link Transport}s for a single {@link EmailProvider}.  Opening an
+ * SMTP connection means a TCP connect, a STARTTLS negotiation, and an AUTH exchange -- which together take far longer than actually sending a
+ * typical message.  By keeping connections open and reusing them, those costs are paid once per connection instead of once per message.
+ * <p>
+ * Connections are borrowed with {@link #borrow(int)} and must always be handed back with {@link #release(Connection)}, even if sending failed.  The
+ * number of connections (idle plus borrowed) never exceeds the configured pool size; borrowers wait (up to the configured timeout) when all of
+ * them are in use.  Idle connections are discarded when they've been idle too long or have sent their maximum number of messages, and are checked
+ * with an SMTP NOOP before being reused if they've been idle for a while.
+ * <p>
+ * Each pool enforces its provider's limits through a {@link ProviderLimiter}: the pool size is capped at the provider's maximum connections,
+ * and each message must have the limiter's permission before a connection is borrowed for it (or, for a connection that's already borrowed,
+ * before it is sent).  A provider that's at its send rate or daily limit is then just unavailable, like one that can't be reached, so the message
+ * can go to another provider -- without holding a connection open while it waits.
+ * <p>
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SMTPConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final EmailProvider     provider;
+    private final Session           session;
+    private final long              idleTimeoutMS;
+    private final long              validateAfterIdleMS;
+    private final int               maxMessagesPerConnection;
+    private final long              borrowTimeoutMS;
+    private final ProviderLimiter   limiter;
+    private final EmailMetrics      metrics;
+    private final Semaphore         permits;
+    private final Deque<Connection> idle;      // most recently used at the head; guarded by "this"...
+
+    private volatile boolean        closed;
+
+
+    /**
+     * Create a new instance of this class for the given provider, using the given session and pool configuration.
+     *
+     * @param _provider The provider whose SMTP server this pool connects to.
+     * @param _session The Jakarta Mail session (with authenticator) for the provider.
+     * @param _config The email service configuration, containing the pool settings.
+     * @param _metrics The metrics to record connection stages and sent messages into.
+     */
+    SMTPConnectionPool( final EmailProvider _provider, final Session _session, final EmailService.Config _config,
+                        final EmailMetrics _metrics ) {
+
+        provider                 = _provider;
+        session                  = _session;
+        idleTimeoutMS            = _config.smtpIdleTimeoutMS;
+        validateAfterIdleMS      = _config.smtpValidateAfterIdleMS;
+        maxMessagesPerConnection = _config.smtpMaxMessagesPerConnection;
+        borrowTimeoutMS          = _config.smtpBorrowTimeoutMS;
+        limiter                  = new ProviderLimiter( _provider, _config );
+        metrics                  = _metrics;
+        int size                 = limiter.getMaxConnections( _config.smtpPoolSize );
+        permits                  = new Semaphore( size, true );
+        idle                     = new ArrayDeque<>( size );
+    }
+
+
+    /**
+     * Returns the provider this pool connects to.
+     *
+     * @return the provider this pool connects to
+     */
+    public EmailProvider getProvider() {
+        return provider;
+    }
+
+
+    /**
+     * Returns the session used for all of this pool's connections, which should also be used to create the messages sent over them.
+     *
+     * @return the session for this pool
+     */
+    public Session getSession() {
+        return session;
+    }
+
+
+    /**
+     * Returns the limiter enforcing this pool's provider's limits.
+     *
+     * @return the limiter for this pool's provider
+     */
+    public ProviderLimiter getLimiter() {
+        return limiter;
+    }
+
+
+    /**
+     * Returns {@code true} if every connection this pool may have is currently borrowed, so that a borrower would have to wait.
+     *
+     * @return {@code true} if this pool is saturated
+     */
+    public boolean isSaturated() {
+        return permits.availablePermits() == 0;
+    }
+
+
+    /**
+     * Borrow a live, connected, and authenticated SMTP connection from this pool to send a message to the given number of recipients, opening a
+     * new one if no usable idle connection exists.  The provider's limiter must permit the message first; that permission is used by the next
+     * {@link Connection#send(MimeMessage)}.  The connection returned <i>must</i> be handed back via {@link #release(Connection)} when the caller
+     * is done with it.
+     *
+     * @param _recipients the number of recipients of the message to be sent over the connection
+     * @return the borrowed connection
+     * @throws UnavailableException if this pool is closed, if the provider's limiter didn't permit the message (its daily recipient limit has
+     *                              been reached, or the wait for its send rate would be longer than the borrow timeout), or if no connection
+     *                              became available within the borrow timeout
+     * @throws MessagingException if a new connection could not be opened
+     */
+    public Connection borrow( final int _recipients ) throws MessagingException {
+
+        if( closed )
+            throw new UnavailableException( "SMTP connection pool is closed: " + provider.name, null );
+        try {
+            limiter.acquire( _recipients );
+        }
+        catch( MessagingException _e ) {
+            throw new UnavailableException( _e.getMessage(), _e );
+        }
+
+        // wait for our turn...
+        try {
+            if( !permits.tryAcquire( borrowTimeoutMS, TimeUnit.MILLISECONDS ) ) {
+                limiter.cancel( _recipients );
+                throw new UnavailableException( "Timed out waiting for an SMTP connection: " + provider.name, null );
+            }
+        }
+        catch( InterruptedException _e ) {
+            limiter.cancel( _recipients );
+            Thread.currentThread().interrupt();
+            throw new UnavailableException( "Interrupted while waiting for an SMTP connection: " + provider.name, _e );
+        }
+
+        try {
+
+            // try our idle connections, most recently used first, discarding any that are stale or dead...
+            Connection connection;
+            while( (connection = pollIdle()) != null ) {
+                if( connection.isReusable() )
+                    break;
+                connection.close();
+            }
+
+            // if there were no usable idle connections, we open a new one...
+            if( connection == null )
+                connection = open();
+            connection.permitted = _recipients;
+            return connection;
+        }
+        catch( MessagingException | RuntimeException _e ) {
+            limiter.cancel( _recipients );
+            permits.release();
+            throw _e;
+        }
+    }
+
+
+    /**
+     * Hand the given connection (which must have been obtained from {@link #borrow(int)}) back to this pool.  If the connection is broken, has sent
+     * its maximum number of messages, or the pool has been closed, the connection is closed; otherwise it is kept for reuse.
+     *
+     * @param _connection the connection being handed back
+     */
+    public void release( final Connection _connection ) {
+
+        // if the limiter permitted a message that never got sent, we give the permission back...
+        if( _connection.permitted >= 0 ) {
+            limiter.cancel( _connection.permitted );
+            _connection.permitted = -1;
+        }
+
+        try {
+            if( !_connection.isSpent() ) {
+
+                // we check for closing in the same lock that close() drains the idle connections in, so this connection can't be missed...
+                _connection.lastUsed = System.currentTimeMillis();
+                synchronized( this ) {
+                    if( !closed ) {
+                        idle.addFirst( _connection );
+                        return;
+                    }
+                }
+            }
+            _connection.close();
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+
+    /**
+     * Close this pool, closing all idle connections.  Connections that are currently borrowed are closed when they are released.
+     */
+    public void close() {
+
+        closed = true;
+        Connection connection;
+        while( (connection = pollIdle()) != null )
+            connection.close();
+    }
+
+
+    private synchronized Connection pollIdle() {
+        return idle.pollFirst();
+    }
+
+
+    private Connection open() throws MessagingException {
+
+        EmailEvents.SMTPSessionOpen event = new EmailEvents.SMTPSessionOpen();
+        event.begin();
+        MeteredSMTPTransport transport = new MeteredSMTPTransport( session, metrics );
+        boolean ok = false;
+        try {
+            transport.connect();
+            ok = true;
+        }
+        finally {
+            if( event.shouldCommit() ) {
+                event.provider = provider.name;
+                event.ok       = ok;
+                event.commit();
+            }
+        }
+        LOGGER.finest( "Opened SMTP connection to " + provider.name );
+        return new Connection( transport );
+    }
+
+
+    /**
+     * Thrown by {@link #borrow(int)} when the pool can't lend a connection for reasons of its own -- it's closed, all its connections stayed busy,
+     * or its provider's limiter didn't permit the message -- rather than because the provider couldn't be connected to.  These say nothing about
+     * how well the provider itself is working.
+     */
+    public static class UnavailableException extends MessagingException {
+
+        private UnavailableException( final String _message, final Exception _cause ) {
+            super( _message, _cause );
+        }
+    }
+
+
+    /**
+     * Instances of this class wrap a single connected SMTP transport borrowed from the pool.  They are <i>not</i> threadsafe; a connection
+     * belongs to exactly one borrower at a time.
+     */
+    public class Connection {
+
+        private final MeteredSMTPTransport transport;
+
+        private int             messagesSent;
+        private long            lastUsed;
+        private boolean         broken;
+        private int             permitted = -1;     // the recipients of the next message the limiter has permitted, or -1 if none...
+
+
+        private Connection( final MeteredSMTPTransport _transport ) {
+            transport = _transport;
+            lastUsed  = System.currentTimeMillis();
+        }
+
+
+        /**
+         * Get the provider's limiter's permission to send another message, to the given number of recipients, over this connection.  This is
+         * only needed for the second and later messages sent over a borrowed connection, as {@link #borrow(int)} gets permission for the first.
+         * If this returns {@code false}, the provider is unavailable for now, and the caller should release this connection and borrow one from
+         * another provider.
+         *
+         * @param _recipients the number of recipients of the message to be sent
+         * @return {@code true} if the message may be sent, or {@code false} if the provider's daily recipient limit has been reached, or the wait
+         *         for its send rate would be longer than the borrow timeout
+         */
+        public boolean permit( final int _recipients ) {
+
+            if( permitted >= 0 )
+                return true;
+            try {
+                limiter.acquire( _recipients );
+                permitted = _recipients;
+                return true;
+            }
+            catch( MessagingException _e ) {
+                LOGGER.log( Level.FINE, "Provider's limiter didn't permit another message: " + provider.name, _e );
+                return false;
+            }
+        }
+
+
+        /**
+         * Send the given message over this connection, to all of the recipients in its headers, using the limiter's permission obtained by
+         * {@link #borrow(int)} or {@link #permit(int)}.  If the provider replies that it's throttling us, the limiter slows down.
+         *
+         * @param _message the message to send
+         * @throws MessagingException on any problem sending the message
+         * @throws IllegalStateException if the limiter hasn't permitted the message
+         */
+        public void send( final MimeMessage _message ) throws MessagingException {
+
+            if( permitted < 0 )
+                throw new IllegalStateException( "Message not permitted by the limiter: " + provider.name );
+            permitted = -1;
+            _message.saveChanges();
+            Address[] recipients = _message.getAllRecipients();
+            EmailEvents.Transmit event = new EmailEvents.Transmit();
+            String messageId = event.isEnabled() ? _message.getMessageID() : null;
+            event.begin();
+            long start = System.nanoTime();
+            boolean ok = false;
+            int replyCode = -1;
+            try {
+                transport.sendMessage( _message, recipients );
+                ok = true;
+                messagesSent++;
+                metrics.sent( provider.name, transport.getLastMessageBytes() );
+            }
+            catch( SendFailedException _e ) {
+
+                // the server rejected something (like an address), which may or may not have cost us the connection...
+                limiter.failed( _e );
+                replyCode = ProviderLimiter.replyCode( _e );
+                broken = !transport.isConnected();
+                throw _e;
+            }
+            catch( MessagingException _e ) {
+                limiter.failed( _e );
+                replyCode = ProviderLimiter.replyCode( _e );
+                broken = true;
+                throw _e;
+            }
+            catch( RuntimeException _e ) {
+                broken = true;
+                throw _e;
+            }
+            finally {
+                metrics.recordSince( EmailMetrics.Stage.SMTP_DATA, start );
+                if( event.shouldCommit() ) {
+                    event.messageId  = messageId;
+                    event.provider   = provider.name;
+                    event.recipients = (recipients == null) ? 0 : recipients.length;
+                    event.bytes      = transport.getLastMessageBytes();
+                    event.ok         = ok;
+                    event.replyCode  = replyCode;
+                    event.commit();
+                }
+            }
+        }
+
+
+        /**
+         * Returns {@code true} if this connection shouldn't be used for another message, because it's broken or has already sent the maximum
+         * number of messages.  A spent connection should be released to its pool, which will close it.
+         *
+         * @return {@code true} if this connection is spent
+         */
+        public boolean isSpent() {
+            return broken || (messagesSent >= maxMessagesPerConnection);
+        }
+
+
+        /**
+         * Returns the pool this connection was borrowed from (and must be released to).
+         *
+         * @return the pool this connection belongs to
+         */
+        public SMTPConnectionPool getPool() {
+            return SMTPConnectionPool.this;
+        }
+
+
+        /**
+         * Returns the provider this connection is to.
+         *
+         * @return the provider this connection is to
+         */
+        public EmailProvider getProvider() {
+            return provider;
+        }
+
+
+        /**
+         * Returns {@code true} if this connection can be handed out again: it hasn't been idle too long, it hasn't sent too many messages, and (if
+         * it has been idle for a while) it still answers a NOOP.
+         */
+        private boolean isReusable() {
+
+            long idleMS = System.currentTimeMillis() - lastUsed;
+            if( (idleMS > idleTimeoutMS) || (messagesSent >= maxMessagesPerConnection) )
+                return false;
+
+            // SMTPTransport.isConnected() actually issues a NOOP to the server, so it's a real health check...
+            return (idleMS <= validateAfterIdleMS) || transport.isConnected();
+        }
+
+
+        private void close() {
+            EmailEvents.SMTPSessionClose event = new EmailEvents.SMTPSessionClose();
+            event.begin();
+            try {
+                transport.close();
+                LOGGER.finest( "Closed SMTP connection to " + provider.name + " after " + messagesSent + " messages" );
+            }
+            catch( MessagingException _e ) {
+                LOGGER.log( Level.FINE, "Problem closing SMTP connection to " + provider.name, _e );
+            }
+            if( event.shouldCommit() ) {
+                event.provider     = provider.name;
+                event.messagesSent = messagesSent;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,529 @@
+package com.dilatush.email;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.text.Collator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Instances of this class are compiled test expressions, as used by the conditional tags ({@code <es-if test="...">} and
+ * {@code <es-case test="..."/>}) in an <i>EmailDocument</i>.  See the README for the details of the test expression language.
+ * <p>
+ * A test expression is parsed and type checked once, when the document is compiled, into a tree of typed evaluators.  Subexpressions made up
+ * entirely of literals are evaluated at compile time (constant folding).  Evaluating the compiled expression for an addressee just walks that
+ * tree; property values used as numbers are parsed at most once per addressee (the parsed values are cached in the render context), and string
+ * comparisons use a single {@link Collator} per locale, shared by all expressions and threads.
+ * <p>
+ * Numeric values are {@link BigDecimal}s, so that decimal values (like money) behave as people expect.  Operators are evaluated strictly left to
+ * right, with no precedence; use parentheses to group subexpressions.
+ * <p>
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TestExpression implements EmailDocument.Condition {
+
+    // one collator per locale, shared by everyone; RuleBasedCollator synchronizes its comparisons, so sharing is safe...
+    private static final Map<Locale,Collator> COLLATORS = new ConcurrentHashMap<>();
+
+    private final String       source;
+    private final BooleanValue test;
+
+
+    private TestExpression( final String _source, final BooleanValue _test ) {
+        source = _source;
+        test   = _test;
+    }
+
+
+    /**
+     * Compile the given test expression, which must evaluate to a boolean.  String comparisons will collate according to the given locale.
+     *
+     * @param _source the test expression to compile
+     * @param _locale the locale for string comparisons
+     * @return the compiled test expression
+     * @throws IllegalArgumentException if the test expression is malformed or not type correct
+     */
+    public static TestExpression compile( final String _source, final Locale _locale ) {
+
+        if( (_source == null) || (_locale == null) )
+            throw new IllegalArgumentException( "Missing test expression or locale" );
+
+        Compiler compiler = new Compiler( _source, COLLATORS.computeIfAbsent( _locale, Collator::getInstance ) );
+        Typed result = compiler.compile();
+        if( result.type != Type.BOOLEAN )
+            throw new IllegalArgumentException( "Test expression is not a test (its result is " + result.type.name().toLowerCase() + "): " + _source );
+        return new TestExpression( _source, (BooleanValue) result.value );
+    }
+
+
+    @Override
+    public boolean test( final EmailDocument.Context _context ) {
+        return test.get( _context );
+    }
+
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+
+    /**
+     * Parse the given string as a number, in any of the forms allowed for a numeric literal in a test expression: digits with an optional decimal
+     * point, negated with a leading minus sign, a trailing minus sign, or surrounding parentheses.  Leading and trailing whitespace is ignored.
+     *
+     * @param _value the string to parse
+     * @return the number, or {@code null} if the string isn't a valid number
+     */
+    public static BigDecimal parseNumber( final String _value ) {
+
+        String value = _value.strip();
+        boolean negative = false;
+        if( value.startsWith( "(" ) && value.endsWith( ")" ) ) {
+            value = value.substring( 1, value.length() - 1 );
+            negative = true;
+        }
+        else if( value.startsWith( "-" ) ) {
+            value = value.substring( 1 );
+            negative = true;
+        }
+        else if( value.endsWith( "-" ) ) {
+            value = value.substring( 0, value.length() - 1 );
+            negative = true;
+        }
+
+        // make sure we have only digits and at most one decimal point (BigDecimal would accept exponents and signs, which we do not)...
+        int digits = 0;
+        int points = 0;
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( (c >= '0') && (c <= '9') )
+                digits++;
+            else if( c == '.' )
+                points++;
+            else
+                return null;
+        }
+        if( (digits == 0) || (points > 1) )
+            return null;
+
+        BigDecimal result = new BigDecimal( value );
+        return negative ? result.negate() : result;
+    }
+
+
+    /*
+     * The typed evaluators that a compiled expression is made of...
+     */
+
+    private interface NumberValue  { BigDecimal get( final EmailDocument.Context _context ); }
+    private interface StringValue  { String     get( final EmailDocument.Context _context ); }
+    private interface BooleanValue { boolean    get( final EmailDocument.Context _context ); }
+
+    private enum Type { NUMBER, STRING, BOOLEAN }
+
+    /** A compiled (sub)expression: its type, its evaluator (one of the three above), and whether it is a constant. */
+    private record Typed( Type type, Object value, boolean constant ) {}
+
+    private enum Operator {
+        ADD( "+" ), SUBTRACT( "-" ), MULTIPLY( "*" ), DIVIDE( "/" ),
+        EQUAL( "=" ), NOT_EQUAL( "!=" ), GREATER( ">" ), LESS( "<" ), GREATER_OR_EQUAL( ">=" ), LESS_OR_EQUAL( "<=" ),
+        AND( "&" ), OR( "|" ), XOR( "^" );
+
+        private final String symbol;
+
+        Operator( final String _symbol ) {
+            symbol = _symbol;
+        }
+
+        private boolean isArithmetic() { return (this == SUBTRACT) || (this == MULTIPLY) || (this == DIVIDE); }
+        private boolean isLogical()    { return (this == AND) || (this == OR) || (this == XOR); }
+    }
+
+
+    /*
+     * The parse tree, before type checking...
+     */
+
+    private sealed interface Node permits NumberLiteral, StringLiteral, Property, Binary {}
+    private record NumberLiteral( BigDecimal value ) implements Node {}
+    private record StringLiteral( String value ) implements Node {}
+    private record Property( String name, boolean numeric ) implements Node {}
+    private record Binary( Operator operator, Node left, Node right ) implements Node {}
+
+
+    /**
+     * Parses and type checks a test expression, producing its evaluator tree.
+     */
+    private static final class Compiler {
+
+        private final String   source;
+        private final Collator collator;
+
+        private int            pos;
+        private Integer        precision;     // the power of ten to round arithmetic results to, or null if not specified...
+
+
+        private Compiler( final String _source, final Collator _collator ) {
+            source   = _source;
+            collator = _collator;
+        }
+
+
+        private Typed compile() {
+
+            Node tree = expression();
+            skipWhitespace();
+            if( pos < source.length() )
+                throw error( "Unexpected character" );
+            return build( tree, null );
+        }
+
+
+        /*
+         * Parsing...
+         */
+
+        private Node expression() {
+
+            Node left = operand();
+            Operator operator;
+            while( (operator = operator()) != null )
+                left = new Binary( operator, left, operand() );
+            return left;
+        }
+
+
+        private Node operand() {
+
+            skipWhitespace();
+            if( pos >= source.length() )
+                throw error( "Missing operand" );
+            char c = source.charAt( pos );
+
+            // a parenthesized negative number, like (44.32)...
+            if( c == '(' ) {
+                int close = source.indexOf( ')', pos );
+                if( close > 0 ) {
+                    BigDecimal number = parseNumber( source.substring( pos, close + 1 ) );
+                    if( number != null ) {
+                        pos = close + 1;
+                        return new NumberLiteral( number );
+                    }
+                }
+
+                // otherwise it's a parenthesized subexpression...
+                pos++;
+                Node result = expression();
+                skipWhitespace();
+                if( (pos >= source.length()) || (source.charAt( pos ) != ')') )
+                    throw error( "Missing closing parenthesis" );
+                pos++;
+                return result;
+            }
+
+            // a string literal...
+            if( c == '\'' ) {
+                StringBuilder value = new StringBuilder();
+                pos++;
+                while( true ) {
+                    if( (pos >= source.length()) || (source.charAt( pos ) == '\n') )
+                        throw error( "Unterminated string literal" );
+                    char sc = source.charAt( pos++ );
+                    if( sc == '\'' )
+                        break;
+                    if( (sc == '\\') && (pos < source.length()) )
+                        sc = source.charAt( pos++ );
+                    value.append( sc );
+                }
+                return new StringLiteral( value.toString() );
+            }
+
+            // a numeric literal, possibly with a leading or trailing minus sign...
+            if( isDigit( c ) || (c == '.') || ((c == '-') && (pos + 1 < source.length()) && (isDigit( source.charAt( pos + 1 ) ) || (source.charAt( pos + 1 ) == '.'))) ) {
+                int start = pos++;
+                while( (pos < source.length()) && (isDigit( source.charAt( pos ) ) || (source.charAt( pos ) == '.')) )
+                    pos++;
+
+                // a trailing minus sign is part of the number only if it isn't followed by something that could be an operand...
+                if( (pos < source.length()) && (source.charAt( pos ) == '-') && (source.charAt( start ) != '-')
+                        && ((pos + 1 >= source.length()) || !isOperandStart( source.charAt( pos + 1 ) )) )
+                    pos++;
+
+                BigDecimal number = parseNumber( source.substring( start, pos ) );
+                if( number == null )
+                    throw error( "Invalid numeric literal: " + source.substring( start, pos ) );
+                precisionSuffix();
+                return new NumberLiteral( number );
+            }
+
+            // a property name, possibly suffixed with a "#" to force it to be numeric...
+            if( Character.isLetter( c ) ) {
+                int start = pos++;
+                while( (pos < source.length()) && (Character.isLetterOrDigit( source.charAt( pos ) ) || (source.charAt( pos ) == '_')) )
+                    pos++;
+                String name = source.substring( start, pos );
+                boolean numeric = (pos < source.length()) && (source.charAt( pos ) == '#');
+                if( numeric )
+                    pos++;
+                precisionSuffix();
+                return new Property( name, numeric );
+            }
+
+            throw error( "Unexpected character" );
+        }
+
+
+        /**
+         * Parse the next operator, returning {@code null} if we're at the end of the expression or a closing parenthesis.
+         */
+        private Operator operator() {
+
+            precisionSuffix();
+            skipWhitespace();
+            if( (pos >= source.length()) || (source.charAt( pos ) == ')') )
+                return null;
+
+            // try the two character operators first...
+            for( Operator operator : Operator.values() )
+                if( (operator.symbol.length() == 2) && source.startsWith( operator.symbol, pos ) ) {
+                    pos += 2;
+                    return operator;
+                }
+            for( Operator operator : Operator.values() )
+                if( source.startsWith( operator.symbol, pos ) ) {
+                    pos++;
+                    return operator;
+                }
+            throw error( "Expected an operator" );
+        }
+
+
+        /**
+         * Parse a precision specification (an integer in square brackets), if there is one at the current position.
+         */
+        private void precisionSuffix() {
+
+            skipWhitespace();
+            if( (pos >= source.length()) || (source.charAt( pos ) != '[') )
+                return;
+            int close = source.indexOf( ']', pos );
+            if( close < 0 )
+                throw error( "Missing closing square bracket" );
+            if( precision != null )
+                throw error( "Only one precision may be specified" );
+            try {
+                precision = Integer.parseInt( source.substring( pos + 1, close ).strip() );
+            }
+            catch( NumberFormatException _e ) {
+                throw error( "Precision must be an integer" );
+            }
+            pos = close + 1;
+        }
+
+
+        private void skipWhitespace() {
+            while( (pos < source.length()) && Character.isWhitespace( source.charAt( pos ) ) )
+                pos++;
+        }
+
+
+        private static boolean isDigit( final char _c ) {
+            return (_c >= '0') && (_c <= '9');
+        }
+
+
+        private static boolean isOperandStart( final char _c ) {
+            return isDigit( _c ) || Character.isLetter( _c ) || (_c == '.') || (_c == '(') || (_c == '\'');
+        }
+
+
+        private IllegalArgumentException error( final String _message ) {
+            return new IllegalArgumentException( _message + " at position " + pos + " in test expression: " + source );
+        }
+
+
+        /*
+         * Type checking and building the evaluators...
+         */
+
+        /**
+         * Build the evaluator for the given node.  The given type is what the node's value is required to be, or {@code null} if any type is
+         * acceptable.  Properties take whatever type is required of them, defaulting to string.
+         */
+        private Typed build( final Node _node, final Type _required ) {
+
+            Typed result;
+            if( _node instanceof NumberLiteral literal )
+                result = constant( Type.NUMBER, literal.value );
+            else if( _node instanceof StringLiteral literal )
+                result = constant( Type.STRING, literal.value );
+            else if( _node instanceof Property property )
+                result = property( property, _required );
+            else
+                result = binary( (Binary) _node );
+
+            if( (_required != null) && (result.type != _required) )
+                throw new IllegalArgumentException( "Expected a " + _required.name().toLowerCase() + " but found a "
+                        + result.type.name().toLowerCase() + " in test expression: " + source );
+            return result;
+        }
+
+
+        private Typed property( final Property _property, final Type _required ) {
+
+            String name = _property.name;
+            if( _property.numeric || (_required == Type.NUMBER) )
+                return new Typed( Type.NUMBER, (NumberValue) (context) -> context.number( name ), false );
+            if( _required == Type.BOOLEAN )
+                throw new IllegalArgumentException( "Property '" + name + "' can't be used as a test in test expression: " + source );
+            return new Typed( Type.STRING, (StringValue) (context) -> context.property( name ), false );
+        }
+
+
+        private Typed binary( final Binary _binary ) {
+
+            Operator operator = _binary.operator;
+
+            // figure out what type our operands must be...
+            Type operandType;
+            if( operator.isArithmetic() )
+                operandType = Type.NUMBER;
+            else if( operator.isLogical() )
+                operandType = Type.BOOLEAN;
+            else {
+                // for + and the comparisons, the operands must be the same type; properties take the type of the other side (or string)...
+                Type left  = naturalType( _binary.left  );
+                Type right = naturalType( _binary.right );
+                operandType = (left != null) ? left : (right != null) ? right : Type.STRING;
+                if( (operator == Operator.ADD) && (operandType == Type.BOOLEAN) )
+                    throw new IllegalArgumentException( "Can't add tests in test expression: " + source );
+                if( (operandType == Type.BOOLEAN) && (operator != Operator.EQUAL) && (operator != Operator.NOT_EQUAL) )
+                    throw new IllegalArgumentException( "Tests may only be compared with = or != in test expression: " + source );
+            }
+
+            Typed left  = build( _binary.left,  operandType );
+            Typed right = build( _binary.right, operandType );
+            Typed result = switch( operandType ) {
+                case NUMBER  -> numeric( operator, (NumberValue) left.value, (NumberValue) right.value );
+                case STRING  -> string( operator, (StringValue) left.value, (StringValue) right.value );
+                case BOOLEAN -> logical( operator, (BooleanValue) left.value, (BooleanValue) right.value );
+            };
+
+            // if both operands are constants, so is the result -- so evaluate it now...
+            if( left.constant && right.constant ) {
+                Object value = switch( result.type ) {
+                    case NUMBER  -> ((NumberValue) result.value).get( null );
+                    case STRING  -> ((StringValue) result.value).get( null );
+                    case BOOLEAN -> ((BooleanValue) result.value).get( null );
+                };
+                return constant( result.type, value );
+            }
+            return result;
+        }
+
+
+        /**
+         * Returns the type the given node has regardless of context, or {@code null} if it's a property that takes its type from its context.
+         */
+        private Type naturalType( final Node _node ) {
+
+            if( _node instanceof NumberLiteral )
+                return Type.NUMBER;
+            if( _node instanceof StringLiteral )
+                return Type.STRING;
+            if( _node instanceof Property property )
+                return property.numeric ? Type.NUMBER : null;
+            Binary binary = (Binary) _node;
+            return binary.operator.isArithmetic() ? Type.NUMBER
+                    : (binary.operator == Operator.ADD) ? addType( binary )
+                    : Type.BOOLEAN;
+        }
+
+
+        private Type addType( final Binary _binary ) {
+            Type left = naturalType( _binary.left );
+            return (left != null) ? left : naturalType( _binary.right );
+        }
+
+
+        private Typed numeric( final Operator _operator, final NumberValue _left, final NumberValue _right ) {
+
+            return switch( _operator ) {
+                case ADD              -> arithmetic( (context) -> _left.get( context ).add(      _right.get( context ) ) );
+                case SUBTRACT         -> arithmetic( (context) -> _left.get( context ).subtract( _right.get( context ) ) );
+                case MULTIPLY         -> arithmetic( (context) -> _left.get( context ).multiply( _right.get( context ) ) );
+                case DIVIDE           -> arithmetic( (context) -> divide( _left.get( context ), _right.get( context ) ) );
+                case EQUAL            -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) == 0 );
+                case NOT_EQUAL        -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) != 0 );
+                case GREATER          -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) >  0 );
+                case LESS             -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) <  0 );
+                case GREATER_OR_EQUAL -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) >= 0 );
+                case LESS_OR_EQUAL    -> test( (context) -> _left.get( context ).compareTo( _right.get( context ) ) <= 0 );
+                default               -> throw new IllegalStateException( "Operator not numeric: " + _operator.symbol );
+            };
+        }
+
+
+        private Typed string( final Operator _operator, final StringValue _left, final StringValue _right ) {
+
+            return switch( _operator ) {
+                case ADD              -> new Typed( Type.STRING, (StringValue) (context) -> _left.get( context ) + _right.get( context ), false );
+                case EQUAL            -> test( (context) ->  _left.get( context ).equals( _right.get( context ) ) );
+                case NOT_EQUAL        -> test( (context) -> !_left.get( context ).equals( _right.get( context ) ) );
+                case GREATER          -> test( (context) -> collator.compare( _left.get( context ), _right.get( context ) ) >  0 );
+                case LESS             -> test( (context) -> collator.compare( _left.get( context ), _right.get( context ) ) <  0 );
+                case GREATER_OR_EQUAL -> test( (context) -> collator.compare( _left.get( context ), _right.get( context ) ) >= 0 );
+                case LESS_OR_EQUAL    -> test( (context) -> collator.compare( _left.get( context ), _right.get( context ) ) <= 0 );
+                default               -> throw new IllegalStateException( "Operator not for strings: " + _operator.symbol );
+            };
+        }
+
+
+        private Typed logical( final Operator _operator, final BooleanValue _left, final BooleanValue _right ) {
+
+            return switch( _operator ) {
+                case AND            -> test( (context) -> _left.get( context ) && _right.get( context ) );
+                case OR             -> test( (context) -> _left.get( context ) || _right.get( context ) );
+                case XOR, NOT_EQUAL -> test( (context) -> _left.get( context ) ^ _right.get( context ) );
+                case EQUAL          -> test( (context) -> _left.get( context ) == _right.get( context ) );
+                default             -> throw new IllegalStateException( "Operator not for tests: " + _operator.symbol );
+            };
+        }
+
+
+        private Typed arithmetic( final NumberValue _value ) {
+
+            // if a precision was specified, round every arithmetic result to it...
+            if( precision == null )
+                return new Typed( Type.NUMBER, _value, false );
+            int scale = -precision;
+            return new Typed( Type.NUMBER, (NumberValue) (context) -> _value.get( context ).setScale( scale, RoundingMode.HALF_UP ), false );
+        }
+
+
+        private static BigDecimal divide( final BigDecimal _dividend, final BigDecimal _divisor ) {
+            if( _divisor.signum() == 0 )
+                throw new IllegalArgumentException( "Division by zero in test expression" );
+            return _dividend.divide( _divisor, MathContext.DECIMAL64 );
+        }
+
+
+        private static Typed test( final BooleanValue _value ) {
+            return new Typed( Type.BOOLEAN, _value, false );
+        }
+
+
+        private static Typed constant( final Type _type, final Object _value ) {
+            return switch( _type ) {
+                case NUMBER  -> new Typed( _type, (NumberValue)  (context) -> (BigDecimal) _value, true );
+                case STRING  -> new Typed( _type, (StringValue)  (context) -> (String) _value,     true );
+                case BOOLEAN -> { boolean value = (Boolean) _value; yield new Typed( _type, (BooleanValue) (context) -> value, true ); }
+            };
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.dilatush.email;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests of {@link HTMLToText}'s handling of the document head.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+class HTMLToTextTest {
+
+    @Test
+    void headWithEndTag() {
+        assertEquals( "Hello there", HTMLToText.convert(
+                "<html><head><title>Greeting</title><style>p { color: red; }</style></head><body><p>Hello there</p></body></html>" ) );
+    }
+
+
+    @Test
+    void headWithoutEndTag() {
+        assertEquals( "Hello there\n\nGoodbye", HTMLToText.convert(
+                "<html><head><meta charset=utf-8><title>Greeting</title><body><p>Hello there</p><p>Goodbye</p></body></html>" ) );
+    }
+
+
+    @Test
+    void headWithoutEndTagOrBody() {
+        assertEquals( "Hello there", HTMLToText.convert( "<html><head><meta charset=utf-8><link rel=stylesheet href=a.css><p>Hello there" ) );
+    }
+}